@@ -0,0 +1,192 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.benchmarks.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ParseException;
+
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Creates the messages, recipients and attributes used by the benchmarks. All
+ * data is created from a fixed seed, so every run uses the same data.
+ */
+public class BenchmarkData {
+
+    private final static byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private final static byte[] CRLF = { '\r', '\n' };
+    private final static int LINE_LENGTH = 76;
+    private final static String BOUNDARY = "----=_Part_0_benchmark";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Create the raw bytes of a message with roughly the given size. If
+     * attachments is bigger then 0 a multipart/mixed message with a text part
+     * and the given count of base64 encoded attachments is created, which
+     * share the size equally.
+     * 
+     * @param size
+     *            the size of the message in bytes
+     * @param attachments
+     *            the count of attachments
+     * @return message
+     */
+    public static byte[] createMessage(int size, int attachments) {
+        try {
+            Random random = new Random(size * 31 + attachments);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size + 1024);
+            writeLine(out, "Return-Path: <sender@james.apache.org>");
+            writeLine(out, "Received: from localhost (127.0.0.1) by james.apache.org with SMTP ID 42");
+            writeLine(out, "Message-ID: <benchmark-" + size + "-" + attachments + "@james.apache.org>");
+            writeLine(out, "Date: Mon, 1 Aug 2011 10:00:00 +0200");
+            writeLine(out, "From: sender@james.apache.org");
+            writeLine(out, "To: rcpt@james.apache.org");
+            writeLine(out, "Subject: benchmark message");
+            writeLine(out, "MIME-Version: 1.0");
+            if (attachments <= 0) {
+                writeLine(out, "Content-Type: text/plain; charset=us-ascii");
+                writeLine(out, "");
+                writeBody(out, random, size - out.size());
+            } else {
+                writeLine(out, "Content-Type: multipart/mixed; boundary=\"" + BOUNDARY + "\"");
+                writeLine(out, "");
+                writeLine(out, "--" + BOUNDARY);
+                writeLine(out, "Content-Type: text/plain; charset=us-ascii");
+                writeLine(out, "");
+                writeLine(out, "The attachments of this message are random data.");
+
+                int partSize = Math.max(0, (size - out.size()) / attachments);
+                for (int i = 0; i < attachments; i++) {
+                    writeLine(out, "--" + BOUNDARY);
+                    writeLine(out, "Content-Type: application/octet-stream; name=\"attachment" + i + ".bin\"");
+                    writeLine(out, "Content-Transfer-Encoding: base64");
+                    writeLine(out, "Content-Disposition: attachment; filename=\"attachment" + i + ".bin\"");
+                    writeLine(out, "");
+                    writeBody(out, random, partSize);
+                }
+                writeLine(out, "--" + BOUNDARY + "--");
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            // should never happen for in memory streams
+            throw new RuntimeException("Unable to create message", e);
+        }
+    }
+
+    /**
+     * Create a {@link MimeMessageInputStreamSource} which contains the given
+     * data
+     * 
+     * @param key
+     * @param data
+     * @return source
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public static MimeMessageInputStreamSource createSource(String key, byte[] data) throws MessagingException, IOException {
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource(key);
+        OutputStream out = source.getWritableOutputStream();
+        out.write(data);
+        out.close();
+        return source;
+    }
+
+    /**
+     * Create the given count of attributes with values of the types commonly
+     * used by the mailets
+     * 
+     * @param count
+     * @return attributes
+     */
+    public static HashMap createAttributes(int count) {
+        HashMap attributes = new HashMap();
+        for (int i = 0; i < count; i++) {
+            String name = "org.apache.james.benchmark.attribute" + i;
+            switch (i % 4) {
+            case 0:
+                attributes.put(name, "value" + i);
+                break;
+            case 1:
+                attributes.put(name, new Integer(i));
+                break;
+            case 2:
+                attributes.put(name, new Date(i * 1000L));
+                break;
+            default:
+                List<String> list = new ArrayList<String>();
+                list.add("value" + i);
+                list.add("other" + i);
+                attributes.put(name, list);
+                break;
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Create the given count of recipients
+     * 
+     * @param count
+     * @return recipients
+     */
+    public static Collection<MailAddress> createRecipients(int count) {
+        try {
+            List<MailAddress> recipients = new ArrayList<MailAddress>(count);
+            for (int i = 0; i < count; i++) {
+                recipients.add(new MailAddress("rcpt" + i + "@james.apache.org"));
+            }
+            return recipients;
+        } catch (ParseException e) {
+            throw new RuntimeException("Invalid recipient", e);
+        }
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, String line) throws IOException {
+        out.write(line.getBytes("US-ASCII"));
+        out.write(CRLF);
+    }
+
+    private static void writeBody(ByteArrayOutputStream out, Random random, int size) {
+        byte[] line = new byte[LINE_LENGTH];
+        int written = 0;
+        while (written < size) {
+            int length = Math.min(LINE_LENGTH, Math.max(1, size - written - CRLF.length));
+            for (int i = 0; i < length; i++) {
+                line[i] = BASE64[random.nextInt(BASE64.length)];
+            }
+            out.write(line, 0, length);
+            out.write(CRLF, 0, CRLF.length);
+            written += length + CRLF.length;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.benchmarks.core;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the construction and {@link MailImpl#duplicate()} of
+ * {@link MailImpl}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MailImplBenchmark {
+
+    @Param({ "1024", "10240", "1048576", "26214400" })
+    public int messageSize;
+
+    @Param({ "0", "1", "10" })
+    public int attachments;
+
+    @Param({ "0", "10", "100" })
+    public int attributes;
+
+    private ReusableMimeMessageSource source;
+    private MimeMessageCopyOnWriteProxy message;
+    private MailImpl mail;
+    private MailAddress sender;
+    private Collection<MailAddress> recipients;
+    private HashMap attributeMap;
+
+    @Setup
+    public void setUp() throws Exception {
+        source = new ReusableMimeMessageSource(BenchmarkData.createSource("benchmark", BenchmarkData.createMessage(messageSize, attachments)));
+        message = new MimeMessageCopyOnWriteProxy(source);
+        sender = new MailAddress("sender@james.apache.org");
+        recipients = BenchmarkData.createRecipients(5);
+        attributeMap = BenchmarkData.createAttributes(attributes);
+
+        mail = new MailImpl("benchmark", sender, recipients, message);
+        mail.setAttributesRaw(new HashMap(attributeMap));
+    }
+
+    @TearDown
+    public void tearDown() {
+        LifecycleUtil.dispose(mail);
+        LifecycleUtil.dispose(message);
+        source.release();
+    }
+
+    @Benchmark
+    public Mail create() throws Exception {
+        MailImpl created = new MailImpl(MailImpl.getId(), sender, recipients, message);
+        created.setAttributesRaw(new HashMap(attributeMap));
+        LifecycleUtil.dispose(created);
+        return created;
+    }
+
+    @Benchmark
+    public Mail duplicate() throws Exception {
+        Mail duplicate = mail.duplicate();
+        LifecycleUtil.dispose(duplicate);
+        return duplicate;
+    }
+
+    @Benchmark
+    public Mail duplicateAndModify() throws Exception {
+        // a duplicate which gets modified by a mailet has to copy the message
+        Mail duplicate = mail.duplicate();
+        try {
+            duplicate.getMessage().setHeader("X-Benchmark", "modified");
+        } finally {
+            LifecycleUtil.dispose(duplicate);
+        }
+        return duplicate;
+    }
+}
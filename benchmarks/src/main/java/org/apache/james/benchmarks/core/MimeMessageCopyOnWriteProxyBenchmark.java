@@ -0,0 +1,128 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.benchmarks.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the read and write paths of {@link MimeMessageCopyOnWriteProxy}.
+ * Every benchmark takes a new reference to the same message, like a mail which
+ * gets duplicated for a mailet, and releases it again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MimeMessageCopyOnWriteProxyBenchmark {
+
+    @Param({ "1024", "10240", "1048576", "26214400" })
+    public int messageSize;
+
+    @Param({ "0", "1", "10" })
+    public int attachments;
+
+    private ReusableMimeMessageSource source;
+    private MimeMessageCopyOnWriteProxy message;
+
+    @Setup
+    public void setUp() throws Exception {
+        source = new ReusableMimeMessageSource(BenchmarkData.createSource("benchmark", BenchmarkData.createMessage(messageSize, attachments)));
+        message = new MimeMessageCopyOnWriteProxy(source);
+        // load the headers once, like a message which was already processed
+        message.getSubject();
+    }
+
+    @TearDown
+    public void tearDown() {
+        LifecycleUtil.dispose(message);
+        source.release();
+    }
+
+    @Benchmark
+    public String readHeader() throws Exception {
+        MimeMessageCopyOnWriteProxy copy = new MimeMessageCopyOnWriteProxy(message);
+        try {
+            return copy.getSubject();
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+
+    @Benchmark
+    public void readWriteTo() throws Exception {
+        MimeMessageCopyOnWriteProxy copy = new MimeMessageCopyOnWriteProxy(message);
+        try {
+            copy.writeTo(new NullOutputStream());
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String concurrentReadHeader() throws Exception {
+        MimeMessageCopyOnWriteProxy copy = new MimeMessageCopyOnWriteProxy(message);
+        try {
+            return copy.getSubject();
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+
+    @Benchmark
+    public void writeHeader() throws Exception {
+        MimeMessageCopyOnWriteProxy copy = new MimeMessageCopyOnWriteProxy(message);
+        try {
+            copy.setHeader("X-Benchmark", "modified");
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+
+    @Benchmark
+    public void writeHeaderAndWriteTo() throws Exception {
+        MimeMessageCopyOnWriteProxy copy = new MimeMessageCopyOnWriteProxy(message);
+        try {
+            copy.setHeader("X-Benchmark", "modified");
+            copy.writeTo(new NullOutputStream());
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+}
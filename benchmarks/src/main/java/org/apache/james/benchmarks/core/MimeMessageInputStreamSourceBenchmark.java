@@ -0,0 +1,107 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.benchmarks.core;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for writing and reading a {@link MimeMessageInputStreamSource}.
+ * The sizes around the 100kb threshold show the cost of spilling the data to a
+ * temporary file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MimeMessageInputStreamSourceBenchmark {
+
+    @Param({ "1024", "10240", "97280", "107520", "1048576", "26214400" })
+    public int messageSize;
+
+    @Param({ "8192" })
+    public int chunkSize;
+
+    private byte[] data;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() {
+        data = BenchmarkData.createMessage(messageSize, 0);
+        buffer = new byte[chunkSize];
+    }
+
+    private MimeMessageInputStreamSource writeSource() throws Exception {
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("benchmark");
+        OutputStream out = source.getWritableOutputStream();
+        // write in chunks like the protocol handlers do
+        for (int i = 0; i < data.length; i += chunkSize) {
+            out.write(data, i, Math.min(chunkSize, data.length - i));
+        }
+        out.close();
+        return source;
+    }
+
+    @Benchmark
+    public long write() throws Exception {
+        MimeMessageInputStreamSource source = writeSource();
+        try {
+            return source.getMessageSize();
+        } finally {
+            source.dispose();
+        }
+    }
+
+    @Benchmark
+    public long writeAndRead() throws Exception {
+        MimeMessageInputStreamSource source = writeSource();
+        try {
+            long count = 0;
+            InputStream in = source.getInputStream();
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    count += read;
+                }
+            } finally {
+                in.close();
+            }
+            return count;
+        } finally {
+            source.dispose();
+        }
+    }
+}
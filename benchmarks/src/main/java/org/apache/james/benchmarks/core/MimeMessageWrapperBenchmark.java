@@ -0,0 +1,130 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.benchmarks.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.james.core.MimeMessageWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the lazy loading of {@link MimeMessageWrapper}. Every
+ * benchmark except {@link #sharedReads()} uses a new wrapper, so the loading
+ * is part of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MimeMessageWrapperBenchmark {
+
+    @Param({ "1024", "10240", "1048576", "26214400" })
+    public int messageSize;
+
+    @Param({ "0", "1", "10" })
+    public int attachments;
+
+    private ReusableMimeMessageSource source;
+    private MimeMessageWrapper shared;
+    private File target;
+
+    @Setup
+    public void setUp() throws Exception {
+        source = new ReusableMimeMessageSource(BenchmarkData.createSource("benchmark", BenchmarkData.createMessage(messageSize, attachments)));
+        shared = new MimeMessageWrapper(source);
+        target = File.createTempFile("benchmark", ".eml");
+    }
+
+    @TearDown
+    public void tearDown() {
+        source.release();
+        target.delete();
+    }
+
+    @Benchmark
+    public String loadHeaders() throws Exception {
+        return new MimeMessageWrapper(source).getSubject();
+    }
+
+    @Benchmark
+    public Object parseMessage() throws Exception {
+        MimeMessageWrapper message = new MimeMessageWrapper(source);
+        message.loadMessage();
+        return message;
+    }
+
+    @Benchmark
+    public int getSize() throws Exception {
+        return new MimeMessageWrapper(source).getSize();
+    }
+
+    @Benchmark
+    public int getLineCount() throws Exception {
+        return new MimeMessageWrapper(source).getLineCount();
+    }
+
+    @Benchmark
+    public void writeToStream() throws Exception {
+        new MimeMessageWrapper(source).writeTo(new NullOutputStream());
+    }
+
+    @Benchmark
+    public void writeToFile() throws Exception {
+        // uses the channel transfer for file backed sources
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            new MimeMessageWrapper(source).writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Benchmark
+    public void writeModifiedHeaders() throws Exception {
+        MimeMessageWrapper message = new MimeMessageWrapper(source);
+        message.setHeader("X-Benchmark", "modified");
+        message.writeTo(new NullOutputStream());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int sharedReads() throws Exception {
+        // concurrent reads of the same unmodified message
+        shared.writeTo(new NullOutputStream());
+        return shared.getSize() + shared.getHeader("Subject").length;
+    }
+}
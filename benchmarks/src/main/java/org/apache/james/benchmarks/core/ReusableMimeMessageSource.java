@@ -0,0 +1,113 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.benchmarks.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.james.core.MimeMessageMetaData;
+
+/**
+ * {@link MimeMessageInputStreamSource} which serves the data of another,
+ * already written {@link MimeMessageInputStreamSource} with the same kind of
+ * streams, file and meta data.
+ * 
+ * A {@link MimeMessageInputStreamSource} keeps every stream it handed out
+ * until it gets disposed, so using one for millions of invocations lets the
+ * heap grow with the invocation count. This source does not keep the streams
+ * and ignores {@link #dispose()}, so it can be used for the whole trial. Call
+ * {@link #release()} to dispose the underlying source.
+ */
+public class ReusableMimeMessageSource extends MimeMessageInputStreamSource {
+
+    private final MimeMessageInputStreamSource source;
+    private final File file;
+    private final byte[] data;
+
+    public ReusableMimeMessageSource(MimeMessageInputStreamSource source) throws MessagingException, IOException {
+        super(source.getSourceId());
+        this.source = source;
+        this.file = source.getFile();
+        if (file == null) {
+            InputStream in = source.getInputStream();
+            try {
+                data = IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } else {
+            data = null;
+        }
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageInputStreamSource#getInputStream()
+     */
+    public InputStream getInputStream() throws IOException {
+        if (file != null) {
+            return new SharedFileInputStream(file);
+        }
+        return new SharedByteArrayInputStream(data);
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageInputStreamSource#getMessageSize()
+     */
+    public long getMessageSize() throws IOException {
+        return source.getMessageSize();
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageInputStreamSource#getFile()
+     */
+    public File getFile() throws IOException {
+        return file;
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageInputStreamSource#getMetaData()
+     */
+    public MimeMessageMetaData getMetaData() {
+        return source.getMetaData();
+    }
+
+    /**
+     * Do nothing, the source is released with {@link #release()}
+     * 
+     * @see org.apache.james.core.MimeMessageInputStreamSource#dispose()
+     */
+    public void dispose() {
+    }
+
+    /**
+     * Dispose the underlying source
+     */
+    public void release() {
+        super.dispose();
+        source.dispose();
+    }
+}
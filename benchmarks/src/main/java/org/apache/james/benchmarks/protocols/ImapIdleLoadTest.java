@@ -0,0 +1,311 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.benchmarks.protocols;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Load generator which holds many concurrent IMAP IDLE sessions open against
+ * a server, to compare the servers with platform and with virtual worker
+ * threads. Every session logs in, selects the INBOX and then idles until the
+ * hold time elapsed. All sessions are served by a single selector thread, so
+ * the generator itself stays small even with 50000 sessions.
+ * <p>
+ * Run it from the benchmarks module with
+ * 
+ * <pre>
+ * java -cp target/classes org.apache.james.benchmarks.protocols.ImapIdleLoadTest \
+ *     -host 127.0.0.1 -port 143 -sessions 50000 -user user%d@localhost -password secret \
+ *     -bind 127.0.0.2,127.0.0.3 -rate 1000 -hold 300
+ * </pre>
+ * 
+ * The user name is formatted with the number of the session, so the users
+ * <code>user0@localhost</code> to <code>user49999@localhost</code> need to
+ * exist, or the server needs an authenticator which accepts them. Every local
+ * address given by <code>-bind</code> gives another range of ephemeral ports,
+ * which a single address runs out of at about 28000 connections. The open file
+ * limits of both the generator and the server need to be raised as well.
+ */
+public class ImapIdleLoadTest {
+
+    private final static Charset ASCII = Charset.forName("US-ASCII");
+
+    private final static int CONNECTING = 0;
+    private final static int GREETING = 1;
+    private final static int LOGIN = 2;
+    private final static int SELECT = 3;
+    private final static int IDLE = 4;
+    private final static int IDLING = 5;
+
+    private String host = "127.0.0.1";
+    private int port = 143;
+    private int sessions = 1000;
+    private String user = "user%d@localhost";
+    private String password = "secret";
+    private String[] bindAddresses = new String[0];
+    private int rate = 500;
+    private int hold = 60;
+
+    private int opened;
+    private int connected;
+    private int idling;
+    private int failed;
+
+    private final class Session {
+        private final int number;
+        private final SocketChannel channel;
+        private final StringBuilder line = new StringBuilder();
+        private final ByteBuffer out = ByteBuffer.allocate(256);
+        private int state = CONNECTING;
+
+        private Session(int number, SocketChannel channel) {
+            this.number = number;
+            this.channel = channel;
+            out.flip();
+        }
+
+        private void send(String command) {
+            out.compact();
+            out.put(command.getBytes(ASCII));
+            out.flip();
+        }
+
+        /**
+         * Handle a line received from the server
+         */
+        private void onLine(String response) throws IOException {
+            switch (state) {
+            case GREETING:
+                if (!response.startsWith("* OK")) {
+                    throw new IOException("Unexpected greeting " + response);
+                }
+                send("a1 LOGIN " + String.format(user, number) + " " + password + "\r\n");
+                state = LOGIN;
+                break;
+            case LOGIN:
+                if (response.startsWith("a1 ")) {
+                    expectOk(response);
+                    send("a2 SELECT INBOX\r\n");
+                    state = SELECT;
+                }
+                break;
+            case SELECT:
+                if (response.startsWith("a2 ")) {
+                    expectOk(response);
+                    send("a3 IDLE\r\n");
+                    state = IDLE;
+                }
+                break;
+            case IDLE:
+                if (response.startsWith("+ ")) {
+                    state = IDLING;
+                    idling++;
+                } else if (response.startsWith("a3 ")) {
+                    throw new IOException("IDLE failed " + response);
+                }
+                break;
+            default:
+                // untagged updates while idling
+                break;
+            }
+        }
+
+        private void expectOk(String response) throws IOException {
+            if (!response.substring(3).startsWith("OK")) {
+                throw new IOException("Command failed " + response);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ImapIdleLoadTest test = new ImapIdleLoadTest();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String name = args[i];
+            String value = args[i + 1];
+            if ("-host".equals(name)) {
+                test.host = value;
+            } else if ("-port".equals(name)) {
+                test.port = Integer.parseInt(value);
+            } else if ("-sessions".equals(name)) {
+                test.sessions = Integer.parseInt(value);
+            } else if ("-user".equals(name)) {
+                test.user = value;
+            } else if ("-password".equals(name)) {
+                test.password = value;
+            } else if ("-bind".equals(name)) {
+                test.bindAddresses = value.split(",");
+            } else if ("-rate".equals(name)) {
+                test.rate = Integer.parseInt(value);
+            } else if ("-hold".equals(name)) {
+                test.hold = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        test.run();
+    }
+
+    /**
+     * Open the sessions at the configured rate, hold them for the configured
+     * time and print the progress every second
+     */
+    public void run() throws IOException {
+        Selector selector = Selector.open();
+        List<Session> all = new ArrayList<Session>(sessions);
+        ByteBuffer in = ByteBuffer.allocate(8192);
+        long start = System.nanoTime();
+        long lastReport = start;
+        long holdUntil = Long.MAX_VALUE;
+
+        try {
+            while (System.nanoTime() < holdUntil) {
+                long now = System.nanoTime();
+
+                // open the sessions which are due by now
+                long due = Math.min(sessions, (now - start) / 1000000L * rate / 1000L + 1);
+                while (opened < due) {
+                    open(selector, all);
+                }
+                if (opened == sessions && holdUntil == Long.MAX_VALUE && idling + failed == sessions) {
+                    holdUntil = now + hold * 1000000000L;
+                }
+
+                selector.select(10);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Session session = (Session) key.attachment();
+                    try {
+                        handle(key, session, in);
+                    } catch (IOException e) {
+                        fail(session, e);
+                    }
+                }
+
+                if (now - lastReport >= 1000000000L) {
+                    lastReport = now;
+                    report(now - start);
+                }
+            }
+        } finally {
+            report(System.nanoTime() - start);
+            for (Session session : all) {
+                try {
+                    session.channel.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+            selector.close();
+        }
+    }
+
+    private void open(Selector selector, List<Session> all) {
+        int number = opened++;
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (bindAddresses.length > 0) {
+                channel.socket().bind(new InetSocketAddress(bindAddresses[number % bindAddresses.length], 0));
+            }
+            Session session = new Session(number, channel);
+            all.add(session);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                session.state = GREETING;
+                connected++;
+                channel.register(selector, SelectionKey.OP_READ, session);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, session);
+            }
+        } catch (IOException e) {
+            failed++;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e1) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
+    private void handle(SelectionKey key, Session session, ByteBuffer in) throws IOException {
+        if (key.isConnectable()) {
+            session.channel.finishConnect();
+            session.state = GREETING;
+            connected++;
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        if (key.isReadable()) {
+            in.clear();
+            int read = session.channel.read(in);
+            if (read < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            in.flip();
+            while (in.hasRemaining()) {
+                char c = (char) in.get();
+                if (c == '\n') {
+                    session.onLine(session.line.toString());
+                    session.line.setLength(0);
+                } else if (c != '\r') {
+                    session.line.append(c);
+                }
+            }
+        }
+        if (session.out.hasRemaining()) {
+            session.channel.write(session.out);
+        }
+        key.interestOps(session.out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void fail(Session session, IOException e) {
+        if (session.state == IDLING) {
+            idling--;
+        }
+        if (session.state != CONNECTING) {
+            connected--;
+        }
+        failed++;
+        if (failed <= 10) {
+            System.err.println("Session " + session.number + " failed: " + e.getMessage());
+        }
+        try {
+            session.channel.close();
+        } catch (IOException e1) {
+            // ignore on close
+        }
+    }
+
+    private void report(long elapsed) {
+        System.out.println(String.format("%6ds opened=%d connected=%d idling=%d failed=%d", elapsed / 1000000000L, opened, connected, idling, failed));
+    }
+}
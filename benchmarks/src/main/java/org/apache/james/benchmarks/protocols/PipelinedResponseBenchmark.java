@@ -0,0 +1,194 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.benchmarks.protocols;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.protocols.lib.netty.WriteCoalescingHandler;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for the {@link WriteCoalescingHandler}. A client sends MAIL,
+ * <code>recipients</code> RCPT and DATA in one packet to a loopback server
+ * with the pipeline of the protocol servers, which answers every line, and
+ * waits for all responses.
+ * <p>
+ * Besides the transactions per second, the <code>writes</code> counter shows
+ * the writes which reached the socket of the server, so the writes per
+ * transaction are the ratio of both. Every write is at least one system call
+ * and, as the responses are not delayed by Nagle's algorithm, mostly one TCP
+ * segment.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class PipelinedResponseBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean coalesce;
+
+    @Param({ "1", "10" })
+    public int recipients;
+
+    private final AtomicLong serverWrites = new AtomicLong();
+
+    private ServerBootstrap bootstrap;
+    private ExecutionHandler executionHandler;
+    private Channel serverChannel;
+
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private byte[] transaction;
+    private final byte[] readBuffer = new byte[8192];
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long writes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            writes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        executionHandler = new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(16, 0, 0));
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("writeCounter", new SimpleChannelDownstreamHandler() {
+                    @Override
+                    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                        serverWrites.incrementAndGet();
+                        super.writeRequested(ctx, e);
+                    }
+                });
+                WriteCoalescingHandler coalescer = coalesce ? new WriteCoalescingHandler() : null;
+                if (coalescer != null) {
+                    pipeline.addLast("writeCoalescingReadHandler", coalescer.getReadHandler());
+                }
+                pipeline.addLast("framer", new DelimiterBasedFrameDecoder(8192, false, Delimiters.lineDelimiter()));
+                if (coalescer != null) {
+                    pipeline.addLast("writeCoalescingCommandHandler", coalescer.getCommandHandler());
+                }
+                pipeline.addLast("executionHandler", executionHandler);
+                if (coalescer != null) {
+                    pipeline.addLast("writeCoalescingHandler", coalescer);
+                }
+                pipeline.addLast("coreHandler", new SimpleChannelUpstreamHandler() {
+                    @Override
+                    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                        ChannelBuffer line = (ChannelBuffer) e.getMessage();
+                        String response = line.readableBytes() >= 4 && line.getByte(line.readerIndex()) == 'D' ? "354 Start mail input; end with <CRLF>.<CRLF>\r\n" : "250 2.1.5 Ok\r\n";
+                        e.getChannel().write(ChannelBuffers.copiedBuffer(response.getBytes("US-ASCII")));
+                    }
+                });
+                return pipeline;
+            }
+        });
+        serverChannel = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        StringBuilder commands = new StringBuilder("MAIL FROM:<sender@example.org>\r\n");
+        for (int i = 0; i < recipients; i++) {
+            commands.append("RCPT TO:<recipient").append(i).append("@example.org>\r\n");
+        }
+        commands.append("DATA\r\n");
+        transaction = commands.toString().getBytes("US-ASCII");
+
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(serverChannel.getLocalAddress());
+        out = socket.getOutputStream();
+        in = socket.getInputStream();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        socket.close();
+        serverChannel.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+        executionHandler.releaseExternalResources();
+    }
+
+    @Benchmark
+    public int transaction(Counters counters) throws IOException {
+        out.write(transaction);
+        out.flush();
+        int lines = 0;
+        while (lines < recipients + 2) {
+            int read = in.read(readBuffer);
+            if (read < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            for (int i = 0; i < read; i++) {
+                if (readBuffer[i] == '\n') {
+                    lines++;
+                }
+            }
+        }
+        counters.writes += serverWrites.getAndSet(0);
+        return lines;
+    }
+}
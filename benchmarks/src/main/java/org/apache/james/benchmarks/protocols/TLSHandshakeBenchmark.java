@@ -0,0 +1,157 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.benchmarks.protocols;
+
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.james.protocols.lib.netty.MeasuredSSLContext;
+import org.apache.james.protocols.lib.netty.TLSHandshakeStats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for full and resumed TLS handshakes between in memory engines,
+ * which shows the CPU time the servers save by resuming sessions. The engines
+ * of the server are created by the {@link MeasuredSSLContext} if
+ * <code>measured</code> is true, so the cost of the handshake statistics can
+ * be compared too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TLSHandshakeBenchmark {
+
+    @Param({ "TLSv1.2", "TLSv1.3" })
+    public String protocol;
+
+    @Param({ "false", "true" })
+    public boolean measured;
+
+    @Param({ "" })
+    public String provider;
+
+    private SSLContext server;
+    private SSLContext client;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(getClass().getResourceAsStream("/benchmark_keystore"), "jamestest".toCharArray());
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, "jamestest".toCharArray());
+        if (provider.length() == 0) {
+            server = SSLContext.getInstance("TLS");
+        } else {
+            server = SSLContext.getInstance("TLS", provider);
+        }
+        server.init(kmf.getKeyManagers(), null, null);
+        if (measured) {
+            server = new MeasuredSSLContext(server, new TLSHandshakeStats(server.getServerSessionContext()));
+        }
+
+        client = SSLContext.getInstance("TLS");
+        client.init(null, new TrustManager[] { new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } }, null);
+
+        // cache the session which gets resumed
+        handshake(client.createSSLEngine("resumed", 25));
+    }
+
+    @Benchmark
+    public SSLEngine fullHandshake() throws Exception {
+        // the client caches no sessions of engines without a peer
+        return handshake(client.createSSLEngine());
+    }
+
+    @Benchmark
+    public SSLEngine resumedHandshake() throws Exception {
+        return handshake(client.createSSLEngine("resumed", 25));
+    }
+
+    private SSLEngine handshake(SSLEngine clientEngine) throws Exception {
+        SSLEngine serverEngine = server.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        clientEngine.setUseClientMode(true);
+        clientEngine.setEnabledProtocols(new String[] { protocol });
+
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer toServer = ByteBuffer.allocate(clientEngine.getSession().getPacketBufferSize());
+        ByteBuffer toClient = ByteBuffer.allocate(serverEngine.getSession().getPacketBufferSize());
+        ByteBuffer app = ByteBuffer.allocate(serverEngine.getSession().getApplicationBufferSize());
+        clientEngine.beginHandshake();
+        for (int i = 0; i < 100; i++) {
+            clientEngine.wrap(empty, toServer);
+            runTasks(clientEngine);
+            toServer.flip();
+            serverEngine.unwrap(toServer, app);
+            runTasks(serverEngine);
+            toServer.compact();
+
+            serverEngine.wrap(empty, toClient);
+            runTasks(serverEngine);
+            toClient.flip();
+            clientEngine.unwrap(toClient, app);
+            runTasks(clientEngine);
+            toClient.compact();
+
+            if (clientEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING && serverEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING && toServer.position() == 0 && toClient.position() == 0) {
+                return serverEngine;
+            }
+        }
+        throw new IllegalStateException("Handshake did not complete");
+    }
+
+    private void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.ParseException;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * <p>
+ * Compact and versioned binary format for the envelope of a {@link Mail}: the
+ * name, state, sender, recipients, remote host and address, error message,
+ * last updated time and the attributes. The message itself is not part of the
+ * format.
+ * </p>
+ * <p>
+ * Attribute values of well known types are written with a type tag, all other
+ * values fall back to java serialization. When reading, data which was
+ * written with plain java serialization (the legacy format) is detected and
+ * read as before, so existing stores get migrated when the mails are written
+ * again.
+ * </p>
+ */
+public class MailCodec {
+
+    /**
+     * The version of the format which gets written
+     */
+    public final static int VERSION = 1;
+
+    /**
+     * Magic bytes which start the binary format
+     */
+    private final static int MAGIC = 0x4A4D;
+
+    /**
+     * Magic bytes which start a java serialization stream
+     */
+    private final static int SERIALIZATION_MAGIC = 0xACED;
+
+    private final static int KIND_MAIL = 1;
+    private final static int KIND_ATTRIBUTES = 2;
+
+    private final static int TAG_NULL = 0;
+    private final static int TAG_STRING = 1;
+    private final static int TAG_BOOLEAN = 2;
+    private final static int TAG_INTEGER = 3;
+    private final static int TAG_LONG = 4;
+    private final static int TAG_SHORT = 5;
+    private final static int TAG_BYTE = 6;
+    private final static int TAG_CHARACTER = 7;
+    private final static int TAG_DOUBLE = 8;
+    private final static int TAG_FLOAT = 9;
+    private final static int TAG_BYTES = 10;
+    private final static int TAG_DATE = 11;
+    private final static int TAG_MAIL_ADDRESS = 12;
+    private final static int TAG_ARRAY_LIST = 13;
+    private final static int TAG_HASH_MAP = 14;
+    private final static int TAG_SERIALIZED = 127;
+
+    private MailCodec() {
+    }
+
+    /**
+     * Write the envelope of the given {@link Mail} to the given
+     * {@link OutputStream}. The stream is flushed but not closed.
+     * 
+     * @param mail
+     *            the mail to write
+     * @param out
+     *            the stream to write to
+     * @throws IOException
+     */
+    public static void encode(Mail mail, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        writeHeader(data, KIND_MAIL);
+        writeString(data, mail.getName());
+        writeString(data, mail.getState());
+        writeString(data, mail.getSender() == null ? null : mail.getSender().toString());
+
+        Collection recipients = mail.getRecipients();
+        if (recipients == null) {
+            data.writeInt(-1);
+        } else {
+            data.writeInt(recipients.size());
+            for (Iterator i = recipients.iterator(); i.hasNext();) {
+                writeString(data, i.next().toString());
+            }
+        }
+        writeString(data, mail.getRemoteHost());
+        writeString(data, mail.getRemoteAddr());
+        writeString(data, mail.getErrorMessage());
+
+        Date lastUpdated = mail.getLastUpdated();
+        data.writeBoolean(lastUpdated != null);
+        if (lastUpdated != null) {
+            data.writeLong(lastUpdated.getTime());
+        }
+        writeAttributes(data, getAttributes(mail));
+        data.flush();
+    }
+
+    /**
+     * Read a {@link Mail} from the given {@link InputStream}. Both the binary
+     * and the legacy java serialization format are supported. The returned
+     * mail has no message set.
+     * 
+     * @param in
+     *            the stream to read from
+     * @return mail the mail
+     * @throws IOException
+     *             if the data could not be read or has an unsupported version
+     */
+    public static Mail decode(InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, 2);
+        if (isSerialized(pin)) {
+            return (Mail) readSerialized(pin);
+        }
+        DataInputStream data = new DataInputStream(pin);
+        readHeader(data, KIND_MAIL);
+
+        MailImpl mail = new MailImpl();
+        mail.setName(readString(data));
+        mail.setState(readString(data));
+        mail.setSender(readMailAddress(readString(data)));
+
+        int count = data.readInt();
+        if (count >= 0) {
+            List<MailAddress> recipients = new ArrayList<MailAddress>(count);
+            for (int i = 0; i < count; i++) {
+                recipients.add(readMailAddress(readString(data)));
+            }
+            mail.setRecipients(recipients);
+        }
+        mail.setRemoteHost(readString(data));
+        mail.setRemoteAddr(readString(data));
+        mail.setErrorMessage(readString(data));
+        if (data.readBoolean()) {
+            mail.setLastUpdated(new Date(data.readLong()));
+        } else {
+            mail.setLastUpdated(null);
+        }
+        mail.setAttributesRaw(readAttributes(data));
+        return mail;
+    }
+
+    /**
+     * Write the given attributes to the given {@link OutputStream}. The stream
+     * is flushed but not closed.
+     * 
+     * @param attributes
+     *            the attributes to write
+     * @param out
+     *            the stream to write to
+     * @throws IOException
+     */
+    public static void encodeAttributes(Map attributes, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        writeHeader(data, KIND_ATTRIBUTES);
+        writeAttributes(data, attributes);
+        data.flush();
+    }
+
+    /**
+     * Read attributes from the given {@link InputStream}. Both the binary and
+     * the legacy java serialization format are supported.
+     * 
+     * @param in
+     *            the stream to read from
+     * @return attributes the attributes
+     * @throws IOException
+     *             if the data could not be read or has an unsupported version
+     */
+    public static HashMap decodeAttributes(InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, 2);
+        if (isSerialized(pin)) {
+            return (HashMap) readSerialized(pin);
+        }
+        DataInputStream data = new DataInputStream(pin);
+        readHeader(data, KIND_ATTRIBUTES);
+        return readAttributes(data);
+    }
+
+    private static Map getAttributes(Mail mail) {
+        if (mail instanceof MailImpl) {
+            return ((MailImpl) mail).getAttributesRaw();
+        }
+        Map attributes = new HashMap();
+        for (Iterator i = mail.getAttributeNames(); i.hasNext();) {
+            String name = (String) i.next();
+            attributes.put(name, mail.getAttribute(name));
+        }
+        return attributes;
+    }
+
+    private static void writeHeader(DataOutputStream data, int kind) throws IOException {
+        data.writeShort(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte(kind);
+    }
+
+    private static void readHeader(DataInputStream data, int kind) throws IOException {
+        int magic = data.readUnsignedShort();
+        if (magic != MAGIC) {
+            throw new IOException("Unknown data format");
+        }
+        int version = data.readUnsignedByte();
+        if (version > VERSION) {
+            throw new IOException("Unsupported format version " + version);
+        }
+        if (data.readUnsignedByte() != kind) {
+            throw new IOException("Unexpected data kind");
+        }
+    }
+
+    /**
+     * Check if the stream starts with the java serialization magic bytes
+     */
+    private static boolean isSerialized(PushbackInputStream in) throws IOException {
+        int b1 = in.read();
+        if (b1 == -1) {
+            throw new IOException("Unexpected end of stream");
+        }
+        int b2 = in.read();
+        if (b2 == -1) {
+            in.unread(b1);
+            return false;
+        }
+        in.unread(new byte[] { (byte) b1, (byte) b2 });
+        return ((b1 << 8) | b2) == SERIALIZATION_MAGIC;
+    }
+
+    private static Object readSerialized(InputStream in) throws IOException {
+        ObjectInputStream oin = new ObjectInputStream(in);
+        try {
+            return oin.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to deserialize object", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static MailAddress readMailAddress(String address) throws IOException {
+        if (address == null) {
+            return null;
+        }
+        try {
+            return new MailAddress(address);
+        } catch (ParseException e) {
+            throw new IOException("Error parsing address: " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeAttributes(DataOutputStream data, Map attributes) throws IOException {
+        if (attributes == null) {
+            data.writeInt(0);
+            return;
+        }
+        data.writeInt(attributes.size());
+        for (Iterator i = attributes.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            writeString(data, (String) entry.getKey());
+            writeValue(data, entry.getValue());
+        }
+    }
+
+    private static HashMap readAttributes(DataInputStream data) throws IOException {
+        int count = data.readInt();
+        HashMap attributes = new HashMap(Math.max(16, count * 2));
+        for (int i = 0; i < count; i++) {
+            String name = readString(data);
+            attributes.put(name, readValue(data));
+        }
+        return attributes;
+    }
+
+    private static void writeValue(DataOutputStream data, Object value) throws IOException {
+        if (value == null) {
+            data.writeByte(TAG_NULL);
+            return;
+        }
+
+        // only exact classes can be tagged, as subclasses would lose their
+        // type when read again
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            data.writeByte(TAG_STRING);
+            writeString(data, (String) value);
+        } else if (type == Boolean.class) {
+            data.writeByte(TAG_BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else if (type == Integer.class) {
+            data.writeByte(TAG_INTEGER);
+            data.writeInt((Integer) value);
+        } else if (type == Long.class) {
+            data.writeByte(TAG_LONG);
+            data.writeLong((Long) value);
+        } else if (type == Short.class) {
+            data.writeByte(TAG_SHORT);
+            data.writeShort((Short) value);
+        } else if (type == Byte.class) {
+            data.writeByte(TAG_BYTE);
+            data.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            data.writeByte(TAG_CHARACTER);
+            data.writeChar((Character) value);
+        } else if (type == Double.class) {
+            data.writeByte(TAG_DOUBLE);
+            data.writeDouble((Double) value);
+        } else if (type == Float.class) {
+            data.writeByte(TAG_FLOAT);
+            data.writeFloat((Float) value);
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            data.writeByte(TAG_BYTES);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        } else if (type == Date.class) {
+            data.writeByte(TAG_DATE);
+            data.writeLong(((Date) value).getTime());
+        } else if (type == MailAddress.class) {
+            data.writeByte(TAG_MAIL_ADDRESS);
+            writeString(data, value.toString());
+        } else if (type == ArrayList.class) {
+            List list = (List) value;
+            data.writeByte(TAG_ARRAY_LIST);
+            data.writeInt(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                writeValue(data, list.get(i));
+            }
+        } else if (type == HashMap.class) {
+            Map map = (Map) value;
+            data.writeByte(TAG_HASH_MAP);
+            data.writeInt(map.size());
+            for (Iterator i = map.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                writeValue(data, entry.getKey());
+                writeValue(data, entry.getValue());
+            }
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject((Serializable) value);
+            out.close();
+            data.writeByte(TAG_SERIALIZED);
+            data.writeInt(bytes.size());
+            bytes.writeTo(data);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readValue(DataInputStream data) throws IOException {
+        int tag = data.readUnsignedByte();
+        switch (tag) {
+        case TAG_NULL:
+            return null;
+        case TAG_STRING:
+            return readString(data);
+        case TAG_BOOLEAN:
+            return data.readBoolean();
+        case TAG_INTEGER:
+            return data.readInt();
+        case TAG_LONG:
+            return data.readLong();
+        case TAG_SHORT:
+            return data.readShort();
+        case TAG_BYTE:
+            return data.readByte();
+        case TAG_CHARACTER:
+            return data.readChar();
+        case TAG_DOUBLE:
+            return data.readDouble();
+        case TAG_FLOAT:
+            return data.readFloat();
+        case TAG_BYTES: {
+            byte[] bytes = new byte[data.readInt()];
+            data.readFully(bytes);
+            return bytes;
+        }
+        case TAG_DATE:
+            return new Date(data.readLong());
+        case TAG_MAIL_ADDRESS:
+            return readMailAddress(readString(data));
+        case TAG_ARRAY_LIST: {
+            int size = data.readInt();
+            ArrayList list = new ArrayList(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(data));
+            }
+            return list;
+        }
+        case TAG_HASH_MAP: {
+            int size = data.readInt();
+            HashMap map = new HashMap(Math.max(16, size * 2));
+            for (int i = 0; i < size; i++) {
+                Object key = readValue(data);
+                map.put(key, readValue(data));
+            }
+            return map;
+        }
+        case TAG_SERIALIZED: {
+            byte[] bytes = new byte[data.readInt()];
+            data.readFully(bytes);
+            return readSerialized(new ByteArrayInputStream(bytes));
+        }
+        default:
+            throw new IOException("Unknown attribute type " + tag);
+        }
+    }
+}
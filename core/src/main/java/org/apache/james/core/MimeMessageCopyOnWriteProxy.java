@@ -39,6 +39,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This object wraps a "possibly shared" MimeMessage tracking copies and
@@ -55,18 +56,18 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
         /**
          * reference counter
          */
-        private int referenceCount = 1;
+        private final AtomicInteger referenceCount = new AtomicInteger(1);
 
         /**
          * The mime message in memory
          */
-        private MimeMessage wrapped = null;
+        private volatile MimeMessage wrapped = null;
 
         public MessageReferenceTracker(MimeMessage ref) {
             wrapped = ref;
         }
 
-        protected synchronized void incrementReferenceCount() {
+        protected void incrementReferenceCount() {
             /*
              * Used to track references while debugging try { throw new
              * Exception("incrementReferenceCount: "+(wrapped != null ?
@@ -74,10 +75,10 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
              * "null")+" ["+referenceCount+"]"); } catch (Exception e) {
              * e.printStackTrace(); }
              */
-            referenceCount++;
+            referenceCount.incrementAndGet();
         }
 
-        protected synchronized void decrementReferenceCount() {
+        protected void decrementReferenceCount() {
             /*
              * Used to track references while debugging try { throw new
              * Exception("decrementReferenceCount: "+(wrapped != null ?
@@ -85,24 +86,24 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
              * "null")+" ["+referenceCount+"]"); } catch (Exception e) {
              * e.printStackTrace(); }
              */
-            referenceCount--;
-            if (referenceCount <= 0) {
-                LifecycleUtil.dispose(wrapped);
+            if (referenceCount.decrementAndGet() == 0) {
+                MimeMessage m = wrapped;
                 wrapped = null;
+                LifecycleUtil.dispose(m);
             }
         }
 
-        protected synchronized int getReferenceCount() {
-            return referenceCount;
+        protected int getReferenceCount() {
+            return referenceCount.get();
         }
 
-        public synchronized MimeMessage getWrapped() {
+        public MimeMessage getWrapped() {
             return wrapped;
         }
 
     }
 
-    protected MessageReferenceTracker refCount;
+    protected volatile MessageReferenceTracker refCount;
 
     /**
      * @param original
@@ -151,9 +152,13 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
      *             exception
      */
     protected synchronized MimeMessage getWrappedMessageForWriting() throws MessagingException {
-        if (refCount.getReferenceCount() > 1) {
-            refCount.decrementReferenceCount();
-            refCount = new MessageReferenceTracker(new MimeMessageWrapper(refCount.getWrapped()));
+        MessageReferenceTracker tracker = refCount;
+        if (tracker.getReferenceCount() > 1) {
+            // copy before we drop our reference, so the message can not get
+            // disposed by the other holders in the meantime
+            MimeMessage copy = new MimeMessageWrapper(tracker.getWrapped());
+            tracker.decrementReferenceCount();
+            refCount = new MessageReferenceTracker(copy);
         }
         return refCount.getWrapped();
     }
@@ -163,7 +168,7 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
      * 
      * @return wrapped return the wrapped mimeMessage
      */
-    public synchronized MimeMessage getWrappedMessage() {
+    public MimeMessage getWrappedMessage() {
         return refCount.getWrapped();
     }
 
@@ -51,6 +51,12 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
      */
     private DeferredFileOutputStream out;
 
+    /**
+     * Collects the meta data while the message gets written to the temporary
+     * file
+     */
+    private MimeMessageMetaDataOutputStream metaDataOut;
+
     /**
      * The full path of the temporary file
      */
@@ -84,7 +90,9 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
         // Create a temp file and channel the input stream into it
         try {
             out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR );
-            IOUtils.copy(in, out);
+            metaDataOut = new MimeMessageMetaDataOutputStream(out);
+            IOUtils.copy(in, metaDataOut);
+            metaDataOut.close();
             sourceId = key;
         } catch (IOException ioe) {
             throw new MessagingException("Unable to retrieve the data: " + ioe.getMessage(), ioe);
@@ -116,6 +124,7 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
     public MimeMessageInputStreamSource(String key) throws MessagingException {
         super();
         out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR );
+        metaDataOut = new MimeMessageMetaDataOutputStream(out);
         sourceId = key;
     }
 
@@ -157,12 +166,37 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
         return out.getByteCount();
     }
 
+    /**
+     * Return the temporary file if the data was spilled to disk, otherwise
+     * <code>null</code>
+     * 
+     * @see org.apache.james.core.MimeMessageSource#getFile()
+     */
+    public synchronized File getFile() throws IOException {
+        if (out != null && !out.isInMemory()) {
+            return out.getFile();
+        }
+        return null;
+    }
+
+    /**
+     * Return the {@link MimeMessageMetaData} which was collected while writing
+     * the data. This is only available after the writable OutputStream was
+     * closed
+     * 
+     * @see org.apache.james.core.MimeMessageSource#getMetaData()
+     */
+    public MimeMessageMetaData getMetaData() {
+        MimeMessageMetaDataOutputStream metaOut = metaDataOut;
+        return metaOut != null ? metaOut.getMetaData() : null;
+    }
+
     /**
      * @return the output stream to write to
      * @throws FileNotFoundException
      */
     public OutputStream getWritableOutputStream() throws FileNotFoundException {
-        return out;
+        return metaDataOut;
     }
 
     /**
@@ -183,6 +217,7 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
             }
             out = null;
         }
+        metaDataOut = null;
     }
 
 }
@@ -0,0 +1,86 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+/**
+ * Holds informations about the raw data of a {@link MimeMessageSource} which
+ * were collected while the data was written. This allows to answer size and
+ * line count queries without reading the data again.
+ * 
+ * @see MimeMessageMetaDataOutputStream
+ */
+public class MimeMessageMetaData {
+
+    private final long bodyOffset;
+    private final long messageSize;
+    private final int bodyLineCount;
+
+    /**
+     * @param bodyOffset
+     *            the offset of the first body byte, which is the size of the
+     *            headers including the separator line
+     * @param messageSize
+     *            the size of the complete message
+     * @param bodyLineCount
+     *            the number of lines in the body
+     */
+    public MimeMessageMetaData(long bodyOffset, long messageSize, int bodyLineCount) {
+        this.bodyOffset = bodyOffset;
+        this.messageSize = messageSize;
+        this.bodyLineCount = bodyLineCount;
+    }
+
+    /**
+     * Return the offset of the first body byte
+     * 
+     * @return bodyOffset
+     */
+    public long getBodyOffset() {
+        return bodyOffset;
+    }
+
+    /**
+     * Return the size of the complete message, ie headers and body
+     * 
+     * @return messageSize
+     */
+    public long getMessageSize() {
+        return messageSize;
+    }
+
+    /**
+     * Return the size of the body
+     * 
+     * @return bodySize
+     */
+    public long getBodySize() {
+        return messageSize - bodyOffset;
+    }
+
+    /**
+     * Return the number of lines in the body
+     * 
+     * @return bodyLineCount
+     */
+    public int getBodyLineCount() {
+        return bodyLineCount;
+    }
+
+}
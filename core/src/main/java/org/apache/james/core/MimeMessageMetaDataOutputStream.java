@@ -0,0 +1,130 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link FilterOutputStream} which collects the {@link MimeMessageMetaData} of
+ * the raw message data written through it. The position of the header / body
+ * separator, the total size and the number of body lines are computed on the
+ * fly, so nobody needs to read the data again later.
+ * 
+ * The {@link MimeMessageMetaData} is available after the stream was closed.
+ */
+public class MimeMessageMetaDataOutputStream extends FilterOutputStream {
+
+    private long size = 0;
+    private long bodyOffset = -1;
+    private int bodyLineCount = 0;
+
+    // header parsing state
+    private boolean lineStart = true;
+    private boolean crAtLineStart = false;
+
+    // body parsing state
+    private boolean cr = false;
+
+    private boolean closed = false;
+    private volatile MimeMessageMetaData metaData;
+
+    public MimeMessageMetaDataOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        update(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        update(b, off, len);
+    }
+
+    /**
+     * Update the collected informations with the given bytes
+     * 
+     * @param b
+     * @param off
+     * @param len
+     */
+    private void update(byte[] b, int off, int len) {
+        int end = off + len;
+        int i = off;
+
+        // search for the empty line which separates the headers from the body
+        while (bodyOffset == -1 && i < end) {
+            byte c = b[i++];
+            if (c == '\n' && (lineStart || crAtLineStart)) {
+                bodyOffset = size + (i - off);
+            }
+            crAtLineStart = lineStart && c == '\r';
+            lineStart = c == '\n';
+        }
+
+        if (i < end) {
+            // count the lines the same way as LineNumberReader does
+            for (; i < end; i++) {
+                byte c = b[i];
+                if (c == '\r') {
+                    bodyLineCount++;
+                    cr = true;
+                } else {
+                    if (c == '\n' && !cr) {
+                        bodyLineCount++;
+                    }
+                    cr = false;
+                }
+            }
+        }
+        size += len;
+    }
+
+    /**
+     * Close the stream and create the {@link MimeMessageMetaData}
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        super.close();
+
+        // no separator found, so the message has no body
+        long offset = bodyOffset == -1 ? size : bodyOffset;
+        metaData = new MimeMessageMetaData(offset, size, bodyLineCount);
+    }
+
+    /**
+     * Return the collected {@link MimeMessageMetaData} or <code>null</code> if
+     * the stream was not closed yet
+     * 
+     * @return metaData
+     */
+    public MimeMessageMetaData getMetaData() {
+        return metaData;
+    }
+}
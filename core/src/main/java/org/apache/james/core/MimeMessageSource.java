@@ -19,6 +19,7 @@
 
 package org.apache.james.core;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -50,6 +51,33 @@ public abstract class MimeMessageSource {
      */
     public abstract InputStream getInputStream() throws IOException;
 
+    /**
+     * Return the {@link File} which holds the data of this source, or
+     * <code>null</code> if the data is not stored in a plain file. If a file is
+     * returned, its content must be exactly what {@link #getInputStream()}
+     * returns, starting at offset 0. Default implementation returns
+     * <code>null</code>, file based sources should override it so the data
+     * can get transfered without copying it through the heap.
+     * 
+     * @return file the file holding the data or <code>null</code>
+     * @throws IOException
+     *             if an error is encountered while looking up the file
+     */
+    public File getFile() throws IOException {
+        return null;
+    }
+
+    /**
+     * Return the {@link MimeMessageMetaData} which was collected while the data
+     * of this source was written, or <code>null</code> if it is not known.
+     * Default implementation returns <code>null</code>.
+     * 
+     * @return metaData the collected meta data or <code>null</code>
+     */
+    public MimeMessageMetaData getMetaData() {
+        return null;
+    }
+
     /**
      * Return the size of all the data. Default implementation... others can
      * override to do this much faster
@@ -19,15 +19,22 @@
 
 package org.apache.james.core;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Enumeration;
 
 import javax.activation.UnsupportedDataTypeException;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeUtility;
+import javax.mail.internet.SharedInputStream;
 
 import org.apache.commons.io.IOUtils;
 
@@ -186,6 +193,84 @@ public class MimeMessageUtil {
         }
     }
 
+    /**
+     * Transfer the remaining data of the given {@link InputStream}, which was
+     * obtained from the given {@link MimeMessageSource}, to the given
+     * {@link OutputStream} by using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}. This
+     * allows the operating system to copy the data directly between the files
+     * without pumping it through the heap.
+     * 
+     * The transfer is only possible if the {@link InputStream} is a
+     * {@link FileInputStream} or a {@link SharedInputStream} of a source which
+     * returns its {@link MimeMessageSource#getFile()}, and if the
+     * {@link OutputStream} is a {@link FileOutputStream}. In all other cases
+     * nothing is written and <code>false</code> is returned, so the caller
+     * needs to fallback to a stream copy.
+     * 
+     * @param source
+     *            the MimeMessageSource the InputStream was obtained from
+     * @param in
+     *            the InputStream positioned at the first byte to transfer
+     * @param out
+     *            the OutputStream to transfer the data to
+     * @return transfered <code>true</code> if the data was transfered
+     * @throws IOException
+     *             get thrown if an IO Error detected while transfering the
+     *             data
+     */
+    public static boolean transferTo(MimeMessageSource source, InputStream in, OutputStream out) throws IOException {
+        if (!(out instanceof FileOutputStream)) {
+            return false;
+        }
+        FileChannel sourceChannel;
+        long position;
+        boolean closeChannel = false;
+
+        if (in instanceof FileInputStream) {
+            sourceChannel = ((FileInputStream) in).getChannel();
+            position = sourceChannel.position();
+        } else if (in instanceof SharedInputStream) {
+            File file = source.getFile();
+            if (file == null) {
+                return false;
+            }
+            position = ((SharedInputStream) in).getPosition();
+            try {
+                sourceChannel = new FileInputStream(file).getChannel();
+            } catch (FileNotFoundException e) {
+                // the file was removed while the source still holds it open,
+                // so we need to stick with the stream
+                return false;
+            }
+            closeChannel = true;
+        } else {
+            return false;
+        }
+
+        try {
+            FileChannel target = ((FileOutputStream) out).getChannel();
+            long count = sourceChannel.size() - position;
+            while (count > 0) {
+                long transfered = sourceChannel.transferTo(position, count, target);
+                if (transfered <= 0) {
+                    throw new IOException("Unable to transfer data from " + source.getSourceId());
+                }
+                position += transfered;
+                count -= transfered;
+            }
+            return true;
+        } finally {
+            if (closeChannel) {
+                try {
+                    sourceChannel.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+
     /**
      * Write the message headers to the given outputstream
      * 
@@ -57,22 +57,28 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
     /**
      * Can provide an input stream to the data
      */
-    protected MimeMessageSource source = null;
+    protected volatile MimeMessageSource source = null;
 
     /**
      * This is false until we parse the message
      */
-    protected boolean messageParsed = false;
+    protected volatile boolean messageParsed = false;
 
     /**
      * This is false until we parse the message
      */
-    protected boolean headersModified = false;
+    protected volatile boolean headersModified = false;
 
     /**
      * This is false until we parse the message
      */
-    protected boolean bodyModified = false;
+    protected volatile boolean bodyModified = false;
+
+    /**
+     * This is false until the headers are loaded. Readers check it before
+     * accessing the headers, so they only need the lock to load them
+     */
+    private volatile boolean headersLoaded = false;
 
     /**
      * Keep a reference to the sourceIn so we can close it only when we dispose
@@ -116,10 +122,24 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         this(Session.getDefaultInstance(System.getProperties()), source);
     }
 
+    /**
+     * A constructor that instantiates a MimeMessageWrapper which holds a copy
+     * of the given MimeMessage. If the original is a MimeMessageWrapper with an
+     * unmodified body and a shareable source, the source is shared and only
+     * the modified headers are copied. Otherwise the whole message is copied.
+     * 
+     * @param original
+     *            the MimeMessage to copy
+     * @throws MessagingException
+     */
     public MimeMessageWrapper(MimeMessage original) throws MessagingException {
         this(Session.getDefaultInstance(System.getProperties()));
         flags = original.getFlags();
 
+        if (original instanceof MimeMessageWrapper) {
+            shareFrom((MimeMessageWrapper) original);
+        }
+
         if (source == null) {
             InputStream in;
 
@@ -159,6 +179,60 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         }
     }
 
+    /**
+     * Share the source of the given MimeMessageWrapper and copy its headers if
+     * they were modified. Nothing is done if the source can not be shared.
+     * 
+     * @param original
+     *            the MimeMessageWrapper to share the source with
+     * @throws MessagingException
+     */
+    private void shareFrom(MimeMessageWrapper original) throws MessagingException {
+        synchronized (original) {
+            MimeMessageSource shared = original.shareSource();
+            if (shared == null) {
+                return;
+            }
+            try {
+                if (original.headersModified) {
+                    ByteArrayOutputStream headersOut = new ByteArrayOutputStream();
+                    MimeMessageUtil.writeHeadersTo(original.headers.getAllHeaderLines(), headersOut);
+                    headers = new MailHeaders(new ByteArrayInputStream(headersOut.toByteArray()));
+                    headersLoaded = true;
+                    initialHeaderSize = original.initialHeaderSize;
+                    headersModified = true;
+                    modified = true;
+                    saved = original.saved;
+                }
+            } catch (MessagingException e) {
+                LifecycleUtil.dispose(shared);
+                throw e;
+            }
+            source = shared;
+        }
+    }
+
+    /**
+     * Return a {@link SharedMimeMessageSource} which holds a new reference to
+     * the source of this message, or <code>null</code> if there is no source,
+     * the body was modified or the source can not be shared.
+     * 
+     * @return shared the retained source or <code>null</code>
+     */
+    private synchronized MimeMessageSource shareSource() {
+        if (source == null || bodyModified || !SharedMimeMessageSource.isShareable(source)) {
+            return null;
+        }
+        if (!(source instanceof SharedMimeMessageSource)) {
+            source = new SharedMimeMessageSource(source);
+        }
+        SharedMimeMessageSource shared = (SharedMimeMessageSource) source;
+        if (shared.retain()) {
+            return shared;
+        }
+        return null;
+    }
+
     /**
      * Overrides default javamail behaviour by not altering the Message-ID by
      * default, see <a href="https://issues.apache.org/jira/browse/JAMES-875">JAMES-875</a> and
@@ -177,8 +251,9 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * 
      * @see MimeMessageSource
      */
-    public synchronized String getSourceId() {
-        return source != null ? source.getSourceId() : null;
+    public String getSourceId() {
+        MimeMessageSource src = source;
+        return src != null ? src.getSourceId() : null;
     }
 
     /**
@@ -190,12 +265,14 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
     protected synchronized void loadHeaders() throws MessagingException {
         if (headers != null) {
             // Another thread has already loaded these headers
+            headersLoaded = true;
             return;
         } else if (source != null) {
             try {
                 InputStream in = source.getInputStream();
                 try {
                     headers = createInternetHeaders(in);
+                    headersLoaded = true;
 
                 } finally {
                     IOUtils.closeQuietly(in);
@@ -242,7 +319,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * 
      * @return whether the message has been modified
      */
-    public synchronized boolean isModified() {
+    public boolean isModified() {
         return headersModified || bodyModified || modified;
     }
 
@@ -251,7 +328,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * 
      * @return bodyModified
      */
-    public synchronized boolean isBodyModified() {
+    public boolean isBodyModified() {
         return bodyModified;
     }
 
@@ -260,7 +337,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * 
      * @return headersModified
      */
-    public synchronized boolean isHeaderModified() {
+    public boolean isHeaderModified() {
         return headersModified;
     }
 
@@ -290,34 +367,61 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         writeTo(headerOs, bodyOs, ignoreList, false);
     }
 
-    public synchronized void writeTo(OutputStream headerOs, OutputStream bodyOs, String[] ignoreList, boolean preLoad) throws IOException, MessagingException {
-        
-        if (preLoad == false && source != null && !isBodyModified()) {
-            // We do not want to instantiate the message... just read from
-            // source
-            // and write to this outputstream
+    public void writeTo(OutputStream headerOs, OutputStream bodyOs, String[] ignoreList, boolean preLoad) throws IOException, MessagingException {
+        MimeMessageSource src = source;
+        if (preLoad == false && src != null && !isBodyModified() && !isHeaderModified()) {
+            // Nothing was changed so we can just copy the source. The source
+            // is never changed, so there is no need to hold the lock
+            writeSourceTo(src, null, headerOs, bodyOs, ignoreList);
+        } else {
+            writeToModified(headerOs, bodyOs, ignoreList, preLoad);
+        }
+    }
 
-            // First handle the headers
-            InputStream in = source.getInputStream();
-            try {
-                InternetHeaders myHeaders;
-                MailHeaders parsedHeaders = new MailHeaders(in);
+    /**
+     * Write the content of the given source. If modifiedHeaders is not
+     * <code>null</code> it is written instead of the headers of the source
+     */
+    private void writeSourceTo(MimeMessageSource src, InternetHeaders modifiedHeaders, OutputStream headerOs, OutputStream bodyOs, String[] ignoreList) throws IOException, MessagingException {
+        // We do not want to instantiate the message... just read from
+        // source
+        // and write to this outputstream
 
-                // check if we should use the parsed headers or not
-                if (isHeaderModified() == false) {
-                    myHeaders = parsedHeaders;
-                } else {
-                    // The headers was modified so we need to call saveChanges() just to be sure
-                    // See JAMES-1320
-                    if (!saved)
-                        saveChanges();
-                    myHeaders = headers;
-                }
-                IOUtils.copy(new InternetHeadersInputStream(myHeaders.getNonMatchingHeaderLines(ignoreList)), headerOs);
+        // First handle the headers
+        InputStream in = src.getInputStream();
+        try {
+            InternetHeaders myHeaders;
+            MailHeaders parsedHeaders = new MailHeaders(in);
+
+            // check if we should use the parsed headers or not
+            if (modifiedHeaders == null) {
+                myHeaders = parsedHeaders;
+            } else {
+                myHeaders = modifiedHeaders;
+            }
+            IOUtils.copy(new InternetHeadersInputStream(myHeaders.getNonMatchingHeaderLines(ignoreList)), headerOs);
+
+            // try to let the os copy the body if source and target are
+            // files, otherwise fallback to stream copy
+            if (!MimeMessageUtil.transferTo(src, in, bodyOs)) {
                 IOUtils.copy(in, bodyOs);
-            } finally {
-                IOUtils.closeQuietly(in);
             }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the message after it was modified. This needs the lock as the
+     * changes may need to get saved first
+     */
+    private synchronized void writeToModified(OutputStream headerOs, OutputStream bodyOs, String[] ignoreList, boolean preLoad) throws IOException, MessagingException {
+        if (preLoad == false && source != null && !isBodyModified()) {
+            // The headers was modified so we need to call saveChanges() just to be sure
+            // See JAMES-1320
+            if (!saved)
+                saveChanges();
+            writeSourceTo(source, headers, headerOs, bodyOs, ignoreList);
         } else {
             // save the changes as the message was modified
             // See JAMES-1320
@@ -343,7 +447,21 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * body, not the entire message (should not count headers). This size will
      * never change on {@link #saveChanges()}
      */
-    public synchronized int getSize() throws MessagingException {
+    public int getSize() throws MessagingException {
+        MimeMessageSource src = source;
+        if (src != null) {
+            MimeMessageMetaData metaData = src.getMetaData();
+            if (metaData != null) {
+                return (int) metaData.getBodySize();
+            }
+        }
+        return calculateSize();
+    }
+
+    /**
+     * Calculate the size of the body if the source has no meta data
+     */
+    private synchronized int calculateSize() throws MessagingException {
         if (source != null) {
             try {
                 long fullSize = source.getMessageSize();
@@ -367,10 +485,18 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
     }
 
     /**
-     * Corrects JavaMail 1.1 version which always returns -1. Only corrected for
-     * content less than 5000 bytes, to avoid memory hogging.
+     * Corrects JavaMail 1.1 version which always returns -1. If the body was
+     * not modified and the source collected its {@link MimeMessageMetaData}
+     * while it was written, the line count is returned from there. Otherwise
+     * the content gets read to count the lines.
      */
     public int getLineCount() throws MessagingException {
+        if (source != null && !isBodyModified()) {
+            MimeMessageMetaData metaData = source.getMetaData();
+            if (metaData != null) {
+                return metaData.getBodyLineCount();
+            }
+        }
         InputStream in = null;
         try {
             in = getContentStream();
@@ -428,56 +554,56 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      */
 
     public String[] getHeader(String name) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getHeader(name);
     }
 
     public String getHeader(String name, String delimiter) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getHeader(name, delimiter);
     }
 
     public Enumeration getAllHeaders() throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getAllHeaders();
     }
 
     public Enumeration getMatchingHeaders(String[] names) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getMatchingHeaders(names);
     }
 
     public Enumeration getNonMatchingHeaders(String[] names) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getNonMatchingHeaders(names);
     }
 
     public Enumeration getAllHeaderLines() throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getAllHeaderLines();
     }
 
     public Enumeration getMatchingHeaderLines(String[] names) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getMatchingHeaderLines(names);
     }
 
     public Enumeration getNonMatchingHeaderLines(String[] names) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getNonMatchingHeaderLines(names);
@@ -539,7 +665,10 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
             IOUtils.closeQuietly(sourceIn);
         }
         if (source != null) {
+            // release the source only once, as a shared one counts the
+            // references
             LifecycleUtil.dispose(source);
+            source = null;
         }
     }
 
@@ -550,6 +679,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         // the super implementation calls
         // headers = createInternetHeaders(is);
         super.parse(is);
+        headersLoaded = true;
         messageParsed = true;
     }
 
@@ -611,11 +741,12 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
     /**
      * @see javax.mail.internet.MimeMessage#getRawInputStream()
      */
-    public synchronized InputStream getRawInputStream() throws MessagingException {
-        if (!messageParsed && !isModified() && source != null) {
+    public InputStream getRawInputStream() throws MessagingException {
+        MimeMessageSource src = source;
+        if (!messageParsed && !isModified() && src != null) {
             InputStream is;
             try {
-                is = source.getInputStream();
+                is = src.getInputStream();
                 // skip the headers.
                 new MailHeaders(is);
                 return is;
@@ -623,10 +754,17 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
                 throw new MessagingException("Unable to read the stream: " + e.getMessage(), e);
             }
         } else {
-            return super.getRawInputStream();
+            return getParsedRawInputStream();
         }
     }
 
+    /**
+     * Return the raw content of the parsed message
+     */
+    private synchronized InputStream getParsedRawInputStream() throws MessagingException {
+        return super.getRawInputStream();
+    }
+
     /**
      * Return an {@link InputStream} which holds the full content of the
      * message. This method tries to optimize this call as far as possible. This
@@ -637,41 +775,50 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * @throws MessagingException
      */
 
-    @SuppressWarnings("unchecked")
-    public synchronized InputStream getMessageInputStream() throws MessagingException {
-        if (!messageParsed && !isModified() && source != null) {
+    public InputStream getMessageInputStream() throws MessagingException {
+        MimeMessageSource src = source;
+        if (!messageParsed && !isModified() && src != null) {
             try {
-                return source.getInputStream();
+                return src.getInputStream();
             } catch (IOException e) {
                 throw new MessagingException("Unable to get inputstream", e);
             }
         } else {
-            try {
+            return getModifiedMessageInputStream();
+        }
+    }
 
-                // Try to optimize if possible to prevent OOM on big mails.
-                // See JAMES-1252 for an example
-                if (!bodyModified && source != null) {
-                    // ok only the headers were modified so we don't need to
-                    // copy the whole message content into memory
-                    InputStream in = source.getInputStream();
-                    
-                    // skip over headers from original stream we want to use the
-                    // in memory ones
-                    new MailHeaders(in);
-
-                    // now construct the new stream using the in memory headers
-                    // and the body from the original source
-                    return new SequenceInputStream(new InternetHeadersInputStream(getAllHeaderLines()), in);
-                } else {
-                    // the body was changed so we have no other solution to copy
-                    // it into memory first :(
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    writeTo(out);
-                    return new ByteArrayInputStream(out.toByteArray());
-                }
-            } catch (IOException e) {
-                throw new MessagingException("Unable to get inputstream", e);
+    /**
+     * Return an {@link InputStream} which holds the full content of the parsed
+     * or modified message
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized InputStream getModifiedMessageInputStream() throws MessagingException {
+        try {
+
+            // Try to optimize if possible to prevent OOM on big mails.
+            // See JAMES-1252 for an example
+            if (!bodyModified && source != null) {
+                // ok only the headers were modified so we don't need to
+                // copy the whole message content into memory
+                InputStream in = source.getInputStream();
+                
+                // skip over headers from original stream we want to use the
+                // in memory ones
+                new MailHeaders(in);
+
+                // now construct the new stream using the in memory headers
+                // and the body from the original source
+                return new SequenceInputStream(new InternetHeadersInputStream(getAllHeaderLines()), in);
+            } else {
+                // the body was changed so we have no other solution to copy
+                // it into memory first :(
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                writeTo(out);
+                return new ByteArrayInputStream(out.toByteArray());
             }
+        } catch (IOException e) {
+            throw new MessagingException("Unable to get inputstream", e);
         }
     }
 
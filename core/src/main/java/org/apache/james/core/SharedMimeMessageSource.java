@@ -0,0 +1,140 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+
+/**
+ * {@link MimeMessageSource} which allows to share the immutable data of
+ * another {@link MimeMessageSource} between many {@link MimeMessageWrapper}
+ * instances. Every user needs to {@link #retain()} it and to {@link #dispose()}
+ * it once it is not needed anymore. The wrapped source is disposed when the
+ * last reference was dropped.
+ * 
+ * Only sources which are never changed or removed while they are referenced
+ * may be shared.
+ */
+public class SharedMimeMessageSource extends MimeMessageSource implements Disposable {
+
+    private final MimeMessageSource source;
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+    /**
+     * Create a new instance which holds the first reference to the given
+     * source
+     * 
+     * @param source
+     *            the source to share
+     */
+    public SharedMimeMessageSource(MimeMessageSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Return <code>true</code> if the given source is known to be immutable
+     * and so can be shared.
+     * 
+     * @param source
+     * @return shareable
+     */
+    public static boolean isShareable(MimeMessageSource source) {
+        return source instanceof SharedMimeMessageSource || source instanceof MimeMessageInputStreamSource;
+    }
+
+    /**
+     * Add a reference to this source
+     * 
+     * @return retained <code>false</code> if the source was already disposed
+     *         and so can not be used anymore
+     */
+    public boolean retain() {
+        while (true) {
+            int count = referenceCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (referenceCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Return the number of references which are currently hold
+     * 
+     * @return referenceCount
+     */
+    public int getReferenceCount() {
+        return referenceCount.get();
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getSourceId()
+     */
+    public String getSourceId() {
+        return source.getSourceId();
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getInputStream()
+     */
+    public InputStream getInputStream() throws IOException {
+        return source.getInputStream();
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getMessageSize()
+     */
+    public long getMessageSize() throws IOException {
+        return source.getMessageSize();
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getFile()
+     */
+    public File getFile() throws IOException {
+        return source.getFile();
+    }
+
+    /**
+     * @see org.apache.james.core.MimeMessageSource#getMetaData()
+     */
+    public MimeMessageMetaData getMetaData() {
+        return source.getMetaData();
+    }
+
+    /**
+     * Drop a reference and dispose the wrapped source if it was the last one
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        if (referenceCount.decrementAndGet() == 0) {
+            LifecycleUtil.dispose(source);
+        }
+    }
+
+}
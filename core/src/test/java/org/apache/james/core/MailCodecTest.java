@@ -0,0 +1,152 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+public class MailCodecTest extends TestCase {
+
+    private MailImpl createMail() throws Exception {
+        ArrayList<MailAddress> recipients = new ArrayList<MailAddress>();
+        recipients.add(new MailAddress("rcpt1@localhost"));
+        recipients.add(new MailAddress("rcpt2@localhost"));
+        MailImpl mail = new MailImpl("test-name", new MailAddress("sender@localhost"), recipients);
+        mail.setState(Mail.DEFAULT);
+        mail.setRemoteHost("remote.example");
+        mail.setRemoteAddr("127.0.0.1");
+        mail.setErrorMessage("error ä");
+        mail.setLastUpdated(new Date(1000L));
+
+        ArrayList<Object> list = new ArrayList<Object>();
+        list.add("value");
+        list.add(null);
+        HashMap<Object, Object> map = new HashMap<Object, Object>();
+        map.put("key", new Integer(1));
+        mail.setAttribute("string", "value");
+        mail.setAttribute("integer", new Integer(42));
+        mail.setAttribute("long", new Long(42L));
+        mail.setAttribute("boolean", Boolean.TRUE);
+        mail.setAttribute("bytes", new byte[] { 1, 2, 3 });
+        mail.setAttribute("date", new Date(2000L));
+        mail.setAttribute("address", new MailAddress("attr@localhost"));
+        mail.setAttribute("list", list);
+        mail.setAttribute("map", map);
+        mail.setAttribute("locale", Locale.GERMANY);
+        return mail;
+    }
+
+    private void assertMail(MailImpl expected, Mail mail) throws Exception {
+        assertEquals(expected.getName(), mail.getName());
+        assertEquals(expected.getState(), mail.getState());
+        assertEquals(expected.getSender(), mail.getSender());
+        assertEquals(new ArrayList(expected.getRecipients()), new ArrayList(mail.getRecipients()));
+        assertEquals(expected.getRemoteHost(), mail.getRemoteHost());
+        assertEquals(expected.getRemoteAddr(), mail.getRemoteAddr());
+        assertEquals(expected.getErrorMessage(), mail.getErrorMessage());
+        assertEquals(expected.getLastUpdated(), mail.getLastUpdated());
+
+        assertEquals("value", mail.getAttribute("string"));
+        assertEquals(new Integer(42), mail.getAttribute("integer"));
+        assertEquals(new Long(42L), mail.getAttribute("long"));
+        assertEquals(Boolean.TRUE, mail.getAttribute("boolean"));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) mail.getAttribute("bytes")));
+        assertEquals(new Date(2000L), mail.getAttribute("date"));
+        assertEquals(new MailAddress("attr@localhost"), mail.getAttribute("address"));
+        assertEquals(expected.getAttribute("list"), mail.getAttribute("list"));
+        assertEquals(expected.getAttribute("map"), mail.getAttribute("map"));
+        assertEquals(Locale.GERMANY, mail.getAttribute("locale"));
+    }
+
+    public void testRoundTrip() throws Exception {
+        MailImpl mail = createMail();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MailCodec.encode(mail, out);
+
+        assertMail(mail, MailCodec.decode(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    public void testRoundTripEmptyMail() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MailCodec.encode(new MailImpl(), out);
+
+        Mail mail = MailCodec.decode(new ByteArrayInputStream(out.toByteArray()));
+        assertNull(mail.getName());
+        assertNull(mail.getSender());
+        assertNull(mail.getRecipients());
+        assertFalse(mail.getAttributeNames().hasNext());
+    }
+
+    public void testDecodeLegacyFormat() throws Exception {
+        MailImpl mail = createMail();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(out);
+        oout.writeObject(mail);
+        oout.close();
+
+        assertMail(mail, MailCodec.decode(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    public void testAttributes() throws Exception {
+        MailImpl mail = createMail();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MailCodec.encodeAttributes(mail.getAttributesRaw(), out);
+
+        HashMap attributes = MailCodec.decodeAttributes(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(mail.getAttributesRaw().keySet(), attributes.keySet());
+        assertEquals(Locale.GERMANY, attributes.get("locale"));
+    }
+
+    public void testDecodeLegacyAttributes() throws Exception {
+        MailImpl mail = createMail();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(out);
+        oout.writeObject(mail.getAttributesRaw());
+        oout.close();
+
+        HashMap attributes = MailCodec.decodeAttributes(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(mail.getAttributesRaw().keySet(), attributes.keySet());
+    }
+
+    public void testUnsupportedVersion() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MailCodec.encode(createMail(), out);
+        byte[] data = out.toByteArray();
+        data[2] = (byte) (MailCodec.VERSION + 1);
+        try {
+            MailCodec.decode(new ByteArrayInputStream(data));
+            fail("Unsupported version should be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class MimeMessageMetaDataOutputStreamTest extends TestCase {
+
+    private final static String HEADERS = "Subject: test\r\nFrom: test@localhost\r\n\r\n";
+    private final static String BODY = "line1\r\nline2\r\n\r\nline4\r\n";
+
+    private MimeMessageMetaData write(String data, int chunkSize) throws Exception {
+        byte[] bytes = data.getBytes("US-ASCII");
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        MimeMessageMetaDataOutputStream out = new MimeMessageMetaDataOutputStream(target);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            out.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+        }
+        assertNull(out.getMetaData());
+        out.close();
+
+        assertTrue(Arrays.equals(bytes, target.toByteArray()));
+        return out.getMetaData();
+    }
+
+    public void testMetaData() throws Exception {
+        MimeMessageMetaData metaData = write(HEADERS + BODY, 1024);
+        assertEquals(HEADERS.length(), metaData.getBodyOffset());
+        assertEquals(HEADERS.length() + BODY.length(), metaData.getMessageSize());
+        assertEquals(BODY.length(), metaData.getBodySize());
+        assertEquals(4, metaData.getBodyLineCount());
+    }
+
+    public void testMetaDataSingleBytes() throws Exception {
+        MimeMessageMetaData metaData = write(HEADERS + BODY, 1);
+        assertEquals(HEADERS.length(), metaData.getBodyOffset());
+        assertEquals(BODY.length(), metaData.getBodySize());
+        assertEquals(4, metaData.getBodyLineCount());
+    }
+
+    public void testBareLineFeeds() throws Exception {
+        MimeMessageMetaData metaData = write("Subject: test\n\nline1\nline2\n", 3);
+        assertEquals(15, metaData.getBodyOffset());
+        assertEquals(2, metaData.getBodyLineCount());
+    }
+
+    public void testNoBody() throws Exception {
+        MimeMessageMetaData metaData = write("Subject: test\r\n", 1024);
+        assertEquals(15, metaData.getBodyOffset());
+        assertEquals(0, metaData.getBodySize());
+        assertEquals(0, metaData.getBodyLineCount());
+    }
+
+}
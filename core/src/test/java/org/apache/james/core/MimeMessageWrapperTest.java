@@ -28,10 +28,19 @@ import javax.mail.util.SharedByteArrayInputStream;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
 
 /**
  * Test the subject folding issue.
@@ -309,4 +318,120 @@ public class MimeMessageWrapperTest extends MimeMessageFromStreamTest {
         mw.saveChanges();
         assertEquals(body.length(), mw.getSize());
     }
+
+    public void testCopySharesSource() throws Exception {
+        MimeMessageWrapper copy = new MimeMessageWrapper(mw);
+        try {
+            assertEquals(mw.getSourceId(), copy.getSourceId());
+
+            copy.setHeader("X-Test", "X-Value");
+            assertNull(mw.getHeader("X-Test"));
+
+            // the copy still holds a reference to the source
+            LifecycleUtil.dispose(mw);
+            mw = null;
+            assertEquals(body, copy.getContent());
+            assertEquals("X-Value", copy.getHeader("X-Test")[0]);
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+
+    public void testDisposeTwiceKeepsSharedSource() throws Exception {
+        MimeMessageWrapper copy = new MimeMessageWrapper(mw);
+        try {
+            // the reference of the original must only be released once
+            LifecycleUtil.dispose(mw);
+            LifecycleUtil.dispose(mw);
+            mw = null;
+            assertEquals(body, copy.getContent());
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+
+    public void testCopyOfModifiedHeaders() throws Exception {
+        mw.addHeader("X-Test", "X-Value");
+        MimeMessageWrapper copy = new MimeMessageWrapper(mw);
+        try {
+            assertTrue(copy.isHeaderModified());
+            assertFalse(copy.isBodyModified());
+            assertEquals("X-Value", copy.getHeader("X-Test")[0]);
+
+            mw.setHeader("X-Test", "Changed");
+            assertEquals("X-Value", copy.getHeader("X-Test")[0]);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            copy.writeTo(out);
+            String res = out.toString();
+            assertTrue(res.indexOf("X-Test: X-Value") >= 0);
+            assertTrue(res.endsWith(sep + body));
+        } finally {
+            LifecycleUtil.dispose(copy);
+        }
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final String expected = content + sep + body;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] readers = new Thread[8];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int a = 0; a < 100; a++) {
+                            assertEquals("foo", mw.getSubject());
+                            assertEquals(body.length(), mw.getSize());
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            mw.writeTo(out);
+                            assertEquals(expected, out.toString());
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (int i = 0; i < readers.length; i++) {
+            readers[i].join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertFalse(mw.isModified());
+    }
+
+    public void testLineCount() throws MessagingException {
+        assertEquals(1, mw.getLineCount());
+        assertFalse(mw.messageParsed());
+    }
+
+    public void testWriteToFileWithFileSource() throws Exception {
+        StringBuffer sb = new StringBuffer(content).append(sep);
+        // make sure the source gets spilled to disk
+        for (int i = 0; i < 20000; i++) {
+            sb.append("0123456789\r\n");
+        }
+        byte[] data = sb.toString().getBytes();
+
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test");
+        OutputStream out = source.getWritableOutputStream();
+        out.write(data);
+        out.close();
+        assertNotNull(source.getFile());
+
+        MimeMessageWrapper wrapper = new MimeMessageWrapper(source);
+        File file = File.createTempFile("transfer", ".eml");
+        try {
+            FileOutputStream fout = new FileOutputStream(file);
+            try {
+                wrapper.writeTo(fout);
+            } finally {
+                fout.close();
+            }
+            assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(file)));
+        } finally {
+            LifecycleUtil.dispose(wrapper);
+            FileUtils.deleteQuietly(file);
+        }
+    }
 }
@@ -0,0 +1,53 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.rrt.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version of the data which is used to validate recipients: the users, the
+ * recipient rewrite mappings and the local domains.
+ * 
+ * The management beans increment the version after every change, so components
+ * which cache validation results can drop the stale ones without waiting for
+ * their expiry.
+ */
+public final class RecipientDataVersion {
+
+    private static final AtomicLong VERSION = new AtomicLong();
+
+    private RecipientDataVersion() {
+    }
+
+    /**
+     * Return the current version
+     * 
+     * @return version
+     */
+    public static long get() {
+        return VERSION.get();
+    }
+
+    /**
+     * Signal that users, mappings or domains were changed
+     */
+    public static void changed() {
+        VERSION.incrementAndGet();
+    }
+}
@@ -25,6 +25,7 @@ import javax.management.StandardMBean;
 import org.apache.james.domainlist.api.DomainList;
 import org.apache.james.domainlist.api.DomainListException;
 import org.apache.james.domainlist.api.DomainListManagementMBean;
+import org.apache.james.rrt.api.RecipientDataVersion;
 
 public class DomainListManagement extends StandardMBean implements DomainListManagementMBean {
 
@@ -43,6 +44,7 @@ public class DomainListManagement extends StandardMBean implements DomainListMan
     public void addDomain(String domain) throws Exception {
         try {
             domainList.addDomain(domain);
+            RecipientDataVersion.changed();
         } catch (DomainListException e) {
             throw new Exception(e.getMessage());
         }
@@ -70,6 +72,7 @@ public class DomainListManagement extends StandardMBean implements DomainListMan
         try {
 
             domainList.removeDomain(domain);
+            RecipientDataVersion.changed();
         } catch (DomainListException e) {
             throw new Exception(e.getMessage());
         }
@@ -26,6 +26,7 @@ import javax.annotation.Resource;
 import javax.management.NotCompliantMBeanException;
 import javax.management.StandardMBean;
 
+import org.apache.james.rrt.api.RecipientDataVersion;
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
 import org.apache.james.rrt.api.RecipientRewriteTableManagementMBean;
@@ -54,6 +55,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void addRegexMapping(String user, String domain, String regex) throws Exception {
         try {
             vut.addRegexMapping(user, domain, regex);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -68,6 +70,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
         try {
 
             vut.removeRegexMapping(user, domain, regex);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -82,6 +85,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
         try {
 
             vut.addAddressMapping(user, domain, address);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -96,6 +100,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
         try {
 
             vut.removeAddressMapping(user, domain, address);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -110,6 +115,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
         try {
 
             vut.addErrorMapping(user, domain, error);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -124,6 +130,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
         try {
 
             vut.removeErrorMapping(user, domain, error);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -132,6 +139,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void addDomainMapping(String domain, String targetDomain) throws Exception {
         try {
             vut.addAliasDomainMapping(domain, targetDomain);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -140,6 +148,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
     public void removeDomainMapping(String domain, String targetDomain) throws Exception {
         try {
             vut.removeAliasDomainMapping(domain, targetDomain);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -167,6 +176,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
         try {
 
             vut.addMapping(user, domain, mapping);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
@@ -181,6 +191,7 @@ public class RecipientRewriteTableManagement extends StandardMBean implements Re
         try {
 
             vut.removeMapping(user, domain, mapping);
+            RecipientDataVersion.changed();
         } catch (RecipientRewriteTableException e) {
             throw new Exception(e.getMessage());
         }
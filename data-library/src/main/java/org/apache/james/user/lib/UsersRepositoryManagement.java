@@ -27,6 +27,7 @@ import javax.annotation.Resource;
 import javax.management.NotCompliantMBeanException;
 import javax.management.StandardMBean;
 
+import org.apache.james.rrt.api.RecipientDataVersion;
 import org.apache.james.user.api.UsersRepositoryException;
 import org.apache.james.user.api.UsersRepositoryManagementMBean;
 import org.apache.james.user.api.UsersRepository;
@@ -66,6 +67,7 @@ public class UsersRepositoryManagement extends StandardMBean implements UsersRep
     public void addUser(String userName, String password) throws Exception {
         try {
             localUsers.addUser(userName, password);
+            RecipientDataVersion.changed();
         } catch (UsersRepositoryException e) {
             throw new Exception(e.getMessage());
         }
@@ -78,6 +80,7 @@ public class UsersRepositoryManagement extends StandardMBean implements UsersRep
     public void deleteUser(String userName) throws Exception {
         try {
             localUsers.removeUser(userName);
+            RecipientDataVersion.changed();
         } catch (UsersRepositoryException e) {
             throw new Exception(e.getMessage());
         }
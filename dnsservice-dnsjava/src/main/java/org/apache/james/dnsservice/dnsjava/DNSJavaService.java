@@ -27,14 +27,18 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.james.dnsservice.api.DNSServiceMBean;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.apache.james.dnsservice.library.DNSLookup;
+import org.apache.james.dnsservice.library.NonBlockingDNSService;
 import org.apache.james.lifecycle.api.Configurable;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.slf4j.Logger;
@@ -43,22 +47,33 @@ import org.xbill.DNS.Cache;
 import org.xbill.DNS.Credibility;
 import org.xbill.DNS.DClass;
 import org.xbill.DNS.ExtendedResolver;
+import org.xbill.DNS.Flags;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.RRset;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.Resolver;
 import org.xbill.DNS.ResolverConfig;
 import org.xbill.DNS.ReverseMap;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SetResponse;
 import org.xbill.DNS.TXTRecord;
 import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 
 /**
  * Provides DNS client functionality to services running inside James
+ * 
+ * Besides the blocking lookups of the {@link DNSService} it does non blocking
+ * lookups over UDP with a {@link NonBlockingResolver}. Both share the cache.
+ * The non blocking lookups do not use the search paths, the names are looked
+ * up as they are.
  */
-public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled, Configurable {
+public class DNSJavaService implements NonBlockingDNSService, DNSServiceMBean, LogEnabled, Configurable {
 
     /**
      * A resolver instance used to retrieve DNS records. This is a reference to
@@ -66,6 +81,22 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
      */
     protected Resolver resolver;
 
+    /**
+     * The resolver used by the non blocking lookups
+     */
+    private NonBlockingResolver nonBlockingResolver;
+
+    /**
+     * Time in milliseconds the non blocking lookups wait for the answer of a
+     * server
+     */
+    private long timeout = 5000;
+
+    /**
+     * Count of times the non blocking lookups ask every server
+     */
+    private int retries = 2;
+
     /**
      * A TTL cache of results received from the DNS server. This is a reference
      * to a third party library object.
@@ -185,6 +216,9 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         dnsCredibility = authoritative ? Credibility.AUTH_ANSWER : Credibility.NONAUTH_ANSWER;
 
         maxCacheSize = configuration.getInt("maxcachesize", maxCacheSize);
+
+        timeout = configuration.getLong("timeout", timeout);
+        retries = configuration.getInt("retries", retries);
     }
 
     @PostConstruct
@@ -219,6 +253,8 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         cache = new Cache(DClass.IN);
         cache.setMaxEntries(maxCacheSize);
 
+        nonBlockingResolver = new NonBlockingResolver(serversArray, timeout, retries);
+
         if (setAsDNSJavaDefault) {
             Lookup.setDefaultResolver(resolver);
             Lookup.setDefaultCache(cache, DClass.IN);
@@ -238,6 +274,13 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         logger.debug("DNSService ...init end");
     }
 
+    @PreDestroy
+    public void dispose() {
+        if (nonBlockingResolver != null) {
+            nonBlockingResolver.close();
+        }
+    }
+
     /**
      * Return the list of DNS servers in use by this service
      * 
@@ -268,7 +311,18 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
      *             get thrown on temporary problems
      */
     private List<String> findMXRecordsRaw(String hostname) throws TemporaryResolutionException {
-        Record answers[] = lookup(hostname, Type.MX, "MX");
+        return sortMXRecords(lookup(hostname, Type.MX, "MX"));
+    }
+
+    /**
+     * Return the targets of the given MX records ordered by their priority,
+     * the targets with the same priority are shuffled
+     * 
+     * @param answers
+     *            the MX records, may be null
+     * @return the targets
+     */
+    private List<String> sortMXRecords(Record[] answers) {
         List<String> servers = new ArrayList<String>();
         if (answers == null) {
             return servers;
@@ -542,6 +596,240 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         return InetAddress.getLocalHost();
     }
 
+    /**
+     * @see org.apache.james.dnsservice.library.NonBlockingDNSService#lookupMXRecords(java.lang.String)
+     */
+    public DNSLookup<Collection<String>> lookupMXRecords(final String hostname) {
+        final DNSLookup<Collection<String>> result = new DNSLookup<Collection<String>>();
+        final DNSLookup<Record[]> records = lookupRecords(hostname, Type.MX);
+        records.addListener(new Runnable() {
+            public void run() {
+                List<String> servers;
+                try {
+                    servers = sortMXRecords(getRecords(records));
+                } catch (TemporaryResolutionException e) {
+                    result.fail(e);
+                    return;
+                }
+                if (!servers.isEmpty()) {
+                    result.complete(Collections.unmodifiableCollection(servers));
+                    return;
+                }
+
+                // like findMXRecords use the domain itself if it has an
+                // address
+                logger.info("Couldn't resolve MX records for domain " + hostname + ".");
+                final DNSLookup<InetAddress> address = lookupByName(hostname);
+                address.addListener(new Runnable() {
+                    public void run() {
+                        Collection<String> servers = new ArrayList<String>();
+                        try {
+                            address.get();
+                            servers.add(hostname);
+                        } catch (Exception e) {
+                            logger.error("Couldn't resolve IP address for host " + hostname + ".");
+                        }
+                        result.complete(Collections.unmodifiableCollection(servers));
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.NonBlockingDNSService#lookupTXTRecords(java.lang.String)
+     */
+    public DNSLookup<Collection<String>> lookupTXTRecords(String hostname) {
+        final DNSLookup<Collection<String>> result = new DNSLookup<Collection<String>>();
+        final DNSLookup<Record[]> records = lookupRecords(hostname, Type.TXT);
+        records.addListener(new Runnable() {
+            public void run() {
+                List<String> txtR = new ArrayList<String>();
+                Record[] answers = getRecordsNoException(records);
+                if (answers != null) {
+                    for (int i = 0; i < answers.length; i++) {
+                        txtR.add(((TXTRecord) answers[i]).rdataToString());
+                    }
+                }
+                result.complete(txtR);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.NonBlockingDNSService#lookupByName(java.lang.String)
+     */
+    public DNSLookup<InetAddress> lookupByName(String host) {
+        final DNSLookup<InetAddress> result = new DNSLookup<InetAddress>();
+        final String name = allowIPLiteral(host);
+        final UnknownHostException unknown;
+        try {
+            // Check if its local
+            if (name.equalsIgnoreCase(localHostName) || name.equalsIgnoreCase(localCanonicalHostName) || name.equals(localAddress)) {
+                result.complete(getLocalHost());
+            } else {
+                result.complete(org.xbill.DNS.Address.getByAddress(name));
+            }
+            return result;
+        } catch (UnknownHostException e) {
+            unknown = e;
+        }
+
+        final DNSLookup<Record[]> records = lookupRecords(name, Type.A);
+        records.addListener(new Runnable() {
+            public void run() {
+                Record[] answers = getRecordsNoException(records);
+                if (answers != null && answers.length >= 1) {
+                    try {
+                        ARecord a = (ARecord) answers[0];
+                        result.complete(InetAddress.getByAddress(name, a.getAddress().getAddress()));
+                    } catch (UnknownHostException e) {
+                        result.fail(e);
+                    }
+                } else {
+                    result.fail(unknown);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.NonBlockingDNSService#lookupHostName(java.net.InetAddress)
+     */
+    public DNSLookup<String> lookupHostName(final InetAddress addr) {
+        final DNSLookup<String> result = new DNSLookup<String>();
+        final DNSLookup<Record[]> records = lookupRecords(ReverseMap.fromAddress(addr).toString(), Type.PTR);
+        records.addListener(new Runnable() {
+            public void run() {
+                Record[] answers = getRecordsNoException(records);
+                if (answers == null) {
+                    result.complete(addr.getHostAddress());
+                } else {
+                    result.complete(((PTRRecord) answers[0]).getTarget().toString());
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Look up the records of the given name and type without blocking. The
+     * cache is asked first, the answers of the servers are added to it. The
+     * lookup completes with null if the name has no such records, or fails
+     * with a {@link TemporaryResolutionException}.
+     * 
+     * @param namestr
+     *            the name to look up
+     * @param type
+     *            the record type
+     * @return lookup
+     */
+    private DNSLookup<Record[]> lookupRecords(String namestr, final int type) {
+        final DNSLookup<Record[]> result = new DNSLookup<Record[]>();
+        Name name;
+        try {
+            name = Name.fromString(namestr, Name.root);
+        } catch (TextParseException e) {
+            logger.error("Couldn't parse name " + namestr, e);
+            result.complete(null);
+            return result;
+        }
+
+        SetResponse cached = cache.lookupRecords(name, type, dnsCredibility);
+        if (cached.isSuccessful()) {
+            result.complete(getRecords(cached.answers(), type));
+            return result;
+        } else if (cached.isNXDOMAIN() || cached.isNXRRSET()) {
+            result.complete(null);
+            return result;
+        }
+
+        final DNSLookup<Message> query = nonBlockingResolver.send(name, type);
+        query.addListener(new Runnable() {
+            public void run() {
+                Message response;
+                try {
+                    response = query.get();
+                } catch (Exception e) {
+                    logger.debug("Non blocking lookup failed", e);
+                    result.fail(new TemporaryResolutionException("DNSService is temporary not reachable"));
+                    return;
+                }
+
+                int rcode = response.getRcode();
+                if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+                    result.fail(new TemporaryResolutionException("DNSService is temporary not reachable"));
+                    return;
+                }
+                if (!response.getHeader().getFlag(Flags.TC)) {
+                    cache.addMessage(response);
+                }
+                if (rcode == Rcode.NXDOMAIN) {
+                    result.complete(null);
+                } else {
+                    result.complete(getRecords(response.getSectionArray(Section.ANSWER), type));
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Return the records of the given type of the given rrsets or records,
+     * null if there are none
+     */
+    private Record[] getRecords(Object[] answers, int type) {
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < answers.length; i++) {
+            if (answers[i] instanceof RRset) {
+                Iterator<?> rrs = ((RRset) answers[i]).rrs();
+                while (rrs.hasNext()) {
+                    Record record = (Record) rrs.next();
+                    if (record.getType() == type) {
+                        records.add(record);
+                    }
+                }
+            } else if (((Record) answers[i]).getType() == type) {
+                records.add((Record) answers[i]);
+            }
+        }
+        return records.isEmpty() ? null : (Record[]) records.toArray(new Record[0]);
+    }
+
+    /**
+     * Return the records of the given completed lookup
+     * 
+     * @throws TemporaryResolutionException
+     *             if the lookup failed because of temporary problems
+     */
+    private Record[] getRecords(DNSLookup<Record[]> lookup) throws TemporaryResolutionException {
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TemporaryResolutionException) {
+                throw (TemporaryResolutionException) e.getCause();
+            }
+            throw new TemporaryResolutionException("DNSService is temporary not reachable");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TemporaryResolutionException("DNSService is temporary not reachable");
+        }
+    }
+
+    /**
+     * Return the records of the given completed lookup, null if it failed
+     */
+    private Record[] getRecordsNoException(DNSLookup<Record[]> lookup) {
+        try {
+            return getRecords(lookup);
+        } catch (TemporaryResolutionException e) {
+            return null;
+        }
+    }
+
     /**
      * @see
      * org.apache.james.dnsservice.api.DNSServiceMBean#getMaximumCacheSize()
@@ -0,0 +1,267 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.dnsservice.dnsjava;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.dnsservice.library.DNSLookup;
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+/**
+ * DNS client which sends the queries over UDP without blocking a thread while
+ * it waits for the answer. All queries share one channel, the answers are
+ * matched to the queries by their random id. A query is sent to the servers
+ * one after the other until one of them answered, or it fails with a
+ * {@link SocketTimeoutException} once every server was asked the configured
+ * count of times.
+ * 
+ * Queries announce an EDNS payload size of {@link #MAX_UDP_SIZE}, answers
+ * which are truncated anyway are returned as they are and not retried over
+ * TCP.
+ */
+public class NonBlockingResolver {
+
+    /**
+     * The EDNS payload size which is announced, and the size of the receive
+     * buffer
+     */
+    public final static int MAX_UDP_SIZE = 4096;
+
+    private final static int DNS_PORT = 53;
+
+    private final List<InetSocketAddress> servers;
+
+    private final long timeout;
+
+    private final int attempts;
+
+    private final ExecutorService workers;
+
+    private final NioDatagramChannelFactory channelFactory;
+
+    private final Channel channel;
+
+    private final Timer timer;
+
+    private final ConcurrentHashMap<Integer, Query> queries = new ConcurrentHashMap<Integer, Query>();
+
+    private final Random random = new SecureRandom();
+
+    /**
+     * @param servers
+     *            the names or addresses of the DNS servers
+     * @param timeout
+     *            the time in milliseconds to wait for the answer of a server
+     * @param retries
+     *            the count of times every server is asked
+     * @throws IOException
+     *             if a server is unknown or no socket could be bound
+     */
+    public NonBlockingResolver(String[] servers, long timeout, int retries) throws IOException {
+        InetSocketAddress[] addresses = new InetSocketAddress[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            addresses[i] = new InetSocketAddress(servers[i], DNS_PORT);
+            if (addresses[i].isUnresolved()) {
+                throw new IOException("Unknown DNS server " + servers[i]);
+            }
+        }
+        this.servers = Arrays.asList(addresses);
+        this.timeout = timeout;
+        this.attempts = Math.max(1, retries) * addresses.length;
+
+        workers = Executors.newCachedThreadPool();
+        channelFactory = new NioDatagramChannelFactory(workers, 1);
+        ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(channelFactory);
+        bootstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(MAX_UDP_SIZE));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(new ResponseHandler());
+            }
+        });
+        try {
+            channel = bootstrap.bind(new InetSocketAddress(0));
+        } catch (RuntimeException e) {
+            channelFactory.releaseExternalResources();
+            throw new IOException("Unable to bind the DNS client socket: " + e.getMessage());
+        }
+        timer = new HashedWheelTimer(100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a query for the records of the given name and type
+     * 
+     * @param name
+     *            the absolute name
+     * @param type
+     *            the record type
+     * @return the lookup which completes with the answer of the server
+     */
+    public DNSLookup<Message> send(Name name, int type) {
+        Message message = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+        message.addRecord(new OPTRecord(MAX_UDP_SIZE, 0, 0), Section.ADDITIONAL);
+
+        Query query = new Query(message);
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (queries.putIfAbsent(id, query) != null);
+        query.id = id;
+        message.getHeader().setID(id);
+        query.wire = message.toWire();
+
+        transmit(query, 0);
+        return query.lookup;
+    }
+
+    /**
+     * Close the channel and fail all pending queries
+     */
+    public void close() {
+        timer.stop();
+        channel.close().awaitUninterruptibly();
+        channelFactory.releaseExternalResources();
+        for (Query query : queries.values()) {
+            complete(query, null, new IOException("Resolver was closed"));
+        }
+    }
+
+    /**
+     * Send the query to the server of the given attempt and schedule the next
+     * attempt
+     */
+    private void transmit(final Query query, final int attempt) {
+        if (query.lookup.isDone()) {
+            return;
+        }
+        if (attempt >= attempts) {
+            complete(query, null, new SocketTimeoutException("No answer of the DNS servers for " + query.message.getQuestion().getName()));
+            return;
+        }
+        channel.write(ChannelBuffers.wrappedBuffer(query.wire), servers.get(attempt % servers.size()));
+        query.timeout = timer.newTimeout(new TimerTask() {
+
+            public void run(Timeout timeout) throws Exception {
+                transmit(query, attempt + 1);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Remove the query and complete its lookup with the given answer or
+     * failure
+     */
+    private void complete(Query query, Message response, Exception failure) {
+        if (!queries.remove(query.id, query)) {
+            return;
+        }
+        Timeout scheduled = query.timeout;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        if (failure == null) {
+            query.lookup.complete(response);
+        } else {
+            query.lookup.fail(failure);
+        }
+    }
+
+    /**
+     * Return true if the response answers the given query and was sent by one
+     * of the servers, answers of other hosts are ignored
+     */
+    private boolean isAnswer(Query query, Message response, SocketAddress sender) {
+        Record question = response.getQuestion();
+        return servers.contains(sender) && question != null && question.equals(query.message.getQuestion());
+    }
+
+    private final class ResponseHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+            byte[] data = new byte[buffer.readableBytes()];
+            buffer.readBytes(data);
+
+            Message response;
+            try {
+                response = new Message(data);
+            } catch (IOException ex) {
+                // not a DNS message, ignore it
+                return;
+            }
+            Query query = queries.get(response.getHeader().getID());
+            if (query != null && isAnswer(query, response, e.getRemoteAddress())) {
+                complete(query, response, null);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            // the channel is shared by all queries and stays open, lost
+            // answers are handled by the timeouts
+        }
+    }
+
+    private final static class Query {
+        private final Message message;
+        private final DNSLookup<Message> lookup = new DNSLookup<Message>();
+        private int id;
+        private byte[] wire;
+        private volatile Timeout timeout;
+
+        public Query(Message message) {
+            this.message = message;
+        }
+    }
+}
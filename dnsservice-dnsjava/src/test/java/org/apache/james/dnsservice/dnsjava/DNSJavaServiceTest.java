@@ -21,6 +21,7 @@ package org.apache.james.dnsservice.dnsjava;
 
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.james.dnsservice.dnsjava.DNSJavaService;
+import org.apache.james.dnsservice.library.DNSLookup;
 import org.slf4j.LoggerFactory;
 import org.xbill.DNS.Cache;
 import org.xbill.DNS.DClass;
@@ -148,6 +149,26 @@ public class DNSJavaServiceTest extends TestCase {
         assertTrue(records.contains("mx1.one-mx.bar."));
         
     }
+    public void testNonBlockingMXFromCache() throws Exception {
+        dnsServer.setCache(new ZoneCache("three-mx.bar."));
+        DNSLookup<Collection<String>> lookup = dnsServer.lookupMXRecords("three-mx.bar.");
+        assertTrue(lookup.isDone());
+        ArrayList<String> records = new ArrayList<String>(lookup.get());
+        assertEquals(3, records.size());
+        assertTrue(records.contains("mx1.three-mx.bar."));
+        assertTrue(records.contains("mx2.three-mx.bar."));
+        assertEquals("mx3.three-mx.bar.", records.get(2));
+    }
+
+    public void testNonBlockingNoMX() throws Exception {
+        dnsServer.setCache(new ZoneCache("dnstest.com."));
+        DNSLookup<Collection<String>> lookup = dnsServer.lookupMXRecords("nomx.dnstest.com.");
+        assertTrue(lookup.isDone());
+        Collection<String> records = lookup.get();
+        assertEquals(1, records.size());
+        assertEquals("nomx.dnstest.com.", records.iterator().next());
+    }
+
     /*
      * public void testCNAMEasMXrecords() throws Exception { // Zone z =
      * loadZone("brandilyncollins.com."); dnsServer.setResolver(null);
@@ -174,6 +195,7 @@ public class DNSJavaServiceTest extends TestCase {
     }
 
     protected void tearDown() throws Exception {
+        dnsServer.dispose();
         dnsServer.setCache(null);
         dnsServer = null;
         Lookup.setDefaultCache(defaultCache, DClass.IN);
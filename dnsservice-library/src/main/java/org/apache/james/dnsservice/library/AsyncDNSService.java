@@ -0,0 +1,449 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.api.TemporaryResolutionException;
+
+/**
+ * {@link DNSService} which allows to start lookups before their result is
+ * needed. The results are kept for a short time, so the blocking methods of
+ * the {@link DNSService} only need to wait if the lookup did not complete yet.
+ * Concurrent lookups of the same name are done only once, at most the given
+ * count of results is kept.
+ * 
+ * If the wrapped service is a {@link NonBlockingDNSService} the lookups do not
+ * block any thread while the DNS server is asked. Otherwise every lookup is
+ * run by the given {@link Executor}, which then needs enough threads for the
+ * lookups which wait for slow DNS servers at the same time.
+ * 
+ * Only positive results and unknown hosts are kept, lookups which failed
+ * because of temporary problems are done again.
+ */
+public class AsyncDNSService implements DNSService {
+
+    /**
+     * Default time in milliseconds the results of the lookups are kept
+     */
+    public final static long DEFAULT_TTL = 30 * 1000;
+
+    /**
+     * Default maximal count of results which are kept
+     */
+    public final static int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final static long MIN_PURGE_INTERVAL = 1000;
+
+    private final static String BY_NAME = "A:";
+    private final static String MX = "MX:";
+    private final static String TXT = "TXT:";
+    private final static String PTR = "PTR:";
+
+    private final DNSService dns;
+
+    private final Executor executor;
+
+    private final long ttl;
+
+    private final int maxEntries;
+
+    private final ConcurrentHashMap<String, Entry> lookups = new ConcurrentHashMap<String, Entry>();
+
+    private volatile long nextPurge = 0;
+
+    private volatile long lastPurge = 0;
+
+    /**
+     * Create a service which does the lookups of a blocking
+     * {@link DNSService} in the calling thread
+     * 
+     * @param dns
+     *            the {@link DNSService} which does the lookups
+     */
+    public AsyncDNSService(DNSService dns) {
+        this(dns, DEFAULT_TTL);
+    }
+
+    /**
+     * @param dns
+     *            the {@link DNSService} which does the lookups
+     * @param ttl
+     *            the time in milliseconds the results are kept
+     */
+    public AsyncDNSService(DNSService dns, long ttl) {
+        this(dns, null, ttl, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param dns
+     *            the {@link DNSService} which does the lookups
+     * @param executor
+     *            the executor which runs the lookups of a blocking
+     *            {@link DNSService}, null to run them in the calling thread
+     */
+    public AsyncDNSService(DNSService dns, Executor executor) {
+        this(dns, executor, DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param dns
+     *            the {@link DNSService} which does the lookups
+     * @param executor
+     *            the executor which runs the lookups of a blocking
+     *            {@link DNSService}, null to run them in the calling thread
+     * @param ttl
+     *            the time in milliseconds the results are kept
+     * @param maxEntries
+     *            the maximal count of results which are kept
+     */
+    public AsyncDNSService(DNSService dns, Executor executor, long ttl, int maxEntries) {
+        this.dns = dns;
+        this.executor = executor;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Return true if the lookups do not block a thread while the DNS server is
+     * asked
+     * 
+     * @return nonBlocking
+     */
+    public boolean isNonBlocking() {
+        return dns instanceof NonBlockingDNSService;
+    }
+
+    /**
+     * Start the lookup of the MX records for the given hostname
+     * 
+     * @param hostname
+     * @return lookup
+     */
+    @SuppressWarnings("unchecked")
+    public DNSLookup<Collection<String>> lookupMXRecords(final String hostname) {
+        return (DNSLookup<Collection<String>>) lookup(MX + hostname, new Callable<DNSLookup<?>>() {
+
+            public DNSLookup<?> call() {
+                return ((NonBlockingDNSService) dns).lookupMXRecords(hostname);
+            }
+        }, new Callable<Collection<String>>() {
+
+            public Collection<String> call() throws Exception {
+                return dns.findMXRecords(hostname);
+            }
+        }).lookup;
+    }
+
+    /**
+     * Start the lookup of the TXT records for the given hostname
+     * 
+     * @param hostname
+     * @return lookup
+     */
+    @SuppressWarnings("unchecked")
+    public DNSLookup<Collection<String>> lookupTXTRecords(final String hostname) {
+        return (DNSLookup<Collection<String>>) lookup(TXT + hostname, new Callable<DNSLookup<?>>() {
+
+            public DNSLookup<?> call() {
+                return ((NonBlockingDNSService) dns).lookupTXTRecords(hostname);
+            }
+        }, new Callable<Collection<String>>() {
+
+            public Collection<String> call() throws Exception {
+                return dns.findTXTRecords(hostname);
+            }
+        }).lookup;
+    }
+
+    /**
+     * Start the lookup of the address of the given host
+     * 
+     * @param host
+     * @return lookup
+     */
+    @SuppressWarnings("unchecked")
+    public DNSLookup<InetAddress> lookupByName(final String host) {
+        return (DNSLookup<InetAddress>) lookup(BY_NAME + host, new Callable<DNSLookup<?>>() {
+
+            public DNSLookup<?> call() {
+                return ((NonBlockingDNSService) dns).lookupByName(host);
+            }
+        }, new Callable<InetAddress>() {
+
+            public InetAddress call() throws Exception {
+                return dns.getByName(host);
+            }
+        }).lookup;
+    }
+
+    /**
+     * Start the lookup of the hostname of the given address
+     * 
+     * @param addr
+     * @return lookup
+     */
+    @SuppressWarnings("unchecked")
+    public DNSLookup<String> lookupHostName(final InetAddress addr) {
+        return (DNSLookup<String>) lookup(PTR + addr.getHostAddress(), new Callable<DNSLookup<?>>() {
+
+            public DNSLookup<?> call() {
+                return ((NonBlockingDNSService) dns).lookupHostName(addr);
+            }
+        }, new Callable<String>() {
+
+            public String call() throws Exception {
+                return dns.getHostName(addr);
+            }
+        }).lookup;
+    }
+
+    /**
+     * Run blocking work which does its own DNS lookups, like a SPF check, by
+     * the executor of this service. The result is not kept.
+     * 
+     * @param callable
+     *            the work to run
+     * @return lookup
+     */
+    public <V> DNSLookup<V> submit(Callable<V> callable) {
+        DNSLookup<V> lookup = new DNSLookup<V>(callable);
+        run(lookup);
+        return lookup;
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSService#findMXRecords(java.lang.String)
+     */
+    @SuppressWarnings("unchecked")
+    public Collection<String> findMXRecords(String hostname) throws TemporaryResolutionException {
+        try {
+            return (Collection<String>) await(MX + hostname, lookupMXRecords(hostname));
+        } catch (TemporaryResolutionException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSService#findTXTRecords(java.lang.String)
+     */
+    @SuppressWarnings("unchecked")
+    public Collection<String> findTXTRecords(String hostname) {
+        try {
+            return (Collection<String>) await(TXT + hostname, lookupTXTRecords(hostname));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSService#getByName(java.lang.String)
+     */
+    public InetAddress getByName(String host) throws UnknownHostException {
+        try {
+            return (InetAddress) await(BY_NAME + host, lookupByName(host));
+        } catch (UnknownHostException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSService#getHostName(java.net.InetAddress)
+     */
+    public String getHostName(InetAddress addr) {
+        try {
+            return (String) await(PTR + addr.getHostAddress(), lookupHostName(addr));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSService#getAllByName(java.lang.String)
+     */
+    public InetAddress[] getAllByName(String host) throws UnknownHostException {
+        return dns.getAllByName(host);
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSService#getLocalHost()
+     */
+    public InetAddress getLocalHost() throws UnknownHostException {
+        return dns.getLocalHost();
+    }
+
+    /**
+     * Return the lookup for the given key and start it if it is not running
+     * or known yet. A {@link NonBlockingDNSService} is asked by the
+     * nonBlocking callable, a blocking one by the blocking callable.
+     */
+    @SuppressWarnings("unchecked")
+    private Entry lookup(final String key, Callable<DNSLookup<?>> nonBlocking, Callable<?> blocking) {
+        long now = System.currentTimeMillis();
+        purge(now, false);
+
+        Entry entry = lookups.get(key);
+        if (entry != null) {
+            if (entry.expires > now) {
+                return entry;
+            }
+            lookups.remove(key, entry);
+        }
+
+        final DNSLookup<Object> lookup = new DNSLookup<Object>((Callable<Object>) blocking);
+        final Entry created = new Entry(lookup, now + ttl);
+        if (lookups.size() >= maxEntries) {
+            purge(now, true);
+        }
+        if (lookups.size() < maxEntries) {
+            entry = lookups.putIfAbsent(key, created);
+            if (entry != null) {
+                return entry;
+            }
+            created.lookup.addListener(new Runnable() {
+                public void run() {
+                    if (isTemporaryFailure(created.lookup)) {
+                        lookups.remove(key, created);
+                    }
+                }
+            });
+        }
+        if (isNonBlocking()) {
+            try {
+                lookup.completeWith(nonBlocking.call());
+            } catch (Exception e) {
+                lookup.fail(e);
+            }
+        } else {
+            run(lookup);
+        }
+        return created;
+    }
+
+    /**
+     * Run the given lookup by the executor, or by the calling thread if there
+     * is no executor or it is shut down
+     */
+    private void run(DNSLookup<?> lookup) {
+        if (executor == null) {
+            lookup.run();
+        } else {
+            try {
+                executor.execute(lookup);
+            } catch (RejectedExecutionException e) {
+                lookup.run();
+            }
+        }
+    }
+
+    /**
+     * Wait for the result of the given lookup
+     * 
+     * @return result
+     * @throws Exception
+     *             the exception the lookup failed with
+     */
+    private Object await(String key, DNSLookup<?> lookup) throws Exception {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the lookup of " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Return true if the given completed lookup failed because of something
+     * else than an unknown host. Only negative answers are kept, not temporary
+     * problems.
+     */
+    private boolean isTemporaryFailure(DNSLookup<?> lookup) {
+        if (lookup.isCancelled()) {
+            return true;
+        }
+        try {
+            lookup.get();
+            return false;
+        } catch (ExecutionException e) {
+            return !(e.getCause() instanceof UnknownHostException);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * Remove the expired results
+     * 
+     * @param now
+     * @param force
+     *            true to purge even if the last purge was less than the ttl
+     *            ago, it is still done at most once a second
+     */
+    private void purge(long now, boolean force) {
+        if (now < nextPurge && (!force || now < lastPurge + MIN_PURGE_INTERVAL)) {
+            return;
+        }
+        lastPurge = now;
+        nextPurge = now + ttl;
+        Iterator<Entry> entries = lookups.values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().expires <= now) {
+                entries.remove();
+            }
+        }
+    }
+
+    private final static class Entry {
+        private final DNSLookup<?> lookup;
+        private final long expires;
+
+        public Entry(DNSLookup<?> lookup, long expires) {
+            this.lookup = lookup;
+            this.expires = expires;
+        }
+    }
+}
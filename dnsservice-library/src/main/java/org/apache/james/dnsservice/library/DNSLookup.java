@@ -0,0 +1,131 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * {@link FutureTask} for a DNS lookup which notifies listeners once the lookup
+ * completed. So the caller does not need to block a thread while it waits for
+ * the result.
+ */
+public class DNSLookup<V> extends FutureTask<V> {
+
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+    private boolean completed = false;
+
+    public DNSLookup(Callable<V> callable) {
+        super(callable);
+    }
+
+    /**
+     * Create a lookup which is not run by an executor but completed by
+     * {@link #complete(Object)} or {@link #fail(Throwable)} once the answer
+     * was received.
+     */
+    public DNSLookup() {
+        super(new Callable<V>() {
+
+            public V call() throws Exception {
+                throw new IllegalStateException("Lookup is completed by the resolver");
+            }
+        });
+    }
+
+    /**
+     * Complete the lookup with the given result. Nothing is done if it is
+     * already completed.
+     * 
+     * @param result
+     */
+    public void complete(V result) {
+        set(result);
+    }
+
+    /**
+     * Complete the lookup with the given failure. Nothing is done if it is
+     * already completed.
+     * 
+     * @param failure
+     */
+    public void fail(Throwable failure) {
+        setException(failure);
+    }
+
+    /**
+     * Complete the lookup with the result or the failure of the given lookup,
+     * once that one completed.
+     * 
+     * @param other
+     */
+    public void completeWith(final DNSLookup<? extends V> other) {
+        other.addListener(new Runnable() {
+
+            public void run() {
+                try {
+                    complete(other.get());
+                } catch (ExecutionException e) {
+                    fail(e.getCause());
+                } catch (CancellationException e) {
+                    fail(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add a listener which is called once the lookup completed. If it is
+     * already completed the listener is called directly.
+     * 
+     * @param listener
+     */
+    public void addListener(Runnable listener) {
+        synchronized (listeners) {
+            if (!completed) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * @see java.util.concurrent.FutureTask#done()
+     */
+    protected void done() {
+        List<Runnable> toNotify;
+        synchronized (listeners) {
+            completed = true;
+            toNotify = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        for (int i = 0; i < toNotify.size(); i++) {
+            toNotify.get(i).run();
+        }
+    }
+}
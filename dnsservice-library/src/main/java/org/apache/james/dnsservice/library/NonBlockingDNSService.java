@@ -0,0 +1,59 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.dnsservice.library;
+
+import java.net.InetAddress;
+import java.util.Collection;
+
+import org.apache.james.dnsservice.api.DNSService;
+
+/**
+ * {@link DNSService} which can do lookups without blocking a thread while the
+ * DNS server is asked. The returned lookups are completed by the thread which
+ * received the answer, so their listeners must not block.
+ * 
+ * The lookups complete like the blocking methods of the {@link DNSService}
+ * return or throw: {@link #lookupMXRecords(String)} fails with a
+ * {@link org.apache.james.dnsservice.api.TemporaryResolutionException} on
+ * temporary problems, {@link #lookupByName(String)} fails with an
+ * {@link java.net.UnknownHostException} if no address was found.
+ */
+public interface NonBlockingDNSService extends DNSService {
+
+    /**
+     * @see DNSService#findMXRecords(String)
+     */
+    DNSLookup<Collection<String>> lookupMXRecords(String hostname);
+
+    /**
+     * @see DNSService#findTXTRecords(String)
+     */
+    DNSLookup<Collection<String>> lookupTXTRecords(String hostname);
+
+    /**
+     * @see DNSService#getByName(String)
+     */
+    DNSLookup<InetAddress> lookupByName(String host);
+
+    /**
+     * @see DNSService#getHostName(InetAddress)
+     */
+    DNSLookup<String> lookupHostName(InetAddress addr);
+}
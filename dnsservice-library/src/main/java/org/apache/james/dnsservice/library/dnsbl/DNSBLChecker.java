@@ -0,0 +1,263 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library.dnsbl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.AsyncDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
+
+/**
+ * Check ip addresses against DNSBL zones. The verdicts are kept in a
+ * {@link DNSBLVerdictCache}, so repeated checks of the same ip address do not
+ * ask the DNS server again.
+ * 
+ * The zones are asked by the given {@link AsyncDNSService}, so the lookups
+ * run like all other lookups of its user and no threads are needed if the
+ * DNS server is asked without blocking.
+ */
+public class DNSBLChecker {
+
+    private final AsyncDNSService lookupService;
+
+    private final DNSBLVerdictCache cache;
+
+    /**
+     * Create a checker with a cache of its own, which asks the given
+     * {@link DNSService} in the calling thread
+     * 
+     * @param dnsService
+     */
+    public DNSBLChecker(DNSService dnsService) {
+        this(new AsyncDNSService(dnsService), new DNSBLVerdictCache());
+    }
+
+    /**
+     * @param lookupService
+     *            the service which does the lookups
+     * @param cache
+     *            the cache which keeps the verdicts
+     */
+    public DNSBLChecker(AsyncDNSService lookupService, DNSBLVerdictCache cache) {
+        this.lookupService = lookupService;
+        this.cache = cache;
+    }
+
+    /**
+     * Return the cache which holds the verdicts
+     * 
+     * @return cache
+     */
+    public DNSBLVerdictCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Start the lookup of the ip address in the given zone, or return the
+     * running or cached one
+     * 
+     * @param ipAddress
+     * @param zone
+     * @param detail
+     *            true if the TXT record of a listing should be retrieved
+     * @return lookup
+     */
+    public DNSLookup<DNSBLVerdict> lookup(String ipAddress, final String zone, final boolean detail) {
+        final String name = reverseOctets(ipAddress) + zone;
+        return cache.lookup(ipAddress, zone, detail, new Callable<DNSLookup<DNSBLVerdict>>() {
+            public DNSLookup<DNSBLVerdict> call() {
+                final DNSLookup<DNSBLVerdict> verdict = new DNSLookup<DNSBLVerdict>();
+                final DNSLookup<InetAddress> address = lookupService.lookupByName(name);
+                address.addListener(new Runnable() {
+                    public void run() {
+                        try {
+                            address.get();
+                        } catch (ExecutionException e) {
+                            if (e.getCause() instanceof UnknownHostException) {
+                                // This is good... it's not on the list
+                                verdict.complete(new DNSBLVerdict(zone, false, null));
+                            } else {
+                                verdict.fail(e.getCause());
+                            }
+                            return;
+                        } catch (Exception e) {
+                            verdict.fail(e);
+                            return;
+                        }
+                        if (detail) {
+                            lookupDetail(name, zone, verdict);
+                        } else {
+                            verdict.complete(new DNSBLVerdict(zone, true, null));
+                        }
+                    }
+                });
+                return verdict;
+            }
+        });
+    }
+
+    /**
+     * Complete the verdict of a listing with the TXT record of the listing.
+     * The listing is kept without detail if the TXT record could not be
+     * retrieved.
+     */
+    private void lookupDetail(String name, final String zone, final DNSLookup<DNSBLVerdict> verdict) {
+        final DNSLookup<Collection<String>> txt = lookupService.lookupTXTRecords(name);
+        txt.addListener(new Runnable() {
+            public void run() {
+                String detail = null;
+                try {
+                    Collection<String> records = txt.get();
+                    if (records != null && !records.isEmpty()) {
+                        detail = records.iterator().next();
+                    }
+                } catch (Exception e) {
+                    // keep the listing without detail
+                }
+                verdict.complete(new DNSBLVerdict(zone, true, detail));
+            }
+        });
+    }
+
+    /**
+     * Check if the ip address is listed in the given zone. The calling thread
+     * waits for the lookup if there is no verdict yet.
+     * 
+     * @param ipAddress
+     * @param zone
+     * @return verdict
+     */
+    public DNSBLVerdict check(String ipAddress, String zone) {
+        DNSLookup<DNSBLVerdict> lookup = lookup(ipAddress, zone, false);
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking " + ipAddress + " in " + zone);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Unable to check " + ipAddress + " in " + zone, cause);
+        }
+    }
+
+    /**
+     * Check the ip address against all given zones in parallel, unless the
+     * lookup service runs the lookups in the calling thread. A listing in a
+     * whitelist wins over a listing in a blacklist. Zones which do not answer
+     * before the timeout are handled like they do not list the ip address.
+     * 
+     * @param ipAddress
+     * @param whitelist
+     *            the whitelist zones, may be <code>null</code>
+     * @param blacklist
+     *            the blacklist zones, may be <code>null</code>
+     * @param detail
+     *            true if the TXT record of a blacklist listing should be
+     *            retrieved
+     * @param timeout
+     *            the time in milliseconds to wait for all zones, 0 to wait
+     *            until all answered
+     * @return the verdict of the first whitelist which lists the ip address,
+     *         or else of the first blacklist which lists it, or
+     *         <code>null</code> if it is not listed at all
+     */
+    public DNSBLVerdict check(String ipAddress, String[] whitelist, String[] blacklist, boolean detail, long timeout) {
+        long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+
+        List<DNSLookup<DNSBLVerdict>> whitelistLookups = new ArrayList<DNSLookup<DNSBLVerdict>>();
+        if (whitelist != null) {
+            for (int i = 0; i < whitelist.length; i++) {
+                whitelistLookups.add(lookup(ipAddress, whitelist[i], false));
+            }
+        }
+        List<DNSLookup<DNSBLVerdict>> blacklistLookups = new ArrayList<DNSLookup<DNSBLVerdict>>();
+        if (blacklist != null) {
+            for (int i = 0; i < blacklist.length; i++) {
+                blacklistLookups.add(lookup(ipAddress, blacklist[i], detail));
+            }
+        }
+
+        DNSBLVerdict verdict = findListing(whitelistLookups, deadline);
+        if (verdict == null) {
+            verdict = findListing(blacklistLookups, deadline);
+        }
+        return verdict;
+    }
+
+    /**
+     * Return the first verdict which lists the ip address, or
+     * <code>null</code> if none did before the deadline
+     */
+    private DNSBLVerdict findListing(List<DNSLookup<DNSBLVerdict>> lookups, long deadline) {
+        for (int i = 0; i < lookups.size(); i++) {
+            DNSLookup<DNSBLVerdict> lookup = lookups.get(i);
+            try {
+                DNSBLVerdict verdict;
+                if (deadline == Long.MAX_VALUE) {
+                    verdict = lookup.get();
+                } else {
+                    verdict = lookup.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                if (verdict.isListed()) {
+                    return verdict;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                // temporary problem, handle it like not listed
+            } catch (TimeoutException e) {
+                // too slow, handle it like not listed
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reverse the octets of the given ip address, like it is needed for the
+     * lookup in a DNSBL zone
+     * 
+     * @param ipAddress
+     * @return reversedOctets
+     */
+    public static String reverseOctets(String ipAddress) {
+        StringBuffer sb = new StringBuffer();
+        StringTokenizer st = new StringTokenizer(ipAddress, " .", false);
+        while (st.hasMoreTokens()) {
+            sb.insert(0, st.nextToken() + ".");
+        }
+        return sb.toString();
+    }
+}
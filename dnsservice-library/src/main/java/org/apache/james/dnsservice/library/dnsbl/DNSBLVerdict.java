@@ -0,0 +1,63 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library.dnsbl;
+
+/**
+ * Result of the lookup of an ip address in a DNSBL zone
+ */
+public class DNSBLVerdict {
+
+    private final String zone;
+    private final boolean listed;
+    private final String detail;
+
+    public DNSBLVerdict(String zone, boolean listed, String detail) {
+        this.zone = zone;
+        this.listed = listed;
+        this.detail = detail;
+    }
+
+    /**
+     * Return the zone which was asked
+     * 
+     * @return zone
+     */
+    public String getZone() {
+        return zone;
+    }
+
+    /**
+     * Return true if the ip address is listed in the zone
+     * 
+     * @return listed
+     */
+    public boolean isListed() {
+        return listed;
+    }
+
+    /**
+     * Return the TXT record of the listing or <code>null</code> if it was not
+     * asked for or there is none
+     * 
+     * @return detail
+     */
+    public String getDetail() {
+        return detail;
+    }
+}
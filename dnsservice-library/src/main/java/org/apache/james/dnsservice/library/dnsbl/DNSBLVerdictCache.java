@@ -0,0 +1,285 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library.dnsbl;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.james.dnsservice.library.DNSLookup;
+
+/**
+ * Cache for the verdicts of DNSBL zones per ip address. The size of the cache
+ * is limited by the count of ip addresses, the least recently used ones are
+ * removed first. Lookups which are still running are shared, so the same ip
+ * address is not asked twice for a zone.
+ * 
+ * The cache belongs to the component which created it. It can be exported via
+ * JMX by {@link #registerMBean(String)} and needs to be disposed by
+ * {@link #dispose()} then.
+ */
+public class DNSBLVerdictCache implements DNSBLVerdictCacheMBean {
+
+    /**
+     * Default time in milliseconds a verdict is kept
+     */
+    public final static long DEFAULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * Default maximum count of ip addresses in the cache
+     */
+    public final static int DEFAULT_MAX_SIZE = 10000;
+
+    private final long ttl;
+
+    private final int maxSize;
+
+    private final LinkedHashMap<String, Map<String, Entry>> verdicts;
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    private final AtomicLong misses = new AtomicLong(0);
+
+    private long nextPurge = 0;
+
+    private ObjectName mbeanName;
+
+    public DNSBLVerdictCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param ttl
+     *            the time in milliseconds a verdict is kept
+     * @param maxSize
+     *            the maximum count of ip addresses in the cache
+     */
+    public DNSBLVerdictCache(long ttl, final int maxSize) {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.verdicts = new LinkedHashMap<String, Map<String, Entry>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Entry>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Export the cache via JMX under the given name, until {@link #dispose()}
+     * is called
+     * 
+     * @param name
+     *            the name of the MBean
+     * @throws JMException
+     *             if the MBean could not be registered
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        mbeanName = objectName;
+    }
+
+    /**
+     * Unregister the MBean of the cache, if it was exported, and remove all
+     * verdicts
+     */
+    public void dispose() {
+        synchronized (this) {
+            if (mbeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                } catch (JMException e) {
+                    // already unregistered
+                }
+                mbeanName = null;
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Return the lookup of the ip address in the given zone. If there is no
+     * verdict yet or it is expired, the given callable is asked to start a new
+     * lookup.
+     * 
+     * @param ipAddress
+     * @param zone
+     * @param detail
+     *            true if the verdict needs to contain the TXT record of the
+     *            listing
+     * @param starter
+     *            the callable which starts the lookup and returns it
+     * @return lookup
+     */
+    public DNSLookup<DNSBLVerdict> lookup(final String ipAddress, final String zone, boolean detail, Callable<DNSLookup<DNSBLVerdict>> starter) {
+        long now = System.currentTimeMillis();
+        final Entry created;
+        synchronized (verdicts) {
+            purge(now);
+            Map<String, Entry> zones = verdicts.get(ipAddress);
+            if (zones == null) {
+                zones = new HashMap<String, Entry>();
+                verdicts.put(ipAddress, zones);
+            }
+            Entry entry = zones.get(zone);
+            if (entry != null && entry.expires > now && (entry.detail || !detail)) {
+                hits.incrementAndGet();
+                return entry.lookup;
+            }
+            created = new Entry(new DNSLookup<DNSBLVerdict>(), now + ttl, detail);
+            zones.put(zone, created);
+        }
+        misses.incrementAndGet();
+
+        // only keep verdicts, not temporary problems
+        created.lookup.addListener(new Runnable() {
+            public void run() {
+                if (!created.lookup.isCancelled()) {
+                    try {
+                        created.lookup.get();
+                        return;
+                    } catch (Exception e) {
+                        // fall through
+                    }
+                }
+                remove(ipAddress, zone, created);
+            }
+        });
+
+        try {
+            created.lookup.completeWith(starter.call());
+        } catch (Exception e) {
+            created.lookup.fail(e);
+        }
+        return created.lookup;
+    }
+
+    private void remove(String ipAddress, String zone, Entry entry) {
+        synchronized (verdicts) {
+            Map<String, Entry> zones = verdicts.get(ipAddress);
+            if (zones != null && zones.get(zone) == entry) {
+                zones.remove(zone);
+                if (zones.isEmpty()) {
+                    verdicts.remove(ipAddress);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the expired verdicts, must be called while holding the lock
+     * 
+     * @param now
+     */
+    private void purge(long now) {
+        if (now < nextPurge) {
+            return;
+        }
+        nextPurge = now + ttl;
+        Iterator<Map<String, Entry>> ips = verdicts.values().iterator();
+        while (ips.hasNext()) {
+            Map<String, Entry> zones = ips.next();
+            Iterator<Entry> entries = zones.values().iterator();
+            while (entries.hasNext()) {
+                if (entries.next().expires <= now) {
+                    entries.remove();
+                }
+            }
+            if (zones.isEmpty()) {
+                ips.remove();
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.dnsbl.DNSBLVerdictCacheMBean#getHits()
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.dnsbl.DNSBLVerdictCacheMBean#getMisses()
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.dnsbl.DNSBLVerdictCacheMBean#getHitRatio()
+     */
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long all = hits + misses.get();
+        return (all == 0) ? 0 : (double) hits / all;
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.dnsbl.DNSBLVerdictCacheMBean#getSize()
+     */
+    public int getSize() {
+        synchronized (verdicts) {
+            return verdicts.size();
+        }
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.dnsbl.DNSBLVerdictCacheMBean#getMaxSize()
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.dnsbl.DNSBLVerdictCacheMBean#getTTL()
+     */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.library.dnsbl.DNSBLVerdictCacheMBean#clear()
+     */
+    public void clear() {
+        synchronized (verdicts) {
+            verdicts.clear();
+        }
+    }
+
+    private final static class Entry {
+        private final DNSLookup<DNSBLVerdict> lookup;
+        private final long expires;
+        private final boolean detail;
+
+        public Entry(DNSLookup<DNSBLVerdict> lookup, long expires, boolean detail) {
+            this.lookup = lookup;
+            this.expires = expires;
+            this.detail = detail;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library.dnsbl;
+
+/**
+ * JMX Bean which shows the statistics of the {@link DNSBLVerdictCache}
+ */
+public interface DNSBLVerdictCacheMBean {
+
+    /**
+     * Return the count of lookups which were answered by the cache
+     * 
+     * @return hits
+     */
+    long getHits();
+
+    /**
+     * Return the count of lookups which needed to ask the DNS server
+     * 
+     * @return misses
+     */
+    long getMisses();
+
+    /**
+     * Return the ratio of lookups which were answered by the cache
+     * 
+     * @return hitRatio
+     */
+    double getHitRatio();
+
+    /**
+     * Return the count of ip addresses in the cache
+     * 
+     * @return size
+     */
+    int getSize();
+
+    /**
+     * Return the maximum count of ip addresses in the cache
+     * 
+     * @return maxSize
+     */
+    int getMaxSize();
+
+    /**
+     * Return the time in milliseconds a verdict is kept
+     * 
+     * @return ttl
+     */
+    long getTTL();
+
+    /**
+     * Remove all verdicts from the cache
+     */
+    void clear();
+}
@@ -0,0 +1,199 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+
+public class AsyncDNSServiceTest extends TestCase {
+
+    private final AtomicInteger lookups = new AtomicInteger(0);
+
+    private final MockDNSService dns = new MockDNSService() {
+
+        public InetAddress getByName(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if ("unknown".equals(host)) {
+                throw new UnknownHostException(host);
+            }
+            return InetAddress.getByName("127.0.0.1");
+        }
+
+        public Collection<String> findMXRecords(String hostname) {
+            lookups.incrementAndGet();
+            return Arrays.asList("mx." + hostname);
+        }
+
+        public Collection<String> findTXTRecords(String hostname) {
+            lookups.incrementAndGet();
+            throw new IllegalStateException("temporary problem");
+        }
+    };
+
+    public void testAsyncLookupIsShared() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsyncDNSService service = new AsyncDNSService(dns, executor);
+            final CountDownLatch latch = new CountDownLatch(1);
+            service.lookupByName("localhost").addListener(new Runnable() {
+
+                public void run() {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+            assertEquals("127.0.0.1", service.getByName("localhost").getHostAddress());
+            assertEquals("127.0.0.1", service.getByName("localhost").getHostAddress());
+            assertEquals(1, lookups.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testListenerOfCompletedLookup() throws Exception {
+        AsyncDNSService service = new AsyncDNSService(dns);
+        service.findMXRecords("example.com");
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        service.lookupMXRecords("example.com").addListener(new Runnable() {
+
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertEquals(0, latch.getCount());
+        assertEquals(1, lookups.get());
+    }
+
+    public void testUnknownHostIsKept() throws Exception {
+        AsyncDNSService service = new AsyncDNSService(dns);
+        for (int i = 0; i < 2; i++) {
+            try {
+                service.getByName("unknown");
+                fail();
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+        assertEquals(1, lookups.get());
+    }
+
+    public void testFailureIsNotKept() throws Exception {
+        AsyncDNSService service = new AsyncDNSService(dns);
+        for (int i = 0; i < 2; i++) {
+            try {
+                service.findTXTRecords("example.com");
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        assertEquals(2, lookups.get());
+    }
+
+    public void testResultExpires() throws TemporaryResolutionException {
+        AsyncDNSService service = new AsyncDNSService(dns, 0);
+        service.findMXRecords("example.com");
+        service.findMXRecords("example.com");
+        assertEquals(2, lookups.get());
+    }
+
+    public void testResultsAreBounded() throws TemporaryResolutionException {
+        AsyncDNSService service = new AsyncDNSService(dns, null, AsyncDNSService.DEFAULT_TTL, 1);
+        service.findMXRecords("example.com");
+        service.findMXRecords("example.org");
+        service.findMXRecords("example.org");
+        service.findMXRecords("example.com");
+        assertEquals(3, lookups.get());
+    }
+
+    public void testNonBlockingServiceIsUsed() throws Exception {
+        final DNSLookup<InetAddress> pending = new DNSLookup<InetAddress>();
+        AsyncDNSService service = new AsyncDNSService(new NonBlockingMockDNSService() {
+
+            public DNSLookup<InetAddress> lookupByName(String host) {
+                lookups.incrementAndGet();
+                return pending;
+            }
+        }, null);
+        assertTrue(service.isNonBlocking());
+
+        DNSLookup<InetAddress> lookup = service.lookupByName("localhost");
+        assertFalse(lookup.isDone());
+        assertSame(lookup, service.lookupByName("localhost"));
+
+        pending.complete(InetAddress.getByName("127.0.0.1"));
+        assertTrue(lookup.isDone());
+        assertEquals("127.0.0.1", service.getByName("localhost").getHostAddress());
+        assertEquals(1, lookups.get());
+    }
+
+    public void testNonBlockingTemporaryFailureIsNotKept() throws Exception {
+        AsyncDNSService service = new AsyncDNSService(new NonBlockingMockDNSService() {
+
+            public DNSLookup<Collection<String>> lookupMXRecords(String hostname) {
+                lookups.incrementAndGet();
+                DNSLookup<Collection<String>> lookup = new DNSLookup<Collection<String>>();
+                lookup.fail(new TemporaryResolutionException("timeout"));
+                return lookup;
+            }
+        }, null);
+        for (int i = 0; i < 2; i++) {
+            try {
+                service.findMXRecords("example.com");
+                fail();
+            } catch (TemporaryResolutionException e) {
+                // expected
+            }
+        }
+        assertEquals(2, lookups.get());
+    }
+
+    private abstract static class NonBlockingMockDNSService extends MockDNSService implements NonBlockingDNSService {
+
+        public DNSLookup<Collection<String>> lookupMXRecords(String hostname) {
+            throw new UnsupportedOperationException("Unimplemented Stub Method");
+        }
+
+        public DNSLookup<Collection<String>> lookupTXTRecords(String hostname) {
+            throw new UnsupportedOperationException("Unimplemented Stub Method");
+        }
+
+        public DNSLookup<InetAddress> lookupByName(String host) {
+            throw new UnsupportedOperationException("Unimplemented Stub Method");
+        }
+
+        public DNSLookup<String> lookupHostName(InetAddress addr) {
+            throw new UnsupportedOperationException("Unimplemented Stub Method");
+        }
+    }
+}
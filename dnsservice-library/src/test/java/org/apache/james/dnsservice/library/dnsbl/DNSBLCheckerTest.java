@@ -0,0 +1,161 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library.dnsbl;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.james.dnsservice.library.AsyncDNSService;
+
+public class DNSBLCheckerTest extends TestCase {
+
+    private final static String LISTED_HOST = "1.2.3.4";
+
+    private final AtomicInteger lookups = new AtomicInteger(0);
+
+    private final CountDownLatch slowZone = new CountDownLatch(1);
+
+    private final MockDNSService dns = new MockDNSService() {
+
+        public InetAddress getByName(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (host.startsWith("4.3.2.1.")) {
+                if (host.endsWith("slow.list.")) {
+                    try {
+                        slowZone.await();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                } else if (host.endsWith("broken.list.")) {
+                    throw new IllegalStateException("temporary problem");
+                }
+                return InetAddress.getByName("127.0.0.2");
+            }
+            throw new UnknownHostException(host);
+        }
+
+        public Collection<String> findTXTRecords(String hostname) {
+            return Arrays.asList("Listed " + hostname);
+        }
+    };
+
+    public void testVerdictIsCached() {
+        DNSBLChecker checker = new DNSBLChecker(new AsyncDNSService(dns), new DNSBLVerdictCache());
+        assertTrue(checker.check(LISTED_HOST, "black.list.").isListed());
+        assertTrue(checker.check(LISTED_HOST, "black.list.").isListed());
+        assertFalse(checker.check("5.6.7.8", "black.list.").isListed());
+        assertFalse(checker.check("5.6.7.8", "black.list.").isListed());
+
+        assertEquals(2, lookups.get());
+        assertEquals(2, checker.getCache().getHits());
+        assertEquals(2, checker.getCache().getMisses());
+        assertEquals(0.5, checker.getCache().getHitRatio(), 0.001);
+    }
+
+    public void testCacheIsPassedOn() {
+        DNSBLVerdictCache cache = new DNSBLVerdictCache();
+        new DNSBLChecker(new AsyncDNSService(dns), cache).check(LISTED_HOST, "black.list.");
+        new DNSBLChecker(new AsyncDNSService(dns), cache).check(LISTED_HOST, "black.list.");
+        assertEquals(1, lookups.get());
+
+        // a checker without cache gets one of its own
+        assertNotSame(new DNSBLChecker(dns).getCache(), new DNSBLChecker(dns).getCache());
+    }
+
+    public void testMBeanIsUnregistered() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        String name = "org.apache.james:type=server,name=test,chain=handlerchain,handler=dnsblcache";
+
+        DNSBLVerdictCache cache = new DNSBLVerdictCache();
+        cache.registerMBean(name);
+        assertTrue(mbeanServer.isRegistered(new ObjectName(name)));
+        cache.dispose();
+        assertFalse(mbeanServer.isRegistered(new ObjectName(name)));
+
+        // the name can be used again, like after a redeploy
+        DNSBLVerdictCache other = new DNSBLVerdictCache();
+        other.registerMBean(name);
+        other.dispose();
+    }
+
+    public void testTemporaryProblemIsNotCached() {
+        DNSBLChecker checker = new DNSBLChecker(new AsyncDNSService(dns), new DNSBLVerdictCache());
+        for (int i = 0; i < 2; i++) {
+            try {
+                checker.check(LISTED_HOST, "broken.list.");
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        assertEquals(2, lookups.get());
+    }
+
+    public void testMaxSize() {
+        DNSBLChecker checker = new DNSBLChecker(new AsyncDNSService(dns), new DNSBLVerdictCache(DNSBLVerdictCache.DEFAULT_TTL, 2));
+        checker.check("1.1.1.1", "black.list.");
+        checker.check("2.2.2.2", "black.list.");
+        checker.check("3.3.3.3", "black.list.");
+        assertEquals(2, checker.getCache().getSize());
+    }
+
+    public void testWhitelistWins() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DNSBLChecker checker = new DNSBLChecker(new AsyncDNSService(dns, executor), new DNSBLVerdictCache());
+            DNSBLVerdict verdict = checker.check(LISTED_HOST, new String[] { "white.list." }, new String[] { "black.list." }, true, 0);
+            assertEquals("white.list.", verdict.getZone());
+            assertNull(verdict.getDetail());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testParallelCheckWithTimeout() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DNSBLChecker checker = new DNSBLChecker(new AsyncDNSService(dns, executor), new DNSBLVerdictCache());
+            String[] blacklist = new String[] { "slow.list.", "black.list." };
+
+            // the slow zone does not answer in time but the other one is
+            // asked in parallel
+            DNSBLVerdict verdict = checker.check(LISTED_HOST, null, blacklist, true, 500);
+            assertEquals("black.list.", verdict.getZone());
+            assertEquals("Listed 4.3.2.1.black.list.", verdict.getDetail());
+
+            assertNull(checker.check("5.6.7.8", null, blacklist, false, 500));
+        } finally {
+            slowZone.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailrepository.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.james.core.MailCodec;
+import org.apache.james.repository.file.AbstractFileRepository;
+import org.apache.james.repository.file.FilePersistentObjectRepository;
+import org.apache.mailet.Mail;
+
+/**
+ * {@link FilePersistentObjectRepository} which stores {@link Mail} objects with
+ * the {@link MailCodec} format. Objects which were stored with java
+ * serialization can still be read.
+ */
+public class FileMailObjectRepository extends FilePersistentObjectRepository {
+
+    private boolean useMailCodec;
+
+    /**
+     * Create a new repository
+     * 
+     * @param useMailCodec
+     *            if <code>true</code> {@link Mail} objects are written with
+     *            the {@link MailCodec} format, otherwise with java
+     *            serialization
+     */
+    public FileMailObjectRepository(boolean useMailCodec) {
+        this.useMailCodec = useMailCodec;
+    }
+
+    /**
+     * @see org.apache.james.repository.file.AbstractFileRepository#createChildRepository()
+     */
+    protected AbstractFileRepository createChildRepository() throws Exception {
+        return new FileMailObjectRepository(useMailCodec);
+    }
+
+    /**
+     * @see org.apache.james.repository.file.FilePersistentObjectRepository#get(java.lang.String)
+     */
+    public synchronized Object get(final String key) {
+        try {
+            final InputStream inputStream = getInputStream(key);
+
+            if (inputStream == null)
+                throw new NullPointerException("Null input stream returned for key: " + key);
+            try {
+                return MailCodec.decode(new BufferedInputStream(inputStream));
+            } finally {
+                inputStream.close();
+            }
+        } catch (final Throwable e) {
+            throw new RuntimeException("Exception caught while retrieving an object, cause: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * @see org.apache.james.repository.file.FilePersistentObjectRepository#put(java.lang.String,
+     *      java.lang.Object)
+     */
+    public synchronized void put(final String key, final Object value) {
+        if (!useMailCodec || !(value instanceof Mail)) {
+            super.put(key, value);
+            return;
+        }
+        try {
+            final OutputStream outputStream = getOutputStream(key);
+
+            try {
+                final BufferedOutputStream stream = new BufferedOutputStream(outputStream);
+                MailCodec.encode((Mail) value, stream);
+                stream.flush();
+            } finally {
+                outputStream.close();
+            }
+        } catch (final Exception e) {
+            throw new RuntimeException("Exception caught while storing an object: " + e);
+        }
+    }
+
+}
@@ -68,6 +68,7 @@ public class FileMailRepository extends AbstractMailRepository {
     private boolean fifo;
     private boolean cacheKeys; // experimental: for use with write mostly
                                // repositories such as spam and error
+    private boolean mailCodec;
     private FileSystem fs;
 
     @Resource(name = "filesystem")
@@ -84,6 +85,9 @@ public class FileMailRepository extends AbstractMailRepository {
         }
         fifo = config.getBoolean("[@FIFO]", false);
         cacheKeys = config.getBoolean("[@CACHEKEYS]", true);
+        // store the mail objects with the MailCodec format instead of java
+        // serialization. Both formats can always be read
+        mailCodec = config.getBoolean("[@MAILCODEC]", false);
         // ignore model
     }
 
@@ -93,7 +97,7 @@ public class FileMailRepository extends AbstractMailRepository {
             DefaultConfigurationBuilder reposConfiguration = new DefaultConfigurationBuilder();
 
             reposConfiguration.addProperty("[@destinationURL]", destination);
-            objectRepository = new FilePersistentObjectRepository();
+            objectRepository = new FileMailObjectRepository(mailCodec);
             objectRepository.setLog(getLogger());
             objectRepository.setFileSystem(fs);
             objectRepository.configure(reposConfiguration);
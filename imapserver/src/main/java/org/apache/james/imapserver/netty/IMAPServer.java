@@ -36,6 +36,9 @@ import org.apache.james.protocols.netty.ChannelGroupHandler;
 import org.apache.james.protocols.netty.ConnectionLimitUpstreamHandler;
 import org.apache.james.protocols.netty.ConnectionPerIpLimitUpstreamHandler;
 import org.apache.james.protocols.lib.netty.AbstractConfigurableAsyncServer;
+import org.apache.james.protocols.lib.netty.AdmissionControlHandler;
+import org.apache.james.protocols.lib.netty.CommandRateLimitHandler;
+import org.apache.james.protocols.lib.netty.ConnectionRateLimitHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
@@ -150,6 +153,15 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
                     pipeline.addFirst(SSL_HANDLER, new SslHandler(engine));
 
                 }
+                AdmissionControlHandler admissionHandler = getAdmissionControlHandler();
+                if (admissionHandler != null) {
+                    // first, so the decision is not delayed by the executor
+                    pipeline.addFirst(ADMISSION_HANDLER, admissionHandler);
+                }
+                ConnectionRateLimitHandler connectionRateLimitHandler = getConnectionRateLimitHandler();
+                if (connectionRateLimitHandler != null) {
+                    pipeline.addFirst(CONNECTION_RATE_LIMIT_HANDLER, connectionRateLimitHandler);
+                }
                 pipeline.addLast(CONNECTION_COUNT_HANDLER, getConnectionCountHandler());
 
                 pipeline.addLast(CHUNK_WRITE_HANDLER, new ChunkedWriteHandler());
@@ -161,6 +173,12 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
                 }
                 pipeline.addLast(REQUEST_DECODER, new ImapRequestFrameDecoder(decoder, inMemorySizeLimit));
 
+                // after the decoder, so literals are not counted as commands
+                CommandRateLimitHandler commandRateLimitHandler = getCommandRateLimitHandler();
+                if (commandRateLimitHandler != null) {
+                    pipeline.addLast(COMMAND_RATE_LIMIT_HANDLER, commandRateLimitHandler);
+                }
+
                 pipeline.addLast(CORE_HANDLER, createCoreHandler());
                 return pipeline;
             }
@@ -173,6 +191,11 @@ public class IMAPServer extends AbstractConfigurableAsyncServer implements ImapC
         return "imapserver";
     }
 
+    @Override
+    protected String getOverloadResponse() {
+        return "* BYE " + getHelloName() + " is too busy, try again later\r\n";
+    }
+
     @Override
     protected ChannelUpstreamHandler createCoreHandler() {
         ImapChannelUpstreamHandler coreHandler;
@@ -28,6 +28,7 @@ import org.apache.james.imap.api.process.ImapLineHandler;
 import org.apache.james.imap.api.process.ImapSession;
 import org.apache.james.imap.api.process.SelectedMailbox;
 import org.apache.james.protocols.api.SessionLog;
+import org.apache.james.protocols.lib.netty.ChannelReadSuspension;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.compression.ZlibDecoder;
 import org.jboss.netty.handler.codec.compression.ZlibEncoder;
@@ -148,7 +149,7 @@ public class NettyImapSession implements ImapSession, NettyConstants {
     public boolean startTLS() {
         if (supportStartTLS() == false)
             return false;
-        channel.setReadable(false);
+        ChannelReadSuspension.suspend(channel);
 
         SslHandler filter = new SslHandler(sslContext.createSSLEngine(), false);
         filter.getEngine().setUseClientMode(false);
@@ -157,7 +158,7 @@ public class NettyImapSession implements ImapSession, NettyConstants {
         }
         channel.getPipeline().addFirst(SSL_HANDLER, filter);
 
-        channel.setReadable(true);
+        ChannelReadSuspension.resume(channel);
 
         return true;
     }
@@ -184,7 +185,7 @@ public class NettyImapSession implements ImapSession, NettyConstants {
         if (isCompressionSupported() == false)
             return false;
 
-        channel.setReadable(false);
+        ChannelReadSuspension.suspend(channel);
         ZlibDecoder decoder = new ZlibDecoder(ZlibWrapper.NONE);
         ZlibEncoder encoder = new ZlibEncoder(ZlibWrapper.NONE, 5);
 
@@ -200,7 +201,7 @@ public class NettyImapSession implements ImapSession, NettyConstants {
             channel.getPipeline().addAfter(SSL_HANDLER, ZLIB_ENCODER, encoder);
         }
 
-        channel.setReadable(true);
+        ChannelReadSuspension.resume(channel);
 
         return true;
     }
@@ -210,18 +211,18 @@ public class NettyImapSession implements ImapSession, NettyConstants {
      * org.apache.james.imap.api.process.ImapSession#pushLineHandler(org.apache.james.imap.api.process.ImapLineHandler)
      */
     public void pushLineHandler(ImapLineHandler lineHandler) {
-        channel.setReadable(false);
+        ChannelReadSuspension.suspend(channel);
         channel.getPipeline().addBefore(REQUEST_DECODER, "lineHandler" + handlerCount++, new ImapLineHandlerAdapter(this, lineHandler));
-        channel.setReadable(true);
+        ChannelReadSuspension.resume(channel);
     }
 
     /**
      * @see org.apache.james.imap.api.process.ImapSession#popLineHandler()
      */
     public void popLineHandler() {
-        channel.setReadable(false);
+        ChannelReadSuspension.suspend(channel);
         channel.getPipeline().remove("lineHandler" + --handlerCount);
-        channel.setReadable(true);
+        ChannelReadSuspension.resume(channel);
     }
 
     /**
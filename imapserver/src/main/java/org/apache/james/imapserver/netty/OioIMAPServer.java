@@ -30,7 +30,7 @@ public class OioIMAPServer extends IMAPServer {
 
     @Override
     protected ServerSocketChannelFactory createSocketChannelFactory() {
-        return new OioServerSocketChannelFactory(createBossExecutor(), createWorkerExecutor());
+        return new OioServerSocketChannelFactory(createBossExecutor(), createOioWorkerExecutor());
     }
 
     /**
@@ -22,6 +22,7 @@ package org.apache.james.mailrepository.jdbc;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailCodec;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageWrapper;
@@ -44,7 +45,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -141,6 +142,12 @@ public class JDBCMailRepository extends AbstractMailRepository {
      */
     private int inMemorySizeLimit;
 
+    /**
+     * Store the attributes with the {@link MailCodec} format instead of java
+     * serialization
+     */
+    private boolean mailCodec;
+
     private FileSystem fileSystem;
 
     private String filestore;
@@ -211,6 +218,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
         }
 
         inMemorySizeLimit = configuration.getInt("inMemorySizeLimit", 409600000);
+        mailCodec = configuration.getBoolean("mailCodec", false);
 
         filestore = configuration.getString("filestore", null);
         sqlFileName = configuration.getString("sqlFile");
@@ -486,30 +494,9 @@ public class JDBCMailRepository extends AbstractMailRepository {
                     try {
                         updateMessageAttr = conn.prepareStatement(updateMessageAttrSql);
                         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            updateMessageAttr.setBinaryStream(1, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
-                        }
+                        writeAttributes(mc, baos);
+                        ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
+                        updateMessageAttr.setBinaryStream(1, attrInputStream, baos.size());
                         updateMessageAttr.setString(2, mc.getName());
                         updateMessageAttr.setString(3, repositoryName);
                         updateMessageAttr.execute();
@@ -568,30 +555,9 @@ public class JDBCMailRepository extends AbstractMailRepository {
                     // Store attributes
                     if (number_of_parameters > 10) {
                         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            insertMessage.setBinaryStream(11, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
-                        }
+                        writeAttributes(mc, baos);
+                        ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
+                        insertMessage.setBinaryStream(11, attrInputStream, baos.size());
                     }
 
                     insertMessage.execute();
@@ -665,10 +631,9 @@ public class JDBCMailRepository extends AbstractMailRepository {
                             }
                             // this check is for better backwards compatibility
                             if (serialized_attr != null) {
-                                ByteArrayInputStream bais = new ByteArrayInputStream(serialized_attr);
-                                ObjectInputStream ois = new ObjectInputStream(bais);
-                                attributes = (HashMap) ois.readObject();
-                                ois.close();
+                                // both the MailCodec and the java serialization
+                                // format are supported
+                                attributes = MailCodec.decodeAttributes(new ByteArrayInputStream(serialized_attr));
                             }
                         } catch (IOException ioe) {
                             if (getLogger().isDebugEnabled()) {
@@ -840,4 +805,34 @@ public class JDBCMailRepository extends AbstractMailRepository {
         }
         return count;
     }
+
+    /**
+     * Write the attributes of the given mail to the given stream, either with
+     * the {@link MailCodec} format or with java serialization
+     * 
+     * @param mc
+     *            the mail
+     * @param out
+     *            the stream to write to
+     * @throws IOException
+     */
+    private void writeAttributes(Mail mc, OutputStream out) throws IOException {
+        HashMap attributes;
+        if (mc instanceof MailImpl) {
+            attributes = ((MailImpl) mc).getAttributesRaw();
+        } else {
+            attributes = new HashMap();
+            for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
+                String hashKey = (String) i.next();
+                attributes.put(hashKey, mc.getAttribute(hashKey));
+            }
+        }
+        if (mailCodec) {
+            MailCodec.encodeAttributes(attributes, out);
+        } else {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(attributes);
+            oos.flush();
+        }
+    }
 }
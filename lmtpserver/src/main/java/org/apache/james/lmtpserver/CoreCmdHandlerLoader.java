@@ -35,9 +35,9 @@ import org.apache.james.protocols.smtp.core.ReceivedDataLineFilter;
 import org.apache.james.protocols.smtp.core.RsetCmdHandler;
 import org.apache.james.protocols.smtp.core.SMTPCommandDispatcherLineHandler;
 import org.apache.james.protocols.smtp.core.VrfyCmdHandler;
-import org.apache.james.protocols.smtp.core.esmtp.MailSizeEsmtpExtension;
 import org.apache.james.smtpserver.AuthRequiredToRelayRcptHook;
 import org.apache.james.smtpserver.JamesDataCmdHandler;
+import org.apache.james.smtpserver.JamesMailSizeEsmtpExtension;
 import org.apache.james.smtpserver.JamesMailCmdHandler;
 import org.apache.james.smtpserver.JamesRcptCmdHandler;
 import org.apache.james.smtpserver.SMTPCommandHandlerResultLogger;
@@ -60,7 +60,7 @@ public class CoreCmdHandlerLoader implements HandlersPackage {
 
     private final String RSETCMDHANDLER = RsetCmdHandler.class.getName();
     private final String VRFYCMDHANDLER = VrfyCmdHandler.class.getName();
-    private final String MAILSIZEHOOK = MailSizeEsmtpExtension.class.getName();
+    private final String MAILSIZEHOOK = JamesMailSizeEsmtpExtension.class.getName();
     private final String WELCOMEMESSAGEHANDLER = WelcomeMessageHandler.class.getName();
     private final String POSTMASTERABUSEHOOK = PostmasterAbuseRcptHook.class.getName();
     private final String AUTHREQUIREDTORELAY = AuthRequiredToRelayRcptHook.class.getName();
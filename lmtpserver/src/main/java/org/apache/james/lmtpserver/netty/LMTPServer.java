@@ -23,11 +23,16 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.james.lmtpserver.CoreCmdHandlerLoader;
 import org.apache.james.lmtpserver.jmx.JMXHandlersLoader;
+import org.apache.james.protocols.api.ProtocolSession;
+import org.apache.james.protocols.api.ProtocolTransport;
 import org.apache.james.protocols.api.handler.HandlersPackage;
 import org.apache.james.protocols.lib.netty.AbstractProtocolAsyncServer;
 import org.apache.james.protocols.lmtp.LMTPConfiguration;
+import org.apache.james.protocols.netty.HandlerConstants;
 import org.apache.james.protocols.smtp.SMTPProtocol;
+import org.apache.james.smtpserver.ExtendedSMTPSession;
 import org.apache.james.smtpserver.netty.SMTPChannelUpstreamHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
 
 public class LMTPServer extends AbstractProtocolAsyncServer implements LMTPServerMBean {
@@ -120,6 +125,25 @@ public class LMTPServer extends AbstractProtocolAsyncServer implements LMTPServe
         return "lmtpserver";
     }
 
+    @Override
+    protected String getOverloadResponse() {
+        return "421 " + getHelloName() + " Service not available, too busy, try again later\r\n";
+    }
+
+    /**
+     * The lines of a message are no commands. This is called on the IO thread,
+     * so the session state is not read but the flag which the session keeps
+     * for an accepted <code>DATA</code> command.
+     */
+    @Override
+    protected boolean isCommand(ChannelHandlerContext ctx, Object message) {
+        ChannelHandlerContext coreCtx = ctx.getPipeline().getContext(HandlerConstants.CORE_HANDLER);
+        if (coreCtx == null || !(coreCtx.getAttachment() instanceof ExtendedSMTPSession)) {
+            return true;
+        }
+        return !((ExtendedSMTPSession) coreCtx.getAttachment()).isDataAccepted();
+    }
+
     /**
      * @see
      * org.apache.james.smtpserver.netty.SMTPServerMBean#setMaximalMessageSize(long)
@@ -137,7 +161,14 @@ public class LMTPServer extends AbstractProtocolAsyncServer implements LMTPServe
 
     @Override
     protected ChannelUpstreamHandler createCoreHandler() {
-        SMTPProtocol protocol = new SMTPProtocol(getProtocolHandlerChain(), lmtpConfig);
+        SMTPProtocol protocol = new SMTPProtocol(getProtocolHandlerChain(), lmtpConfig) {
+
+            @Override
+            public ProtocolSession newSession(ProtocolTransport transport) {
+                return new ExtendedSMTPSession(lmtpConfig, getLogger(), transport);
+            }
+
+        };
         return new SMTPChannelUpstreamHandler(protocol, getLogger());
     }
 
@@ -30,7 +30,7 @@ public class OioLMTPServer extends LMTPServer {
 
     @Override
     protected ServerSocketChannelFactory createSocketChannelFactory() {
-        return new OioServerSocketChannelFactory(createBossExecutor(), createWorkerExecutor());
+        return new OioServerSocketChannelFactory(createBossExecutor(), createOioWorkerExecutor());
     }
 
     /**
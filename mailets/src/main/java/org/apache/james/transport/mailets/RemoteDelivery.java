@@ -30,13 +30,19 @@ import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueueFactory;
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.transport.smtp.SMTPClient;
+import org.apache.james.transport.smtp.SMTPDeliveryListener;
+import org.apache.james.transport.smtp.SMTPDeliveryResult;
+import org.apache.james.transport.smtp.SMTPTransaction;
 import org.apache.james.transport.util.MailetContextLog;
 import org.apache.james.util.TimeConverter;
+import org.apache.james.util.concurrent.NamedThreadFactory;
 import org.apache.mailet.base.GenericMailet;
 import org.apache.mailet.HostAddress;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.apache.mailet.MailetContext;
+import org.jboss.netty.buffer.ChannelBuffer;
 
 import javax.annotation.Resource;
 import javax.mail.Address;
@@ -56,6 +62,7 @@ import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -64,11 +71,17 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -141,6 +154,33 @@ import java.util.regex.PatternSyntaxException;
  * within the mailet code.<br>
  * Note: This facility should be used with extreme care by expert users with a thorough knowledge of the relevant RFCs and 
  * the ability to perform their own problem resolutions.</li>
+ * <li><b>maxIdleConnectionsPerHost</b> (optional) - an Integer for the number of connections per host which each delivery thread
+ * keeps open after a delivery, so its following mails to the same host can reuse them. 0 disables the reuse of connections.
+ * Default is 2.</li>
+ * <li><b>maxMessagesPerConnection</b> (optional) - an Integer for the number of mails which are sent over one connection
+ * before it is closed. 0 means no limit. Default is 100.</li>
+ * <li><b>connectionIdleTimeout</b> (optional) - an Integer for the time in milliseconds after which an unused connection
+ * is closed. Default is 30000.</li>
+ * <li><b>hostFailureThreshold</b> (optional) - an Integer for the number of consecutive connect failures after which a host
+ * is skipped by all deliveries for the <code>&lt;hostCoolDown/&gt;</code> time. After it, one delivery probes the host again.
+ * 0 disables skipping hosts. Default is 3.</li>
+ * <li><b>hostCoolDown</b> (optional) - an Integer for the time in milliseconds a failing host is skipped. Default is 60000.</li>
+ * <li><b>groupRecipientsByMX</b> (optional) - a Boolean (true/false) indicating whether the recipients of domains served by the
+ * same set of MX hosts are delivered together in one mail, instead of one mail per domain. Domains which can not be resolved
+ * when the mail is queued keep their own mail. Before every delivery attempt the MX hosts are looked up again and the mail
+ * is split if its domains are not served by the same MX hosts anymore. Default is false.</li>
+ * <li><b>maxRecipientsPerTransaction</b> (optional) - an Integer for the number of recipients of a mail grouped by MX
+ * hosts which are sent in one transaction, larger groups are split into several mails. 0 means no limit. Default is 100.</li>
+ * <li><b>deliveryEngine</b> (optional) - a String with the value 'javamail' or 'netty'. With 'javamail' each delivery thread
+ * blocks on one SMTP session at a time. With 'netty' the SMTP sessions are run by a non-blocking client, so a few threads can
+ * deliver many mails at once, and the <code>mail.*</code> parameters and connection reuse do not apply. Default is javamail.</li>
+ * <li><b>maxConcurrentDeliveries</b> (optional) - an Integer for the number of mails the netty delivery engine sends at the same
+ * time. Default is 1000.</li>
+ * <li><b>maxConcurrentDeliverySize</b> (optional) - a Long for the number of bytes of encoded content the netty delivery engine
+ * holds in memory for the mails it sends at the same time. A mail with 8bit parts counts twice, because it is also encoded as
+ * 7bit. A mail larger than the limit is sent when no other mail is sent. Default is 64 MB.</li>
+ * <li><b>ioWorkerCount</b> (optional) - an Integer for the number of IO threads of the netty delivery engine. Default is the
+ * number of available processors.</li>
  * <li><b>debug</b> (optional) - a Boolean (true/false) indicating whether debugging is on. Default is false.</li>
  * </ul>
  */
@@ -241,6 +281,36 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
     private MailetContextLog logAdapter;
 
     private boolean usePriority;
+
+    /** Connections which are kept open for following mails, null if disabled */
+    private RemoteDeliveryConnectionPool connectionPool;
+
+    /** Connect failures of the hosts, null if failing hosts are not skipped */
+    private RemoteDeliveryHostHealth hostHealth;
+
+    /** Deliver the recipients of domains with the same MX hosts together */
+    private boolean groupRecipientsByMX = false;
+
+    /** Limit of recipients in one mail grouped by MX hosts, 0 if unlimited */
+    private int maxRecipientsPerTransaction = 100;
+
+    /** The non-blocking SMTP client, null if the javamail engine is used */
+    private SMTPClient smtpClient;
+
+    /** Limits the deliveries in progress of the non-blocking SMTP client */
+    private Semaphore deliveryPermits;
+
+    /**
+     * Limits the content of the deliveries in progress of the non-blocking
+     * SMTP client, in kilobytes
+     */
+    private Semaphore contentPermits;
+
+    /** The count of all content permits */
+    private int maxContentPermits;
+
+    /** Handles the results of the non-blocking SMTP client off the IO threads */
+    private ExecutorService completionExecutor;
     
     @Resource(name = "mailqueuefactory")
     public void setMailQueueFactory(MailQueueFactory queueFactory) {
@@ -428,11 +498,102 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         	usePriority = Boolean.valueOf(prio);
         }
 
+        groupRecipientsByMX = (getInitParameter("groupRecipientsByMX") == null) ? false : Boolean.valueOf(getInitParameter("groupRecipientsByMX"));
+        try {
+            if (getInitParameter("maxRecipientsPerTransaction") != null) {
+                maxRecipientsPerTransaction = Integer.parseInt(getInitParameter("maxRecipientsPerTransaction"));
+            }
+        } catch (NumberFormatException e) {
+            log("Invalid maxRecipientsPerTransaction setting: " + getInitParameter("maxRecipientsPerTransaction"));
+        }
+
+        int maxIdleConnectionsPerHost = RemoteDeliveryConnectionPool.DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST;
+        int maxMessagesPerConnection = RemoteDeliveryConnectionPool.DEFAULT_MAX_MESSAGES_PER_CONNECTION;
+        long connectionIdleTimeout = RemoteDeliveryConnectionPool.DEFAULT_IDLE_TIMEOUT;
+        try {
+            if (getInitParameter("maxIdleConnectionsPerHost") != null) {
+                maxIdleConnectionsPerHost = Integer.parseInt(getInitParameter("maxIdleConnectionsPerHost"));
+            }
+            if (getInitParameter("maxMessagesPerConnection") != null) {
+                maxMessagesPerConnection = Integer.parseInt(getInitParameter("maxMessagesPerConnection"));
+            }
+            if (getInitParameter("connectionIdleTimeout") != null) {
+                connectionIdleTimeout = Long.parseLong(getInitParameter("connectionIdleTimeout"));
+            }
+        } catch (NumberFormatException e) {
+            log("Invalid connection pool setting: " + e.getMessage());
+        }
+        if (maxIdleConnectionsPerHost > 0) {
+            connectionPool = new RemoteDeliveryConnectionPool(maxIdleConnectionsPerHost, maxMessagesPerConnection, connectionIdleTimeout);
+            connectionPool.registerMBean(outgoing);
+        }
+
+        int hostFailureThreshold = RemoteDeliveryHostHealth.DEFAULT_FAILURE_THRESHOLD;
+        long hostCoolDown = RemoteDeliveryHostHealth.DEFAULT_COOL_DOWN;
+        try {
+            if (getInitParameter("hostFailureThreshold") != null) {
+                hostFailureThreshold = Integer.parseInt(getInitParameter("hostFailureThreshold"));
+            }
+            if (getInitParameter("hostCoolDown") != null) {
+                hostCoolDown = Long.parseLong(getInitParameter("hostCoolDown"));
+            }
+        } catch (NumberFormatException e) {
+            log("Invalid host health setting: " + e.getMessage());
+        }
+        if (hostFailureThreshold > 0) {
+            hostHealth = new RemoteDeliveryHostHealth(hostFailureThreshold, hostCoolDown);
+            hostHealth.registerMBean(outgoing);
+        }
+
         // Start Workers Threads.
         workersThreadCount = Integer.parseInt(getInitParameter("deliveryThreads"));
+
+        String deliveryEngine = getInitParameter("deliveryEngine");
+        if ("netty".equalsIgnoreCase(deliveryEngine)) {
+            initSMTPClient();
+        } else if (deliveryEngine != null && !"javamail".equalsIgnoreCase(deliveryEngine)) {
+            throw new MessagingException("Invalid deliveryEngine: " + deliveryEngine);
+        }
         initDeliveryThreads();
     }
 
+    private void initSMTPClient() throws MessagingException {
+        int maxConcurrentDeliveries = 1000;
+        long maxConcurrentDeliverySize = 64 * 1024 * 1024;
+        int ioWorkerCount = Runtime.getRuntime().availableProcessors();
+        try {
+            if (getInitParameter("maxConcurrentDeliveries") != null) {
+                maxConcurrentDeliveries = Integer.parseInt(getInitParameter("maxConcurrentDeliveries"));
+            }
+            if (getInitParameter("maxConcurrentDeliverySize") != null) {
+                maxConcurrentDeliverySize = Long.parseLong(getInitParameter("maxConcurrentDeliverySize"));
+            }
+            if (getInitParameter("ioWorkerCount") != null) {
+                ioWorkerCount = Integer.parseInt(getInitParameter("ioWorkerCount"));
+            }
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Invalid delivery engine setting: " + e.getMessage());
+        }
+        if (maxConcurrentDeliveries < 1 || maxConcurrentDeliverySize < 1 || ioWorkerCount < 1) {
+            throw new MessagingException("maxConcurrentDeliveries, maxConcurrentDeliverySize and ioWorkerCount must be greater than 0");
+        }
+
+        smtpClient = new SMTPClient(getHeloName(), connectionTimeout, smtpTimeout, ioWorkerCount);
+        smtpClient.setStartTLS(startTLS);
+        smtpClient.setSSLEnable(isSSLEnable);
+        smtpClient.setSendPartial(sendPartial);
+        if (authUser != null) {
+            smtpClient.setAuthentication(authUser, authPass);
+        }
+        if (isBindUsed) {
+            smtpClient.setBindAddress(new InetSocketAddress(bindAddress, 0));
+        }
+        deliveryPermits = new Semaphore(maxConcurrentDeliveries);
+        maxContentPermits = toContentPermits(maxConcurrentDeliverySize);
+        contentPermits = new Semaphore(maxContentPermits);
+        completionExecutor = Executors.newFixedThreadPool(workersThreadCount, new NamedThreadFactory("RemoteDelivery completion"));
+    }
+
     private void initDeliveryThreads() {
         for (int a = 0; a < workersThreadCount; a++) {
             String threadName = "Remote delivery thread (" + a + ")";
@@ -636,16 +797,10 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         if (gatewayServer == null) {
             // Must first organize the recipients into distinct servers (name
             // made case insensitive)
-            Hashtable<String, Collection<MailAddress>> targets = new Hashtable<String, Collection<MailAddress>>();
-            for (Iterator<MailAddress> i = recipients.iterator(); i.hasNext();) {
-                MailAddress target = i.next();
-                String targetServer = target.getDomain().toLowerCase(Locale.US);
-                Collection<MailAddress> temp = targets.get(targetServer);
-                if (temp == null) {
-                    temp = new ArrayList<MailAddress>();
-                    targets.put(targetServer, temp);
-                }
-                temp.add(target);
+            Hashtable<String, Collection<MailAddress>> targets = RemoteDeliveryRecipientGroups.groupByDomain(recipients);
+
+            if (groupRecipientsByMX) {
+                targets = RemoteDeliveryRecipientGroups.groupByMX(targets, dnsServer, maxRecipientsPerTransaction);
             }
 
             // We have the recipients organized into distinct servers... put
@@ -688,6 +843,79 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         mail.setState(Mail.GHOST);
     }
 
+    /**
+     * Split a mail which was grouped by MX back into one mail per domain and
+     * queue them again. This is done before the mail fails permanently because
+     * the domain of its first recipient has no DNS entries, so the recipients
+     * of the other domains are not bounced with it.
+     * 
+     * @param mail
+     * @return true if the mail was split, false if its recipients belong to
+     *         one domain or queueing failed
+     */
+    private boolean splitByDomain(Mail mail) {
+        Hashtable<String, Collection<MailAddress>> targets = RemoteDeliveryRecipientGroups.groupByDomain(mail.getRecipients());
+        if (targets.size() < 2) {
+            return false;
+        }
+        return split(mail, targets, "by domain, as no mail server was found for some of its recipients");
+    }
+
+    /**
+     * Split a mail which was grouped by MX if the domains of its recipients
+     * are not served by the same MX hosts anymore. The mail is delivered to
+     * the MX hosts of the domain of its first recipient, so this is checked
+     * before every delivery attempt: the MX records may have changed since
+     * the mail was queued, and the recipients of a domain which moved would
+     * be rejected by the old hosts.
+     * 
+     * @param mail
+     * @return true if the mail was split, false if its recipients still
+     *         belong together or queueing failed
+     */
+    private boolean splitByMX(Mail mail) {
+        // also done without groupRecipientsByMX, for the mails which were
+        // grouped before it was disabled
+        if (gatewayServer != null) {
+            return false;
+        }
+        Hashtable<String, Collection<MailAddress>> targets = RemoteDeliveryRecipientGroups.splitByMX(mail.getRecipients(), dnsServer);
+        if (targets == null) {
+            return false;
+        }
+        return split(mail, targets, "by MX, as its recipients are not served by the same mail servers anymore");
+    }
+
+    /**
+     * Queue one mail per group of recipients
+     * 
+     * @param mail
+     * @param targets
+     *            the recipients by group name
+     * @param reason
+     *            the reason which is logged
+     * @return true if the mail was split, false if queueing failed
+     */
+    private boolean split(Mail mail, Hashtable<String, Collection<MailAddress>> targets, String reason) {
+        Collection<MailAddress> recipients = mail.getRecipients();
+        String name = mail.getName();
+        try {
+            for (Map.Entry<String, Collection<MailAddress>> entry : targets.entrySet()) {
+                mail.setRecipients(entry.getValue());
+                mail.setName(new StringBuilder(128).append(name).append("-to-").append(entry.getKey()).toString());
+                queue.enQueue(mail);
+            }
+            log("Split mail " + name + " " + reason);
+            return true;
+        } catch (MailQueueException e) {
+            log("Unable to split mail " + name, e);
+            return false;
+        } finally {
+            mail.setRecipients(recipients);
+            mail.setName(name);
+        }
+    }
+
     /**
      * Stops all the worker threads that are waiting for messages. This method
      * is called by the Mailet container before taking this Mailet out of
@@ -703,6 +931,17 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             t.interrupt();
         }
         notifyAll();
+
+        if (connectionPool != null) {
+            connectionPool.dispose();
+        }
+        if (smtpClient != null) {
+            smtpClient.dispose();
+            completionExecutor.shutdownNow();
+        }
+        if (hostHealth != null) {
+            hostHealth.dispose();
+        }
     }
 
     /**
@@ -759,6 +998,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         final Session session = obtainSession(props);
         try {
             while (!Thread.interrupted() && !destroyed) {
+                boolean permit = false;
                 try {
                     // Get the 'mail' object that is ready for deliverying. If
                     // no
@@ -768,6 +1008,11 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     // of time to block is determined by the 'getWaitTime'
                     // method of the
                     // MultipleDelayFilter.
+                    if (deliveryPermits != null) {
+                        // wait until less deliveries are running
+                        deliveryPermits.acquire();
+                        permit = true;
+                    }
                     MailQueueItem queueItem = queue.deQueue();
                     Mail mail = queueItem.getMail();
 
@@ -779,51 +1024,20 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                             log(message);
                         }
 
-                        // Deliver message
-                        if (deliver(mail, session)) {
-                            // Message was successfully delivered/fully
-                            // failed...
-                            // delete it
-                            LifecycleUtil.dispose(mail);
-                            // workRepository.remove(key);
-                        } else {
-                            // Something happened that will delay delivery.
-                            // Store it back in the retry repository.
-                            // workRepository.store(mail);
-                            int retries = 0;
-                            try {
-                                retries = Integer.parseInt(mail.getErrorMessage());
-                            } catch (NumberFormatException e) {
-                                // Something strange was happen with the
-                                // errorMessage..
-                            }
-
-                            long delay = getNextDelay(retries);
-                            
-                            if (usePriority) {
-                                // Use lowest priority for retries. See JAMES-1311
-                                mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
-                            }
-                            queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
-                            LifecycleUtil.dispose(mail);
-
-                            // This is an update, so we have to unlock and
-                            // notify or this mail is kept locked by this
-                            // thread.
-                            // workRepository.unlock(key);
-
-                            // Note: We do not notify because we updated an
-                            // already existing mail and we are now free to
-                            // handle
-                            // more mails.
-                            // Furthermore this mail should not be processed now
-                            // because we have a retry time scheduling.
+                        if (smtpClient != null) {
+                            // the delivery continues in the background and
+                            // releases the permit when done
+                            permit = false;
+                            new AsyncDelivery(queueItem, mail).start();
+                            continue;
                         }
 
+                        // Deliver message
+                        deliveryCompleted(queueItem, mail, deliver(mail, session));
+
                         // Clear the object handle to make sure it recycles
                         // this object.
                         mail = null;
-                        queueItem.done(true);
                     } catch (Exception e) {
                         // Prevent unexpected exceptions from causing looping by
                         // removing message from outgoing.
@@ -842,6 +1056,10 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     if (!destroyed) {
                         log("Exception caught in RemoteDelivery.run()", e);
                     }
+                } finally {
+                    if (permit) {
+                        deliveryPermits.release();
+                    }
                 }
             }
         } finally {
@@ -850,6 +1068,59 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         }
     }
 
+    /**
+     * Remove a mail from the queue after it was delivered or failed fully, or
+     * queue it again for the next delivery attempt.
+     * 
+     * @param queueItem
+     * @param mail
+     * @param deleteMessage
+     *            true if the mail was delivered or failed fully
+     * @throws MailQueueException
+     */
+    private void deliveryCompleted(MailQueueItem queueItem, Mail mail, boolean deleteMessage) throws MailQueueException {
+        if (deleteMessage) {
+            // Message was successfully delivered/fully
+            // failed...
+            // delete it
+            LifecycleUtil.dispose(mail);
+            // workRepository.remove(key);
+        } else {
+            // Something happened that will delay delivery.
+            // Store it back in the retry repository.
+            // workRepository.store(mail);
+            int retries = 0;
+            try {
+                retries = Integer.parseInt(mail.getErrorMessage());
+            } catch (NumberFormatException e) {
+                // Something strange was happen with the
+                // errorMessage..
+            }
+
+            long delay = getNextDelay(retries);
+            
+            if (usePriority) {
+                // Use lowest priority for retries. See JAMES-1311
+                mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+            }
+            queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
+            LifecycleUtil.dispose(mail);
+
+            // This is an update, so we have to unlock and
+            // notify or this mail is kept locked by this
+            // thread.
+            // workRepository.unlock(key);
+
+            // Note: We do not notify because we updated an
+            // already existing mail and we are now free to
+            // handle
+            // more mails.
+            // Furthermore this mail should not be processed now
+            // because we have a retry time scheduling.
+        }
+        queueItem.done(true);
+    }
+
     /**
      * We can assume that the recipients of this message are all going to the
      * same mail server. We will now rely on the DNS server to do DNS MX record
@@ -884,43 +1155,20 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                 return true;
             }
 
+            if (splitByMX(mail)) {
+                return true;
+            }
+
             // Figure out which servers to try to send to. This collection
             // will hold all the possible target servers
             Iterator<HostAddress> targetServers = null;
-            if (gatewayServer == null) {
-                MailAddress rcpt = (MailAddress) recipients.iterator().next();
-                String host = rcpt.getDomain();
-
-                // Lookup the possible targets
-                try {
-                    targetServers = new MXHostAddressIterator(dnsServer.findMXRecords(host).iterator(), dnsServer, false, logAdapter);
-                } catch (TemporaryResolutionException e) {
-                    log("Temporary problem looking up mail server for host: " + host);
-                    StringBuilder exceptionBuffer = new StringBuilder(128).append("Temporary problem looking up mail server for host: ").append(host).append(".  I cannot determine where to send this message.");
-
-                    // temporary problems
-                    return failMessage(mail, new MessagingException(exceptionBuffer.toString()), false);
-                }
-                if (!targetServers.hasNext()) {
-                    log("No mail server found for: " + host);
-                    StringBuilder exceptionBuffer = new StringBuilder(128).append("There are no DNS entries for the hostname ").append(host).append(".  I cannot determine where to send this message.");
-
-                    int retry = 0;
-                    try {
-                        retry = Integer.parseInt(mail.getErrorMessage());
-                    } catch (NumberFormatException e) {
-                        // Unable to parse retryCount
-                    }
-                    if (retry == 0 || retry > dnsProblemRetry) {
-                        // The domain has no dns entry.. Return a permanent
-                        // error
-                        return failMessage(mail, new MessagingException(exceptionBuffer.toString()), true);
-                    } else {
-                        return failMessage(mail, new MessagingException(exceptionBuffer.toString()), false);
-                    }
+            try {
+                targetServers = getTargetServers(mail);
+            } catch (TargetServerException e) {
+                if (e.isPermanent() && splitByDomain(mail)) {
+                    return true;
                 }
-            } else {
-                targetServers = getGatewaySMTPHostAddresses(gatewayServer);
+                return failMessage(mail, e, e.isPermanent());
             }
 
             MessagingException lastError = null;
@@ -951,30 +1199,57 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     // NOTIFY= after RCPT TO line.
 
                     Transport transport = null;
+                    RemoteDeliveryConnectionPool.Connection connection = null;
+                    boolean sent = false;
                     try {
-                        transport = session.getTransport(outgoingMailServer);
-                        try {
-                            if (authUser != null) {
-                                transport.connect(outgoingMailServer.getHostName(), authUser, authPass);
-                            } else {
-                                transport.connect();
-                            }
-                        } catch (MessagingException me) {
-                            // Any error on connect should cause the mailet to
-                            // attempt
-                            // to connect to the next SMTP server associated
-                            // with this
-                            // MX record. Just log the exception. We'll worry
-                            // about
-                            // failing the message at the end of the loop.
+                        String hostKey = getHostKey(outgoingMailServer);
+                        if (connectionPool != null) {
+                            connection = connectionPool.borrow(hostKey, session);
+                        }
+                        if (connection != null) {
+                            transport = connection.getTransport();
+                        } else {
+                            transport = session.getTransport(outgoingMailServer);
+                            long connectStart = System.currentTimeMillis();
+                            try {
+                                if (authUser != null) {
+                                    transport.connect(outgoingMailServer.getHostName(), authUser, authPass);
+                                } else {
+                                    transport.connect();
+                                }
+                                if (hostHealth != null) {
+                                    hostHealth.connected(getHealthKey(outgoingMailServer), System.currentTimeMillis() - connectStart);
+                                }
+                            } catch (MessagingException me) {
+                                // only count failures to reach the host, not
+                                // rejected greetings or logins
+                                if (hostHealth != null) {
+                                    if (me.getNextException() instanceof IOException) {
+                                        hostHealth.failed(getHealthKey(outgoingMailServer), System.currentTimeMillis());
+                                    } else {
+                                        hostHealth.connected(getHealthKey(outgoingMailServer), -1);
+                                    }
+                                }
+
+                                // Any error on connect should cause the mailet to
+                                // attempt
+                                // to connect to the next SMTP server associated
+                                // with this
+                                // MX record. Just log the exception. We'll worry
+                                // about
+                                // failing the message at the end of the loop.
                             
-                            // Also include the stacktrace if debug is enabled. See JAMES-1257
-                            if (isDebug) {
-                                log(me.getMessage(), me.getCause());
-                            } else {
-                                log(me.getMessage());
+                                // Also include the stacktrace if debug is enabled. See JAMES-1257
+                                if (isDebug) {
+                                    log(me.getMessage(), me.getCause());
+                                } else {
+                                    log(me.getMessage());
+                                }
+                                continue;
+                            }
+                            if (connectionPool != null) {
+                                connection = connectionPool.connected(hostKey, session, transport);
                             }
-                            continue;
                         }
                         // if the transport is a SMTPTransport (from sun) some
                         // performance enhancement can be done.
@@ -1024,7 +1299,12 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                             }
                         }
                         transport.sendMessage(message, addr);
+                        sent = true;
                     } finally {
+                        if (connection != null && connectionPool.release(connection, sent)) {
+                            // kept open for the next mail to this host
+                            transport = null;
+                        }
                         if (transport != null) {
                             try {
                                 // James-899: transport.close() sends QUIT to
@@ -1116,119 +1396,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                 throw lastError;
             }
         } catch (SendFailedException sfe) {
-            logSendFailedException(sfe);
-
-            // Copy the recipients as direct modification may not be possible
-            Collection<MailAddress> recipients = new ArrayList<MailAddress>(mail.getRecipients());
-
-            boolean deleteMessage = false;
-
-            /*
-             * If you send a message that has multiple invalid addresses, you'll
-             * get a top-level SendFailedException that that has the valid,
-             * valid-unsent, and invalid address lists, with all of the server
-             * response messages will be contained within the nested exceptions.
-             * [Note: the content of the nested exceptions is implementation
-             * dependent.]
-             * 
-             * sfe.getInvalidAddresses() should be considered permanent.
-             * sfe.getValidUnsentAddresses() should be considered temporary.
-             * 
-             * JavaMail v1.3 properly populates those collections based upon the
-             * 4xx and 5xx response codes to RCPT TO. Some servers, such as
-             * Yahoo! don't respond to the RCPT TO, and provide a 5xx reply
-             * after DATA. In that case, we will pick up the failure from
-             * SMTPSendFailedException.
-             */
-
-            /*
-             * SMTPSendFailedException introduced in JavaMail 1.3.2, and
-             * provides detailed protocol reply code for the operation
-             */
-            try {
-                if (sfe.getClass().getName().endsWith(".SMTPSendFailedException")) {
-                    int returnCode = ((Integer) invokeGetter(sfe, "getReturnCode")).intValue();
-                    // If we got an SMTPSendFailedException, use its RetCode to
-                    // determine default permanent/temporary failure
-                    deleteMessage = (returnCode >= 500 && returnCode <= 599);
-                } else {
-                    // Sometimes we'll get a normal SendFailedException with
-                    // nested SMTPAddressFailedException, so use the latter
-                    // RetCode
-                    MessagingException me = sfe;
-                    Exception ne;
-                    while ((ne = me.getNextException()) != null && ne instanceof MessagingException) {
-                        me = (MessagingException) ne;
-                        if (me.getClass().getName().endsWith(".SMTPAddressFailedException")) {
-                            int returnCode = ((Integer) invokeGetter(me, "getReturnCode")).intValue();
-                            deleteMessage = (returnCode >= 500 && returnCode <= 599);
-                        }
-                    }
-                }
-            } catch (IllegalStateException ise) {
-                // unexpected exception (not a compatible javamail
-                // implementation)
-            } catch (ClassCastException cce) {
-                // unexpected exception (not a compatible javamail
-                // implementation)
-            }
-
-            // log the original set of intended recipients
-            if (isDebug)
-                log("Recipients: " + recipients);
-
-            if (sfe.getInvalidAddresses() != null) {
-                Address[] address = sfe.getInvalidAddresses();
-                if (address.length > 0) {
-                    recipients.clear();
-                    for (int i = 0; i < address.length; i++) {
-                        try {
-                            recipients.add(new MailAddress(address[i].toString()));
-                        } catch (ParseException pe) {
-                            // this should never happen ... we should have
-                            // caught malformed addresses long before we
-                            // got to this code.
-                            log("Can't parse invalid address: " + pe.getMessage());
-                        }
-                    }
-                    // Set the recipients for the mail
-                    mail.setRecipients(recipients);
-                    
-                    if (isDebug)
-                        log("Invalid recipients: " + recipients);
-                    deleteMessage = failMessage(mail, sfe, true);
-                }
-            }
-
-            if (sfe.getValidUnsentAddresses() != null) {
-                Address[] address = sfe.getValidUnsentAddresses();
-                if (address.length > 0) {
-                    recipients.clear();
-                    for (int i = 0; i < address.length; i++) {
-                        try {
-                            recipients.add(new MailAddress(address[i].toString()));
-                        } catch (ParseException pe) {
-                            // this should never happen ... we should have
-                            // caught malformed addresses long before we
-                            // got to this code.
-                            log("Can't parse unsent address: " + pe.getMessage());
-                        }
-                    }
-                    // Set the recipients for the mail
-                    mail.setRecipients(recipients);
-                    if (isDebug)
-                        log("Unsent recipients: " + recipients);
-                    if (sfe.getClass().getName().endsWith(".SMTPSendFailedException")) {
-                        int returnCode = ((Integer) invokeGetter(sfe, "getReturnCode")).intValue();
-                        deleteMessage = failMessage(mail, sfe, returnCode >= 500 && returnCode <= 599);
-                    } else {
-                        deleteMessage = failMessage(mail, sfe, false);
-                    }
-                }
-            }
-            
-           
-            return deleteMessage;
+            return handleSendFailedException(mail, sfe);
         } catch (MessagingException ex) {
             // We should do a better job checking this... if the failure is a
             // general
@@ -1259,6 +1427,131 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         return failMessage(mail, new MessagingException("No mail server(s) available at this time."), false);
     }
 
+    /**
+     * Fail the recipients of a {@link SendFailedException}. Invalid addresses
+     * fail permanently, valid addresses the mail was not sent to are retried
+     * unless the server replied with a permanent error.
+     * 
+     * @param mail
+     * @param sfe
+     * @return boolean Whether the message failed fully and can be deleted
+     */
+    private boolean handleSendFailedException(Mail mail, SendFailedException sfe) {
+        logSendFailedException(sfe);
+
+        // Copy the recipients as direct modification may not be possible
+        Collection<MailAddress> recipients = new ArrayList<MailAddress>(mail.getRecipients());
+
+        boolean deleteMessage = false;
+
+        /*
+         * If you send a message that has multiple invalid addresses, you'll
+         * get a top-level SendFailedException that that has the valid,
+         * valid-unsent, and invalid address lists, with all of the server
+         * response messages will be contained within the nested exceptions.
+         * [Note: the content of the nested exceptions is implementation
+         * dependent.]
+         * 
+         * sfe.getInvalidAddresses() should be considered permanent.
+         * sfe.getValidUnsentAddresses() should be considered temporary.
+         * 
+         * JavaMail v1.3 properly populates those collections based upon the
+         * 4xx and 5xx response codes to RCPT TO. Some servers, such as
+         * Yahoo! don't respond to the RCPT TO, and provide a 5xx reply
+         * after DATA. In that case, we will pick up the failure from
+         * SMTPSendFailedException.
+         */
+
+        /*
+         * SMTPSendFailedException introduced in JavaMail 1.3.2, and
+         * provides detailed protocol reply code for the operation
+         */
+        try {
+            if (sfe.getClass().getName().endsWith(".SMTPSendFailedException")) {
+                int returnCode = ((Integer) invokeGetter(sfe, "getReturnCode")).intValue();
+                // If we got an SMTPSendFailedException, use its RetCode to
+                // determine default permanent/temporary failure
+                deleteMessage = (returnCode >= 500 && returnCode <= 599);
+            } else {
+                // Sometimes we'll get a normal SendFailedException with
+                // nested SMTPAddressFailedException, so use the latter
+                // RetCode
+                MessagingException me = sfe;
+                Exception ne;
+                while ((ne = me.getNextException()) != null && ne instanceof MessagingException) {
+                    me = (MessagingException) ne;
+                    if (me.getClass().getName().endsWith(".SMTPAddressFailedException")) {
+                        int returnCode = ((Integer) invokeGetter(me, "getReturnCode")).intValue();
+                        deleteMessage = (returnCode >= 500 && returnCode <= 599);
+                    }
+                }
+            }
+        } catch (IllegalStateException ise) {
+            // unexpected exception (not a compatible javamail
+            // implementation)
+        } catch (ClassCastException cce) {
+            // unexpected exception (not a compatible javamail
+            // implementation)
+        }
+
+        // log the original set of intended recipients
+        if (isDebug)
+            log("Recipients: " + recipients);
+
+        if (sfe.getInvalidAddresses() != null) {
+            Address[] address = sfe.getInvalidAddresses();
+            if (address.length > 0) {
+                recipients.clear();
+                for (int i = 0; i < address.length; i++) {
+                    try {
+                        recipients.add(new MailAddress(address[i].toString()));
+                    } catch (ParseException pe) {
+                        // this should never happen ... we should have
+                        // caught malformed addresses long before we
+                        // got to this code.
+                        log("Can't parse invalid address: " + pe.getMessage());
+                    }
+                }
+                // Set the recipients for the mail
+                mail.setRecipients(recipients);
+                
+                if (isDebug)
+                    log("Invalid recipients: " + recipients);
+                deleteMessage = failMessage(mail, sfe, true);
+            }
+        }
+
+        if (sfe.getValidUnsentAddresses() != null) {
+            Address[] address = sfe.getValidUnsentAddresses();
+            if (address.length > 0) {
+                recipients.clear();
+                for (int i = 0; i < address.length; i++) {
+                    try {
+                        recipients.add(new MailAddress(address[i].toString()));
+                    } catch (ParseException pe) {
+                        // this should never happen ... we should have
+                        // caught malformed addresses long before we
+                        // got to this code.
+                        log("Can't parse unsent address: " + pe.getMessage());
+                    }
+                }
+                // Set the recipients for the mail
+                mail.setRecipients(recipients);
+                if (isDebug)
+                    log("Unsent recipients: " + recipients);
+                if (sfe.getClass().getName().endsWith(".SMTPSendFailedException")) {
+                    int returnCode = ((Integer) invokeGetter(sfe, "getReturnCode")).intValue();
+                    deleteMessage = failMessage(mail, sfe, returnCode >= 500 && returnCode <= 599);
+                } else {
+                    deleteMessage = failMessage(mail, sfe, false);
+                }
+            }
+        }
+        
+       
+        return deleteMessage;
+    }
+
     /**
      * Try to return a usefull logString created of the Exception which was
      * given. Return null if nothing usefull could be done
@@ -1590,6 +1883,21 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         }
     }
 
+    /**
+     * Return the key under which the connections to the given server are
+     * pooled
+     * 
+     * @param server
+     * @return hostKey
+     */
+    private String getHostKey(HostAddress server) {
+        StringBuilder key = new StringBuilder(64).append(server.getHostName()).append('/').append(server.getHost());
+        if (server.getPort() != -1) {
+            key.append(':').append(server.getPort());
+        }
+        return key.toString();
+    }
+
     /**
      * Returns the javamail Session object.
      * 
@@ -1600,6 +1908,383 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         return Session.getInstance(props);
     }
 
+    /**
+     * Return true if the part contains 8bit content which must be converted
+     * for servers not supporting 8BITMIME
+     * 
+     * @param part
+     * @return eightBit
+     */
+    private boolean isEightBit(MimePart part) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            MimeMultipart parts = (MimeMultipart) part.getContent();
+            int count = parts.getCount();
+            for (int i = 0; i < count; i++) {
+                if (isEightBit((MimePart) parts.getBodyPart(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return "8bit".equals(part.getEncoding());
+    }
+
+    /**
+     * Return the count of content permits for the given size, at least one
+     * per mail
+     * 
+     * @param size
+     *            The size in bytes
+     * @return permits
+     */
+    private static int toContentPermits(long size) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (size + 1023) / 1024));
+    }
+
+    /**
+     * The delivery of a mail by the non-blocking {@link SMTPClient}. The
+     * target servers are tried one after the other like in
+     * {@link #deliver(Mail, Session)}, the results are handled by the
+     * completion executor.
+     */
+    private final class AsyncDelivery implements SMTPDeliveryListener {
+
+        private final MailQueueItem queueItem;
+
+        private final Mail mail;
+
+        private Iterator<HostAddress> targetServers;
+
+        private SMTPTransaction transaction;
+
+        private MessagingException lastError;
+
+        private String healthKey;
+
+        private int permits;
+
+        public AsyncDelivery(MailQueueItem queueItem, Mail mail) {
+            this.queueItem = queueItem;
+            this.mail = mail;
+        }
+
+        /**
+         * Lookup the target servers, encode the message and start the
+         * delivery to the first server
+         */
+        public void start() {
+            try {
+                if (mail.getRecipients().isEmpty()) {
+                    log("No recipients specified... not sure how this could have happened.");
+                    finish(true);
+                    return;
+                }
+
+                if (splitByMX(mail)) {
+                    finish(true);
+                    return;
+                }
+
+                try {
+                    targetServers = getTargetServers(mail);
+                } catch (TargetServerException e) {
+                    finish((e.isPermanent() && splitByDomain(mail)) || failMessage(mail, e, e.isPermanent()));
+                    return;
+                }
+
+                List<String> recipients = new ArrayList<String>();
+                for (Iterator<MailAddress> i = mail.getRecipients().iterator(); i.hasNext();) {
+                    recipients.add(i.next().toString());
+                }
+                String sender = mail.getSender() == null ? null : mail.getSender().toString();
+
+                // wait until the content of the running deliveries leaves
+                // room for this one, a larger mail waits for all of them
+                MimeMessage message = mail.getMessage();
+                boolean eightBit = isEightBit(message);
+                permits = Math.min(maxContentPermits, toContentPermits(mail.getMessageSize() * (eightBit ? 2 : 1)));
+                try {
+                    contentPermits.acquire(permits);
+                } catch (InterruptedException e) {
+                    permits = 0;
+                    Thread.currentThread().interrupt();
+                    abort();
+                    return;
+                }
+
+                // encode the message once, also as 7bit if needed for servers
+                // without the 8bit extension
+                ChannelBuffer sevenBitContent = null;
+                if (eightBit) {
+                    MimeMessage sevenBitMessage = new MimeMessage(message);
+                    try {
+                        convertTo7Bit(sevenBitMessage);
+                        sevenBitContent = SMTPTransaction.encode(sevenBitMessage);
+                    } catch (IOException e) {
+                        // The message is sent anyway, like with javamail
+                        log("Error during the conversion to 7 bit.", e);
+                    }
+                }
+                transaction = new SMTPTransaction(sender, recipients, SMTPTransaction.encode(message), sevenBitContent);
+            } catch (Exception e) {
+                log("Exception caught while delivering mail " + mail.getName(), e);
+                finish(failMessage(mail, e, true));
+                return;
+            }
+            next();
+        }
+
+        /**
+         * Try the next target server or fail the mail if there is none left
+         */
+        private void next() {
+            if (!targetServers.hasNext()) {
+                MessagingException e = lastError == null ? new MessagingException("No mail server(s) available at this time.") : lastError;
+                finish(failMessage(mail, e, false));
+                return;
+            }
+            HostAddress server = targetServers.next();
+            int port = getPort(server);
+            healthKey = getHealthKey(server);
+            if (isDebug) {
+                log("Attempting delivery of " + mail.getName() + " to host " + server.getHostName() + " at " + server.getHost() + " for " + mail.getRecipients());
+            }
+            try {
+                smtpClient.deliver(server.getHostName(), new InetSocketAddress(server.getHost(), port), transaction, this);
+            } catch (RuntimeException e) {
+                log("Unable to start delivery of " + mail.getName() + " to " + server.getHostName(), e);
+                lastError = new MessagingException(e.getMessage(), e);
+                next();
+            }
+        }
+
+        /**
+         * @see org.apache.james.transport.smtp.SMTPDeliveryListener#onResult(org.apache.james.transport.smtp.SMTPDeliveryResult)
+         */
+        public void onResult(final SMTPDeliveryResult result) {
+            try {
+                completionExecutor.execute(new Runnable() {
+                    public void run() {
+                        handleResult(result);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                abort();
+            }
+        }
+
+        /**
+         * Stop the delivery on shutdown, the mail stays in the queue
+         */
+        private void abort() {
+            LifecycleUtil.dispose(mail);
+            queueItemDone(false);
+            releasePermits();
+        }
+
+        private void handleResult(SMTPDeliveryResult result) {
+            if (hostHealth != null) {
+                // a connection failure without a reply did not reach the host
+                if (result.getStatus() == SMTPDeliveryResult.Status.CONNECTION_FAILED && result.getReply() == null) {
+                    hostHealth.failed(healthKey, System.currentTimeMillis());
+                } else {
+                    hostHealth.connected(healthKey, result.getConnectTime());
+                }
+            }
+            try {
+                if (result.getStatus() == SMTPDeliveryResult.Status.SENT) {
+                    log("Mail (" + mail.getName() + ") sent successfully to " + result.getHost() + " for " + result.getAccepted());
+                }
+                switch (RemoteDeliveryResults.getAction(result)) {
+                case DELIVERED:
+                    finish(true);
+                    break;
+                case RECIPIENTS_FAILED:
+                    finish(handleSendFailedException(mail, (SendFailedException) RemoteDeliveryResults.toException(result)));
+                    break;
+                case FAILED:
+                    finish(failMessage(mail, RemoteDeliveryResults.toException(result), true));
+                    break;
+                default:
+                    if (result.getStatus() == SMTPDeliveryResult.Status.CONNECTION_FAILED) {
+                        log("Unable to connect to " + result.getHost() + " for " + mail.getName() + ": " + result.getMessage());
+                        if (lastError == null) {
+                            lastError = RemoteDeliveryResults.toException(result);
+                        }
+                    } else {
+                        log("Delivery of " + mail.getName() + " to " + result.getHost() + " failed: " + result.getMessage());
+                        lastError = RemoteDeliveryResults.toException(result);
+                    }
+                    next();
+                }
+            } catch (Exception e) {
+                log("Exception caught while delivering mail " + mail.getName(), e);
+                finish(failMessage(mail, e, true));
+            }
+        }
+
+        /**
+         * Remove the mail from the queue or queue it for the next attempt
+         * and release the permits of this delivery
+         * 
+         * @param deleteMessage
+         */
+        private void finish(boolean deleteMessage) {
+            try {
+                deliveryCompleted(queueItem, mail, deleteMessage);
+            } catch (Exception e) {
+                LifecycleUtil.dispose(mail);
+                queueItemDone(false);
+                if (!destroyed) {
+                    log("Exception caught while completing delivery of " + mail.getName(), e);
+                }
+            } finally {
+                releasePermits();
+            }
+        }
+
+        private void releasePermits() {
+            contentPermits.release(permits);
+            deliveryPermits.release();
+        }
+
+        private void queueItemDone(boolean success) {
+            try {
+                queueItem.done(success);
+            } catch (MailQueueException e) {
+                log("Unable to complete dequeue of " + mail.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Thrown if the servers for a mail could not be found
+     */
+    private final static class TargetServerException extends MessagingException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean permanent;
+
+        public TargetServerException(String message, boolean permanent) {
+            super(message);
+            this.permanent = permanent;
+        }
+
+        /**
+         * @return true if the mail should not be retried
+         */
+        public boolean isPermanent() {
+            return permanent;
+        }
+    }
+
+    /**
+     * Return the servers to try to send the mail to, which are the gateways
+     * if configured or the MX hosts of the domain of the recipients.
+     * 
+     * @param mail
+     * @return targetServers
+     * @throws TargetServerException
+     *             if no server could be found
+     */
+    private Iterator<HostAddress> getTargetServers(Mail mail) throws TargetServerException {
+        if (gatewayServer != null) {
+            return getAvailableServers(getGatewaySMTPHostAddresses(gatewayServer));
+        }
+        MailAddress rcpt = (MailAddress) mail.getRecipients().iterator().next();
+        String host = rcpt.getDomain();
+
+        // Lookup the possible targets
+        Iterator<HostAddress> targetServers;
+        try {
+            targetServers = new MXHostAddressIterator(dnsServer.findMXRecords(host).iterator(), dnsServer, false, logAdapter);
+        } catch (TemporaryResolutionException e) {
+            log("Temporary problem looking up mail server for host: " + host);
+            StringBuilder exceptionBuffer = new StringBuilder(128).append("Temporary problem looking up mail server for host: ").append(host).append(".  I cannot determine where to send this message.");
+
+            // temporary problems
+            throw new TargetServerException(exceptionBuffer.toString(), false);
+        }
+        if (!targetServers.hasNext()) {
+            log("No mail server found for: " + host);
+            StringBuilder exceptionBuffer = new StringBuilder(128).append("There are no DNS entries for the hostname ").append(host).append(".  I cannot determine where to send this message.");
+
+            int retry = 0;
+            try {
+                retry = Integer.parseInt(mail.getErrorMessage());
+            } catch (NumberFormatException e) {
+                // Unable to parse retryCount
+            }
+            // The domain has no dns entry.. Return a permanent error
+            throw new TargetServerException(exceptionBuffer.toString(), retry == 0 || retry > dnsProblemRetry);
+        }
+        return getAvailableServers(targetServers);
+    }
+
+    /**
+     * Return the servers without those which are known to be down
+     * 
+     * @param servers
+     * @return availableServers
+     */
+    private Iterator<HostAddress> getAvailableServers(final Iterator<HostAddress> servers) {
+        if (hostHealth == null) {
+            return servers;
+        }
+        return new Iterator<HostAddress>() {
+            private HostAddress next;
+
+            public boolean hasNext() {
+                while (next == null && servers.hasNext()) {
+                    HostAddress server = servers.next();
+                    if (hostHealth.isAvailable(getHealthKey(server), System.currentTimeMillis())) {
+                        next = server;
+                    } else if (isDebug) {
+                        log("Skipping " + server.getHostName() + " at " + server.getHost() + " which is known to be down");
+                    }
+                }
+                return next != null;
+            }
+
+            public HostAddress next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                HostAddress server = next;
+                next = null;
+                return server;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Return the port to connect to the given server
+     * 
+     * @param server
+     * @return port
+     */
+    private int getPort(HostAddress server) {
+        if (server.getPort() != -1) {
+            return server.getPort();
+        }
+        return isSSLEnable ? 465 : 25;
+    }
+
+    /**
+     * Return the key under which the health of the given server is tracked
+     * 
+     * @param server
+     * @return healthKey
+     */
+    private String getHealthKey(HostAddress server) {
+        return server.getHost() + ":" + getPort(server);
+    }
+
     /**
      * Returns an Iterator over org.apache.mailet.HostAddress, a specialized
      * subclass of javax.mail.URLName, which provides location information for
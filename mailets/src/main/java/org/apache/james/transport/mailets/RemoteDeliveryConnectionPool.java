@@ -0,0 +1,534 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.james.util.concurrent.NamedThreadFactory;
+
+/**
+ * Pool of connected {@link Transport}s to the hosts {@link RemoteDelivery}
+ * delivers to, so consecutive mails to the same host do not need to connect,
+ * send EHLO and negotiate TLS again.
+ * 
+ * A connection is returned to the pool after a successful delivery. Before it
+ * is used again, a RSET is sent, which also verifies the host did not close
+ * the connection meanwhile. Connections are closed after the maximum count of
+ * messages was sent over them or when they were idle longer than the idle
+ * timeout.
+ * 
+ * A transport reads the envelope sender (<code>mail.smtp.from</code>) from the
+ * properties of the {@link Session} it was created with when it sends a
+ * message. As every delivery thread sets the sender in its own session, a
+ * connection is only handed out again for the session it was opened with.
+ */
+public class RemoteDeliveryConnectionPool implements RemoteDeliveryConnectionPoolMBean {
+
+    /**
+     * Default maximum count of idle connections per host
+     */
+    public final static int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 2;
+
+    /**
+     * Default maximum count of messages per connection
+     */
+    public final static int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 100;
+
+    /**
+     * Default idle timeout in milliseconds
+     */
+    public final static long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private final static String MBEAN_NAME = "org.apache.james:type=component,name=remotedelivery,sub-type=connectionpool,outgoing=";
+
+    private final int maxIdleConnectionsPerHost;
+
+    private final int maxMessagesPerConnection;
+
+    private final long idleTimeout;
+
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    private final ScheduledExecutorService evictor;
+
+    private String mbeanName;
+
+    private long evictions;
+
+    private boolean disposed;
+
+    /**
+     * A connection of the pool
+     */
+    public final static class Connection {
+        private final Host host;
+        private final Session session;
+        private final Transport transport;
+        private int messages;
+        private long lastUsed;
+
+        private Connection(Host host, Session session, Transport transport) {
+            this.host = host;
+            this.session = session;
+            this.transport = transport;
+        }
+
+        /**
+         * Return the connected transport
+         * 
+         * @return transport
+         */
+        public Transport getTransport() {
+            return transport;
+        }
+    }
+
+    /**
+     * The connections and statistics of a single host
+     */
+    private final static class Host {
+        private final LinkedList<Connection> idle = new LinkedList<Connection>();
+        private int active;
+        private long connects;
+        private long reuses;
+    }
+
+    /**
+     * @param maxIdleConnectionsPerHost
+     *            The maximum count of idle connections which are kept per host
+     *            and session
+     * @param maxMessagesPerConnection
+     *            The maximum count of messages which are sent over one
+     *            connection, 0 for no limit
+     * @param idleTimeout
+     *            The time in milliseconds after which idle connections are
+     *            closed
+     */
+    public RemoteDeliveryConnectionPool(int maxIdleConnectionsPerHost, int maxMessagesPerConnection, long idleTimeout) {
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        this.idleTimeout = idleTimeout;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("RemoteDelivery connection pool"));
+        long interval = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdleConnections(System.currentTimeMillis());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Export the pool via JMX
+     * 
+     * @param outgoing
+     *            The name of the queue of the {@link RemoteDelivery}
+     */
+    public void registerMBean(String outgoing) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            String name = MBEAN_NAME + ObjectName.quote(outgoing);
+            mbeanServer.registerMBean(this, new ObjectName(name));
+            mbeanName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            // another RemoteDelivery uses the same queue
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+
+    /**
+     * Return an idle connection to the given host which was opened with the
+     * given session or null if there is none. The connection was reset with a
+     * RSET and can be used for the next message.
+     * 
+     * @param hostKey
+     *            The key of the host
+     * @param session
+     *            The session which holds the sender of the next message
+     * @return connection or null
+     */
+    public Connection borrow(String hostKey, Session session) {
+        while (true) {
+            Connection connection;
+            synchronized (this) {
+                Host host = hosts.get(hostKey);
+                if (host == null) {
+                    return null;
+                }
+                // the most recently used one is the most likely to be alive
+                connection = removeIdle(host, session);
+                if (connection == null) {
+                    return null;
+                }
+                if (System.currentTimeMillis() - connection.lastUsed <= idleTimeout) {
+                    host.active++;
+                } else {
+                    evictions++;
+                    closeLater(connection.transport);
+                    connection = null;
+                }
+            }
+            if (connection != null) {
+                if (reset(connection.transport)) {
+                    synchronized (this) {
+                        connection.host.reuses++;
+                    }
+                    return connection;
+                }
+                synchronized (this) {
+                    connection.host.active--;
+                    evictions++;
+                }
+                close(connection.transport);
+            }
+        }
+    }
+
+    /**
+     * Remove the most recently used idle connection of the given session
+     * 
+     * @param host
+     * @param session
+     * @return connection or null
+     */
+    private Connection removeIdle(Host host, Session session) {
+        Iterator<Connection> connections = host.idle.iterator();
+        while (connections.hasNext()) {
+            Connection connection = connections.next();
+            if (connection.session == session) {
+                connections.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the count of idle connections of the given session
+     * 
+     * @param host
+     * @param session
+     * @return idle
+     */
+    private int countIdle(Host host, Session session) {
+        int idle = 0;
+        for (Connection connection : host.idle) {
+            if (connection.session == session) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * Add a new connected transport to the pool and return it as connection,
+     * which is used by the caller
+     * 
+     * @param hostKey
+     *            The key of the host
+     * @param session
+     *            The session the transport was created with
+     * @param transport
+     *            The connected transport
+     * @return connection
+     */
+    public synchronized Connection connected(String hostKey, Session session, Transport transport) {
+        Host host = hosts.get(hostKey);
+        if (host == null) {
+            host = new Host();
+            hosts.put(hostKey, host);
+        }
+        host.connects++;
+        host.active++;
+        return new Connection(host, session, transport);
+    }
+
+    /**
+     * Return a connection to the pool after it was used. If the connection
+     * can not be used again, false is returned and the caller needs to close
+     * the transport.
+     * 
+     * @param connection
+     *            The connection
+     * @param reusable
+     *            True if the message was sent successfully and the connection
+     *            can be reused
+     * @return kept
+     */
+    public synchronized boolean release(Connection connection, boolean reusable) {
+        Host host = connection.host;
+        host.active--;
+        connection.messages++;
+        if (!reusable || disposed || countIdle(host, connection.session) >= maxIdleConnectionsPerHost) {
+            return false;
+        }
+        if (maxMessagesPerConnection > 0 && connection.messages >= maxMessagesPerConnection) {
+            return false;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        host.idle.addFirst(connection);
+        return true;
+    }
+
+    /**
+     * Close the connections which are idle longer than the idle timeout
+     * 
+     * @param now
+     *            The current time in milliseconds
+     */
+    void evictIdleConnections(long now) {
+        List<Transport> expired = new ArrayList<Transport>();
+        synchronized (this) {
+            for (Host host : hosts.values()) {
+                Iterator<Connection> connections = host.idle.iterator();
+                while (connections.hasNext()) {
+                    Connection connection = connections.next();
+                    if (now - connection.lastUsed > idleTimeout) {
+                        connections.remove();
+                        expired.add(connection.transport);
+                        evictions++;
+                    }
+                }
+            }
+        }
+        for (Transport transport : expired) {
+            close(transport);
+        }
+    }
+
+    /**
+     * Close all connections and stop the eviction of idle connections
+     */
+    public void dispose() {
+        synchronized (this) {
+            disposed = true;
+        }
+        evictor.shutdownNow();
+        closeIdleConnections();
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(mbeanName));
+            } catch (Exception e) {
+                // ignore on dispose
+            }
+        }
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#closeIdleConnections()
+     */
+    public void closeIdleConnections() {
+        List<Transport> idle = new ArrayList<Transport>();
+        synchronized (this) {
+            for (Host host : hosts.values()) {
+                for (Connection connection : host.idle) {
+                    idle.add(connection.transport);
+                }
+                host.idle.clear();
+            }
+        }
+        for (Transport transport : idle) {
+            close(transport);
+        }
+    }
+
+    /**
+     * Close the transport in the background, so the QUIT does not delay the
+     * delivery
+     * 
+     * @param transport
+     */
+    private void closeLater(final Transport transport) {
+        try {
+            evictor.execute(new Runnable() {
+                public void run() {
+                    close(transport);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the pool was disposed
+            close(transport);
+        }
+    }
+
+    /**
+     * Send a RSET over the transport. If the transport does not support to
+     * send commands, only check it is still connected.
+     * 
+     * @param transport
+     * @return success
+     */
+    private boolean reset(Transport transport) {
+        try {
+            Method issueCommand = transport.getClass().getMethod("issueCommand", new Class[] { String.class, int.class });
+            issueCommand.invoke(transport, new Object[] { "RSET", Integer.valueOf(250) });
+            return true;
+        } catch (NoSuchMethodException e) {
+            return transport.isConnected();
+        } catch (IllegalAccessException e) {
+            return transport.isConnected();
+        } catch (InvocationTargetException e) {
+            // the host closed the connection or does not accept RSET
+            return false;
+        }
+    }
+
+    private void close(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            // the host closed the connection already
+        }
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getMaxIdleConnectionsPerHost()
+     */
+    public int getMaxIdleConnectionsPerHost() {
+        return maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getMaxMessagesPerConnection()
+     */
+    public int getMaxMessagesPerConnection() {
+        return maxMessagesPerConnection;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getIdleTimeout()
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getIdleConnections()
+     */
+    public synchronized int getIdleConnections() {
+        int idle = 0;
+        for (Host host : hosts.values()) {
+            idle += host.idle.size();
+        }
+        return idle;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getActiveConnections()
+     */
+    public synchronized int getActiveConnections() {
+        int active = 0;
+        for (Host host : hosts.values()) {
+            active += host.active;
+        }
+        return active;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getConnects()
+     */
+    public synchronized long getConnects() {
+        long connects = 0;
+        for (Host host : hosts.values()) {
+            connects += host.connects;
+        }
+        return connects;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getReuses()
+     */
+    public synchronized long getReuses() {
+        long reuses = 0;
+        for (Host host : hosts.values()) {
+            reuses += host.reuses;
+        }
+        return reuses;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getReuseRatio()
+     */
+    public synchronized double getReuseRatio() {
+        return ratio(getReuses(), getConnects());
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getEvictions()
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getHosts()
+     */
+    public synchronized String[] getHosts() {
+        return hosts.keySet().toArray(new String[hosts.size()]);
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getIdleConnections(java.lang.String)
+     */
+    public synchronized int getIdleConnections(String hostKey) {
+        Host host = hosts.get(hostKey);
+        return host == null ? 0 : host.idle.size();
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getActiveConnections(java.lang.String)
+     */
+    public synchronized int getActiveConnections(String hostKey) {
+        Host host = hosts.get(hostKey);
+        return host == null ? 0 : host.active;
+    }
+
+    /**
+     * @see RemoteDeliveryConnectionPoolMBean#getReuseRatio(java.lang.String)
+     */
+    public synchronized double getReuseRatio(String hostKey) {
+        Host host = hosts.get(hostKey);
+        return host == null ? 0 : ratio(host.reuses, host.connects);
+    }
+
+    private static double ratio(long reuses, long connects) {
+        long deliveries = reuses + connects;
+        return deliveries == 0 ? 0 : (double) reuses / deliveries;
+    }
+}
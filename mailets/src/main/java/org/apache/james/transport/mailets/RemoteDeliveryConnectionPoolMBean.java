@@ -0,0 +1,129 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+/**
+ * JMX Bean which shows the limits and statistics of a
+ * {@link RemoteDeliveryConnectionPool}
+ */
+public interface RemoteDeliveryConnectionPoolMBean {
+
+    /**
+     * Return the maximum count of idle connections which are kept per host
+     * and delivery thread
+     * 
+     * @return maxIdleConnectionsPerHost
+     */
+    int getMaxIdleConnectionsPerHost();
+
+    /**
+     * Return the maximum count of messages which are sent over one connection
+     * 
+     * @return maxMessagesPerConnection
+     */
+    int getMaxMessagesPerConnection();
+
+    /**
+     * Return the time in milliseconds after which idle connections are closed
+     * 
+     * @return idleTimeout
+     */
+    long getIdleTimeout();
+
+    /**
+     * Return the count of connections which are idle
+     * 
+     * @return idleConnections
+     */
+    int getIdleConnections();
+
+    /**
+     * Return the count of connections which are used for a delivery
+     * 
+     * @return activeConnections
+     */
+    int getActiveConnections();
+
+    /**
+     * Return the count of connections which were opened
+     * 
+     * @return connects
+     */
+    long getConnects();
+
+    /**
+     * Return the count of deliveries which reused an idle connection
+     * 
+     * @return reuses
+     */
+    long getReuses();
+
+    /**
+     * Return the ratio of deliveries which reused an idle connection
+     * 
+     * @return reuseRatio
+     */
+    double getReuseRatio();
+
+    /**
+     * Return the count of idle connections which were closed because they
+     * timed out or did not accept the RSET anymore
+     * 
+     * @return evictions
+     */
+    long getEvictions();
+
+    /**
+     * Return the hosts to which connections were opened
+     * 
+     * @return hosts
+     */
+    String[] getHosts();
+
+    /**
+     * Return the count of idle connections to the given host
+     * 
+     * @param host
+     * @return idleConnections
+     */
+    int getIdleConnections(String host);
+
+    /**
+     * Return the count of connections to the given host which are used for a
+     * delivery
+     * 
+     * @param host
+     * @return activeConnections
+     */
+    int getActiveConnections(String host);
+
+    /**
+     * Return the ratio of deliveries to the given host which reused an idle
+     * connection
+     * 
+     * @param host
+     * @return reuseRatio
+     */
+    double getReuseRatio(String host);
+
+    /**
+     * Close all idle connections
+     */
+    void closeIdleConnections();
+}
@@ -0,0 +1,310 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Connect failures and times of the hosts {@link RemoteDelivery} delivers to,
+ * shared by all delivery threads, so mails are not delayed by connecting to
+ * hosts which are known to be down.
+ * 
+ * A host which failed the configured count of consecutive connects is skipped
+ * for the cool down time. After it, the next delivery probes the host while
+ * the others still skip it. If the probe connects the host is used again,
+ * otherwise it is skipped for another cool down time.
+ * 
+ * At most {@link #MAX_HOSTS} hosts are tracked, the least recently used host
+ * is dropped if another one is added.
+ */
+public class RemoteDeliveryHostHealth implements RemoteDeliveryHostHealthMBean {
+
+    /**
+     * Default count of consecutive connect failures after which a host is
+     * skipped
+     */
+    public final static int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /**
+     * Default time in milliseconds a failing host is skipped
+     */
+    public final static long DEFAULT_COOL_DOWN = 60000;
+
+    /**
+     * Maximal count of tracked hosts
+     */
+    public final static int MAX_HOSTS = 1000;
+
+    private final static String MBEAN_NAME = "org.apache.james:type=component,name=remotedelivery,sub-type=hosthealth,outgoing=";
+
+    /**
+     * The states of a host
+     */
+    public enum State {
+        /** The host is used */
+        CLOSED,
+        /** The host is skipped until the cool down time passed */
+        OPEN,
+        /** A delivery probes the host, the others skip it */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long coolDown;
+
+    // access ordered, so hosts which are checked on each delivery stay
+    private final Map<String, Host> hosts = new LinkedHashMap<String, Host>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Host> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    private String mbeanName;
+
+    private long skippedAttempts;
+
+    /**
+     * The state and statistics of a single host
+     */
+    private final static class Host {
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long failures;
+        private long connects;
+        private long connectTime;
+        // end of the cool down when OPEN, start of the probe when HALF_OPEN
+        private long since;
+    }
+
+    /**
+     * @param failureThreshold
+     *            The count of consecutive connect failures after which a host
+     *            is skipped
+     * @param coolDown
+     *            The time in milliseconds a failing host is skipped before a
+     *            delivery probes it again
+     */
+    public RemoteDeliveryHostHealth(int failureThreshold, long coolDown) {
+        this.failureThreshold = failureThreshold;
+        this.coolDown = coolDown;
+    }
+
+    /**
+     * Register the health table in JMX
+     * 
+     * @param outgoing
+     *            The name of the queue of the RemoteDelivery
+     */
+    public void registerMBean(String outgoing) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            String name = MBEAN_NAME + ObjectName.quote(outgoing);
+            mbeanServer.registerMBean(this, new ObjectName(name));
+            mbeanName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            // another RemoteDelivery uses the same queue
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+
+    /**
+     * Unregister the health table from JMX
+     */
+    public void dispose() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(mbeanName));
+            } catch (Exception e) {
+                // ignore on dispose
+            }
+        }
+    }
+
+    /**
+     * Return true if a delivery should connect to the given host. A host
+     * which is skipped is probed by the first delivery after its cool down
+     * time passed. If the probe does not report back within another cool down
+     * time, the next delivery probes it.
+     * 
+     * @param address
+     *            The address and port of the host
+     * @param now
+     *            The current time in milliseconds
+     * @return true if the host should be used
+     */
+    public synchronized boolean isAvailable(String address, long now) {
+        Host host = hosts.get(address);
+        if (host == null || host.state == State.CLOSED) {
+            return true;
+        }
+        if (host.state == State.OPEN && now >= host.since || host.state == State.HALF_OPEN && now - host.since >= coolDown) {
+            host.state = State.HALF_OPEN;
+            host.since = now;
+            return true;
+        }
+        skippedAttempts++;
+        return false;
+    }
+
+    /**
+     * Record that a connect to the given host succeeded
+     * 
+     * @param address
+     *            The address and port of the host
+     * @param connectTime
+     *            The time in milliseconds the connect took, -1 if unknown
+     */
+    public synchronized void connected(String address, long connectTime) {
+        Host host = getHost(address);
+        host.state = State.CLOSED;
+        host.consecutiveFailures = 0;
+        if (connectTime >= 0) {
+            host.connects++;
+            host.connectTime += connectTime;
+        }
+    }
+
+    /**
+     * Record that a connect to the given host failed
+     * 
+     * @param address
+     *            The address and port of the host
+     * @param now
+     *            The current time in milliseconds
+     */
+    public synchronized void failed(String address, long now) {
+        Host host = getHost(address);
+        host.failures++;
+        host.consecutiveFailures++;
+        if (host.state == State.HALF_OPEN || host.consecutiveFailures >= failureThreshold) {
+            host.state = State.OPEN;
+            host.since = now + coolDown;
+        }
+    }
+
+    private Host getHost(String address) {
+        Host host = hosts.get(address);
+        if (host == null) {
+            host = new Host();
+            hosts.put(address, host);
+        }
+        return host;
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getFailureThreshold()
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getCoolDown()
+     */
+    public long getCoolDown() {
+        return coolDown;
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getOpenHosts()
+     */
+    public synchronized int getOpenHosts() {
+        int open = 0;
+        for (Host host : hosts.values()) {
+            if (host.state != State.CLOSED) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getSkippedAttempts()
+     */
+    public synchronized long getSkippedAttempts() {
+        return skippedAttempts;
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getHosts()
+     */
+    public synchronized String[] getHosts() {
+        return hosts.keySet().toArray(new String[hosts.size()]);
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getState(java.lang.String)
+     */
+    public synchronized String getState(String address) {
+        Host host = hosts.get(address);
+        return host == null ? State.CLOSED.toString() : host.state.toString();
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getConsecutiveFailures(java.lang.String)
+     */
+    public synchronized int getConsecutiveFailures(String address) {
+        Host host = hosts.get(address);
+        return host == null ? 0 : host.consecutiveFailures;
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getFailures(java.lang.String)
+     */
+    public synchronized long getFailures(String address) {
+        Host host = hosts.get(address);
+        return host == null ? 0 : host.failures;
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#getAverageConnectTime(java.lang.String)
+     */
+    public synchronized long getAverageConnectTime(String address) {
+        Host host = hosts.get(address);
+        if (host == null || host.connects == 0) {
+            return 0;
+        }
+        return host.connectTime / host.connects;
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#reset(java.lang.String)
+     */
+    public synchronized void reset(String address) {
+        hosts.remove(address);
+    }
+
+    /**
+     * @see RemoteDeliveryHostHealthMBean#resetAll()
+     */
+    public synchronized void resetAll() {
+        hosts.clear();
+    }
+}
@@ -0,0 +1,109 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+/**
+ * JMX Bean which shows the state of the hosts tracked by a
+ * {@link RemoteDeliveryHostHealth}
+ */
+public interface RemoteDeliveryHostHealthMBean {
+
+    /**
+     * Return the count of consecutive connect failures after which a host is
+     * skipped
+     * 
+     * @return failureThreshold
+     */
+    int getFailureThreshold();
+
+    /**
+     * Return the time in milliseconds a failing host is skipped before a
+     * delivery probes it again
+     * 
+     * @return coolDown
+     */
+    long getCoolDown();
+
+    /**
+     * Return the count of hosts which are skipped
+     * 
+     * @return openHosts
+     */
+    int getOpenHosts();
+
+    /**
+     * Return the count of delivery attempts which were skipped because the
+     * host was known to be down
+     * 
+     * @return skippedAttempts
+     */
+    long getSkippedAttempts();
+
+    /**
+     * Return the addresses of the hosts to which connects were attempted
+     * 
+     * @return hosts
+     */
+    String[] getHosts();
+
+    /**
+     * Return the state of the given host, which is CLOSED if it is used,
+     * OPEN if it is skipped or HALF_OPEN while a delivery probes it
+     * 
+     * @param host
+     * @return state
+     */
+    String getState(String host);
+
+    /**
+     * Return the count of consecutive connect failures of the given host
+     * 
+     * @param host
+     * @return consecutiveFailures
+     */
+    int getConsecutiveFailures(String host);
+
+    /**
+     * Return the count of connect failures of the given host
+     * 
+     * @param host
+     * @return failures
+     */
+    long getFailures(String host);
+
+    /**
+     * Return the average time in milliseconds a connect to the given host took
+     * 
+     * @param host
+     * @return averageConnectTime
+     */
+    long getAverageConnectTime(String host);
+
+    /**
+     * Forget the failures of the given host, so it is used again
+     * 
+     * @param host
+     */
+    void reset(String host);
+
+    /**
+     * Forget the failures of all hosts
+     */
+    void resetAll();
+}
@@ -0,0 +1,149 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Groups the recipients of a mail for {@link RemoteDelivery}, either by their
+ * domain or by the MX hosts which serve their domains.
+ */
+public class RemoteDeliveryRecipientGroups {
+
+    private RemoteDeliveryRecipientGroups() {
+    }
+
+    /**
+     * Organize the recipients by their domain, the domain names are lower
+     * case.
+     * 
+     * @param recipients
+     * @return the recipients by domain
+     */
+    public static Hashtable<String, Collection<MailAddress>> groupByDomain(Collection<MailAddress> recipients) {
+        Hashtable<String, Collection<MailAddress>> targets = new Hashtable<String, Collection<MailAddress>>();
+        for (Iterator<MailAddress> i = recipients.iterator(); i.hasNext();) {
+            MailAddress target = i.next();
+            String targetServer = target.getDomain().toLowerCase(Locale.US);
+            Collection<MailAddress> temp = targets.get(targetServer);
+            if (temp == null) {
+                temp = new ArrayList<MailAddress>();
+                targets.put(targetServer, temp);
+            }
+            temp.add(target);
+        }
+        return targets;
+    }
+
+    /**
+     * Merge the recipients of domains which are served by the same MX hosts,
+     * so they are delivered in one transaction over one connection. The
+     * groups are split to not exceed the maxRecipientsPerTransaction.
+     * Domains which can not be resolved now keep their own group, so the
+     * failure is handled on delivery as usual.
+     * 
+     * @param targets
+     *            the recipients by domain
+     * @param dnsServer
+     *            the DNSService to lookup the MX hosts with
+     * @param maxRecipientsPerTransaction
+     *            the maximum count of recipients of a group, 0 for no limit
+     * @return the recipients by group name
+     */
+    public static Hashtable<String, Collection<MailAddress>> groupByMX(Hashtable<String, Collection<MailAddress>> targets, DNSService dnsServer, int maxRecipientsPerTransaction) {
+        // the MX hosts are sorted by name as the order of hosts with the same
+        // priority may differ on every lookup
+        Map<Collection<String>, Collection<MailAddress>> recipientsByMX = new LinkedHashMap<Collection<String>, Collection<MailAddress>>();
+        Hashtable<String, Collection<MailAddress>> groups = new Hashtable<String, Collection<MailAddress>>();
+        for (Map.Entry<String, Collection<MailAddress>> entry : targets.entrySet()) {
+            Collection<String> mxHosts = null;
+            try {
+                mxHosts = dnsServer.findMXRecords(entry.getKey());
+            } catch (TemporaryResolutionException e) {
+                // resolved again on delivery
+            }
+            if (mxHosts == null || mxHosts.isEmpty()) {
+                groups.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            TreeSet<String> key = new TreeSet<String>();
+            for (String mxHost : mxHosts) {
+                key.add(mxHost.toLowerCase(Locale.US));
+            }
+            Collection<MailAddress> recipients = recipientsByMX.get(key);
+            if (recipients == null) {
+                recipients = new ArrayList<MailAddress>();
+                recipientsByMX.put(key, recipients);
+            }
+            recipients.addAll(entry.getValue());
+        }
+
+        int groupCount = 0;
+        for (Map.Entry<Collection<String>, Collection<MailAddress>> entry : recipientsByMX.entrySet()) {
+            String mxHost = entry.getKey().iterator().next();
+            List<MailAddress> recipients = new ArrayList<MailAddress>(entry.getValue());
+            int limit = maxRecipientsPerTransaction > 0 ? maxRecipientsPerTransaction : recipients.size();
+            for (int i = 0; i < recipients.size(); i += limit) {
+                Collection<MailAddress> group = new ArrayList<MailAddress>(recipients.subList(i, Math.min(i + limit, recipients.size())));
+                // the group number keeps the names unique
+                groups.put(mxHost + "-" + (++groupCount), group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Check whether the recipients of a group which was built by
+     * {@link #groupByMX(Hashtable, DNSService, int)} are still served by the
+     * same MX hosts. The group is delivered to the MX hosts of the domain of
+     * its first recipient, but the MX records of the domains may have changed
+     * since the group was built. Domains which can not be resolved now are
+     * split off, so their failure does not affect the others.
+     * 
+     * @param recipients
+     *            the recipients of the group
+     * @param dnsServer
+     *            the DNSService to lookup the MX hosts with
+     * @return the recipients by group name if the group needs to be split,
+     *         <code>null</code> if its recipients still belong together
+     */
+    public static Hashtable<String, Collection<MailAddress>> splitByMX(Collection<MailAddress> recipients, DNSService dnsServer) {
+        Hashtable<String, Collection<MailAddress>> targets = groupByDomain(recipients);
+        if (targets.size() < 2) {
+            return null;
+        }
+        Hashtable<String, Collection<MailAddress>> groups = groupByMX(targets, dnsServer, 0);
+        if (groups.size() < 2) {
+            return null;
+        }
+        return groups;
+    }
+}
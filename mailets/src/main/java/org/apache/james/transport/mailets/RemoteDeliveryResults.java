@@ -0,0 +1,131 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.james.transport.smtp.SMTPDeliveryResult;
+import org.apache.james.transport.smtp.SMTPReply;
+import org.apache.james.transport.smtp.SMTPDeliveryResult.Status;
+
+/**
+ * Maps the results of the non-blocking SMTP client to what
+ * {@link RemoteDelivery} does with the mail, like the exceptions of the
+ * javamail engine are handled.
+ */
+public class RemoteDeliveryResults {
+
+    /**
+     * What is done with a mail after a delivery attempt
+     */
+    public enum Action {
+        /** All recipients accepted the mail */
+        DELIVERED,
+        /**
+         * Some recipients were rejected permanently or the mail was sent to a
+         * part of the recipients, handled like a {@link SendFailedException}
+         */
+        RECIPIENTS_FAILED,
+        /** The mail was rejected permanently and is bounced */
+        FAILED,
+        /** The next server is tried, the mail is retried if none is left */
+        NEXT_SERVER
+    }
+
+    private RemoteDeliveryResults() {
+    }
+
+    /**
+     * Return what is done with the mail after the given result
+     * 
+     * @param result
+     * @return action
+     */
+    public static Action getAction(SMTPDeliveryResult result) {
+        switch (result.getStatus()) {
+        case SENT:
+            return result.getRejected().isEmpty() ? Action.DELIVERED : Action.RECIPIENTS_FAILED;
+        case RECIPIENTS_REJECTED:
+            for (Iterator<SMTPReply> i = result.getRejected().values().iterator(); i.hasNext();) {
+                if (i.next().isPermanent()) {
+                    return Action.RECIPIENTS_FAILED;
+                }
+            }
+            // only temporary failures
+            return Action.NEXT_SERVER;
+        case FAILED:
+            SMTPReply reply = result.getReply();
+            return reply != null && reply.isPermanent() ? Action.FAILED : Action.NEXT_SERVER;
+        default:
+            return Action.NEXT_SERVER;
+        }
+    }
+
+    /**
+     * Return the exception which describes the failure of the given result.
+     * If recipients were rejected before the content was sent this is a {@link SendFailedException} with the
+     * permanently rejected recipients as invalid addresses, the temporarily
+     * rejected ones as valid unsent addresses. The accepted ones are valid
+     * sent addresses if the content was sent, otherwise they are valid
+     * unsent addresses too, like javamail reports them.
+     * 
+     * @param result
+     * @return exception
+     * @throws AddressException
+     *             if a recipient is not a valid address
+     */
+    public static MessagingException toException(SMTPDeliveryResult result) throws AddressException {
+        if (result.getStatus() == Status.SENT || result.getStatus() == Status.RECIPIENTS_REJECTED) {
+            return toSendFailedException(result);
+        }
+        Throwable cause = result.getCause();
+        if (cause == null || cause instanceof Exception) {
+            return new MessagingException(result.getMessage(), (Exception) cause);
+        }
+        return new MessagingException(result.getMessage(), new Exception(cause));
+    }
+
+    private static SendFailedException toSendFailedException(SMTPDeliveryResult result) throws AddressException {
+        List<Address> invalid = new ArrayList<Address>();
+        List<Address> validUnsent = new ArrayList<Address>();
+        for (Iterator<Map.Entry<String, SMTPReply>> i = result.getRejected().entrySet().iterator(); i.hasNext();) {
+            Map.Entry<String, SMTPReply> entry = i.next();
+            if (entry.getValue().isPermanent()) {
+                invalid.add(new InternetAddress(entry.getKey()));
+            } else {
+                validUnsent.add(new InternetAddress(entry.getKey()));
+            }
+        }
+        List<Address> validSent = new ArrayList<Address>();
+        for (Iterator<String> i = result.getAccepted().iterator(); i.hasNext();) {
+            // the accepted recipients did not get the mail if it was not sent
+            (result.getStatus() == Status.SENT ? validSent : validUnsent).add(new InternetAddress(i.next()));
+        }
+        return new SendFailedException(result.getMessage(), null, validSent.toArray(new Address[validSent.size()]), validUnsent.toArray(new Address[validUnsent.size()]), invalid.toArray(new Address[invalid.size()]));
+    }
+}
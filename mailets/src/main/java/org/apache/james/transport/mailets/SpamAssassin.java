@@ -22,6 +22,7 @@ package org.apache.james.transport.mailets;
 import java.util.Iterator;
 
 import org.apache.james.util.scanner.SpamAssassinInvoker;
+import org.apache.james.util.scanner.SpamdClient;
 import org.apache.mailet.base.GenericMailet;
 import org.apache.mailet.Mail;
 
@@ -50,7 +51,17 @@ import javax.mail.internet.MimeMessage;
  * &lt;mailet notmatch="SenderHostIsLocal" class="SpamAssassin"&gt;
  * &lt;spamdHost&gt;localhost&lt;/spamdHost&gt;
  * &lt;spamdPort&gt;783&lt;/spamdPort&gt;
+ * &lt;maxConnections&gt;10&lt;/maxConnections&gt;
+ * &lt;connectTimeout&gt;10000&lt;/connectTimeout&gt;
+ * &lt;readTimeout&gt;60000&lt;/readTimeout&gt;
+ * &lt;maxMessageSize&gt;0&lt;/maxMessageSize&gt;
+ * &lt;sampleLargeMessages&gt;false&lt;/sampleLargeMessages&gt;
  * </pre>
+ * 
+ * The connection limit and the timeouts apply to all users of the same spamd,
+ * so they are only changed if they are configured. Messages bigger than
+ * maxMessageSize bytes are not scanned by this mailet, or only a sample of them
+ * if sampleLargeMessages is true: their start and their end.
  */
 public class SpamAssassin extends GenericMailet {
 
@@ -58,6 +69,12 @@ public class SpamAssassin extends GenericMailet {
 
     int spamdPort;
 
+    long maxMessageSize;
+
+    boolean sampleLargeMessages;
+
+    SpamdClient client;
+
     /**
      * @see org.apache.mailet.base.GenericMailet#init()
      */
@@ -78,6 +95,29 @@ public class SpamAssassin extends GenericMailet {
                 throw new MessagingException("Please configure a valid port. Not valid: " + spamdPort);
             }
         }
+
+        client = SpamdClient.getInstance(spamdHost, spamdPort);
+        try {
+            if (isConfigured("maxConnections")) {
+                client.setMaxConnections(Integer.parseInt(getInitParameter("maxConnections")));
+            }
+            if (isConfigured("connectTimeout")) {
+                client.setConnectTimeout(Integer.parseInt(getInitParameter("connectTimeout")));
+            }
+            if (isConfigured("readTimeout")) {
+                client.setReadTimeout(Integer.parseInt(getInitParameter("readTimeout")));
+            }
+            maxMessageSize = isConfigured("maxMessageSize") ? Long.parseLong(getInitParameter("maxMessageSize")) : 0;
+            sampleLargeMessages = Boolean.valueOf(getInitParameter("sampleLargeMessages", "false"));
+        } catch (IllegalArgumentException e) {
+            destroy();
+            throw new MessagingException("Please configure valid spamd limits", e);
+        }
+    }
+
+    private boolean isConfigured(String name) {
+        String value = getInitParameter(name);
+        return value != null && !value.equals("");
     }
 
     /**
@@ -88,8 +128,9 @@ public class SpamAssassin extends GenericMailet {
             MimeMessage message = mail.getMessage();
 
             // Invoke spamassian connection and scan the message
-            SpamAssassinInvoker sa = new SpamAssassinInvoker(spamdHost, spamdPort);
-            sa.scanMail(message);
+            SpamAssassinInvoker sa = new SpamAssassinInvoker(client);
+            sa.setMaxMessageSize(maxMessageSize, sampleLargeMessages);
+            sa.scanMail(message, mail.getMessageSize());
 
             Iterator<String> headers = sa.getHeadersAsAttribute().keySet().iterator();
 
@@ -106,6 +147,16 @@ public class SpamAssassin extends GenericMailet {
 
     }
 
+    /**
+     * @see org.apache.mailet.base.GenericMailet#destroy()
+     */
+    public void destroy() {
+        if (client != null) {
+            SpamdClient.releaseInstance(client);
+            client = null;
+        }
+    }
+
     /**
      * @see org.apache.mailet.base.GenericMailet#getMailetInfo()
      */
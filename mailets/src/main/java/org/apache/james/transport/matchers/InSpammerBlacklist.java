@@ -19,14 +19,13 @@
 
 package org.apache.james.transport.matchers;
 
-import java.net.UnknownHostException;
 import java.util.Collection;
-import java.util.StringTokenizer;
 
 import javax.annotation.Resource;
 import javax.mail.MessagingException;
 
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.dnsbl.DNSBLChecker;
 import org.apache.mailet.base.GenericMatcher;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
@@ -50,15 +49,18 @@ import org.apache.mailet.MailAddress;
  *   &lt;processor&gt;spam&lt;/processor&gt;
  * &lt;/mailet&gt;
  * </pre>
+ * 
+ * The verdicts are cached by the matcher, see {@link DNSBLChecker}. The cache
+ * is not exported via JMX, so it goes away with the matcher.
  */
 public class InSpammerBlacklist extends GenericMatcher {
     private String network = null;
 
-    private DNSService dnsServer;
+    private DNSBLChecker checker;
 
     @Resource(name = "dnsservice")
     public void setDNSService(DNSService dnsService) {
-        this.dnsServer = dnsService;
+        this.checker = new DNSBLChecker(dnsService);
     }
 
     public void init() throws MessagingException {
@@ -71,26 +73,10 @@ public class InSpammerBlacklist extends GenericMatcher {
     }
 
     public Collection<MailAddress> match(Mail mail) {
-        String host = mail.getRemoteAddr();
-        try {
-            // Have to reverse the octets first
-            StringBuffer sb = new StringBuffer();
-            StringTokenizer st = new StringTokenizer(host, " .", false);
-
-            while (st.hasMoreTokens()) {
-                sb.insert(0, st.nextToken() + ".");
-            }
-
-            // Add the network prefix for this blacklist
-            sb.append(network);
-
-            // Try to look it up
-            dnsServer.getByName(sb.toString());
-
-            // If we got here, that's bad... it means the host
-            // was found in the blacklist
+        if (checker.check(mail.getRemoteAddr(), network).isListed()) {
+            // That's bad... the host was found in the blacklist
             return mail.getRecipients();
-        } catch (UnknownHostException uhe) {
+        } else {
             // This is good... it's not on the list
             return null;
         }
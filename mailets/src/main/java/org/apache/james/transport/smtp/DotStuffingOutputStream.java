@@ -0,0 +1,88 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write a message in the form the DATA command of SMTP expects it: lines end
+ * with CRLF, lines starting with a dot get another dot and the message is
+ * terminated by a line with a single dot when {@link #finish()} is called.
+ */
+public class DotStuffingOutputStream extends FilterOutputStream {
+
+    private boolean lineStart = true;
+
+    private boolean lastCR = false;
+
+    public DotStuffingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (b == '\r') {
+            out.write('\r');
+            out.write('\n');
+            lastCR = true;
+            lineStart = true;
+        } else if (b == '\n') {
+            if (!lastCR) {
+                out.write('\r');
+                out.write('\n');
+                lineStart = true;
+            }
+            lastCR = false;
+        } else {
+            if (lineStart && b == '.') {
+                out.write('.');
+            }
+            out.write(b);
+            lastCR = false;
+            lineStart = false;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    /**
+     * Terminate the message with a line which contains a single dot
+     * 
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (!lineStart) {
+            out.write('\r');
+            out.write('\n');
+        }
+        out.write('.');
+        out.write('\r');
+        out.write('\n');
+        lineStart = true;
+        lastCR = false;
+        flush();
+    }
+}
@@ -0,0 +1,237 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+/**
+ * Non blocking SMTP client which delivers mails over a few I/O threads, so a
+ * slow server only occupies a connection but no thread.
+ * 
+ * Each call of
+ * {@link #deliver(String, InetSocketAddress, SMTPTransaction, SMTPDeliveryListener)}
+ * opens a new connection and runs a single transaction, see
+ * {@link SMTPClientHandler}. A connection is closed if nothing was read or
+ * written within the timeout.
+ */
+public class SMTPClient {
+
+    /** The name of the {@link SslHandler} in the pipeline */
+    public final static String SSL_HANDLER = "sslHandler";
+
+    private final NioClientSocketChannelFactory channelFactory;
+
+    private final Timer timer;
+
+    private final String heloName;
+
+    private final int connectionTimeout;
+
+    private final long timeout;
+
+    private boolean startTLS;
+
+    private boolean sslEnable;
+
+    private SSLContext sslContext;
+
+    private boolean sendPartial;
+
+    private String authUser;
+
+    private String authPassword;
+
+    private InetSocketAddress bindAddress;
+
+    /**
+     * @param heloName
+     *            The name which is sent with EHLO
+     * @param connectionTimeout
+     *            The connect timeout in milliseconds
+     * @param timeout
+     *            The time in milliseconds after which a connection is closed
+     *            if nothing was read or written
+     * @param ioWorkerCount
+     *            The count of I/O threads
+     */
+    public SMTPClient(String heloName, int connectionTimeout, long timeout, int ioWorkerCount) {
+        this.heloName = heloName;
+        this.connectionTimeout = connectionTimeout;
+        this.timeout = timeout;
+        channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(new NamedThreadFactory("SMTP client boss")), Executors.newCachedThreadPool(new NamedThreadFactory("SMTP client worker")), ioWorkerCount);
+        timer = new HashedWheelTimer(new NamedThreadFactory("SMTP client timer"));
+    }
+
+    /**
+     * Use STARTTLS if the server supports it
+     * 
+     * @param startTLS
+     */
+    public void setStartTLS(boolean startTLS) {
+        this.startTLS = startTLS;
+    }
+
+    /**
+     * Connect with TLS, like SMTPS does
+     * 
+     * @param sslEnable
+     */
+    public void setSSLEnable(boolean sslEnable) {
+        this.sslEnable = sslEnable;
+    }
+
+    /**
+     * Set the context for TLS. The default context of the JVM is used if none
+     * was set.
+     * 
+     * @param sslContext
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Send the message to the accepted recipients if the server rejected some
+     * of the recipients
+     * 
+     * @param sendPartial
+     */
+    public void setSendPartial(boolean sendPartial) {
+        this.sendPartial = sendPartial;
+    }
+
+    /**
+     * Authenticate with AUTH PLAIN or AUTH LOGIN if the server supports it
+     * 
+     * @param authUser
+     * @param authPassword
+     */
+    public void setAuthentication(String authUser, String authPassword) {
+        this.authUser = authUser;
+        this.authPassword = authPassword;
+    }
+
+    /**
+     * Bind the connections to the given local address
+     * 
+     * @param bindAddress
+     */
+    public void setBindAddress(InetSocketAddress bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * Deliver the transaction to a server. The listener is notified when the
+     * delivery finished.
+     * 
+     * @param host
+     *            The name of the server
+     * @param address
+     *            The address of the server
+     * @param transaction
+     *            The mail to deliver
+     * @param listener
+     *            The listener to notify about the result
+     */
+    public void deliver(final String host, final InetSocketAddress address, final SMTPTransaction transaction, final SMTPDeliveryListener listener) {
+        ClientBootstrap bootstrap = new ClientBootstrap(channelFactory);
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("connectTimeoutMillis", connectionTimeout);
+        options.put("tcpNoDelay", true);
+        options.put("keepAlive", true);
+        bootstrap.setOptions(options);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                if (sslEnable) {
+                    SSLEngine engine = getSSLContext().createSSLEngine(host, address.getPort());
+                    engine.setUseClientMode(true);
+                    pipeline.addLast(SSL_HANDLER, new SslHandler(engine));
+                }
+                pipeline.addLast("timeoutHandler", new IdleStateHandler(timer, 0, 0, timeout, TimeUnit.MILLISECONDS));
+                pipeline.addLast("replyDecoder", new SMTPReplyDecoder());
+                pipeline.addLast("clientHandler", new SMTPClientHandler(SMTPClient.this, host, transaction, listener));
+                return pipeline;
+            }
+        });
+        // the handler reports if the connect fails
+        if (bindAddress != null) {
+            bootstrap.connect(address, bindAddress);
+        } else {
+            bootstrap.connect(address);
+        }
+    }
+
+    /**
+     * Close the I/O threads. Deliveries which did not finish yet fail.
+     */
+    public void dispose() {
+        channelFactory.releaseExternalResources();
+        timer.stop();
+    }
+
+    String getHeloName() {
+        return heloName;
+    }
+
+    boolean isStartTLS() {
+        return startTLS;
+    }
+
+    boolean isSendPartial() {
+        return sendPartial;
+    }
+
+    String getAuthUser() {
+        return authUser;
+    }
+
+    String getAuthPassword() {
+        return authPassword;
+    }
+
+    SSLContext getSSLContext() {
+        if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to get the default TLS context", e);
+            }
+        }
+        return sslContext;
+    }
+}
@@ -0,0 +1,420 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.SSLEngine;
+
+import org.apache.james.transport.smtp.SMTPDeliveryResult.Status;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * The state machine of a single session of the {@link SMTPClient}. It sends
+ * EHLO (or HELO if EHLO is not supported), STARTTLS and AUTH if configured
+ * and supported by the server, and then a single mail transaction. MAIL and
+ * RCPT are sent in one write if the server supports PIPELINING. DATA is sent
+ * only after all recipients were answered, so the content is never sent if
+ * recipients were rejected and sending to a part of them is not allowed.
+ * 
+ * The listener is notified exactly once, as soon as the outcome of the
+ * delivery is known. The session is quit afterwards.
+ */
+public class SMTPClientHandler extends SimpleChannelUpstreamHandler {
+
+    private enum State {
+        GREETING, EHLO, HELO, STARTTLS, AUTH, AUTH_LOGIN_USER, AUTH_LOGIN_PASSWORD, MAIL, RCPT, DATA, CONTENT, QUIT
+    }
+
+    private final SMTPClient client;
+
+    private final String host;
+
+    private final SMTPTransaction transaction;
+
+    private final SMTPDeliveryListener listener;
+
+    private State state = State.GREETING;
+
+    private Map<String, String> extensions = Collections.emptyMap();
+
+    private boolean tls;
+
+    private boolean tlsRejected;
+
+    private boolean authenticated;
+
+    private int pendingReplies;
+
+    private int recipientReplies;
+
+    private final List<String> accepted = new ArrayList<String>();
+
+    private final Map<String, SMTPReply> rejected = new LinkedHashMap<String, SMTPReply>();
+
+    private Throwable cause;
+
+    private boolean completed;
+
+    // the pipeline and so the handler is created when the connect starts
+    private final long connectStart = System.currentTimeMillis();
+
+    private long connectTime = -1;
+
+    /**
+     * @param client
+     *            The client which holds the configuration
+     * @param host
+     *            The name of the host, used for results and TLS
+     * @param transaction
+     *            The mail to deliver
+     * @param listener
+     *            The listener to notify about the result
+     */
+    public SMTPClientHandler(SMTPClient client, String host, SMTPTransaction transaction, SMTPDeliveryListener listener) {
+        this.client = client;
+        this.host = host;
+        this.transaction = transaction;
+        this.listener = listener;
+    }
+
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (e instanceof IdleStateEvent) {
+            timeout(ctx.getChannel());
+        } else {
+            super.handleUpstream(ctx, e);
+        }
+    }
+
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            connectTime = System.currentTimeMillis() - connectStart;
+        }
+        SslHandler sslHandler = ctx.getPipeline().get(SslHandler.class);
+        if (sslHandler != null) {
+            // SMTPS, the greeting is sent after the handshake
+            tls = true;
+            handshake(ctx.getChannel(), sslHandler, false);
+        }
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public synchronized void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Channel channel = ctx.getChannel();
+        SMTPReply reply = (SMTPReply) e.getMessage();
+        if (pendingReplies > 0) {
+            pendingReplies--;
+        }
+
+        switch (state) {
+        case GREETING:
+            if (reply.isPositive()) {
+                ehlo(channel);
+            } else {
+                failConnection(channel, reply);
+            }
+            break;
+        case EHLO:
+            if (reply.isPositive()) {
+                extensions = reply.getExtensions();
+                session(channel);
+            } else if (reply.isPermanent()) {
+                // EHLO is not supported
+                state = State.HELO;
+                send(channel, "HELO " + client.getHeloName());
+            } else {
+                failConnection(channel, reply);
+            }
+            break;
+        case HELO:
+            if (reply.isPositive()) {
+                extensions = Collections.emptyMap();
+                session(channel);
+            } else {
+                failConnection(channel, reply);
+            }
+            break;
+        case STARTTLS:
+            if (reply.isPositive()) {
+                // anything the server sent after the reply was not protected
+                ctx.getPipeline().get(SMTPReplyDecoder.class).discardBufferedInput();
+                SslHandler sslHandler = new SslHandler(createSSLEngine(channel));
+                ctx.getPipeline().addFirst(SMTPClient.SSL_HANDLER, sslHandler);
+                tls = true;
+                handshake(channel, sslHandler, true);
+            } else {
+                // continue without TLS, like other clients which use it when
+                // it is offered
+                tlsRejected = true;
+                session(channel);
+            }
+            break;
+        case AUTH:
+            if (reply.getCode() == 235) {
+                authenticated = true;
+                session(channel);
+            } else {
+                failConnection(channel, reply);
+            }
+            break;
+        case AUTH_LOGIN_USER:
+            if (reply.getCode() == 334) {
+                state = State.AUTH_LOGIN_PASSWORD;
+                send(channel, base64(client.getAuthUser()));
+            } else {
+                failConnection(channel, reply);
+            }
+            break;
+        case AUTH_LOGIN_PASSWORD:
+            if (reply.getCode() == 334) {
+                state = State.AUTH;
+                send(channel, base64(client.getAuthPassword()));
+            } else {
+                failConnection(channel, reply);
+            }
+            break;
+        case MAIL:
+            if (reply.isPositive()) {
+                state = State.RCPT;
+                if (!isPipelining()) {
+                    send(channel, "RCPT TO:<" + transaction.getRecipients().get(0) + ">");
+                }
+            } else {
+                fail(channel, Status.FAILED, reply);
+            }
+            break;
+        case RCPT:
+            String recipient = transaction.getRecipients().get(recipientReplies++);
+            if (reply.isPositive()) {
+                accepted.add(recipient);
+            } else {
+                rejected.put(recipient, reply);
+            }
+            if (recipientReplies < transaction.getRecipients().size()) {
+                if (!isPipelining()) {
+                    send(channel, "RCPT TO:<" + transaction.getRecipients().get(recipientReplies) + ">");
+                }
+            } else if (accepted.isEmpty() || (!rejected.isEmpty() && !client.isSendPartial())) {
+                fail(channel, Status.RECIPIENTS_REJECTED, null);
+            } else {
+                state = State.DATA;
+                send(channel, "DATA");
+            }
+            break;
+        case DATA:
+            if (reply.getCode() == 354) {
+                state = State.CONTENT;
+                pendingReplies++;
+                channel.write(transaction.getContent(extensions.containsKey("8BITMIME")));
+            } else {
+                fail(channel, Status.FAILED, reply);
+            }
+            break;
+        case CONTENT:
+            if (reply.isPositive()) {
+                complete(Status.SENT, null);
+                quit(channel);
+            } else {
+                fail(channel, Status.FAILED, reply);
+            }
+            break;
+        case QUIT:
+            if (pendingReplies == 0) {
+                channel.close();
+            }
+            break;
+        }
+    }
+
+    @Override
+    public synchronized void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+        if (cause == null) {
+            cause = e.getCause();
+        }
+        ctx.getChannel().close();
+    }
+
+    @Override
+    public synchronized void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (!completed) {
+            Throwable failure = cause == null ? new ClosedChannelException() : cause;
+            Status status = state.compareTo(State.MAIL) < 0 ? Status.CONNECTION_FAILED : Status.FAILED;
+            completed = true;
+            listener.onResult(new SMTPDeliveryResult(host, status, null, failure, accepted, rejected, connectTime));
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    private synchronized void timeout(Channel channel) {
+        if (cause == null) {
+            cause = new SocketTimeoutException("Read timed out");
+        }
+        channel.close();
+    }
+
+    /**
+     * Continue the session after EHLO or an extension was negotiated
+     */
+    private void session(Channel channel) {
+        if (client.isStartTLS() && !tls && !tlsRejected && extensions.containsKey("STARTTLS")) {
+            state = State.STARTTLS;
+            send(channel, "STARTTLS");
+        } else if (client.getAuthUser() != null && !authenticated && extensions.containsKey("AUTH")) {
+            authenticate(channel);
+        } else {
+            mail(channel);
+        }
+    }
+
+    private void ehlo(Channel channel) {
+        state = State.EHLO;
+        send(channel, "EHLO " + client.getHeloName());
+    }
+
+    private void authenticate(Channel channel) {
+        String mechanisms = " " + extensions.get("AUTH").toUpperCase(Locale.US) + " ";
+        if (mechanisms.contains(" PLAIN ")) {
+            state = State.AUTH;
+            send(channel, "AUTH PLAIN " + base64("\0" + client.getAuthUser() + "\0" + client.getAuthPassword()));
+        } else if (mechanisms.contains(" LOGIN ")) {
+            state = State.AUTH_LOGIN_USER;
+            send(channel, "AUTH LOGIN");
+        } else {
+            // no supported mechanism, try to deliver without
+            authenticated = true;
+            session(channel);
+        }
+    }
+
+    private void mail(Channel channel) {
+        StringBuilder mail = new StringBuilder("MAIL FROM:<");
+        if (transaction.getSender() != null) {
+            mail.append(transaction.getSender());
+        }
+        mail.append('>');
+        boolean eightBitMime = extensions.containsKey("8BITMIME");
+        if (transaction.isEightBit() && eightBitMime) {
+            mail.append(" BODY=8BITMIME");
+        }
+        if (extensions.containsKey("SIZE")) {
+            mail.append(" SIZE=").append(transaction.getContent(eightBitMime).readableBytes());
+        }
+        state = State.MAIL;
+        if (isPipelining()) {
+            mail.append("\r\n");
+            for (String recipient : transaction.getRecipients()) {
+                mail.append("RCPT TO:<").append(recipient).append(">\r\n");
+            }
+            pendingReplies += 1 + transaction.getRecipients().size();
+            channel.write(ChannelBuffers.copiedBuffer(mail, CharsetUtil.US_ASCII));
+        } else {
+            send(channel, mail.toString());
+        }
+    }
+
+    private boolean isPipelining() {
+        return extensions.containsKey("PIPELINING");
+    }
+
+    private void send(Channel channel, String command) {
+        pendingReplies++;
+        channel.write(ChannelBuffers.copiedBuffer(command + "\r\n", CharsetUtil.US_ASCII));
+    }
+
+    private void handshake(final Channel channel, SslHandler sslHandler, final boolean startTLS) {
+        sslHandler.handshake().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    synchronized (SMTPClientHandler.this) {
+                        if (cause == null) {
+                            cause = future.getCause();
+                        }
+                    }
+                    channel.close();
+                } else if (startTLS) {
+                    synchronized (SMTPClientHandler.this) {
+                        // the extensions may differ after STARTTLS
+                        ehlo(channel);
+                    }
+                }
+            }
+        });
+    }
+
+    private SSLEngine createSSLEngine(Channel channel) {
+        SSLEngine engine = client.getSSLContext().createSSLEngine(host, ((InetSocketAddress) channel.getRemoteAddress()).getPort());
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    private String base64(String value) {
+        ChannelBuffer encoded = Base64.encode(ChannelBuffers.copiedBuffer(value, CharsetUtil.UTF_8), false);
+        return encoded.toString(CharsetUtil.US_ASCII);
+    }
+
+    private void failConnection(Channel channel, SMTPReply reply) {
+        fail(channel, Status.CONNECTION_FAILED, reply);
+    }
+
+    private void fail(Channel channel, Status status, SMTPReply reply) {
+        complete(status, reply);
+        quit(channel);
+    }
+
+    private void complete(Status status, SMTPReply reply) {
+        if (!completed) {
+            completed = true;
+            listener.onResult(new SMTPDeliveryResult(host, status, reply, null, accepted, rejected, connectTime));
+        }
+    }
+
+    /**
+     * Send QUIT and close the connection when all outstanding replies, like
+     * those to pipelined RCPTs, and the reply to QUIT were received
+     */
+    private void quit(Channel channel) {
+        state = State.QUIT;
+        send(channel, "QUIT");
+    }
+}
@@ -0,0 +1,158 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a delivery by the {@link SMTPClient}
+ */
+public class SMTPDeliveryResult {
+
+    public enum Status {
+        /** The server accepted the message for the accepted recipients */
+        SENT,
+
+        /**
+         * The message was not sent because the server rejected recipients
+         * and sending to a part of the recipients is not allowed, or because
+         * it rejected all recipients
+         */
+        RECIPIENTS_REJECTED,
+
+        /**
+         * The transaction failed with the reply or, if there is none, the
+         * cause
+         */
+        FAILED,
+
+        /**
+         * No transaction was started because the connection could not be
+         * established, the server rejected the session or the connection
+         * failed before
+         */
+        CONNECTION_FAILED
+    }
+
+    private final String host;
+
+    private final Status status;
+
+    private final SMTPReply reply;
+
+    private final Throwable cause;
+
+    private final List<String> accepted;
+
+    private final Map<String, SMTPReply> rejected;
+
+    private final long connectTime;
+
+    public SMTPDeliveryResult(String host, Status status, SMTPReply reply, Throwable cause, List<String> accepted, Map<String, SMTPReply> rejected, long connectTime) {
+        this.host = host;
+        this.status = status;
+        this.reply = reply;
+        this.cause = cause;
+        this.accepted = Collections.unmodifiableList(accepted);
+        this.rejected = Collections.unmodifiableMap(rejected);
+        this.connectTime = connectTime;
+    }
+
+    /**
+     * Return the name of the host the delivery was made to
+     * 
+     * @return host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Return the status
+     * 
+     * @return status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Return the reply which failed the delivery or null if it did not fail
+     * because of a reply
+     * 
+     * @return reply
+     */
+    public SMTPReply getReply() {
+        return reply;
+    }
+
+    /**
+     * Return the exception which failed the delivery or null if it did not
+     * fail because of an exception
+     * 
+     * @return cause
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * Return the recipients the server accepted
+     * 
+     * @return accepted
+     */
+    public List<String> getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Return the recipients the server rejected together with its reply
+     * 
+     * @return rejected
+     */
+    public Map<String, SMTPReply> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Return the time in milliseconds the connect took or -1 if the
+     * connection could not be established
+     * 
+     * @return connectTime
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Return a description of the failure for logs and bounces
+     * 
+     * @return message
+     */
+    public String getMessage() {
+        if (reply != null) {
+            return reply.toString();
+        } else if (cause != null) {
+            return cause.getMessage() == null ? cause.toString() : cause.getMessage();
+        }
+        return status.toString();
+    }
+}
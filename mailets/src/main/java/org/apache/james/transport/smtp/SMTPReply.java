@@ -0,0 +1,123 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A reply of a SMTP server, which may consist of several lines
+ */
+public class SMTPReply {
+
+    private final int code;
+
+    private final List<String> lines;
+
+    /**
+     * @param code
+     *            The three digit reply code
+     * @param lines
+     *            The text of the lines without the reply code
+     */
+    public SMTPReply(int code, List<String> lines) {
+        this.code = code;
+        this.lines = Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * Return the three digit reply code
+     * 
+     * @return code
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Return the text of the lines without the reply code
+     * 
+     * @return lines
+     */
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * Return true if the command was accepted (2xx) or more input is expected
+     * (3xx)
+     * 
+     * @return positive
+     */
+    public boolean isPositive() {
+        return code < 400;
+    }
+
+    /**
+     * Return true if the command failed permanently (5xx)
+     * 
+     * @return permanent
+     */
+    public boolean isPermanent() {
+        return code >= 500;
+    }
+
+    /**
+     * Return the extensions of a reply to EHLO, keyed by the upper case
+     * keyword and with the parameters as value. The first line, which
+     * contains the greeting, is skipped.
+     * 
+     * @return extensions
+     */
+    public Map<String, String> getExtensions() {
+        Map<String, String> extensions = new HashMap<String, String>();
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                extensions.put(line.toUpperCase(Locale.US), "");
+            } else {
+                extensions.put(line.substring(0, space).toUpperCase(Locale.US), line.substring(space + 1).trim());
+            }
+        }
+        return extensions;
+    }
+
+    /**
+     * Return the reply like it was sent by the server, but with the lines
+     * separated by a single newline
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(code);
+            String line = lines.get(i);
+            if (line.length() > 0) {
+                sb.append(i == lines.size() - 1 ? ' ' : '-').append(line);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Decode the replies of a SMTP server into {@link SMTPReply}s. The lines of
+ * a multiline reply are collected until its last line was received.
+ * 
+ * Instances are bound to a single channel.
+ */
+public class SMTPReplyDecoder extends FrameDecoder {
+
+    /** The maximum length of a reply line, RFC 5321 allows 512 */
+    public final static int MAX_LINE_LENGTH = 4096;
+
+    /** The maximum count of lines of a multiline reply */
+    public final static int MAX_LINES = 1000;
+
+    private int code = -1;
+
+    private List<String> lines = new ArrayList<String>();
+
+    private boolean discardBufferedInput;
+
+    /**
+     * Discard the input which was received but not decoded yet. This must be
+     * called while the last reply before TLS is handled, so plaintext which
+     * was sent after the reply to STARTTLS is not taken as a reply of the
+     * TLS session.
+     */
+    public void discardBufferedInput() {
+        discardBufferedInput = true;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        // the buffered input was discarded when decoding continued after the
+        // last reply, so this is new input
+        discardBufferedInput = false;
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (discardBufferedInput) {
+            buffer.skipBytes(buffer.readableBytes());
+            code = -1;
+            lines = new ArrayList<String>();
+            return null;
+        }
+        while (true) {
+            int start = buffer.readerIndex();
+            int end = buffer.indexOf(start, buffer.writerIndex(), (byte) '\n');
+            if (end < 0) {
+                if (buffer.readableBytes() > MAX_LINE_LENGTH) {
+                    throw new TooLongFrameException("Reply line exceeds " + MAX_LINE_LENGTH + " bytes");
+                }
+                return null;
+            }
+            int length = end - start;
+            if (length > 0 && buffer.getByte(end - 1) == '\r') {
+                length--;
+            }
+            String line = buffer.toString(start, length, CharsetUtil.US_ASCII);
+            buffer.readerIndex(end + 1);
+
+            if (line.length() < 3 || (line.length() > 3 && line.charAt(3) != ' ' && line.charAt(3) != '-')) {
+                throw new CorruptedFrameException("Invalid reply line: " + line);
+            }
+            int lineCode;
+            try {
+                lineCode = Integer.parseInt(line.substring(0, 3));
+            } catch (NumberFormatException e) {
+                throw new CorruptedFrameException("Invalid reply code: " + line);
+            }
+            if (code != -1 && code != lineCode) {
+                throw new CorruptedFrameException("Reply code changed in multiline reply: " + line);
+            }
+            if (lines.size() >= MAX_LINES) {
+                throw new TooLongFrameException("Reply exceeds " + MAX_LINES + " lines");
+            }
+            code = lineCode;
+            lines.add(line.length() > 4 ? line.substring(4) : "");
+
+            if (line.length() == 3 || line.charAt(3) == ' ') {
+                SMTPReply reply = new SMTPReply(code, lines);
+                code = -1;
+                lines = new ArrayList<String>();
+                return reply;
+            }
+        }
+    }
+}
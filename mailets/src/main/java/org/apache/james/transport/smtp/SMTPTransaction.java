@@ -0,0 +1,123 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * The envelope and the content of a mail which is delivered by the
+ * {@link SMTPClient}. The content is encoded before the delivery starts, so
+ * the I/O threads of the client never need to access the message and the same
+ * content can be sent to several servers.
+ */
+public class SMTPTransaction {
+
+    private final String sender;
+
+    private final List<String> recipients;
+
+    private final ChannelBuffer content;
+
+    private final ChannelBuffer sevenBitContent;
+
+    /**
+     * @param sender
+     *            The address of the sender or null for the null reverse path
+     * @param recipients
+     *            The addresses of the recipients
+     * @param content
+     *            The content as returned by {@link #encode(MimeMessage)}
+     * @param sevenBitContent
+     *            The content with all 8bit parts converted to 7bit, which is
+     *            sent to servers which do not support 8BITMIME, or null if the
+     *            content does not contain 8bit parts
+     */
+    public SMTPTransaction(String sender, List<String> recipients, ChannelBuffer content, ChannelBuffer sevenBitContent) {
+        this.sender = sender;
+        this.recipients = Collections.unmodifiableList(recipients);
+        this.content = content;
+        this.sevenBitContent = sevenBitContent;
+    }
+
+    /**
+     * Return the address of the sender or null for the null reverse path
+     * 
+     * @return sender
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Return the addresses of the recipients
+     * 
+     * @return recipients
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Return true if the content contains 8bit parts
+     * 
+     * @return eightBit
+     */
+    public boolean isEightBit() {
+        return sevenBitContent != null;
+    }
+
+    /**
+     * Return the content to send, ready to be written after DATA was accepted
+     * 
+     * @param eightBitMime
+     *            True if the server supports 8BITMIME
+     * @return content
+     */
+    public ChannelBuffer getContent(boolean eightBitMime) {
+        ChannelBuffer buffer = eightBitMime || sevenBitContent == null ? content : sevenBitContent;
+        // every delivery attempt reads its own copy of the indexes
+        return buffer.duplicate();
+    }
+
+    /**
+     * Encode the message for the DATA command
+     * 
+     * @param message
+     * @return content
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public static ChannelBuffer encode(MimeMessage message) throws IOException, MessagingException {
+        int size = message.getSize();
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(size > 0 ? size + size / 16 + 1024 : 8192);
+        DotStuffingOutputStream out = new DotStuffingOutputStream(new ChannelBufferOutputStream(buffer));
+        message.writeTo(out);
+        out.finish();
+        return buffer;
+    }
+}
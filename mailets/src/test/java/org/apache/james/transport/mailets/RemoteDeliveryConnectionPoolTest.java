@@ -0,0 +1,207 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import junit.framework.TestCase;
+
+public class RemoteDeliveryConnectionPoolTest extends TestCase {
+
+    private final static String HOST = "mx.example.org/192.0.2.1";
+
+    private RemoteDeliveryConnectionPool pool;
+
+    private Session session;
+
+    /**
+     * Transport which only records the commands
+     */
+    public static class FakeTransport extends Transport {
+        private boolean connected = true;
+        private boolean acceptReset = true;
+        private int resets;
+        private String sender;
+
+        public FakeTransport(Session session) {
+            super(session, new URLName("smtp://192.0.2.1"));
+        }
+
+        public void issueCommand(String command, int expect) throws MessagingException {
+            if (!acceptReset) {
+                throw new MessagingException("421 closing connection");
+            }
+            resets++;
+        }
+
+        @Override
+        public void sendMessage(Message msg, Address[] addresses) throws MessagingException {
+            // like SMTPTransport the sender is read from the session
+            sender = session.getProperty("mail.smtp.from");
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void close() throws MessagingException {
+            connected = false;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        session = Session.getInstance(new Properties());
+        pool = new RemoteDeliveryConnectionPool(2, 3, 1000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.dispose();
+    }
+
+    public void testReuseAfterReset() throws Exception {
+        assertNull(pool.borrow(HOST, session));
+        FakeTransport transport = new FakeTransport(session);
+        RemoteDeliveryConnectionPool.Connection connection = pool.connected(HOST, session, transport);
+        assertEquals(1, pool.getActiveConnections(HOST));
+        assertTrue(pool.release(connection, true));
+        assertEquals(0, pool.getActiveConnections(HOST));
+        assertEquals(1, pool.getIdleConnections(HOST));
+
+        connection = pool.borrow(HOST, session);
+        assertSame(transport, connection.getTransport());
+        assertEquals(1, transport.resets);
+        assertEquals(0, pool.getIdleConnections(HOST));
+        assertEquals(1, pool.getConnects());
+        assertEquals(1, pool.getReuses());
+        assertEquals(0.5, pool.getReuseRatio(HOST), 0.001);
+        assertNull(pool.borrow("other/192.0.2.2", session));
+    }
+
+    public void testFailedResetClosesConnection() throws Exception {
+        FakeTransport transport = new FakeTransport(session);
+        assertTrue(pool.release(pool.connected(HOST, session, transport), true));
+        transport.acceptReset = false;
+
+        assertNull(pool.borrow(HOST, session));
+        assertFalse(transport.isConnected());
+        assertEquals(1, pool.getEvictions());
+        assertEquals(0, pool.getActiveConnections());
+    }
+
+    public void testNotReusable() throws Exception {
+        assertFalse(pool.release(pool.connected(HOST, session, new FakeTransport(session)), false));
+        assertEquals(0, pool.getIdleConnections(HOST));
+    }
+
+    public void testMaxMessagesPerConnection() throws Exception {
+        RemoteDeliveryConnectionPool.Connection connection = pool.connected(HOST, session, new FakeTransport(session));
+        assertTrue(pool.release(connection, true));
+        assertTrue(pool.release(pool.borrow(HOST, session), true));
+        assertFalse(pool.release(pool.borrow(HOST, session), true));
+        assertEquals(0, pool.getIdleConnections(HOST));
+    }
+
+    public void testMaxIdleConnectionsPerHost() throws Exception {
+        RemoteDeliveryConnectionPool.Connection first = pool.connected(HOST, session, new FakeTransport(session));
+        RemoteDeliveryConnectionPool.Connection second = pool.connected(HOST, session, new FakeTransport(session));
+        RemoteDeliveryConnectionPool.Connection third = pool.connected(HOST, session, new FakeTransport(session));
+        assertTrue(pool.release(first, true));
+        assertTrue(pool.release(second, true));
+        assertFalse(pool.release(third, true));
+        assertEquals(2, pool.getIdleConnections(HOST));
+        assertEquals(1, pool.getHosts().length);
+    }
+
+    public void testConnectionsAreNotSharedBetweenSessions() throws Exception {
+        Session other = Session.getInstance(new Properties());
+        FakeTransport transport = new FakeTransport(session);
+        assertTrue(pool.release(pool.connected(HOST, session, transport), true));
+
+        assertNull(pool.borrow(HOST, other));
+        assertEquals(1, pool.getIdleConnections(HOST));
+        assertSame(transport, pool.borrow(HOST, session).getTransport());
+    }
+
+    public void testConcurrentSendersKeepTheirEnvelopeFrom() throws Exception {
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final String sender = "sender" + i + "@example.org";
+            threads[i] = new Thread() {
+                public void run() {
+                    // every delivery thread has its own session, like
+                    // RemoteDelivery.run()
+                    Session threadSession = Session.getInstance(new Properties());
+                    threadSession.getProperties().put("mail.smtp.from", sender);
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            RemoteDeliveryConnectionPool.Connection connection = pool.borrow(HOST, threadSession);
+                            if (connection == null) {
+                                connection = pool.connected(HOST, threadSession, new FakeTransport(threadSession));
+                            }
+                            FakeTransport transport = (FakeTransport) connection.getTransport();
+                            transport.sendMessage(null, new Address[0]);
+                            if (!sender.equals(transport.sender)) {
+                                errors.add("MAIL FROM " + transport.sender + " instead of " + sender);
+                            }
+                            pool.release(connection, true);
+                        }
+                    } catch (MessagingException e) {
+                        errors.add(e.getMessage());
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(Collections.EMPTY_LIST, errors);
+        assertTrue(pool.getReuses() > 0);
+    }
+
+    public void testIdleTimeout() throws Exception {
+        FakeTransport transport = new FakeTransport(session);
+        assertTrue(pool.release(pool.connected(HOST, session, transport), true));
+
+        pool.evictIdleConnections(System.currentTimeMillis());
+        assertEquals(1, pool.getIdleConnections(HOST));
+
+        pool.evictIdleConnections(System.currentTimeMillis() + 2000);
+        assertEquals(0, pool.getIdleConnections(HOST));
+        assertFalse(transport.isConnected());
+        assertEquals(1, pool.getEvictions());
+    }
+}
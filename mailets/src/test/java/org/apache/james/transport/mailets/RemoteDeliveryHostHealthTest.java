@@ -0,0 +1,122 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import junit.framework.TestCase;
+
+public class RemoteDeliveryHostHealthTest extends TestCase {
+
+    private final static String HOST = "192.0.2.1:25";
+
+    private final static long COOL_DOWN = 60000;
+
+    private RemoteDeliveryHostHealth health;
+
+    @Override
+    protected void setUp() throws Exception {
+        health = new RemoteDeliveryHostHealth(3, COOL_DOWN);
+    }
+
+    public void testUnknownHostIsAvailable() {
+        assertTrue(health.isAvailable(HOST, 0));
+        assertEquals("CLOSED", health.getState(HOST));
+    }
+
+    public void testHostIsSkippedAfterConsecutiveFailures() {
+        health.failed(HOST, 0);
+        health.failed(HOST, 0);
+        assertTrue(health.isAvailable(HOST, 0));
+
+        health.failed(HOST, 0);
+        assertEquals("OPEN", health.getState(HOST));
+        assertFalse(health.isAvailable(HOST, 1));
+        assertEquals(1, health.getSkippedAttempts());
+        assertEquals(1, health.getOpenHosts());
+    }
+
+    public void testConnectResetsFailures() {
+        health.failed(HOST, 0);
+        health.failed(HOST, 0);
+        health.connected(HOST, 100);
+        health.failed(HOST, 0);
+        assertTrue(health.isAvailable(HOST, 0));
+        assertEquals(1, health.getConsecutiveFailures(HOST));
+        assertEquals(3, health.getFailures(HOST));
+    }
+
+    public void testOneDeliveryProbesAfterCoolDown() {
+        open();
+        assertTrue(health.isAvailable(HOST, COOL_DOWN));
+        assertEquals("HALF_OPEN", health.getState(HOST));
+        // the others skip the host while it is probed
+        assertFalse(health.isAvailable(HOST, COOL_DOWN));
+
+        health.connected(HOST, 100);
+        assertEquals("CLOSED", health.getState(HOST));
+        assertTrue(health.isAvailable(HOST, COOL_DOWN));
+    }
+
+    public void testFailedProbeOpensAgain() {
+        open();
+        assertTrue(health.isAvailable(HOST, COOL_DOWN));
+        health.failed(HOST, COOL_DOWN);
+        assertEquals("OPEN", health.getState(HOST));
+        assertFalse(health.isAvailable(HOST, COOL_DOWN * 2 - 1));
+        assertTrue(health.isAvailable(HOST, COOL_DOWN * 2));
+    }
+
+    public void testLostProbeIsRepeated() {
+        open();
+        assertTrue(health.isAvailable(HOST, COOL_DOWN));
+        assertFalse(health.isAvailable(HOST, COOL_DOWN * 2 - 1));
+        assertTrue(health.isAvailable(HOST, COOL_DOWN * 2));
+    }
+
+    public void testAverageConnectTime() {
+        health.connected(HOST, 100);
+        health.connected(HOST, 300);
+        health.connected(HOST, -1);
+        assertEquals(200, health.getAverageConnectTime(HOST));
+    }
+
+    public void testLeastRecentlyUsedHostIsDropped() {
+        open();
+        for (int i = 0; i < RemoteDeliveryHostHealth.MAX_HOSTS; i++) {
+            // the open host is checked on each delivery
+            health.isAvailable(HOST, 1);
+            health.connected("192.0.2.2:" + i, 100);
+        }
+        assertEquals(RemoteDeliveryHostHealth.MAX_HOSTS, health.getHosts().length);
+        assertEquals("OPEN", health.getState(HOST));
+        assertEquals(0, health.getAverageConnectTime("192.0.2.2:0"));
+    }
+
+    public void testReset() {
+        open();
+        health.reset(HOST);
+        assertTrue(health.isAvailable(HOST, 0));
+        assertEquals(0, health.getHosts().length);
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            health.failed(HOST, 0);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.mailet.MailAddress;
+
+public class RemoteDeliveryRecipientGroupsTest extends TestCase {
+
+    /**
+     * Serves example.org and example.net by the same MX hosts, which are
+     * returned in a different order
+     */
+    private final MockDNSService dns = new MockDNSService() {
+        public Collection<String> findMXRecords(String hostname) {
+            if (hostname.equals("example.org")) {
+                return Arrays.asList(new String[] { "mx1.example.com", "mx2.example.com" });
+            } else if (hostname.equals("example.net")) {
+                return Arrays.asList(new String[] { "MX2.example.com", "mx1.example.com" });
+            } else if (hostname.equals("example.info")) {
+                return Arrays.asList(new String[] { "mx.example.info" });
+            }
+            return Collections.emptyList();
+        }
+    };
+
+    private List<MailAddress> recipients(String... addresses) throws Exception {
+        List<MailAddress> recipients = new ArrayList<MailAddress>();
+        for (String address : addresses) {
+            recipients.add(new MailAddress(address));
+        }
+        return recipients;
+    }
+
+    public void testGroupByDomain() throws Exception {
+        Hashtable<String, Collection<MailAddress>> targets = RemoteDeliveryRecipientGroups.groupByDomain(recipients("a@example.org", "b@EXAMPLE.org", "c@example.net"));
+        assertEquals(2, targets.size());
+        assertEquals(recipients("a@example.org", "b@EXAMPLE.org"), targets.get("example.org"));
+        assertEquals(recipients("c@example.net"), targets.get("example.net"));
+    }
+
+    public void testDomainsWithTheSameMXAreMerged() throws Exception {
+        Hashtable<String, Collection<MailAddress>> targets = RemoteDeliveryRecipientGroups.groupByDomain(recipients("a@example.org", "b@example.net", "c@example.info"));
+        Hashtable<String, Collection<MailAddress>> groups = RemoteDeliveryRecipientGroups.groupByMX(targets, dns, 0);
+        assertEquals(2, groups.size());
+
+        int merged = 0;
+        for (Collection<MailAddress> group : groups.values()) {
+            if (group.size() == 2) {
+                assertTrue(group.containsAll(recipients("a@example.org", "b@example.net")));
+                merged++;
+            } else {
+                assertEquals(recipients("c@example.info"), group);
+            }
+        }
+        assertEquals(1, merged);
+    }
+
+    public void testUnresolvableDomainKeepsItsGroup() throws Exception {
+        Hashtable<String, Collection<MailAddress>> targets = RemoteDeliveryRecipientGroups.groupByDomain(recipients("a@example.org", "b@unknown.example"));
+        Hashtable<String, Collection<MailAddress>> groups = RemoteDeliveryRecipientGroups.groupByMX(targets, dns, 0);
+        assertEquals(2, groups.size());
+        assertEquals(recipients("b@unknown.example"), groups.get("unknown.example"));
+    }
+
+    public void testMaxRecipientsPerTransaction() throws Exception {
+        Hashtable<String, Collection<MailAddress>> targets = RemoteDeliveryRecipientGroups.groupByDomain(recipients("a@example.org", "b@example.org", "c@example.net"));
+        Hashtable<String, Collection<MailAddress>> groups = RemoteDeliveryRecipientGroups.groupByMX(targets, dns, 2);
+        assertEquals(2, groups.size());
+        int count = 0;
+        for (Collection<MailAddress> group : groups.values()) {
+            assertTrue(group.size() <= 2);
+            count += group.size();
+        }
+        assertEquals(3, count);
+    }
+
+    public void testMergedGroupIsSplitByDomain() throws Exception {
+        Hashtable<String, Collection<MailAddress>> targets = RemoteDeliveryRecipientGroups.groupByDomain(recipients("a@example.org", "b@example.net", "c@example.org"));
+        Collection<MailAddress> merged = RemoteDeliveryRecipientGroups.groupByMX(targets, dns, 0).values().iterator().next();
+        assertEquals(3, merged.size());
+
+        Hashtable<String, Collection<MailAddress>> split = RemoteDeliveryRecipientGroups.groupByDomain(merged);
+        assertEquals(2, split.size());
+        assertTrue(split.get("example.org").containsAll(recipients("a@example.org", "c@example.org")));
+        assertEquals(recipients("b@example.net"), split.get("example.net"));
+    }
+
+    public void testGroupWithTheSameMXIsKept() throws Exception {
+        assertNull(RemoteDeliveryRecipientGroups.splitByMX(recipients("a@example.org", "b@example.net", "c@example.org"), dns));
+        assertNull(RemoteDeliveryRecipientGroups.splitByMX(recipients("a@example.info", "b@example.info"), dns));
+    }
+
+    public void testGroupIsSplitWhenTheMXChanged() throws Exception {
+        // example.net moved to other MX hosts after the group was built
+        MockDNSService moved = new MockDNSService() {
+            public Collection<String> findMXRecords(String hostname) {
+                if (hostname.equals("example.net")) {
+                    return Arrays.asList(new String[] { "mx.example.info" });
+                }
+                return dns.findMXRecords(hostname);
+            }
+        };
+
+        Hashtable<String, Collection<MailAddress>> groups = RemoteDeliveryRecipientGroups.splitByMX(recipients("a@example.org", "b@example.net", "c@example.org"), moved);
+        assertEquals(2, groups.size());
+        for (Collection<MailAddress> group : groups.values()) {
+            if (group.size() == 2) {
+                assertTrue(group.containsAll(recipients("a@example.org", "c@example.org")));
+            } else {
+                assertEquals(recipients("b@example.net"), group);
+            }
+        }
+    }
+
+    public void testUnresolvableDomainIsSplitOff() throws Exception {
+        Hashtable<String, Collection<MailAddress>> groups = RemoteDeliveryRecipientGroups.splitByMX(recipients("a@example.org", "b@example.net", "c@unknown.example"), dns);
+        assertEquals(2, groups.size());
+        assertEquals(recipients("c@unknown.example"), groups.get("unknown.example"));
+    }
+}
@@ -0,0 +1,117 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import junit.framework.TestCase;
+
+import org.apache.james.transport.mailets.RemoteDeliveryResults.Action;
+import org.apache.james.transport.smtp.SMTPDeliveryResult;
+import org.apache.james.transport.smtp.SMTPReply;
+import org.apache.james.transport.smtp.SMTPDeliveryResult.Status;
+
+public class RemoteDeliveryResultsTest extends TestCase {
+
+    private final static String ACCEPTED = "accepted@example.org";
+
+    private final static String REJECTED = "rejected@example.org";
+
+    private final static String DEFERRED = "deferred@example.org";
+
+    private SMTPDeliveryResult result(Status status, SMTPReply reply, Throwable cause, List<String> accepted, Map<String, SMTPReply> rejected) {
+        return new SMTPDeliveryResult("mx.example.org", status, reply, cause, accepted, rejected, 10);
+    }
+
+    private SMTPReply reply(int code) {
+        return new SMTPReply(code, Arrays.asList("reply"));
+    }
+
+    public void testSent() throws Exception {
+        SMTPDeliveryResult result = result(Status.SENT, null, null, Arrays.asList(ACCEPTED), new LinkedHashMap<String, SMTPReply>());
+        assertEquals(Action.DELIVERED, RemoteDeliveryResults.getAction(result));
+    }
+
+    public void testSentToPartOfTheRecipients() throws Exception {
+        Map<String, SMTPReply> rejected = new LinkedHashMap<String, SMTPReply>();
+        rejected.put(REJECTED, reply(550));
+        rejected.put(DEFERRED, reply(450));
+        SMTPDeliveryResult result = result(Status.SENT, null, null, Arrays.asList(ACCEPTED), rejected);
+        assertEquals(Action.RECIPIENTS_FAILED, RemoteDeliveryResults.getAction(result));
+
+        SendFailedException sfe = (SendFailedException) RemoteDeliveryResults.toException(result);
+        assertEquals(ACCEPTED, sfe.getValidSentAddresses()[0].toString());
+        assertEquals(DEFERRED, sfe.getValidUnsentAddresses()[0].toString());
+        assertEquals(REJECTED, sfe.getInvalidAddresses()[0].toString());
+    }
+
+    public void testRecipientsRejectedPermanently() throws Exception {
+        Map<String, SMTPReply> rejected = new LinkedHashMap<String, SMTPReply>();
+        rejected.put(REJECTED, reply(550));
+        SMTPDeliveryResult result = result(Status.RECIPIENTS_REJECTED, null, null, Arrays.asList(ACCEPTED), rejected);
+        assertEquals(Action.RECIPIENTS_FAILED, RemoteDeliveryResults.getAction(result));
+
+        SendFailedException sfe = (SendFailedException) RemoteDeliveryResults.toException(result);
+        // the content was not sent, so the accepted recipient is retried
+        assertEquals(0, sfe.getValidSentAddresses().length);
+        assertEquals(ACCEPTED, sfe.getValidUnsentAddresses()[0].toString());
+        assertEquals(REJECTED, sfe.getInvalidAddresses()[0].toString());
+    }
+
+    public void testRecipientsRejectedTemporarilyTryNextServer() throws Exception {
+        Map<String, SMTPReply> rejected = new LinkedHashMap<String, SMTPReply>();
+        rejected.put(DEFERRED, reply(450));
+        SMTPDeliveryResult result = result(Status.RECIPIENTS_REJECTED, null, null, new ArrayList<String>(), rejected);
+        assertEquals(Action.NEXT_SERVER, RemoteDeliveryResults.getAction(result));
+        assertTrue(RemoteDeliveryResults.toException(result) instanceof SendFailedException);
+    }
+
+    public void testPermanentReplyFails() throws Exception {
+        SMTPDeliveryResult result = result(Status.FAILED, reply(554), null, Arrays.asList(ACCEPTED), new LinkedHashMap<String, SMTPReply>());
+        assertEquals(Action.FAILED, RemoteDeliveryResults.getAction(result));
+        assertEquals("554 reply", RemoteDeliveryResults.toException(result).getMessage());
+    }
+
+    public void testTemporaryReplyTryNextServer() throws Exception {
+        SMTPDeliveryResult result = result(Status.FAILED, reply(451), null, Arrays.asList(ACCEPTED), new LinkedHashMap<String, SMTPReply>());
+        assertEquals(Action.NEXT_SERVER, RemoteDeliveryResults.getAction(result));
+    }
+
+    public void testFailureWithoutReplyTryNextServer() throws Exception {
+        Exception cause = new java.net.SocketTimeoutException("Read timed out");
+        SMTPDeliveryResult result = result(Status.FAILED, null, cause, Arrays.asList(ACCEPTED), new LinkedHashMap<String, SMTPReply>());
+        assertEquals(Action.NEXT_SERVER, RemoteDeliveryResults.getAction(result));
+
+        MessagingException e = RemoteDeliveryResults.toException(result);
+        assertEquals("Read timed out", e.getMessage());
+        assertSame(cause, e.getNextException());
+    }
+
+    public void testConnectionFailedTryNextServer() throws Exception {
+        SMTPDeliveryResult result = result(Status.CONNECTION_FAILED, reply(554), null, new ArrayList<String>(), new LinkedHashMap<String, SMTPReply>());
+        assertEquals(Action.NEXT_SERVER, RemoteDeliveryResults.getAction(result));
+    }
+}
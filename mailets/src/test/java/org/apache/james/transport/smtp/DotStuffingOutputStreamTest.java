@@ -0,0 +1,51 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class DotStuffingOutputStreamTest extends TestCase {
+
+    private String stuff(String message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DotStuffingOutputStream stuffing = new DotStuffingOutputStream(out);
+        stuffing.write(message.getBytes("US-ASCII"));
+        stuffing.finish();
+        return new String(out.toByteArray(), "US-ASCII");
+    }
+
+    public void testTerminatesMessage() throws IOException {
+        assertEquals("Subject: test\r\n\r\nbody\r\n.\r\n", stuff("Subject: test\r\n\r\nbody\r\n"));
+    }
+
+    public void testTerminatesLastLine() throws IOException {
+        assertEquals("body\r\n.\r\n", stuff("body"));
+    }
+
+    public void testStuffsDots() throws IOException {
+        assertEquals("..\r\n..line\r\nno.dot\r\n.\r\n", stuff(".\r\n.line\r\nno.dot\r\n"));
+    }
+
+    public void testNormalizesLineEndings() throws IOException {
+        assertEquals("a\r\nb\r\n..c\r\n.\r\n", stuff("a\nb\r.c\n"));
+    }
+}
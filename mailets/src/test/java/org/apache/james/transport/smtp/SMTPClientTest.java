@@ -0,0 +1,286 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.james.transport.smtp.SMTPDeliveryResult.Status;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+public class SMTPClientTest extends TestCase {
+
+    private final static String CONTENT = "Subject: test\r\n\r\nbody\r\n";
+
+    private final static String SENDER = "sender@example.org";
+
+    private final static String ACCEPTED = "accepted@example.org";
+
+    private final static String REJECTED = "rejected@example.org";
+
+    private SMTPClient client;
+
+    private StubServer server;
+
+    private final BlockingQueue<SMTPDeliveryResult> results = new LinkedBlockingQueue<SMTPDeliveryResult>();
+
+    @Override
+    protected void setUp() throws Exception {
+        client = new SMTPClient("client.example.org", 5000, 10000, 1);
+        server = new StubServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        client.dispose();
+    }
+
+    private SMTPDeliveryResult deliver(String... recipients) throws Exception {
+        server.start();
+        SMTPTransaction transaction = new SMTPTransaction(SENDER, Arrays.asList(recipients), ChannelBuffers.copiedBuffer(CONTENT + ".\r\n", CharsetUtil.US_ASCII), null);
+        client.deliver("stub.example.org", server.getAddress(), transaction, new SMTPDeliveryListener() {
+            public void onResult(SMTPDeliveryResult result) {
+                results.add(result);
+            }
+        });
+        SMTPDeliveryResult result = results.poll(10, TimeUnit.SECONDS);
+        assertNotNull("No result", result);
+        // wait for QUIT
+        server.join(10000);
+        assertFalse(server.isAlive());
+        return result;
+    }
+
+    public void testDelivery() throws Exception {
+        SMTPDeliveryResult result = deliver(ACCEPTED);
+        assertEquals(Status.SENT, result.getStatus());
+        assertEquals(Arrays.asList(ACCEPTED), result.getAccepted());
+        assertTrue(result.getRejected().isEmpty());
+        assertTrue(result.getConnectTime() >= 0);
+        assertEquals(Arrays.asList("EHLO client.example.org", "MAIL FROM:<" + SENDER + ">", "RCPT TO:<" + ACCEPTED + ">", "DATA", "QUIT"), server.commands);
+        assertEquals(CONTENT, server.content.toString());
+    }
+
+    public void testPipeliningWithRejectedRecipient() throws Exception {
+        server.ehlo = "250-stub.example.org\r\n250 PIPELINING";
+        // MAIL is only answered after both RCPTs were received
+        server.pipelined = 2;
+        server.replies.put("RCPT TO:<" + REJECTED, "550 5.1.1 unknown user");
+
+        SMTPDeliveryResult result = deliver(ACCEPTED, REJECTED);
+        assertEquals(Status.RECIPIENTS_REJECTED, result.getStatus());
+        assertEquals(Arrays.asList(ACCEPTED), result.getAccepted());
+        assertEquals(550, result.getRejected().get(REJECTED).getCode());
+        // the content is not sent to a part of the recipients
+        assertFalse(server.commands.contains("DATA"));
+        assertEquals("QUIT", server.commands.get(server.commands.size() - 1));
+    }
+
+    public void testPipeliningSendsToAcceptedRecipients() throws Exception {
+        client.setSendPartial(true);
+        server.ehlo = "250-stub.example.org\r\n250 PIPELINING";
+        server.pipelined = 2;
+        server.replies.put("RCPT TO:<" + REJECTED, "550 5.1.1 unknown user");
+
+        SMTPDeliveryResult result = deliver(REJECTED, ACCEPTED);
+        assertEquals(Status.SENT, result.getStatus());
+        assertEquals(Arrays.asList(ACCEPTED), result.getAccepted());
+        assertEquals(Arrays.asList(REJECTED), new ArrayList<String>(result.getRejected().keySet()));
+        assertEquals(CONTENT, server.content.toString());
+    }
+
+    public void testAllRecipientsRejected() throws Exception {
+        client.setSendPartial(true);
+        server.replies.put("RCPT", "450 4.2.0 mailbox busy");
+
+        SMTPDeliveryResult result = deliver(ACCEPTED);
+        assertEquals(Status.RECIPIENTS_REJECTED, result.getStatus());
+        assertTrue(result.getAccepted().isEmpty());
+        assertFalse(server.commands.contains("DATA"));
+    }
+
+    public void testHeloFallback() throws Exception {
+        server.replies.put("EHLO", "502 5.5.1 command not recognized");
+
+        SMTPDeliveryResult result = deliver(ACCEPTED);
+        assertEquals(Status.SENT, result.getStatus());
+        assertEquals(Arrays.asList("EHLO client.example.org", "HELO client.example.org", "MAIL FROM:<" + SENDER + ">", "RCPT TO:<" + ACCEPTED + ">", "DATA", "QUIT"), server.commands);
+    }
+
+    public void testStartTLSRejected() throws Exception {
+        client.setStartTLS(true);
+        server.ehlo = "250-stub.example.org\r\n250 STARTTLS";
+        server.replies.put("STARTTLS", "454 4.7.0 TLS not available");
+
+        // the delivery continues without TLS
+        SMTPDeliveryResult result = deliver(ACCEPTED);
+        assertEquals(Status.SENT, result.getStatus());
+        assertEquals(Arrays.asList("EHLO client.example.org", "STARTTLS", "MAIL FROM:<" + SENDER + ">", "RCPT TO:<" + ACCEPTED + ">", "DATA", "QUIT"), server.commands);
+    }
+
+    public void testMultilineReplies() throws Exception {
+        server.greeting = "220-stub.example.org ESMTP\r\n220 welcome";
+        server.replies.put(".", "554-5.7.1 message rejected\r\n554 5.7.1 see policy");
+
+        SMTPDeliveryResult result = deliver(ACCEPTED);
+        assertEquals(Status.FAILED, result.getStatus());
+        assertEquals(554, result.getReply().getCode());
+        assertEquals(Arrays.asList("5.7.1 message rejected", "5.7.1 see policy"), result.getReply().getLines());
+    }
+
+    public void testGreetingRejected() throws Exception {
+        server.greeting = "554 5.3.2 no service";
+
+        SMTPDeliveryResult result = deliver(ACCEPTED);
+        assertEquals(Status.CONNECTION_FAILED, result.getStatus());
+        assertEquals(554, result.getReply().getCode());
+        assertEquals(Arrays.asList("QUIT"), server.commands);
+    }
+
+    public void testConnectionRefused() throws Exception {
+        InetSocketAddress address = server.getAddress();
+        server.close();
+        SMTPTransaction transaction = new SMTPTransaction(SENDER, Arrays.asList(ACCEPTED), ChannelBuffers.copiedBuffer(CONTENT + ".\r\n", CharsetUtil.US_ASCII), null);
+        client.deliver("stub.example.org", address, transaction, new SMTPDeliveryListener() {
+            public void onResult(SMTPDeliveryResult result) {
+                results.add(result);
+            }
+        });
+        SMTPDeliveryResult result = results.poll(10, TimeUnit.SECONDS);
+        assertEquals(Status.CONNECTION_FAILED, result.getStatus());
+        assertNull(result.getReply());
+        assertNotNull(result.getCause());
+        assertEquals(-1, result.getConnectTime());
+    }
+
+    /**
+     * Answers the commands of a single session with scripted replies and
+     * records them
+     */
+    private final static class StubServer extends Thread {
+
+        private final ServerSocket serverSocket;
+
+        private String greeting = "220 stub.example.org ESMTP";
+
+        private String ehlo = "250 stub.example.org";
+
+        /** Replies keyed by the start of the command, "." for the content */
+        private final Map<String, String> replies = new LinkedHashMap<String, String>();
+
+        /** The count of commands read after MAIL before MAIL is answered */
+        private int pipelined;
+
+        private final List<String> commands = new ArrayList<String>();
+
+        private final StringBuilder content = new StringBuilder();
+
+        public StubServer() throws IOException {
+            serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                    Writer out = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+                    write(out, greeting);
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        List<String> batch = new ArrayList<String>();
+                        batch.add(line);
+                        if (line.startsWith("MAIL")) {
+                            for (int i = 0; i < pipelined; i++) {
+                                batch.add(in.readLine());
+                            }
+                        }
+                        for (String command : batch) {
+                            commands.add(command);
+                            write(out, getReply(command));
+                        }
+                        if (line.equals("DATA") && getReply(line).startsWith("354")) {
+                            String data;
+                            while ((data = in.readLine()) != null && !data.equals(".")) {
+                                content.append(data).append("\r\n");
+                            }
+                            write(out, getReply("."));
+                        } else if (line.equals("QUIT")) {
+                            break;
+                        }
+                    }
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // the test fails because of the missing commands
+            }
+        }
+
+        private String getReply(String command) {
+            for (Map.Entry<String, String> entry : replies.entrySet()) {
+                if (command.startsWith(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+            if (command.startsWith("EHLO")) {
+                return ehlo;
+            } else if (command.equals("DATA")) {
+                return "354 go ahead";
+            } else if (command.equals("QUIT")) {
+                return "221 bye";
+            }
+            return "250 OK";
+        }
+
+        private void write(Writer out, String reply) throws IOException {
+            out.write(reply + "\r\n");
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.smtp;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.util.CharsetUtil;
+
+public class SMTPReplyDecoderTest extends TestCase {
+
+    private SMTPReplyDecoder decoder;
+
+    private DecoderEmbedder<SMTPReply> embedder;
+
+    @Override
+    protected void setUp() throws Exception {
+        decoder = new SMTPReplyDecoder();
+        embedder = new DecoderEmbedder<SMTPReply>(decoder);
+    }
+
+    private void offer(String input) {
+        embedder.offer(ChannelBuffers.copiedBuffer(input, CharsetUtil.US_ASCII));
+    }
+
+    public void testSingleLineReply() {
+        offer("250 2.0.0 OK\r\n");
+        SMTPReply reply = embedder.poll();
+        assertEquals(250, reply.getCode());
+        assertEquals(Arrays.asList("2.0.0 OK"), reply.getLines());
+        assertNull(embedder.poll());
+    }
+
+    public void testReplyWithoutText() {
+        offer("250\n");
+        SMTPReply reply = embedder.poll();
+        assertEquals(250, reply.getCode());
+        assertEquals(Arrays.asList(""), reply.getLines());
+    }
+
+    public void testMultilineReply() {
+        offer("250-mx.example.org\r\n250-PIPELINING\r\n250 SIZE 1000\r\n");
+        SMTPReply reply = embedder.poll();
+        assertEquals(250, reply.getCode());
+        assertEquals(Arrays.asList("mx.example.org", "PIPELINING", "SIZE 1000"), reply.getLines());
+        assertTrue(reply.getExtensions().containsKey("PIPELINING"));
+        assertEquals("1000", reply.getExtensions().get("SIZE"));
+        assertNull(embedder.poll());
+    }
+
+    public void testReplySplitAcrossReads() {
+        offer("250-mx.exa");
+        assertNull(embedder.poll());
+        offer("mple.org\r\n250");
+        assertNull(embedder.poll());
+        offer(" 8BITMIME\r\n");
+        assertEquals(Arrays.asList("mx.example.org", "8BITMIME"), embedder.poll().getLines());
+    }
+
+    public void testPipelinedReplies() {
+        offer("250 2.1.0 sender ok\r\n250 2.1.5 recipient ok\r\n550-5.1.1 unknown\r\n550 5.1.1 user\r\n");
+        assertEquals(250, embedder.poll().getCode());
+        assertEquals(250, embedder.poll().getCode());
+        SMTPReply reply = embedder.poll();
+        assertEquals(550, reply.getCode());
+        assertEquals("550-5.1.1 unknown\n550 5.1.1 user", reply.toString());
+        assertNull(embedder.poll());
+    }
+
+    public void testCodeChangeInMultilineReply() {
+        try {
+            offer("250-mx.example.org\r\n251 PIPELINING\r\n");
+            fail();
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof CorruptedFrameException);
+        }
+    }
+
+    public void testInvalidReply() {
+        try {
+            offer("hello\r\n");
+            fail();
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof CorruptedFrameException);
+        }
+    }
+
+    public void testTooLongLine() {
+        char[] line = new char[SMTPReplyDecoder.MAX_LINE_LENGTH + 1];
+        Arrays.fill(line, 'x');
+        try {
+            offer("250 " + new String(line));
+            fail();
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof TooLongFrameException);
+        }
+    }
+
+    public void testDiscardBufferedInput() {
+        // discard like the client does when it handles the reply to STARTTLS
+        embedder = new DecoderEmbedder<SMTPReply>(decoder, new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                if (((SMTPReply) e.getMessage()).getCode() == 220) {
+                    decoder.discardBufferedInput();
+                }
+                super.messageReceived(ctx, e);
+            }
+        });
+        offer("220 2.0.0 Ready to start TLS\r\n250-injected\r\n250 PIPELINING\r\n250-inj");
+        assertEquals(220, embedder.poll().getCode());
+        assertNull(embedder.poll());
+
+        offer("250 mx.example.org\r\n");
+        assertEquals(Arrays.asList("mx.example.org"), embedder.poll().getLines());
+        assertNull(embedder.poll());
+    }
+}
@@ -30,7 +30,7 @@ public class OioPOP3Server extends POP3Server {
 
     @Override
     protected ServerSocketChannelFactory createSocketChannelFactory() {
-        return new OioServerSocketChannelFactory(createBossExecutor(), createWorkerExecutor());
+        return new OioServerSocketChannelFactory(createBossExecutor(), createOioWorkerExecutor());
     }
 
     /**
@@ -77,6 +77,11 @@ public class POP3Server extends AbstractProtocolAsyncServer implements POP3Serve
         return "pop3server";
     }
 
+    @Override
+    protected String getOverloadResponse() {
+        return "-ERR " + getHelloName() + " is too busy, try again later\r\n";
+    }
+
     @Override
     protected ChannelUpstreamHandler createCoreHandler() {
         return coreHandler; 
@@ -55,7 +55,7 @@ public abstract class AbstractCommandHandlerResultJMXMonitor<R extends Response,
             String name = handler.getClass().getName();
             AbstractCommandHandlerStats<R> stats = cStats.get(name);
             if (stats != null) {
-                stats.increment(response);
+                stats.increment(response, executionTime);
             }
         }
         return response;
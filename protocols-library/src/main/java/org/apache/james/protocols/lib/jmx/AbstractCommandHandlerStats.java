@@ -27,7 +27,6 @@ import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
-import javax.management.StandardMBean;
 
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.protocols.api.Response;
@@ -36,7 +35,7 @@ import org.apache.james.protocols.api.handler.CommandHandler;
 /**
  * Expose statistics for {@link CommandHandler} via JMX
  */
-public abstract class AbstractCommandHandlerStats<R extends Response> extends StandardMBean implements CommandHandlerStatsMBean, Disposable {
+public abstract class AbstractCommandHandlerStats<R extends Response> extends AbstractLatencyStats implements CommandHandlerStatsMBean, Disposable {
 
     private AtomicLong all = new AtomicLong(0);
     private AtomicLong disconnect = new AtomicLong();
@@ -61,13 +60,16 @@ public abstract class AbstractCommandHandlerStats<R extends Response> extends St
      * Increment stats based on the given response
      * 
      * @param response
+     * @param executionTime
+     *            in milliseconds
      */
-    public void increment(R response) {
+    public void increment(R response, long executionTime) {
         if (response.isEndSession()) {
             disconnect.incrementAndGet();
         }
 
         all.incrementAndGet();
+        recordTime(executionTime);
         incrementStats(response);
     }
 
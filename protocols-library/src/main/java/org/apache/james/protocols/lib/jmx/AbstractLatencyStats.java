@@ -0,0 +1,94 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.jmx;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+
+/**
+ * Base class for handler statistics which keep the execution times in a
+ * {@link RollingHistogram}
+ */
+public abstract class AbstractLatencyStats extends StandardMBean implements LatencyStatsMBean {
+
+    private final RollingHistogram times = new RollingHistogram();
+
+    protected AbstractLatencyStats(Class<?> jmxClass) throws NotCompliantMBeanException {
+        super(jmxClass);
+    }
+
+    /**
+     * Record the execution time of the handler
+     * 
+     * @param executionTime
+     *            in milliseconds
+     */
+    protected void recordTime(long executionTime) {
+        times.record(executionTime);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.LatencyStatsMBean#getAverageTime()
+     */
+    public double getAverageTime() {
+        return times.getAverage();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.LatencyStatsMBean#getMaxTime()
+     */
+    public long getMaxTime() {
+        return times.getMax();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.LatencyStatsMBean#getMedianTime()
+     */
+    public long getMedianTime() {
+        return times.getPercentile(50);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.LatencyStatsMBean#getPercentile95Time()
+     */
+    public long getPercentile95Time() {
+        return times.getPercentile(95);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.LatencyStatsMBean#getPercentile99Time()
+     */
+    public long getPercentile99Time() {
+        return times.getPercentile(99);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.LatencyStatsMBean#getTimeHistogram()
+     */
+    public long[] getTimeHistogram() {
+        return times.getCounts();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.LatencyStatsMBean#getTimeHistogramBounds()
+     */
+    public long[] getTimeHistogramBounds() {
+        return times.getBounds();
+    }
+}
@@ -53,7 +53,7 @@ public abstract class AbstractLineHandlerResultJMXMonitor<R extends Response, S
      */
     public Response onResponse(ProtocolSession session, Response response, long executionTime, ProtocolHandler handler) {
         if (handler instanceof LineHandler) {
-            lStats.get(handler.getClass().getName()).increment(response);
+            lStats.get(handler.getClass().getName()).increment(response, executionTime);
         }
         return response;
     }
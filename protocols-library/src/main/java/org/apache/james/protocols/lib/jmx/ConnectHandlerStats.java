@@ -27,12 +27,11 @@ import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
-import javax.management.StandardMBean;
 
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.protocols.api.Response;
 
-public class ConnectHandlerStats extends StandardMBean implements HandlerStatsMBean, Disposable {
+public class ConnectHandlerStats extends AbstractLatencyStats implements HandlerStatsMBean, Disposable {
 
     private String name;
     private String handlerName;
@@ -55,9 +54,12 @@ public class ConnectHandlerStats extends StandardMBean implements HandlerStatsMB
      * Increment the stats
      * 
      * @param response
+     * @param executionTime
+     *            in milliseconds
      */
-    public void increment(Response response) {
+    public void increment(Response response, long executionTime) {
         all.incrementAndGet();
+        recordTime(executionTime);
         if (response.isEndSession()) {
             disconnect.incrementAndGet();
         }
@@ -21,7 +21,7 @@ package org.apache.james.protocols.lib.jmx;
 /**
  * JMX MBean for Handler statistics
  */
-public interface HandlerStatsMBean {
+public interface HandlerStatsMBean extends LatencyStatsMBean {
 
     /**
      * Return the count of all processed transactions by the handler
@@ -0,0 +1,78 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.jmx;
+
+/**
+ * JMX MBean for the execution times of a handler in the last five minutes
+ */
+public interface LatencyStatsMBean {
+
+    /**
+     * Return the average execution time in milliseconds
+     * 
+     * @return averageTime
+     */
+    double getAverageTime();
+
+    /**
+     * Return the longest execution time in milliseconds
+     * 
+     * @return maxTime
+     */
+    long getMaxTime();
+
+    /**
+     * Return the execution time in milliseconds which half of the executions
+     * did not reach
+     * 
+     * @return medianTime
+     */
+    long getMedianTime();
+
+    /**
+     * Return the execution time in milliseconds which 95 percent of the
+     * executions did not reach
+     * 
+     * @return percentile95Time
+     */
+    long getPercentile95Time();
+
+    /**
+     * Return the execution time in milliseconds which 99 percent of the
+     * executions did not reach
+     * 
+     * @return percentile99Time
+     */
+    long getPercentile99Time();
+
+    /**
+     * Return the count of executions per bucket of {@link #getTimeHistogramBounds()}
+     * 
+     * @return timeHistogram
+     */
+    long[] getTimeHistogram();
+
+    /**
+     * Return the exclusive upper bounds in milliseconds of the buckets of
+     * {@link #getTimeHistogram()}, the last bucket holds the longer executions
+     * 
+     * @return timeHistogramBounds
+     */
+    long[] getTimeHistogramBounds();
+}
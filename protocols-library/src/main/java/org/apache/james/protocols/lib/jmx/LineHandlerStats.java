@@ -27,7 +27,6 @@ import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
-import javax.management.StandardMBean;
 
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.protocols.api.Response;
@@ -35,7 +34,7 @@ import org.apache.james.protocols.api.Response;
 /**
  * Gather stats for LineHandlers
  */
-public class LineHandlerStats extends StandardMBean implements HandlerStatsMBean, Disposable {
+public class LineHandlerStats extends AbstractLatencyStats implements HandlerStatsMBean, Disposable {
 
     private String name;
     private String handlerName;
@@ -57,9 +56,12 @@ public class LineHandlerStats extends StandardMBean implements HandlerStatsMBean
      * Increment the stats
      * 
      * @param response
+     * @param executionTime
+     *            in milliseconds
      */
-    public void increment(Response response) {
+    public void increment(Response response, long executionTime) {
         all.incrementAndGet();
+        recordTime(executionTime);
         if (response.isEndSession()) {
             disconnect.incrementAndGet();
         }
@@ -0,0 +1,259 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.jmx;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of values, for example execution times in milliseconds, over the
+ * last few minutes. The values are counted in fixed buckets, so recording a
+ * value takes a few atomic increments and no allocation. The buckets are kept
+ * per window of time, the windows are reused in a ring once they are older
+ * than the covered period.
+ */
+public class RollingHistogram {
+
+    /** Bucket bounds in milliseconds for execution times */
+    public static final long[] TIME_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+    /** The default length of a window in milliseconds */
+    public static final long DEFAULT_WINDOW_LENGTH = 60 * 1000;
+
+    /** The default count of windows */
+    public static final int DEFAULT_WINDOWS = 5;
+
+    private final long[] bounds;
+
+    private final long windowLength;
+
+    private final Window[] windows;
+
+    /**
+     * Create a histogram for execution times over the last five minutes
+     */
+    public RollingHistogram() {
+        this(TIME_BOUNDS, DEFAULT_WINDOW_LENGTH, DEFAULT_WINDOWS);
+    }
+
+    /**
+     * @param bounds
+     *            the exclusive upper bounds of the buckets in ascending
+     *            order, a last bucket holds the larger values
+     * @param windowLength
+     *            the milliseconds one window covers
+     * @param windows
+     *            the count of windows
+     */
+    public RollingHistogram(long[] bounds, long windowLength, int windows) {
+        this.bounds = bounds.clone();
+        this.windowLength = windowLength;
+        this.windows = new Window[windows];
+        for (int i = 0; i < windows; i++) {
+            this.windows[i] = new Window(bounds.length + 1);
+        }
+    }
+
+    /**
+     * Record the given value
+     * 
+     * @param value
+     */
+    public void record(long value) {
+        record(value, System.currentTimeMillis());
+    }
+
+    void record(long value, long now) {
+        long epoch = now / windowLength;
+        Window window = windows[(int) (epoch % windows.length)];
+        if (window.epoch != epoch) {
+            window.reset(epoch);
+        }
+        int index = Arrays.binarySearch(bounds, value);
+        // values which equal a bound belong to the next bucket
+        index = index < 0 ? -index - 1 : index + 1;
+        window.counts.incrementAndGet(index);
+        window.sum.addAndGet(value);
+        long max;
+        while ((max = window.max.get()) < value) {
+            if (window.max.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Return the bounds of the buckets
+     * 
+     * @return bounds
+     */
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Return the counts of the buckets, the last element holds the values
+     * which are larger than the last bound
+     * 
+     * @return counts
+     */
+    public long[] getCounts() {
+        return getCounts(System.currentTimeMillis());
+    }
+
+    long[] getCounts(long now) {
+        long[] counts = new long[bounds.length + 1];
+        long epoch = now / windowLength;
+        for (int i = 0; i < windows.length; i++) {
+            Window window = windows[i];
+            if (isCurrent(window, epoch)) {
+                for (int a = 0; a < counts.length; a++) {
+                    counts[a] += window.counts.get(a);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Return the count of the values
+     * 
+     * @return count
+     */
+    public long getCount() {
+        long count = 0;
+        for (long c : getCounts()) {
+            count += c;
+        }
+        return count;
+    }
+
+    /**
+     * Return the average of the values, 0 if there are none
+     * 
+     * @return average
+     */
+    public double getAverage() {
+        return getAverage(System.currentTimeMillis());
+    }
+
+    double getAverage(long now) {
+        long epoch = now / windowLength;
+        long sum = 0;
+        long count = 0;
+        for (int i = 0; i < windows.length; i++) {
+            Window window = windows[i];
+            if (isCurrent(window, epoch)) {
+                sum += window.sum.get();
+                for (int a = 0; a < window.counts.length(); a++) {
+                    count += window.counts.get(a);
+                }
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        return (double) sum / count;
+    }
+
+    /**
+     * Return the largest value, 0 if there are none
+     * 
+     * @return max
+     */
+    public long getMax() {
+        return getMax(System.currentTimeMillis());
+    }
+
+    long getMax(long now) {
+        long epoch = now / windowLength;
+        long max = 0;
+        for (int i = 0; i < windows.length; i++) {
+            Window window = windows[i];
+            if (isCurrent(window, epoch)) {
+                max = Math.max(max, window.max.get());
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Return the value below which the given percentage of the values are.
+     * This is the bound of the bucket which holds the percentile, or the
+     * largest value if it is in the last bucket.
+     * 
+     * @param percentile
+     *            between 0 and 100
+     * @return value
+     */
+    public long getPercentile(double percentile) {
+        return getPercentile(percentile, System.currentTimeMillis());
+    }
+
+    long getPercentile(double percentile, long now) {
+        long[] counts = getCounts(now);
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bounds[i];
+            }
+        }
+        return getMax(now);
+    }
+
+    private boolean isCurrent(Window window, long epoch) {
+        return window.epoch > epoch - windows.length && window.epoch <= epoch;
+    }
+
+    private static final class Window {
+
+        private volatile long epoch = Long.MIN_VALUE;
+
+        private final AtomicLongArray counts;
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private Window(int buckets) {
+            counts = new AtomicLongArray(buckets);
+        }
+
+        private synchronized void reset(long epoch) {
+            if (this.epoch != epoch) {
+                for (int i = 0; i < counts.length(); i++) {
+                    counts.set(i, 0);
+                }
+                sum.set(0);
+                max.set(0);
+                this.epoch = epoch;
+            }
+        }
+    }
+}
@@ -44,6 +44,68 @@ public interface ServerMBean {
      */
     long getHandledConnections();
 
+    /**
+     * Return the count of connections which were closed because they exceeded
+     * the rate limit of their address or network
+     * 
+     * @return throttledConnections
+     */
+    long getThrottledConnections();
+
+    /**
+     * Return the count of commands which exceeded the rate limit of their
+     * address or network and were delayed
+     * 
+     * @return throttledCommands
+     */
+    long getThrottledCommands();
+
+    /**
+     * Return the count of bytes which were received
+     * 
+     * @return receivedBytes
+     */
+    long getReceivedBytes();
+
+    /**
+     * Return the count of bytes which were sent
+     * 
+     * @return sentBytes
+     */
+    long getSentBytes();
+
+    /**
+     * Return the average duration in milliseconds of the sessions which ended
+     * in the last five minutes
+     * 
+     * @return averageSessionDuration
+     */
+    double getAverageSessionDuration();
+
+    /**
+     * Return the duration in milliseconds which 95 percent of the sessions
+     * which ended in the last five minutes did not reach
+     * 
+     * @return percentile95SessionDuration
+     */
+    long getPercentile95SessionDuration();
+
+    /**
+     * Return the average count of commands of the sessions which ended in the
+     * last five minutes
+     * 
+     * @return averageCommandsPerSession
+     */
+    double getAverageCommandsPerSession();
+
+    /**
+     * Return the count of commands which 95 percent of the sessions which
+     * ended in the last five minutes did not reach
+     * 
+     * @return percentile95CommandsPerSession
+     */
+    long getPercentile95CommandsPerSession();
+
     /**
      * Return true if the server is enabled
      * 
@@ -24,9 +24,13 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -35,6 +39,7 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -45,9 +50,15 @@ import org.apache.james.lifecycle.api.LogEnabled;
 
 import org.apache.james.protocols.api.Encryption;
 import org.apache.james.protocols.netty.AbstractAsyncServer;
+import org.apache.james.protocols.netty.HandlerConstants;
 import org.apache.james.protocols.lib.jmx.ServerMBean;
+import org.apache.james.util.concurrent.JMXEnabledScheduledThreadPoolExecutor;
 import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.apache.james.util.concurrent.VirtualThreadFactory;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
@@ -74,6 +85,36 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     public static final String HELLO_NAME = "helloName";
 
     public static final int DEFAULT_MAX_EXECUTOR_COUNT = 16;
+
+    /** The name of the {@link AdmissionControlHandler} in the pipeline */
+    public static final String ADMISSION_HANDLER = "admissionHandler";
+
+    /** The name of the {@link ConnectionRateLimitHandler} in the pipeline */
+    public static final String CONNECTION_RATE_LIMIT_HANDLER = "connectionRateLimitHandler";
+
+    /** The name of the {@link SessionStatsHandler} in the pipeline */
+    public static final String SESSION_STATS_HANDLER = "sessionStatsHandler";
+
+    /** The name of the {@link CommandRateLimitHandler} in the pipeline */
+    public static final String COMMAND_RATE_LIMIT_HANDLER = "commandRateLimitHandler";
+
+    /** The name of the {@link WriteCoalescingHandler} in the pipeline */
+    public static final String WRITE_COALESCING_HANDLER = "writeCoalescingHandler";
+
+    /** The name of the read handler of the {@link WriteCoalescingHandler} in the pipeline */
+    public static final String WRITE_COALESCING_READ_HANDLER = "writeCoalescingReadHandler";
+
+    /** The name of the command handler of the {@link WriteCoalescingHandler} in the pipeline */
+    public static final String WRITE_COALESCING_COMMAND_HANDLER = "writeCoalescingCommandHandler";
+
+    /** The default count of addresses and networks whose rates are tracked */
+    public static final int DEFAULT_RATE_LIMIT_TABLE_SIZE = 4096;
+
+    /** The default bytes which may be queued per channel before reads are suspended */
+    public static final long DEFAULT_MAX_CHANNEL_MEMORY_SIZE = 1024 * 1024;
+
+    /** The default bytes which may be queued in total before reads are suspended, 0 disables the limit */
+    public static final long DEFAULT_MAX_TOTAL_MEMORY_SIZE = 0;
     
     // By default, use the Sun X509 algorithm that comes with the Sun JCE
     // provider for SSL
@@ -108,12 +149,92 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
 
     private String[] enabledCipherSuites;
 
+    private String sslProvider;
+
+    private int sessionCacheSize;
+
+    private int sessionTimeout;
+
+    /**
+     * The system property which enables the session tickets of the JDK
+     * provider
+     */
+    private final static String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private TLSHandshakeStats tlsStats;
+
     private ConnectionCountHandler countHandler = new ConnectionCountHandler();
 
+    private SessionStatsHandler sessionStatsHandler = new SessionStatsHandler() {
+
+        @Override
+        protected boolean isCommand(ChannelHandlerContext ctx, Object message) {
+            return AbstractConfigurableAsyncServer.this.isCommand(ctx, message);
+        }
+    };
+
     private ExecutionHandler executionHandler = null;
 
     private int maxExecutorThreads;
 
+    private boolean virtualWorkerThreads;
+
+    private boolean coalesceWrites;
+
+    private long maxChannelMemorySize;
+
+    private long maxTotalMemorySize;
+
+    private boolean admissionControl;
+
+    private long maxQueueWaitTime;
+
+    private long maxSpoolSize;
+
+    private double maxHeapUsage;
+
+    private boolean tarpit;
+
+    private long tarpitDelay;
+
+    private long admissionInterval;
+
+    private long spoolInterval;
+
+    private AdmissionController admissionController;
+
+    private AdmissionControlHandler admissionHandler;
+
+    private ScheduledExecutorService admissionScheduler;
+
+    private double connectionRate;
+
+    private int connectionBurst;
+
+    private double networkConnectionRate;
+
+    private int networkConnectionBurst;
+
+    private double commandRate;
+
+    private int commandBurst;
+
+    private double networkCommandRate;
+
+    private int networkCommandBurst;
+
+    private int ipv4Prefix;
+
+    private int ipv6Prefix;
+
+    private int rateLimitTableSize;
+
+    private ConnectionRateLimitHandler connectionRateLimitHandler;
+
+    private CommandRateLimitHandler commandRateLimitHandler;
+
+    private ScheduledExecutorService rateLimitScheduler;
+
     private MBeanServer mbeanServer;
 
     
@@ -199,7 +320,30 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
 
         maxExecutorThreads = config.getInt("maxExecutorCount", DEFAULT_MAX_EXECUTOR_COUNT);
 
-        
+        String workerThreads = config.getString("workerThreads", "platform");
+        if ("virtual".equalsIgnoreCase(workerThreads)) {
+            if (VirtualThreadFactory.isSupported()) {
+                virtualWorkerThreads = true;
+                logger.info(getServiceType() + " will use virtual worker threads if it uses old IO");
+            } else {
+                logger.warn(getServiceType() + " can not use virtual worker threads, as they are not supported by this runtime. Using platform threads.");
+            }
+        } else if (!"platform".equalsIgnoreCase(workerThreads)) {
+            throw new ConfigurationException("Worker threads must be platform or virtual");
+        }
+
+        coalesceWrites = config.getBoolean("coalesceWrites", false);
+
+        maxChannelMemorySize = config.getLong("maxChannelMemorySize", DEFAULT_MAX_CHANNEL_MEMORY_SIZE);
+        maxTotalMemorySize = config.getLong("maxTotalMemorySize", DEFAULT_MAX_TOTAL_MEMORY_SIZE);
+        if (maxChannelMemorySize < 0 || maxTotalMemorySize < 0) {
+            throw new ConfigurationException("Memory limits of the executor cannot be less than zero.");
+        }
+
+        configureAdmissionControl(config);
+
+        configureRateLimit(config);
+
         configureHelloName(config);
 
         setTimeout(config.getInt(TIMEOUT_NAME, DEFAULT_TIMEOUT));
@@ -258,6 +402,13 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
             }
             secret = config.getString("tls.secret", "");
             x509Algorithm = config.getString("tls.algorithm", defaultX509algorithm);
+            sslProvider = config.getString("tls.provider", null);
+            sessionCacheSize = config.getInt("tls.sessionCacheSize", -1);
+            sessionTimeout = config.getInt("tls.sessionTimeout", -1);
+            String sessionTickets = config.getString("tls.sessionTickets", null);
+            if (sessionTickets != null) {
+                checkSessionTickets(Boolean.valueOf(sessionTickets));
+            }
         }
 
         doConfigure(config);
@@ -271,6 +422,10 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
             buildSSLContext();
             preInit();
             executionHandler = createExecutionHander();
+            if (admissionControl) {
+                startAdmissionControl();
+            }
+            startRateLimit();
             bind();
 
             mbeanServer = ManagementFactory.getPlatformMBeanServer();
@@ -286,6 +441,12 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         getLogger().info("Dispose " + getServiceType());
         if (isEnabled()) {
             unbind();
+            if (admissionController != null) {
+                stopAdmissionControl();
+            }
+            if (rateLimitScheduler != null) {
+                rateLimitScheduler.shutdownNow();
+            }
             postDestroy();
 
             if (executionHandler != null) {
@@ -293,6 +454,13 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
             }
 
             unregisterMBean();
+            if (tlsStats != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(getTLSStatsMBeanName()));
+                } catch (Exception e) {
+                    throw new RuntimeException("Unable to unregister mbean", e);
+                }
+            }
         }
         getLogger().info("Dispose " + getServiceType() + " done");
 
@@ -301,6 +469,232 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     protected void postDestroy() {
         // override me
     }
+
+    /**
+     * Configure the shedding of new connections under overload
+     * 
+     * @param config
+     * @throws ConfigurationException
+     */
+    private void configureAdmissionControl(HierarchicalConfiguration config) throws ConfigurationException {
+        admissionControl = config.getBoolean("admissionControl.[@enabled]", false);
+        if (!admissionControl) {
+            return;
+        }
+        maxQueueWaitTime = config.getLong("admissionControl.maxQueueWaitTime", 2000);
+        maxSpoolSize = config.getLong("admissionControl.maxSpoolSize", 0);
+        maxHeapUsage = config.getDouble("admissionControl.maxHeapUsage", 0.95);
+        tarpitDelay = config.getLong("admissionControl.tarpitDelay", 10000);
+        admissionInterval = config.getLong("admissionControl.interval", 1000);
+        spoolInterval = config.getLong("admissionControl.spoolInterval", 30000);
+
+        String action = config.getString("admissionControl.action", "reject");
+        if ("tarpit".equalsIgnoreCase(action)) {
+            tarpit = true;
+        } else if ("reject".equalsIgnoreCase(action)) {
+            tarpit = false;
+        } else {
+            throw new ConfigurationException("Admission control action must be tarpit or reject");
+        }
+        if (maxQueueWaitTime < 0 || maxSpoolSize < 0 || maxHeapUsage < 0 || maxHeapUsage > 1 || tarpitDelay < 0 || admissionInterval <= 0 || spoolInterval < 0) {
+            throw new ConfigurationException("Invalid admission control limits");
+        }
+
+        StringBuilder infoBuffer = new StringBuilder(128).append(getServiceType()).append(" will ").append(action).append(" new connections when the queue wait time reaches ").append(maxQueueWaitTime).append(" ms, the spool size reaches ").append(maxSpoolSize)
+                .append(" or the heap usage reaches ").append(maxHeapUsage).append(" (0 means disabled)");
+        getLogger().info(infoBuffer.toString());
+    }
+
+    private void startAdmissionControl() throws Exception {
+        admissionController = new AdmissionController(maxQueueWaitTime, maxSpoolSize, spoolInterval, maxHeapUsage, tarpit) {
+
+            @Override
+            protected long measureQueueWaitTime() {
+                if (executionHandler != null && executionHandler.getExecutor() instanceof JMXEnabledOrderedMemoryAwareThreadPoolExecutor) {
+                    return ((JMXEnabledOrderedMemoryAwareThreadPoolExecutor) executionHandler.getExecutor()).getQueueWaitTime();
+                }
+                return -1;
+            }
+
+            @Override
+            protected long measureSpoolSize() {
+                return getSpoolSize();
+            }
+        };
+
+        admissionScheduler = new JMXEnabledScheduledThreadPoolExecutor(1, getThreadPoolJMXPath(), "admission");
+        admissionHandler = new AdmissionControlHandler(admissionController, getRejectResponse(), admissionScheduler, tarpitDelay);
+        admissionScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    admissionController.evaluate();
+                } catch (Exception e) {
+                    getLogger().error("Unable to evaluate the load of " + getServiceType(), e);
+                }
+            }
+        }, admissionInterval, admissionInterval, TimeUnit.MILLISECONDS);
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(admissionController, new ObjectName(getAdmissionControllerMBeanName()));
+    }
+
+    private void stopAdmissionControl() {
+        admissionScheduler.shutdownNow();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(getAdmissionControllerMBeanName()));
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to unregister mbean", e);
+        }
+    }
+
+    private String getAdmissionControllerMBeanName() {
+        return "org.apache.james:type=server,name=" + jmxName + ",sub-type=admission";
+    }
+
+    /**
+     * Return the overload response as it is written to the socket, or null if
+     * there is none or the socket is encrypted
+     */
+    private byte[] getRejectResponse() throws Exception {
+        String overloadResponse = getOverloadResponse();
+        if (overloadResponse != null && (encryption == null || encryption.isStartTLS())) {
+            return overloadResponse.getBytes("US-ASCII");
+        }
+        return null;
+    }
+
+    /**
+     * Configure the rate limits of connections and commands per client address
+     * and network
+     * 
+     * @param config
+     * @throws ConfigurationException
+     */
+    private void configureRateLimit(HierarchicalConfiguration config) throws ConfigurationException {
+        connectionRate = config.getDouble("rateLimit.connectionsPerSecond", 0);
+        connectionBurst = config.getInt("rateLimit.connectionBurst", getDefaultBurst(connectionRate));
+        networkConnectionRate = config.getDouble("rateLimit.networkConnectionsPerSecond", 0);
+        networkConnectionBurst = config.getInt("rateLimit.networkConnectionBurst", getDefaultBurst(networkConnectionRate));
+        commandRate = config.getDouble("rateLimit.commandsPerSecond", 0);
+        commandBurst = config.getInt("rateLimit.commandBurst", getDefaultBurst(commandRate));
+        networkCommandRate = config.getDouble("rateLimit.networkCommandsPerSecond", 0);
+        networkCommandBurst = config.getInt("rateLimit.networkCommandBurst", getDefaultBurst(networkCommandRate));
+        ipv4Prefix = config.getInt("rateLimit.ipv4Prefix", 24);
+        ipv6Prefix = config.getInt("rateLimit.ipv6Prefix", 64);
+        rateLimitTableSize = config.getInt("rateLimit.tableSize", DEFAULT_RATE_LIMIT_TABLE_SIZE);
+
+        if (connectionRate < 0 || networkConnectionRate < 0 || commandRate < 0 || networkCommandRate < 0) {
+            throw new ConfigurationException("Rate limits cannot be less than zero.");
+        }
+        if (connectionBurst < 1 || networkConnectionBurst < 1 || commandBurst < 1 || networkCommandBurst < 1) {
+            throw new ConfigurationException("Rate limit bursts must be greater than zero.");
+        }
+        if (ipv4Prefix < 0 || ipv4Prefix > 32 || ipv6Prefix < 0 || ipv6Prefix > 128 || rateLimitTableSize < 1) {
+            throw new ConfigurationException("Invalid rate limit network prefix or table size");
+        }
+
+        if (connectionRate > 0 || networkConnectionRate > 0 || commandRate > 0 || networkCommandRate > 0) {
+            StringBuilder infoBuffer = new StringBuilder(128).append(getServiceType()).append(" will allow ").append(connectionRate).append(" connections and ").append(commandRate).append(" commands per second and IP, ").append(networkConnectionRate)
+                    .append(" connections and ").append(networkCommandRate).append(" commands per second and network (0 means unlimited)");
+            getLogger().info(infoBuffer.toString());
+        }
+    }
+
+    private int getDefaultBurst(double rate) {
+        return Math.max(1, (int) Math.ceil(rate));
+    }
+
+    private void startRateLimit() throws Exception {
+        if (connectionRate > 0 || networkConnectionRate > 0) {
+            connectionRateLimitHandler = new ConnectionRateLimitHandler(createRateLimiter(connectionRate, connectionBurst), createRateLimiter(networkConnectionRate, networkConnectionBurst), ipv4Prefix, ipv6Prefix, getRejectResponse());
+        }
+        if (commandRate > 0 || networkCommandRate > 0) {
+            rateLimitScheduler = new JMXEnabledScheduledThreadPoolExecutor(1, getThreadPoolJMXPath(), "ratelimit");
+            commandRateLimitHandler = new CommandRateLimitHandler(createRateLimiter(commandRate, commandBurst), createRateLimiter(networkCommandRate, networkCommandBurst), ipv4Prefix, ipv6Prefix, rateLimitScheduler) {
+
+                @Override
+                protected boolean isCommand(ChannelHandlerContext ctx, Object message) {
+                    return AbstractConfigurableAsyncServer.this.isCommand(ctx, message);
+                }
+            };
+        }
+    }
+
+    private RateLimiter createRateLimiter(double rate, int burst) {
+        if (rate > 0) {
+            return new RateLimiter(rate, burst, rateLimitTableSize);
+        }
+        return null;
+    }
+
+    /**
+     * Return the {@link ConnectionRateLimitHandler} which needs to be the
+     * first handler of the pipeline, or null if the rate of connections is not
+     * limited
+     * 
+     * @return handler
+     */
+    protected ConnectionRateLimitHandler getConnectionRateLimitHandler() {
+        return connectionRateLimitHandler;
+    }
+
+    /**
+     * Return the {@link CommandRateLimitHandler} which needs to be placed
+     * after the decoder of the commands, or null if the rate of commands is
+     * not limited
+     * 
+     * @return handler
+     */
+    protected CommandRateLimitHandler getCommandRateLimitHandler() {
+        return commandRateLimitHandler;
+    }
+
+    /**
+     * Return true if the given message, which was received by the
+     * {@link CommandRateLimitHandler} or the {@link SessionStatsHandler}, is a
+     * command. Subclasses should override this if the protocol receives data
+     * which are no commands, like the lines of a mail.
+     * 
+     * @param ctx
+     * @param message
+     * @return command
+     */
+    protected boolean isCommand(ChannelHandlerContext ctx, Object message) {
+        return true;
+    }
+
+    /**
+     * Return the {@link AdmissionControlHandler} which needs to be the first
+     * handler of the pipeline, or null if admission control is disabled
+     * 
+     * @return handler
+     */
+    protected AdmissionControlHandler getAdmissionControlHandler() {
+        return admissionHandler;
+    }
+
+    /**
+     * Return the count of mails which wait in the spool, or -1 if the server
+     * does not use the spool. Subclasses which use the spool should override
+     * this, so the admission control can take it into account. It is called
+     * at most once per admissionControl.spoolInterval, so it may be
+     * expensive.
+     * 
+     * @return spoolSize
+     */
+    protected long getSpoolSize() {
+        return -1;
+    }
+
+    /**
+     * Return the response for connections which are rejected because the
+     * server is overloaded, or null if they should be closed without a
+     * response.
+     * 
+     * @return response
+     */
+    protected String getOverloadResponse() {
+        return null;
+    }
     
     
     /**
@@ -409,8 +803,28 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
                 kmf.init(ks, secret.toCharArray());
 
                 // Initialize the SSLContext to work with our key managers.
-                SSLContext context = SSLContext.getInstance("TLS");
+                Provider provider = getSSLProvider();
+                SSLContext context;
+                if (provider == null) {
+                    context = SSLContext.getInstance("TLS");
+                } else {
+                    context = SSLContext.getInstance("TLS", provider);
+                }
                 context.init(kmf.getKeyManagers(), null, null);
+
+                SSLSessionContext sessionContext = context.getServerSessionContext();
+                if (sessionCacheSize >= 0) {
+                    sessionContext.setSessionCacheSize(sessionCacheSize);
+                }
+                if (sessionTimeout >= 0) {
+                    sessionContext.setSessionTimeout(sessionTimeout);
+                }
+                getLogger().info(getServiceType() + " uses the TLS provider " + context.getProvider().getName() + ", caches " + sessionContext.getSessionCacheSize() + " sessions for " + sessionContext.getSessionTimeout() + " seconds (0 means unlimited)");
+
+                tlsStats = new TLSHandshakeStats(sessionContext);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(tlsStats, new ObjectName(getTLSStatsMBeanName()));
+                context = new MeasuredSSLContext(context, tlsStats);
+
                 if (useStartTLS) {
                 	encryption = Encryption.createStartTls(context, enabledCipherSuites);
                 } else {
@@ -424,6 +838,55 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         }
     }
 
+    /**
+     * Return the configured provider of the {@link SSLContext}, which is
+     * loaded by its class name if it is not installed, or null if the default
+     * provider should be used. This allows to use a provider which is backed
+     * by a native TLS library, if it is available on the platform. A provider
+     * which is loaded by its class name is only used by this server and not
+     * installed for the whole JVM.
+     * 
+     * @return provider
+     */
+    private Provider getSSLProvider() {
+        if (sslProvider == null) {
+            return null;
+        }
+        Provider provider = Security.getProvider(sslProvider);
+        if (provider == null) {
+            try {
+                provider = (Provider) Class.forName(sslProvider).newInstance();
+            } catch (Throwable t) {
+                // the native library may be missing on this platform
+                getLogger().warn("TLS provider " + sslProvider + " is not available, using the default provider", t);
+                return null;
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Check that the stateless resumption of sessions with session tickets
+     * (RFC 5077) is enabled or disabled like the configuration of this server
+     * expects. The JDK provider (Java 13 and later) reads this setting once
+     * per JVM from a system property, so it has to be set on the command line
+     * and can not differ between the servers.
+     * 
+     * @param enabled
+     * @throws ConfigurationException
+     *             if the system property is not set to the expected value
+     */
+    private void checkSessionTickets(boolean enabled) throws ConfigurationException {
+        String value = System.getProperty(SESSION_TICKETS_PROPERTY);
+        if (value == null || Boolean.valueOf(value).booleanValue() != enabled) {
+            throw new ConfigurationException(getServiceType() + " expects session tickets to be " + (enabled ? "enabled" : "disabled") + ", which needs the JVM to be started with -D" + SESSION_TICKETS_PROPERTY + "=" + enabled);
+        }
+    }
+
+    private String getTLSStatsMBeanName() {
+        return "org.apache.james:type=server,name=" + jmxName + ",sub-type=tls";
+    }
+
     /**
      * Return the default port which will get used for this server if non is
      * specify in the configuration
@@ -463,15 +926,59 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     protected String getThreadPoolJMXPath() {
         return "org.apache.james:type=server,name=" + jmxName + ",sub-type=threadpool";
     }
+
+    /**
+     * Return the maximal count of threads of the executor which processes the
+     * events of the channels
+     * 
+     * @return maxExecutorThreads
+     */
+    protected int getMaxExecutorThreads() {
+        return maxExecutorThreads;
+    }
     
     @Override
     protected Executor createBossExecutor() {
         return JMXEnabledThreadPoolExecutor.newCachedThreadPool(getThreadPoolJMXPath(), "boss");
     }
 
+    /**
+     * Return the executor for the NIO workers. These always use platform
+     * threads, as a few of them serve all connections, so virtual threads
+     * would gain nothing and pin their carrier threads in the selector.
+     */
     @Override
     protected Executor createWorkerExecutor() {
-        return JMXEnabledThreadPoolExecutor.newCachedThreadPool(getThreadPoolJMXPath(), "worker");
+        if (virtualWorkerThreads) {
+            getLogger().warn(getServiceType() + " uses NIO, so its workers use platform threads. Virtual worker threads are only used by the Oio servers.");
+        }
+        return JMXEnabledThreadPoolExecutor.newCachedThreadPool(getThreadPoolJMXPath(), new NamedThreadFactory("worker"));
+    }
+
+    /**
+     * Return the executor for the workers of the Oio servers, which serve
+     * every connection with its own thread
+     * 
+     * @return executor
+     */
+    protected Executor createOioWorkerExecutor() {
+        return JMXEnabledThreadPoolExecutor.newCachedThreadPool(getThreadPoolJMXPath(), createWorkerThreadFactory("worker"));
+    }
+
+    /**
+     * Return the factory for the threads of the Oio worker executor. This
+     * creates virtual threads if they were configured and are supported,
+     * which allows servers with one thread per connection to serve many more
+     * connections. Subclasses may override this to use their own threads.
+     * 
+     * @param name
+     * @return factory
+     */
+    protected NamedThreadFactory createWorkerThreadFactory(String name) {
+        if (virtualWorkerThreads) {
+            return new VirtualThreadFactory(name);
+        }
+        return new NamedThreadFactory(name);
     }
 
     /**
@@ -528,10 +1035,95 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
         return countHandler.getCurrentConnectionCount();
     }
 
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getThrottledConnections()
+     */
+    public long getThrottledConnections() {
+        if (connectionRateLimitHandler == null) {
+            return 0;
+        }
+        return connectionRateLimitHandler.getThrottledConnections();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getThrottledCommands()
+     */
+    public long getThrottledCommands() {
+        if (commandRateLimitHandler == null) {
+            return 0;
+        }
+        return commandRateLimitHandler.getThrottledCommands();
+    }
+
     protected ConnectionCountHandler getConnectionCountHandler() {
         return countHandler;
     }
 
+    /**
+     * Return the {@link SessionStatsHandler} which needs to be placed after
+     * the decoder of the commands
+     * 
+     * @return handler
+     */
+    protected SessionStatsHandler getSessionStatsHandler() {
+        return sessionStatsHandler;
+    }
+
+    /**
+     * Return a new {@link WriteCoalescingHandler} for a pipeline or null if
+     * the responses should not be coalesced
+     * 
+     * @return handler
+     */
+    protected WriteCoalescingHandler createWriteCoalescingHandler() {
+        if (coalesceWrites) {
+            return new WriteCoalescingHandler();
+        }
+        return null;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getReceivedBytes()
+     */
+    public long getReceivedBytes() {
+        return sessionStatsHandler.getReceivedBytes();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getSentBytes()
+     */
+    public long getSentBytes() {
+        return sessionStatsHandler.getSentBytes();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getAverageSessionDuration()
+     */
+    public double getAverageSessionDuration() {
+        return sessionStatsHandler.getSessionDurations().getAverage();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getPercentile95SessionDuration()
+     */
+    public long getPercentile95SessionDuration() {
+        return sessionStatsHandler.getSessionDurations().getPercentile(95);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getAverageCommandsPerSession()
+     */
+    public double getAverageCommandsPerSession() {
+        return sessionStatsHandler.getCommandsPerSession().getAverage();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.jmx.ServerMBean#getPercentile95CommandsPerSession()
+     */
+    public long getPercentile95CommandsPerSession() {
+        return sessionStatsHandler.getCommandsPerSession().getPercentile(95);
+    }
+
     /**
      * @see org.apache.james.protocols.lib.jmx.ServerMBean#getBoundAddresses()
      */
@@ -556,12 +1148,13 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
     }
     
     /**
-     * Create a new {@link ExecutionHandler} which is used to execute IO-Bound handlers
+     * Create a new {@link ExecutionHandler} which is used to execute IO-Bound handlers.
+     * Reads of a channel are suspended while the configured memory limits are reached.
      * 
      * @return ehandler
      */
     protected ExecutionHandler createExecutionHander() {
-        return new ExecutionHandler(new JMXEnabledOrderedMemoryAwareThreadPoolExecutor(maxExecutorThreads, 0, 0, getThreadPoolJMXPath(), "executor"));
+        return new ExecutionHandler(new JMXEnabledOrderedMemoryAwareThreadPoolExecutor(maxExecutorThreads, maxChannelMemorySize, maxTotalMemorySize, getThreadPoolJMXPath(), "executor"));
     }
 
     /**
@@ -605,6 +1198,34 @@ public abstract class AbstractConfigurableAsyncServer extends AbstractAsyncServe
                 return AbstractConfigurableAsyncServer.this.getConnectionCountHandler();
             }
 
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = super.getPipeline();
+                WriteCoalescingHandler writeCoalescingHandler = createWriteCoalescingHandler();
+                if (writeCoalescingHandler != null) {
+                    // the command handler is added first, so it is the last one after the framer
+                    pipeline.addBefore(HandlerConstants.FRAMER, WRITE_COALESCING_READ_HANDLER, writeCoalescingHandler.getReadHandler());
+                    pipeline.addAfter(HandlerConstants.FRAMER, WRITE_COALESCING_COMMAND_HANDLER, writeCoalescingHandler.getCommandHandler());
+                    pipeline.addBefore(HandlerConstants.CORE_HANDLER, WRITE_COALESCING_HANDLER, writeCoalescingHandler);
+                }
+                pipeline.addAfter(HandlerConstants.FRAMER, SESSION_STATS_HANDLER, getSessionStatsHandler());
+                CommandRateLimitHandler commandRateLimitHandler = getCommandRateLimitHandler();
+                if (commandRateLimitHandler != null) {
+                    pipeline.addAfter(HandlerConstants.FRAMER, COMMAND_RATE_LIMIT_HANDLER, commandRateLimitHandler);
+                }
+                AdmissionControlHandler admissionHandler = getAdmissionControlHandler();
+                if (admissionHandler != null) {
+                    // first, so the decision is not delayed by the executor
+                    pipeline.addFirst(ADMISSION_HANDLER, admissionHandler);
+                }
+                ConnectionRateLimitHandler connectionRateLimitHandler = getConnectionRateLimitHandler();
+                if (connectionRateLimitHandler != null) {
+                    // before the admission control, so throttled clients are not counted
+                    pipeline.addFirst(CONNECTION_RATE_LIMIT_HANDLER, connectionRateLimitHandler);
+                }
+                return pipeline;
+            }
+
         };
     }
     
@@ -0,0 +1,121 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Asks the {@link AdmissionController} before a new connection is passed to
+ * the protocol. Rejected connections get the given response, which is written
+ * directly to the socket, and are closed. Tarpitted connections are passed to
+ * the protocol after a delay. Data which is received from a connection before
+ * it was passed to the protocol is dropped.
+ * 
+ * This handler needs to be the first one in the pipeline, so the decision is
+ * not delayed by an overloaded executor.
+ */
+@Sharable
+public class AdmissionControlHandler extends SimpleChannelUpstreamHandler {
+
+    private final AdmissionController controller;
+
+    private final byte[] rejectResponse;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long tarpitDelay;
+
+    /**
+     * @param controller
+     *            the controller which decides about new connections
+     * @param rejectResponse
+     *            the response for rejected connections, or null if they
+     *            should just be closed
+     * @param scheduler
+     *            the scheduler which passes tarpitted connections
+     * @param tarpitDelay
+     *            the delay of tarpitted connections in milliseconds
+     */
+    public AdmissionControlHandler(AdmissionController controller, byte[] rejectResponse, ScheduledExecutorService scheduler, long tarpitDelay) {
+        this.controller = controller;
+        this.rejectResponse = rejectResponse;
+        this.scheduler = scheduler;
+        this.tarpitDelay = tarpitDelay;
+    }
+
+    @Override
+    public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        final Channel channel = ctx.getChannel();
+        switch (controller.admit()) {
+        case REJECT:
+            ctx.setAttachment(Boolean.TRUE);
+            if (rejectResponse == null) {
+                channel.close();
+            } else {
+                ChannelFuture future = Channels.future(channel);
+                future.addListener(ChannelFutureListener.CLOSE);
+                Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(rejectResponse));
+            }
+            break;
+
+        case TARPIT:
+            ctx.setAttachment(Boolean.TRUE);
+            ChannelReadSuspension.suspend(channel);
+            try {
+                scheduler.schedule(new Runnable() {
+                    public void run() {
+                        if (channel.isOpen()) {
+                            ctx.sendUpstream(e);
+                            ctx.setAttachment(null);
+                            ChannelReadSuspension.resume(channel);
+                        }
+                    }
+                }, tarpitDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // the server is shutting down
+                channel.close();
+            }
+            break;
+
+        default:
+            super.channelConnected(ctx, e);
+            break;
+        }
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (ctx.getAttachment() == null) {
+            super.messageReceived(ctx, e);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides if new connections are admitted, based on the time tasks wait in the
+ * queue of the executor, the count of mails in the spool and the used heap.
+ * 
+ * The load is measured by {@link #evaluate()}, which should be called
+ * periodically. While a limit is reached, the ratio of new connections which
+ * are shed grows fast; it shrinks slowly once all measurements are below
+ * {@link #RECOVERY_RATIO} of their limits. Shed connections are either
+ * delayed (tarpit) or rejected.
+ */
+public abstract class AdmissionController implements AdmissionControllerMBean {
+
+    /**
+     * The decision for a new connection
+     */
+    public enum Decision {
+        ADMIT, TARPIT, REJECT
+    }
+
+    /**
+     * Ratio of a limit below which the load counts as recovered
+     */
+    public final static double RECOVERY_RATIO = 0.8;
+
+    /**
+     * Increase of the shed ratio per evaluation while a limit is reached
+     */
+    public final static double SHED_INCREASE = 0.25;
+
+    /**
+     * Decrease of the shed ratio per evaluation while the load is recovered
+     */
+    public final static double SHED_DECREASE = 0.05;
+
+    private final long maxQueueWaitTime;
+
+    private final long maxSpoolSize;
+
+    private final long spoolInterval;
+
+    private long nextSpoolMeasurement = 0;
+
+    private final double maxHeapUsage;
+
+    private final boolean tarpit;
+
+    private final Random random = new Random();
+
+    private final MemoryPoolMXBean tenuredPool;
+
+    private volatile double shedRatio = 0;
+
+    private volatile String overloadReason;
+
+    private volatile long queueWaitTime = -1;
+
+    private volatile long spoolSize = -1;
+
+    private volatile double heapUsage = 0;
+
+    private final AtomicLong admitted = new AtomicLong(0);
+
+    private final AtomicLong tarpitted = new AtomicLong(0);
+
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * @param maxQueueWaitTime
+     *            the queue wait time in milliseconds at which connections are
+     *            shed, 0 to disable
+     * @param maxSpoolSize
+     *            the count of mails in the spool at which connections are
+     *            shed, 0 to disable
+     * @param maxHeapUsage
+     *            the ratio of used heap at which connections are shed, 0 to
+     *            disable
+     * @param tarpit
+     *            true if shed connections should be delayed, false if they
+     *            should be rejected
+     */
+    public AdmissionController(long maxQueueWaitTime, long maxSpoolSize, double maxHeapUsage, boolean tarpit) {
+        this(maxQueueWaitTime, maxSpoolSize, 0, maxHeapUsage, tarpit);
+    }
+
+    /**
+     * @param maxQueueWaitTime
+     *            the queue wait time in milliseconds at which connections are
+     *            shed, 0 to disable
+     * @param maxSpoolSize
+     *            the count of mails in the spool at which connections are
+     *            shed, 0 to disable
+     * @param spoolInterval
+     *            the minimum time in milliseconds between two measurements of
+     *            the spool size, as counting the mails of the spool may be
+     *            expensive. The last measured size is used in between.
+     * @param maxHeapUsage
+     *            the ratio of used heap at which connections are shed, 0 to
+     *            disable
+     * @param tarpit
+     *            true if shed connections should be delayed, false if they
+     *            should be rejected
+     */
+    public AdmissionController(long maxQueueWaitTime, long maxSpoolSize, long spoolInterval, double maxHeapUsage, boolean tarpit) {
+        this.maxQueueWaitTime = maxQueueWaitTime;
+        this.maxSpoolSize = maxSpoolSize;
+        this.spoolInterval = spoolInterval;
+        this.maxHeapUsage = maxHeapUsage;
+        this.tarpit = tarpit;
+        this.tenuredPool = findTenuredPool();
+    }
+
+    /**
+     * Return the time in milliseconds tasks wait in the queue of the executor,
+     * or -1 if unknown
+     * 
+     * @return queueWaitTime
+     */
+    protected abstract long measureQueueWaitTime();
+
+    /**
+     * Return the count of mails in the spool, or -1 if unknown
+     * 
+     * @return spoolSize
+     */
+    protected abstract long measureSpoolSize();
+
+    /**
+     * Return the ratio of used heap. The usage of the tenured pool after the
+     * last collection is used if available, as it does not include garbage.
+     * 
+     * @return heapUsage
+     */
+    protected double measureHeapUsage() {
+        if (tenuredPool != null) {
+            MemoryUsage usage = tenuredPool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0) {
+                return (double) usage.getUsed() / usage.getMax();
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+    }
+
+    private static MemoryPoolMXBean findTenuredPool() {
+        MemoryPoolMXBean tenured = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+                if (tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax()) {
+                    tenured = pool;
+                }
+            }
+        }
+        return tenured;
+    }
+
+    /**
+     * Measure the load and adjust the ratio of shed connections
+     */
+    public synchronized void evaluate() {
+        String reason = null;
+        boolean recovered = true;
+
+        if (maxQueueWaitTime > 0) {
+            queueWaitTime = measureQueueWaitTime();
+            if (queueWaitTime >= maxQueueWaitTime) {
+                reason = "queue wait time " + queueWaitTime + " ms";
+            } else if (queueWaitTime >= maxQueueWaitTime * RECOVERY_RATIO) {
+                recovered = false;
+            }
+        }
+        if (maxSpoolSize > 0) {
+            long now = System.currentTimeMillis();
+            if (now >= nextSpoolMeasurement) {
+                spoolSize = measureSpoolSize();
+                nextSpoolMeasurement = now + spoolInterval;
+            }
+            if (spoolSize >= maxSpoolSize) {
+                reason = "spool size " + spoolSize;
+            } else if (spoolSize >= maxSpoolSize * RECOVERY_RATIO) {
+                recovered = false;
+            }
+        }
+        if (maxHeapUsage > 0) {
+            heapUsage = measureHeapUsage();
+            if (heapUsage >= maxHeapUsage) {
+                reason = "heap usage " + Math.round(heapUsage * 100) + "%";
+            } else if (heapUsage >= maxHeapUsage * RECOVERY_RATIO) {
+                recovered = false;
+            }
+        }
+
+        if (reason != null) {
+            shedRatio = Math.min(1, shedRatio + SHED_INCREASE);
+        } else if (recovered) {
+            shedRatio = Math.max(0, shedRatio - SHED_DECREASE);
+        }
+        overloadReason = reason;
+    }
+
+    /**
+     * Decide what to do with a new connection
+     * 
+     * @return decision
+     */
+    public Decision admit() {
+        double ratio = shedRatio;
+        if (ratio > 0 && (ratio >= 1 || random.nextDouble() < ratio)) {
+            if (tarpit) {
+                tarpitted.incrementAndGet();
+                return Decision.TARPIT;
+            }
+            rejected.incrementAndGet();
+            return Decision.REJECT;
+        }
+        admitted.incrementAndGet();
+        return Decision.ADMIT;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#isShedding()
+     */
+    public boolean isShedding() {
+        return shedRatio > 0;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getShedRatio()
+     */
+    public double getShedRatio() {
+        return shedRatio;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getOverloadReason()
+     */
+    public String getOverloadReason() {
+        return overloadReason;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getAction()
+     */
+    public String getAction() {
+        return tarpit ? "tarpit" : "reject";
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getQueueWaitTime()
+     */
+    public long getQueueWaitTime() {
+        return queueWaitTime;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getMaxQueueWaitTime()
+     */
+    public long getMaxQueueWaitTime() {
+        return maxQueueWaitTime;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getSpoolSize()
+     */
+    public long getSpoolSize() {
+        return spoolSize;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getMaxSpoolSize()
+     */
+    public long getMaxSpoolSize() {
+        return maxSpoolSize;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getHeapUsage()
+     */
+    public double getHeapUsage() {
+        return heapUsage;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getMaxHeapUsage()
+     */
+    public double getMaxHeapUsage() {
+        return maxHeapUsage;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getAdmittedConnections()
+     */
+    public long getAdmittedConnections() {
+        return admitted.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getTarpittedConnections()
+     */
+    public long getTarpittedConnections() {
+        return tarpitted.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.AdmissionControllerMBean#getRejectedConnections()
+     */
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+}
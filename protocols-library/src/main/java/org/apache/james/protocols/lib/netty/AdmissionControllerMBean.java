@@ -0,0 +1,120 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+/**
+ * JMX MBean interface for the {@link AdmissionController}
+ */
+public interface AdmissionControllerMBean {
+
+    /**
+     * Return true if new connections are shed
+     * 
+     * @return shedding
+     */
+    boolean isShedding();
+
+    /**
+     * Return the ratio of new connections which are shed
+     * 
+     * @return shedRatio
+     */
+    double getShedRatio();
+
+    /**
+     * Return the reason of the overload or null if there is none
+     * 
+     * @return overloadReason
+     */
+    String getOverloadReason();
+
+    /**
+     * Return what happens to shed connections, either tarpit or reject
+     * 
+     * @return action
+     */
+    String getAction();
+
+    /**
+     * Return the last measured time in milliseconds tasks wait in the queue
+     * of the executor, -1 if unknown
+     * 
+     * @return queueWaitTime
+     */
+    long getQueueWaitTime();
+
+    /**
+     * Return the queue wait time in milliseconds at which connections are
+     * shed, 0 if disabled
+     * 
+     * @return maxQueueWaitTime
+     */
+    long getMaxQueueWaitTime();
+
+    /**
+     * Return the last measured count of mails in the spool, -1 if unknown
+     * 
+     * @return spoolSize
+     */
+    long getSpoolSize();
+
+    /**
+     * Return the count of mails in the spool at which connections are shed, 0
+     * if disabled
+     * 
+     * @return maxSpoolSize
+     */
+    long getMaxSpoolSize();
+
+    /**
+     * Return the last measured ratio of used heap
+     * 
+     * @return heapUsage
+     */
+    double getHeapUsage();
+
+    /**
+     * Return the ratio of used heap at which connections are shed, 0 if
+     * disabled
+     * 
+     * @return maxHeapUsage
+     */
+    double getMaxHeapUsage();
+
+    /**
+     * Return the count of admitted connections
+     * 
+     * @return admittedConnections
+     */
+    long getAdmittedConnections();
+
+    /**
+     * Return the count of connections which were delayed
+     * 
+     * @return tarpittedConnections
+     */
+    long getTarpittedConnections();
+
+    /**
+     * Return the count of connections which were rejected
+     * 
+     * @return rejectedConnections
+     */
+    long getRejectedConnections();
+}
@@ -0,0 +1,95 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+
+/**
+ * Suspends and resumes the reads of a {@link Channel} for several independent
+ * callers, like the memory limits of the executor, the rate limits and the
+ * DNS lookups of a session. Every caller which suspended the reads resumes
+ * them once, the channel is only read again when all of them did. So a caller
+ * can not resume a channel which is still suspended by another one.
+ * 
+ * Callers must not use {@link Channel#setReadable(boolean)} directly.
+ */
+public final class ChannelReadSuspension {
+
+    private final static ChannelLocal<Counter> SUSPENSIONS = new ChannelLocal<Counter>() {
+
+        @Override
+        protected Counter initialValue(Channel channel) {
+            return new Counter();
+        }
+    };
+
+    private ChannelReadSuspension() {
+    }
+
+    /**
+     * Stop reading from the channel until {@link #resume(Channel)} was called
+     * for this and every other suspension of the channel
+     * 
+     * @param channel
+     */
+    public static void suspend(Channel channel) {
+        Counter counter = SUSPENSIONS.get(channel);
+        synchronized (counter) {
+            if (counter.suspensions++ == 0) {
+                channel.setReadable(false);
+            }
+        }
+    }
+
+    /**
+     * Release a suspension of the channel, which is read again if it was the
+     * last one
+     * 
+     * @param channel
+     */
+    public static void resume(Channel channel) {
+        Counter counter = SUSPENSIONS.get(channel);
+        synchronized (counter) {
+            if (counter.suspensions == 0) {
+                throw new IllegalStateException("Channel " + channel.getId() + " is not suspended");
+            }
+            if (--counter.suspensions == 0 && channel.isOpen()) {
+                channel.setReadable(true);
+            }
+        }
+    }
+
+    /**
+     * Return the count of suspensions which were not resumed yet
+     * 
+     * @param channel
+     * @return suspensions
+     */
+    public static int getSuspensions(Channel channel) {
+        Counter counter = SUSPENSIONS.get(channel);
+        synchronized (counter) {
+            return counter.suspensions;
+        }
+    }
+
+    private final static class Counter {
+        private int suspensions;
+    }
+}
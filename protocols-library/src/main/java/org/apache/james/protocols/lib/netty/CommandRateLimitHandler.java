@@ -0,0 +1,188 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Limits the rate of commands per client address and per network of the
+ * client. Commands are never dropped, as this would break the protocol.
+ * Instead reading from the connection is suspended till the client is within
+ * its rates again, so a client which sends too many commands gets slower
+ * replies.
+ * 
+ * This handler needs to be placed after the handler which splits the
+ * received data into commands. Messages which are no commands, like the lines
+ * of a mail, should be excluded by overriding
+ * {@link #isCommand(ChannelHandlerContext, Object)}.
+ */
+@Sharable
+public class CommandRateLimitHandler extends SimpleChannelUpstreamHandler {
+
+    private final RateLimiter addressLimiter;
+
+    private final RateLimiter networkLimiter;
+
+    private final int ipv4Prefix;
+
+    private final int ipv6Prefix;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param addressLimiter
+     *            the limiter per address, or null
+     * @param networkLimiter
+     *            the limiter per network, or null
+     * @param ipv4Prefix
+     *            the prefix length of IPv4 networks
+     * @param ipv6Prefix
+     *            the prefix length of IPv6 networks
+     * @param scheduler
+     *            the scheduler which resumes the reading
+     */
+    public CommandRateLimitHandler(RateLimiter addressLimiter, RateLimiter networkLimiter, int ipv4Prefix, int ipv6Prefix, ScheduledExecutorService scheduler) {
+        this.addressLimiter = addressLimiter;
+        this.networkLimiter = networkLimiter;
+        this.ipv4Prefix = ipv4Prefix;
+        this.ipv6Prefix = ipv6Prefix;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (isCommand(ctx, e.getMessage())) {
+            SocketAddress remote = ctx.getChannel().getRemoteAddress();
+            if (remote instanceof InetSocketAddress && ((InetSocketAddress) remote).getAddress() != null) {
+                long delay = reserve(((InetSocketAddress) remote).getAddress());
+                if (delay > 0) {
+                    throttled.incrementAndGet();
+                    suspend(ctx, delay);
+                }
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    /**
+     * Return <code>true</code> if the given message is a command whose rate
+     * is limited. This implementation returns always <code>true</code>.
+     * 
+     * @param ctx
+     * @param message
+     * @return command
+     */
+    protected boolean isCommand(ChannelHandlerContext ctx, Object message) {
+        return true;
+    }
+
+    /**
+     * Return the count of commands which exceeded a rate and were delayed
+     * 
+     * @return throttled
+     */
+    public long getThrottledCommands() {
+        return throttled.get();
+    }
+
+    private long reserve(InetAddress address) {
+        long delay = 0;
+        if (addressLimiter != null) {
+            delay = addressLimiter.reserve(address);
+        }
+        if (networkLimiter != null) {
+            delay = Math.max(delay, networkLimiter.reserve(RateLimiter.getNetwork(address, ipv4Prefix, ipv6Prefix)));
+        }
+        return delay;
+    }
+
+    /**
+     * Stop reading from the channel for at least the given nanoseconds
+     */
+    private void suspend(ChannelHandlerContext ctx, long delay) {
+        Suspension suspension;
+        synchronized (ctx) {
+            suspension = (Suspension) ctx.getAttachment();
+            if (suspension == null) {
+                suspension = new Suspension(ctx.getChannel());
+                ctx.setAttachment(suspension);
+            }
+        }
+        suspension.extend(System.nanoTime() + delay);
+    }
+
+    /**
+     * The suspension of a channel, which is extended by every command that
+     * exceeds a rate while reading is suspended
+     */
+    private final class Suspension implements Runnable {
+
+        private final Channel channel;
+
+        private long resumeAt;
+
+        private boolean scheduled;
+
+        private Suspension(Channel channel) {
+            this.channel = channel;
+        }
+
+        private synchronized void extend(long time) {
+            resumeAt = Math.max(resumeAt, time);
+            if (!scheduled) {
+                scheduled = true;
+                ChannelReadSuspension.suspend(channel);
+                schedule(time - System.nanoTime());
+            }
+        }
+
+        public synchronized void run() {
+            long remaining = resumeAt - System.nanoTime();
+            if (remaining > 0 && channel.isOpen()) {
+                schedule(remaining);
+            } else {
+                scheduled = false;
+                ChannelReadSuspension.resume(channel);
+            }
+        }
+
+        private void schedule(long delay) {
+            try {
+                scheduler.schedule(this, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // the server is shutting down
+                channel.close();
+            }
+        }
+    }
+}
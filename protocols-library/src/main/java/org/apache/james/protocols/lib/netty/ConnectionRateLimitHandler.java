@@ -0,0 +1,127 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Limits the rate of new connections per client address and per network of
+ * the client. Connections which exceed one of the rates get the given
+ * response, which is written directly to the socket, and are closed. Data
+ * which is received from them is dropped.
+ * 
+ * This handler needs to be the first one in the pipeline, so throttled
+ * connections cost as little as possible.
+ */
+@Sharable
+public class ConnectionRateLimitHandler extends SimpleChannelUpstreamHandler {
+
+    private final RateLimiter addressLimiter;
+
+    private final RateLimiter networkLimiter;
+
+    private final int ipv4Prefix;
+
+    private final int ipv6Prefix;
+
+    private final byte[] rejectResponse;
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param addressLimiter
+     *            the limiter per address, or null
+     * @param networkLimiter
+     *            the limiter per network, or null
+     * @param ipv4Prefix
+     *            the prefix length of IPv4 networks
+     * @param ipv6Prefix
+     *            the prefix length of IPv6 networks
+     * @param rejectResponse
+     *            the response for throttled connections, or null if they
+     *            should just be closed
+     */
+    public ConnectionRateLimitHandler(RateLimiter addressLimiter, RateLimiter networkLimiter, int ipv4Prefix, int ipv6Prefix, byte[] rejectResponse) {
+        this.addressLimiter = addressLimiter;
+        this.networkLimiter = networkLimiter;
+        this.ipv4Prefix = ipv4Prefix;
+        this.ipv6Prefix = ipv6Prefix;
+        this.rejectResponse = rejectResponse;
+    }
+
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Channel channel = ctx.getChannel();
+        SocketAddress remote = channel.getRemoteAddress();
+        if (remote instanceof InetSocketAddress && !isAllowed(((InetSocketAddress) remote).getAddress())) {
+            throttled.incrementAndGet();
+            ctx.setAttachment(Boolean.TRUE);
+            if (rejectResponse == null) {
+                channel.close();
+            } else {
+                ChannelFuture future = Channels.future(channel);
+                future.addListener(ChannelFutureListener.CLOSE);
+                Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(rejectResponse));
+            }
+            return;
+        }
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (ctx.getAttachment() == null) {
+            super.messageReceived(ctx, e);
+        }
+    }
+
+    private boolean isAllowed(InetAddress address) {
+        if (address == null) {
+            return true;
+        }
+        if (addressLimiter != null && !addressLimiter.tryAcquire(address)) {
+            return false;
+        }
+        return networkLimiter == null || networkLimiter.tryAcquire(RateLimiter.getNetwork(address, ipv4Prefix, ipv6Prefix));
+    }
+
+    /**
+     * Return the count of connections which were closed because they
+     * exceeded a rate
+     * 
+     * @return throttled
+     */
+    public long getThrottledConnections() {
+        return throttled.get();
+    }
+}
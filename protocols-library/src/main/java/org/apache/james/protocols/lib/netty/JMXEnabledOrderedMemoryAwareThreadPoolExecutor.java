@@ -21,19 +21,33 @@ package org.apache.james.protocols.lib.netty;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
 import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
 /**
  * {@link OrderedMemoryAwareThreadPoolExecutor} subclass which expose statistics via JMX
  * 
- *
+ * The executor keeps track of the bytes which are queued per channel. Reads of
+ * a channel are suspended when its queued bytes reach the channel limit, or
+ * when the queued bytes of all channels reach the total limit. They are
+ * resumed when the queued bytes drop below the limits again. The I/O threads
+ * are never blocked.
  */
 public class JMXEnabledOrderedMemoryAwareThreadPoolExecutor extends OrderedMemoryAwareThreadPoolExecutor implements JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean{
 
@@ -44,16 +58,171 @@ public class JMXEnabledOrderedMemoryAwareThreadPoolExecutor extends OrderedMemor
     private int totalTasks;
     private MBeanServer mbeanServer;
     private String mbeanName;
-    
+
+    private final long channelMemoryLimit;
+    private final long totalMemoryLimit;
+    /** The weight of a new sample in the average queue wait time */
+    private final static double QUEUE_WAIT_WEIGHT = 0.1;
+
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    private final AtomicLong peakQueuedBytes = new AtomicLong(0);
+    private final AtomicLong peakChannelQueuedBytes = new AtomicLong(0);
+    private final AtomicInteger suspendedChannels = new AtomicInteger(0);
+    private final AtomicLong suspendCount = new AtomicLong(0);
+    private final ConcurrentMap<Channel, ChannelMemory> channels = new ConcurrentHashMap<Channel, ChannelMemory>();
+    private final ConcurrentMap<Runnable, QueuedTask> queuedTasks = new ConcurrentHashMap<Runnable, QueuedTask>();
+    private volatile double averageQueueWaitTime = 0;
+
+    /**
+     * @param corePoolSize
+     *            the count of threads
+     * @param maxChannelMemorySize
+     *            the queued bytes per channel at which reads of the channel
+     *            are suspended, 0 to disable
+     * @param maxTotalMemorySize
+     *            the queued bytes of all channels at which reads are
+     *            suspended, 0 to disable
+     * @param jmxPath
+     * @param name
+     */
     public JMXEnabledOrderedMemoryAwareThreadPoolExecutor(int corePoolSize, long maxChannelMemorySize, long maxTotalMemorySize, String jmxPath, String name) {
-        super(corePoolSize, maxChannelMemorySize, maxTotalMemorySize, 30, TimeUnit.SECONDS, new NamedThreadFactory(name));
+        // the limits are enforced by this class, as the super class blocks the
+        // I/O threads when the total limit is reached
+        super(corePoolSize, 0, 0, 30, TimeUnit.SECONDS, new NamedThreadFactory(name));
+        this.channelMemoryLimit = maxChannelMemorySize;
+        this.totalMemoryLimit = maxTotalMemorySize;
         this.jmxPath = jmxPath;
         registerMBean();
     }
-    
 
+    @Override
+    protected void increaseCounter(Runnable task) {
+        super.increaseCounter(task);
+        if (!(task instanceof ChannelEventRunnable)) {
+            return;
+        }
+        int size = getObjectSizeEstimator().estimateSize(task);
+        Channel channel = ((ChannelEventRunnable) task).getEvent().getChannel();
+        ChannelMemory memory = size > 0 ? getChannelMemory(channel) : null;
+        if (memory == null) {
+            size = 0;
+        }
+        queuedTasks.put(task, new QueuedTask(size, System.currentTimeMillis()));
+        if (size == 0) {
+            return;
+        }
+
+        long channelBytes = memory.queued.addAndGet(size);
+        updatePeak(memory.peak, channelBytes);
+        updatePeak(peakChannelQueuedBytes, channelBytes);
+        long totalBytes = queuedBytes.addAndGet(size);
+        updatePeak(peakQueuedBytes, totalBytes);
+
+        if (isAboveLimit(channelBytes, totalBytes)) {
+            suspend(channel, memory);
+        }
+    }
+
+    @Override
+    protected void decreaseCounter(Runnable task) {
+        super.decreaseCounter(task);
+        QueuedTask queued = queuedTasks.remove(task);
+        if (queued == null) {
+            return;
+        }
+        long wait = System.currentTimeMillis() - queued.queuedAt;
+        averageQueueWaitTime = averageQueueWaitTime * (1 - QUEUE_WAIT_WEIGHT) + wait * QUEUE_WAIT_WEIGHT;
+
+        int size = queued.size;
+        if (size == 0) {
+            return;
+        }
+        long totalBytes = queuedBytes.addAndGet(-size);
+        Channel channel = ((ChannelEventRunnable) task).getEvent().getChannel();
+        ChannelMemory memory = channels.get(channel);
+        if (memory != null) {
+            long channelBytes = memory.queued.addAndGet(-size);
+            if (!isAboveLimit(channelBytes, totalBytes)) {
+                resume(channel, memory);
+            }
+        }
+
+        // channels which were suspended because of the total limit may have
+        // nothing queued, so they are resumed here
+        if (totalMemoryLimit > 0 && totalBytes < totalMemoryLimit && suspendedChannels.get() > 0) {
+            Iterator<Map.Entry<Channel, ChannelMemory>> it = channels.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Channel, ChannelMemory> entry = it.next();
+                ChannelMemory m = entry.getValue();
+                if (m.suspended && !isAboveLimit(m.queued.get(), totalBytes)) {
+                    resume(entry.getKey(), m);
+                }
+            }
+        }
+    }
+
+    private boolean isAboveLimit(long channelBytes, long totalBytes) {
+        return (channelMemoryLimit > 0 && channelBytes >= channelMemoryLimit) || (totalMemoryLimit > 0 && totalBytes >= totalMemoryLimit);
+    }
+
+    private ChannelMemory getChannelMemory(final Channel channel) {
+        ChannelMemory memory = channels.get(channel);
+        if (memory == null) {
+            if (!channel.isOpen()) {
+                return null;
+            }
+            memory = new ChannelMemory();
+            ChannelMemory existing = channels.putIfAbsent(channel, memory);
+            if (existing != null) {
+                return existing;
+            }
+            channel.getCloseFuture().addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    ChannelMemory removed = channels.remove(channel);
+                    if (removed != null) {
+                        synchronized (removed) {
+                            if (removed.suspended) {
+                                removed.suspended = false;
+                                suspendedChannels.decrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        return memory;
+    }
+
+    private void suspend(Channel channel, ChannelMemory memory) {
+        synchronized (memory) {
+            if (memory.suspended || !channel.isOpen()) {
+                return;
+            }
+            memory.suspended = true;
+            // the channel stays suspended even if others resume it
+            ChannelReadSuspension.suspend(channel);
+        }
+        suspendedChannels.incrementAndGet();
+        suspendCount.incrementAndGet();
+    }
 
+    private void resume(Channel channel, ChannelMemory memory) {
+        synchronized (memory) {
+            if (!memory.suspended) {
+                return;
+            }
+            memory.suspended = false;
+            ChannelReadSuspension.resume(channel);
+        }
+        suspendedChannels.decrementAndGet();
+    }
 
+    private void updatePeak(AtomicLong peak, long value) {
+        long current = peak.get();
+        while (value > current && !peak.compareAndSet(current, value)) {
+            current = peak.get();
+        }
+    }
 
     @Override
     protected void beforeExecute(Thread t, Runnable r) {
@@ -160,4 +329,99 @@ public class JMXEnabledOrderedMemoryAwareThreadPoolExecutor extends OrderedMemor
         return getMaximumPoolSize();
     }
 
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getChannelMemoryLimit()
+     */
+    public long getChannelMemoryLimit() {
+        return channelMemoryLimit;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getTotalMemoryLimit()
+     */
+    public long getTotalMemoryLimit() {
+        return totalMemoryLimit;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getQueuedBytes()
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getPeakQueuedBytes()
+     */
+    public long getPeakQueuedBytes() {
+        return peakQueuedBytes.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getPeakChannelQueuedBytes()
+     */
+    public long getPeakChannelQueuedBytes() {
+        return peakChannelQueuedBytes.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getSuspendedChannels()
+     */
+    public int getSuspendedChannels() {
+        return suspendedChannels.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getSuspendCount()
+     */
+    public long getSuspendCount() {
+        return suspendCount.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getChannelQueuedBytes()
+     */
+    public String[] getChannelQueuedBytes() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<Channel, ChannelMemory> entry : channels.entrySet()) {
+            ChannelMemory memory = entry.getValue();
+            result.add(new StringBuilder().append(entry.getKey().getRemoteAddress()).append(" queued=").append(memory.queued.get()).append(" peak=").append(memory.peak.get()).append(memory.suspended ? " suspended" : "").toString());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean#getQueueWaitTime()
+     */
+    public long getQueueWaitTime() {
+        long oldest = 0;
+        long now = System.currentTimeMillis();
+        for (QueuedTask queued : queuedTasks.values()) {
+            oldest = Math.max(oldest, now - queued.queuedAt);
+        }
+        return Math.max(oldest, (long) averageQueueWaitTime);
+    }
+
+    /**
+     * Size and queue time of a task
+     */
+    private static final class QueuedTask {
+        private final int size;
+        private final long queuedAt;
+
+        public QueuedTask(int size, long queuedAt) {
+            this.size = size;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * Queued bytes of a channel
+     */
+    private static final class ChannelMemory {
+        private final AtomicLong queued = new AtomicLong(0);
+        private final AtomicLong peak = new AtomicLong(0);
+        private volatile boolean suspended = false;
+    }
+
 }
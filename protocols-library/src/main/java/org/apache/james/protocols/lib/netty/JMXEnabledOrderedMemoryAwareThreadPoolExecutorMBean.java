@@ -22,4 +22,72 @@ import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutorMBean;
 
 public interface JMXEnabledOrderedMemoryAwareThreadPoolExecutorMBean extends JMXEnabledThreadPoolExecutorMBean{
 
+    /**
+     * Return the queued bytes per channel at which reads of the channel are
+     * suspended, 0 if there is no limit
+     * 
+     * @return channelMemoryLimit
+     */
+    long getChannelMemoryLimit();
+
+    /**
+     * Return the queued bytes of all channels at which reads are suspended, 0
+     * if there is no limit
+     * 
+     * @return totalMemoryLimit
+     */
+    long getTotalMemoryLimit();
+
+    /**
+     * Return the bytes which are queued for execution
+     * 
+     * @return queuedBytes
+     */
+    long getQueuedBytes();
+
+    /**
+     * Return the highest count of bytes which were queued for execution
+     * 
+     * @return peakQueuedBytes
+     */
+    long getPeakQueuedBytes();
+
+    /**
+     * Return the highest count of bytes which were queued for a single channel
+     * 
+     * @return peakChannelQueuedBytes
+     */
+    long getPeakChannelQueuedBytes();
+
+    /**
+     * Return the count of channels which reads are suspended because a limit
+     * was reached
+     * 
+     * @return suspendedChannels
+     */
+    int getSuspendedChannels();
+
+    /**
+     * Return how often reads of a channel were suspended because a limit was
+     * reached
+     * 
+     * @return suspendCount
+     */
+    long getSuspendCount();
+
+    /**
+     * Return the time in milliseconds tasks wait in the queue, which is the
+     * wait time of the oldest queued task or the average wait time if that is
+     * higher
+     * 
+     * @return queueWaitTime
+     */
+    long getQueueWaitTime();
+
+    /**
+     * Return the queued and the peak bytes of the open channels
+     * 
+     * @return channelQueuedBytes
+     */
+    String[] getChannelQueuedBytes();
 }
@@ -0,0 +1,299 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * {@link SSLContext} which creates the engines of the given context and
+ * records their handshakes in the {@link TLSHandshakeStats}. This works with
+ * every provider and covers implicit TLS as well as STARTTLS, as both create
+ * their engines from the context of the server.
+ * 
+ * A handshake starts with the first record which belongs to it and completes
+ * when the engine reports it as finished. It resumed a session if the
+ * session was created before the handshake started.
+ */
+public class MeasuredSSLContext extends SSLContext {
+
+    /**
+     * @param context
+     *            the initialized context which creates the engines
+     * @param stats
+     *            the statistics of the handshakes
+     */
+    public MeasuredSSLContext(SSLContext context, TLSHandshakeStats stats) {
+        super(new MeasuredSSLContextSpi(context, stats), context.getProvider(), context.getProtocol());
+    }
+
+    private static final class MeasuredSSLContextSpi extends SSLContextSpi {
+
+        private final SSLContext context;
+
+        private final TLSHandshakeStats stats;
+
+        private MeasuredSSLContextSpi(SSLContext context, TLSHandshakeStats stats) {
+            this.context = context;
+            this.stats = stats;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+            throw new KeyManagementException("The context is already initialized");
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return context.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return context.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new MeasuredSSLEngine(context.createSSLEngine(), stats);
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return new MeasuredSSLEngine(context.createSSLEngine(host, port), stats);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return context.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return context.getClientSessionContext();
+        }
+    }
+
+    /**
+     * {@link SSLEngine} which delegates to the engine of the provider and
+     * watches the handshake status of the results
+     */
+    private static final class MeasuredSSLEngine extends SSLEngine {
+
+        private final SSLEngine engine;
+
+        private final TLSHandshakeStats stats;
+
+        /** The start of the current handshake, 0 if there is none */
+        private final AtomicLong handshakeStart = new AtomicLong();
+
+        private MeasuredSSLEngine(SSLEngine engine, TLSHandshakeStats stats) {
+            super(engine.getPeerHost(), engine.getPeerPort());
+            this.engine = engine;
+            this.stats = stats;
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException {
+            long start = System.nanoTime();
+            try {
+                return measure(engine.wrap(srcs, offset, length, dst), start);
+            } catch (SSLException e) {
+                failed();
+                throw e;
+            }
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws SSLException {
+            long start = System.nanoTime();
+            try {
+                return measure(engine.unwrap(src, dsts, offset, length), start);
+            } catch (SSLException e) {
+                failed();
+                throw e;
+            }
+        }
+
+        private SSLEngineResult measure(SSLEngineResult result, long start) {
+            HandshakeStatus status = result.getHandshakeStatus();
+            if (status == HandshakeStatus.FINISHED) {
+                long begun = handshakeStart.getAndSet(0);
+                if (begun == 0) {
+                    begun = start;
+                }
+                long time = System.nanoTime() - begun;
+                long begunMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(time);
+                stats.handshakeCompleted(time, engine.getSession().getCreationTime() < begunMillis);
+            } else if (status != HandshakeStatus.NOT_HANDSHAKING) {
+                handshakeStart.compareAndSet(0, start);
+            }
+            return result;
+        }
+
+        private void failed() {
+            if (handshakeStart.getAndSet(0) != 0) {
+                stats.handshakeFailed();
+            }
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException {
+            handshakeStart.compareAndSet(0, System.nanoTime());
+            engine.beginHandshake();
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return engine.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException {
+            try {
+                engine.closeInbound();
+            } catch (SSLException e) {
+                failed();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return engine.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound() {
+            engine.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return engine.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return engine.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return engine.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            engine.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return engine.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return engine.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            engine.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return engine.getSession();
+        }
+
+        @Override
+        public HandshakeStatus getHandshakeStatus() {
+            return engine.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            engine.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return engine.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            engine.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return engine.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            engine.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return engine.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            engine.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return engine.getEnableSessionCreation();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return engine.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params) {
+            engine.setSSLParameters(params);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Rate limits per key, for example the address of a client, which are
+ * enforced with the generic cell rate algorithm. This is the same as a token
+ * bucket which holds <code>burst</code> tokens and gets refilled with
+ * <code>rate</code> tokens per second, but needs only the time at which the
+ * bucket is full again to be stored per key.
+ * 
+ * The buckets are kept in a fixed size table which is accessed without locks.
+ * A key can only be stored in a few slots next to its hash. Buckets which are
+ * full again are the same as no bucket, so their slots get reused. If all
+ * slots of a key are in use, the bucket which gets full first is evicted. So
+ * the memory is bounded and a client which is evicted is treated as if it
+ * did not connect before.
+ */
+public class RateLimiter {
+
+    /** The slots which are probed for a key */
+    private static final int PROBES = 8;
+
+    private final AtomicReferenceArray<Bucket> buckets;
+
+    private final int mask;
+
+    /** Nanoseconds per token */
+    private final long interval;
+
+    /** Nanoseconds the bucket may be ahead of the current time */
+    private final long tolerance;
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param rate
+     *            the tokens per second
+     * @param burst
+     *            the tokens the bucket can hold
+     * @param size
+     *            the count of buckets which are kept, rounded up to a power
+     *            of two
+     */
+    public RateLimiter(double rate, int burst, int size) {
+        if (rate <= 0 || burst < 1 || size < 1) {
+            throw new IllegalArgumentException("Rate, burst and size need to be greater than zero");
+        }
+        int capacity = Integer.highestOneBit(Math.max(size, PROBES) - 1) << 1;
+        this.buckets = new AtomicReferenceArray<Bucket>(capacity);
+        this.mask = capacity - 1;
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        this.tolerance = interval * (burst - 1);
+    }
+
+    /**
+     * Take a token for the given key if one is available
+     * 
+     * @param key
+     * @return <code>true</code> if the token was taken, <code>false</code> if
+     *         the rate is exceeded
+     */
+    public boolean tryAcquire(Object key) {
+        return tryAcquire(key, nanoTime());
+    }
+
+    boolean tryAcquire(Object key, long now) {
+        AtomicLong full = getBucket(key, now);
+        while (true) {
+            long current = full.get();
+            long start = Math.max(current, now);
+            if (start - now > tolerance) {
+                return false;
+            }
+            if (full.compareAndSet(current, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take a token for the given key, even if none is available. The caller
+     * has to wait till the token would have been available before it does
+     * the next request, so the requests are paced to the rate.
+     * 
+     * @param key
+     * @return nanoseconds to wait, <code>0</code> if the rate is not exceeded
+     */
+    public long reserve(Object key) {
+        return reserve(key, nanoTime());
+    }
+
+    long reserve(Object key, long now) {
+        AtomicLong full = getBucket(key, now);
+        while (true) {
+            long current = full.get();
+            long start = Math.max(current, now);
+            if (full.compareAndSet(current, start + interval)) {
+                return Math.max(0, start - now - tolerance);
+            }
+        }
+    }
+
+    /**
+     * Return the count of buckets which were evicted while they were in use
+     * 
+     * @return evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the count of buckets which can be kept
+     * 
+     * @return capacity
+     */
+    public int getCapacity() {
+        return buckets.length();
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Return the time at which the bucket of the given key is full, creating
+     * the bucket if needed
+     */
+    private AtomicLong getBucket(Object key, long now) {
+        int index = spread(key.hashCode());
+        while (true) {
+            int reusable = -1;
+            int oldest = -1;
+            Bucket oldestBucket = null;
+            for (int i = 0; i < PROBES; i++) {
+                int slot = (index + i) & mask;
+                Bucket bucket = buckets.get(slot);
+                if (bucket == null || bucket.full.get() <= now) {
+                    if (bucket != null && bucket.key.equals(key)) {
+                        return bucket.full;
+                    }
+                    if (reusable == -1) {
+                        reusable = slot;
+                    }
+                } else if (bucket.key.equals(key)) {
+                    return bucket.full;
+                } else if (oldestBucket == null || bucket.full.get() < oldestBucket.full.get()) {
+                    oldest = slot;
+                    oldestBucket = bucket;
+                }
+            }
+
+            Bucket created = new Bucket(key, now);
+            if (reusable != -1) {
+                Bucket expected = buckets.get(reusable);
+                if ((expected == null || expected.full.get() <= now) && buckets.compareAndSet(reusable, expected, created)) {
+                    return created.full;
+                }
+            } else if (buckets.compareAndSet(oldest, oldestBucket, created)) {
+                evictions.incrementAndGet();
+                return created.full;
+            }
+            // another thread changed the slot, so the key may be stored now
+        }
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Return the network of the given address, which is used to limit the
+     * rate of a whole network instead of single addresses
+     * 
+     * @param address
+     * @param ipv4Prefix
+     *            the prefix length of IPv4 networks
+     * @param ipv6Prefix
+     *            the prefix length of IPv6 networks
+     * @return network
+     */
+    public static InetAddress getNetwork(InetAddress address, int ipv4Prefix, int ipv6Prefix) {
+        byte[] bytes = address.getAddress();
+        int prefix = bytes.length == 4 ? ipv4Prefix : ipv6Prefix;
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = Math.min(8, Math.max(0, prefix - i * 8));
+            bytes[i] &= (byte) (0xFF00 >> bits);
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // can not happen, the length of the address is valid
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static final class Bucket {
+
+        private final Object key;
+
+        /** The time at which the bucket is full again */
+        private final AtomicLong full;
+
+        private Bucket(Object key, long now) {
+            this.key = key;
+            this.full = new AtomicLong(now);
+        }
+    }
+}
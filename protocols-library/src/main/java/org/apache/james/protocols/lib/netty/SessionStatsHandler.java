@@ -0,0 +1,155 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.protocols.lib.jmx.RollingHistogram;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Gather statistics about the sessions of a server: the bytes which were
+ * received and sent, the commands per session and the duration of the
+ * sessions.
+ * 
+ * This handler needs to be placed after the handler which splits the
+ * received data into commands. Messages which are no commands, like the lines
+ * of a mail, should be excluded by overriding
+ * {@link #isCommand(ChannelHandlerContext, Object)}.
+ */
+@Sharable
+public class SessionStatsHandler extends SimpleChannelHandler {
+
+    /** Bucket bounds in milliseconds for the duration of sessions */
+    public static final long[] DURATION_BOUNDS = { 100, 500, 1000, 5000, 10000, 30000, 60000, 5 * 60000, 10 * 60000, 30 * 60000 };
+
+    /** Bucket bounds for the commands per session */
+    public static final long[] COMMAND_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    private final RollingHistogram durations = new RollingHistogram(DURATION_BOUNDS, RollingHistogram.DEFAULT_WINDOW_LENGTH, RollingHistogram.DEFAULT_WINDOWS);
+
+    private final RollingHistogram commands = new RollingHistogram(COMMAND_BOUNDS, RollingHistogram.DEFAULT_WINDOW_LENGTH, RollingHistogram.DEFAULT_WINDOWS);
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ctx.setAttachment(new Session());
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object message = e.getMessage();
+        if (message instanceof ChannelBuffer) {
+            receivedBytes.addAndGet(((ChannelBuffer) message).readableBytes());
+        }
+        Session session = (Session) ctx.getAttachment();
+        if (session != null && isCommand(ctx, message)) {
+            session.commands.incrementAndGet();
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object message = e.getMessage();
+        if (message instanceof ChannelBuffer) {
+            sentBytes.addAndGet(((ChannelBuffer) message).readableBytes());
+        } else if (message instanceof FileRegion) {
+            sentBytes.addAndGet(((FileRegion) message).getCount());
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Session session = (Session) ctx.getAttachment();
+        if (session != null) {
+            durations.record(System.currentTimeMillis() - session.start);
+            commands.record(session.commands.get());
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * Return <code>true</code> if the given message is a command. This
+     * implementation returns always <code>true</code>.
+     * 
+     * @param ctx
+     * @param message
+     * @return command
+     */
+    protected boolean isCommand(ChannelHandlerContext ctx, Object message) {
+        return true;
+    }
+
+    /**
+     * Return the count of bytes which were received
+     * 
+     * @return receivedBytes
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * Return the count of bytes which were sent
+     * 
+     * @return sentBytes
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * Return the histogram of the durations in milliseconds of the sessions
+     * which ended in the last minutes
+     * 
+     * @return durations
+     */
+    public RollingHistogram getSessionDurations() {
+        return durations;
+    }
+
+    /**
+     * Return the histogram of the commands per session of the sessions which
+     * ended in the last minutes
+     * 
+     * @return commands
+     */
+    public RollingHistogram getCommandsPerSession() {
+        return commands;
+    }
+
+    private static final class Session {
+
+        private final long start = System.currentTimeMillis();
+
+        private final AtomicLong commands = new AtomicLong();
+    }
+}
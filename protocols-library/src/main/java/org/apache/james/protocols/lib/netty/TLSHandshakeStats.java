@@ -0,0 +1,169 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Statistics of the TLS handshakes of a server, which are collected by the
+ * engines of a {@link MeasuredSSLContext}
+ */
+public class TLSHandshakeStats implements TLSHandshakeStatsMBean {
+
+    private final SSLSessionContext sessionContext;
+
+    private final AtomicLong handshakes = new AtomicLong();
+
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    private final AtomicLong failedHandshakes = new AtomicLong();
+
+    private final AtomicLong handshakeTime = new AtomicLong();
+
+    private final AtomicLong resumedHandshakeTime = new AtomicLong();
+
+    private final AtomicLong maxHandshakeTime = new AtomicLong();
+
+    /**
+     * @param sessionContext
+     *            the context which caches the sessions of the server
+     */
+    public TLSHandshakeStats(SSLSessionContext sessionContext) {
+        this.sessionContext = sessionContext;
+    }
+
+    /**
+     * Record a completed handshake
+     * 
+     * @param time
+     *            the nanoseconds the handshake took
+     * @param resumed
+     *            true if a session was resumed
+     */
+    public void handshakeCompleted(long time, boolean resumed) {
+        handshakes.incrementAndGet();
+        handshakeTime.addAndGet(time);
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+            resumedHandshakeTime.addAndGet(time);
+        }
+        long max;
+        while ((max = maxHandshakeTime.get()) < time) {
+            if (maxHandshakeTime.compareAndSet(max, time)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Record a handshake which failed
+     */
+    public void handshakeFailed() {
+        failedHandshakes.incrementAndGet();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getHandshakes()
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getResumedHandshakes()
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getFailedHandshakes()
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes.get();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getResumptionRatio()
+     */
+    public double getResumptionRatio() {
+        long count = handshakes.get();
+        if (count == 0) {
+            return 0;
+        }
+        return (double) resumedHandshakes.get() / count;
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getAverageHandshakeTime()
+     */
+    public double getAverageHandshakeTime() {
+        return average(handshakeTime.get(), handshakes.get());
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getAverageResumedHandshakeTime()
+     */
+    public double getAverageResumedHandshakeTime() {
+        return average(resumedHandshakeTime.get(), resumedHandshakes.get());
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getMaxHandshakeTime()
+     */
+    public long getMaxHandshakeTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxHandshakeTime.get());
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getSessionCacheSize()
+     */
+    public int getSessionCacheSize() {
+        return sessionContext.getSessionCacheSize();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#getSessionTimeout()
+     */
+    public int getSessionTimeout() {
+        return sessionContext.getSessionTimeout();
+    }
+
+    /**
+     * @see org.apache.james.protocols.lib.netty.TLSHandshakeStatsMBean#resetStatistics()
+     */
+    public void resetStatistics() {
+        handshakes.set(0);
+        resumedHandshakes.set(0);
+        failedHandshakes.set(0);
+        handshakeTime.set(0);
+        resumedHandshakeTime.set(0);
+        maxHandshakeTime.set(0);
+    }
+
+    private double average(long time, long count) {
+        if (count == 0) {
+            return 0;
+        }
+        return (double) time / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
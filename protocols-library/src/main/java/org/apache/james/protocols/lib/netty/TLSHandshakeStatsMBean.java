@@ -0,0 +1,96 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+/**
+ * JMX MBean interface for the {@link TLSHandshakeStats}
+ */
+public interface TLSHandshakeStatsMBean {
+
+    /**
+     * Return the count of completed handshakes
+     * 
+     * @return handshakes
+     */
+    long getHandshakes();
+
+    /**
+     * Return the count of completed handshakes which resumed a session
+     * 
+     * @return resumedHandshakes
+     */
+    long getResumedHandshakes();
+
+    /**
+     * Return the count of handshakes which failed
+     * 
+     * @return failedHandshakes
+     */
+    long getFailedHandshakes();
+
+    /**
+     * Return the ratio of completed handshakes which resumed a session
+     * 
+     * @return resumptionRatio
+     */
+    double getResumptionRatio();
+
+    /**
+     * Return the average time in milliseconds from the start till the end of
+     * a completed handshake
+     * 
+     * @return averageHandshakeTime
+     */
+    double getAverageHandshakeTime();
+
+    /**
+     * Return the average time in milliseconds of completed handshakes which
+     * resumed a session
+     * 
+     * @return averageResumedHandshakeTime
+     */
+    double getAverageResumedHandshakeTime();
+
+    /**
+     * Return the maximal time in milliseconds of a completed handshake
+     * 
+     * @return maxHandshakeTime
+     */
+    long getMaxHandshakeTime();
+
+    /**
+     * Return the count of sessions which are cached for resumption, 0 means
+     * unlimited
+     * 
+     * @return sessionCacheSize
+     */
+    int getSessionCacheSize();
+
+    /**
+     * Return the seconds a session can be resumed, 0 means unlimited
+     * 
+     * @return sessionTimeout
+     */
+    int getSessionTimeout();
+
+    /**
+     * Reset the statistics
+     */
+    void resetStatistics();
+}
@@ -0,0 +1,271 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.LifeCycleAwareChannelHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Coalesce the responses of pipelined commands into a single write. While
+ * received data is still decoded or decoded commands are still waiting to be
+ * processed, the responses are buffered. They are written at once when the
+ * last of these commands was processed, so a client which pipelines MAIL,
+ * several RCPT and DATA gets all responses with one write and mostly in one
+ * TCP segment.
+ * <p>
+ * The handler tracks the pending input with two additional handlers, which
+ * are part of the same pipeline:
+ * <ul>
+ * <li>{@link #getReadHandler()} needs to be placed before the framer. It marks
+ * the received data as pending until the framer decoded all commands of it.</li>
+ * <li>{@link #getCommandHandler()} needs to be placed after the framer and
+ * before the executor. It marks every decoded command as pending.</li>
+ * </ul>
+ * This handler itself needs to be placed right before the core handler, where
+ * it marks the commands as processed and receives their responses. Responses
+ * which are no {@link ChannelBuffer}, like streams, and all other downstream
+ * events flush the buffered responses first, so their order is kept.
+ * <p>
+ * The events are passed on without holding the lock of the handler, one
+ * thread at a time in the order they were queued. So handlers further
+ * downstream, like the SslHandler, never run while the threads which process
+ * the commands of the channel wait for this handler.
+ * <p>
+ * Instances are bound to a single channel.
+ */
+public class WriteCoalescingHandler extends SimpleChannelHandler implements LifeCycleAwareChannelHandler {
+
+    /** The default bytes which are buffered before they are written anyway */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 16 * 1024;
+
+    private final int maxBufferSize;
+
+    private final List<MessageEvent> writes = new ArrayList<MessageEvent>();
+
+    private int bufferedBytes;
+
+    private int pending;
+
+    /** The events to pass on, in their order */
+    private final LinkedList<ChannelEvent> outbound = new LinkedList<ChannelEvent>();
+
+    /** True while a thread passes on the outbound events */
+    private boolean sending;
+
+    private ChannelHandlerContext ctx;
+
+    public WriteCoalescingHandler() {
+        this(DEFAULT_MAX_BUFFER_SIZE);
+    }
+
+    public WriteCoalescingHandler(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Return the handler which needs to be placed before the framer
+     * 
+     * @return readHandler
+     */
+    public ChannelUpstreamHandler getReadHandler() {
+        return new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                begin();
+                try {
+                    super.messageReceived(ctx, e);
+                } finally {
+                    end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Return the handler which needs to be placed after the framer and before
+     * the executor
+     * 
+     * @return commandHandler
+     */
+    public ChannelUpstreamHandler getCommandHandler() {
+        return new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                begin();
+                super.messageReceived(ctx, e);
+            }
+        };
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        try {
+            super.messageReceived(ctx, e);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        synchronized (this) {
+            if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer && pending > 0 && ctx.getChannel().isOpen()) {
+                MessageEvent event = (MessageEvent) e;
+                writes.add(event);
+                bufferedBytes += ((ChannelBuffer) event.getMessage()).readableBytes();
+                if (bufferedBytes >= maxBufferSize) {
+                    flush();
+                }
+            } else {
+                // keep the order with the buffered responses
+                flush();
+                outbound.add(e);
+            }
+        }
+        send();
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            // fails the futures of the buffered responses
+            flush();
+        }
+        send();
+        super.channelClosed(ctx, e);
+    }
+
+    private synchronized void begin() {
+        pending++;
+    }
+
+    private void end() {
+        synchronized (this) {
+            if (--pending == 0) {
+                flush();
+            }
+        }
+        send();
+    }
+
+    /**
+     * Pass on the outbound events in their order, unless another thread
+     * already does. The lock is not held while an event is passed on, events
+     * which are queued meanwhile are passed on by the same thread.
+     */
+    private void send() {
+        synchronized (this) {
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                ChannelEvent event;
+                synchronized (this) {
+                    event = outbound.poll();
+                    if (event == null) {
+                        sending = false;
+                        done = true;
+                        return;
+                    }
+                }
+                ctx.sendDownstream(event);
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    sending = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the buffered responses as one write. The futures of the responses
+     * are notified when this write completes. The caller needs to hold the
+     * lock and to call {@link #send()} after releasing it.
+     */
+    private void flush() {
+        if (writes.isEmpty()) {
+            return;
+        }
+        if (writes.size() == 1) {
+            outbound.add(writes.get(0));
+        } else {
+            final ChannelFuture[] futures = new ChannelFuture[writes.size()];
+            ChannelBuffer[] buffers = new ChannelBuffer[writes.size()];
+            for (int i = 0; i < futures.length; i++) {
+                MessageEvent event = writes.get(i);
+                futures[i] = event.getFuture();
+                buffers[i] = (ChannelBuffer) event.getMessage();
+            }
+            ChannelFuture future = Channels.future(ctx.getChannel());
+            future.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    for (int i = 0; i < futures.length; i++) {
+                        if (future.isSuccess()) {
+                            futures[i].setSuccess();
+                        } else {
+                            futures[i].setFailure(future.getCause());
+                        }
+                    }
+                }
+            });
+            outbound.add(new DownstreamMessageEvent(ctx.getChannel(), future, ChannelBuffers.wrappedBuffer(buffers), writes.get(0).getRemoteAddress()));
+        }
+        writes.clear();
+        bufferedBytes = 0;
+    }
+
+    public void beforeAdd(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    public void afterAdd(ChannelHandlerContext ctx) throws Exception {
+    }
+
+    public void beforeRemove(ChannelHandlerContext ctx) throws Exception {
+        synchronized (this) {
+            flush();
+        }
+        send();
+    }
+
+    public void afterRemove(ChannelHandlerContext ctx) throws Exception {
+    }
+}
@@ -0,0 +1,88 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.jmx;
+
+import junit.framework.TestCase;
+
+public class RollingHistogramTest extends TestCase {
+
+    private static final long MINUTE = 60 * 1000;
+
+    public void testBuckets() {
+        RollingHistogram histogram = new RollingHistogram(new long[] { 1, 10, 100 }, MINUTE, 5);
+        long now = 1000 * MINUTE;
+        histogram.record(0, now);
+        histogram.record(1, now);
+        histogram.record(9, now);
+        histogram.record(100, now);
+        histogram.record(5000, now);
+
+        long[] counts = histogram.getCounts(now);
+        assertEquals(4, counts.length);
+        assertEquals(1, counts[0]);
+        assertEquals(2, counts[1]);
+        assertEquals(0, counts[2]);
+        assertEquals(2, counts[3]);
+        assertEquals(5000, histogram.getMax(now));
+        assertEquals(1022.0, histogram.getAverage(now), 0.0001);
+    }
+
+    public void testPercentile() {
+        RollingHistogram histogram = new RollingHistogram(new long[] { 1, 10, 100 }, MINUTE, 5);
+        long now = 1000 * MINUTE;
+        assertEquals(0, histogram.getPercentile(50, now));
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(5, now);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(50, now);
+        }
+        histogram.record(700, now);
+
+        assertEquals(10, histogram.getPercentile(50, now));
+        assertEquals(10, histogram.getPercentile(90, now));
+        assertEquals(100, histogram.getPercentile(95, now));
+        assertEquals(100, histogram.getPercentile(99, now));
+        assertEquals(700, histogram.getPercentile(100, now));
+    }
+
+    public void testRolling() {
+        RollingHistogram histogram = new RollingHistogram(new long[] { 1, 10, 100 }, MINUTE, 5);
+        long now = 1000 * MINUTE;
+        histogram.record(5, now);
+        histogram.record(50, now + MINUTE);
+        assertEquals(2, histogram.getCounts(now + MINUTE)[1] + histogram.getCounts(now + MINUTE)[2]);
+
+        // the first window is too old
+        long later = now + 5 * MINUTE;
+        assertEquals(0, histogram.getCounts(later)[1]);
+        assertEquals(1, histogram.getCounts(later)[2]);
+        assertEquals(50, histogram.getMax(later));
+
+        // the window of the first value is reused
+        histogram.record(500, later);
+        long[] counts = histogram.getCounts(later);
+        assertEquals(0, counts[1]);
+        assertEquals(1, counts[2]);
+        assertEquals(1, counts[3]);
+
+        assertEquals(0, histogram.getCounts(later + 10 * MINUTE)[3]);
+    }
+}
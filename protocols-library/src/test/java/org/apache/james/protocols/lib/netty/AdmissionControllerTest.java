@@ -0,0 +1,133 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import junit.framework.TestCase;
+
+import org.apache.james.protocols.lib.netty.AdmissionController.Decision;
+
+public class AdmissionControllerTest extends TestCase {
+
+    private long queueWaitTime;
+    private long spoolSize;
+    private double heapUsage;
+    private int spoolMeasurements;
+
+    private AdmissionController createController(boolean tarpit) {
+        return createController(0, tarpit);
+    }
+
+    private AdmissionController createController(long spoolInterval, boolean tarpit) {
+        return new AdmissionController(1000, 100, spoolInterval, 0.9, tarpit) {
+
+            @Override
+            protected long measureQueueWaitTime() {
+                return queueWaitTime;
+            }
+
+            @Override
+            protected long measureSpoolSize() {
+                spoolMeasurements++;
+                return spoolSize;
+            }
+
+            @Override
+            protected double measureHeapUsage() {
+                return heapUsage;
+            }
+        };
+    }
+
+    public void testAdmitWithoutLoad() {
+        AdmissionController controller = createController(false);
+        controller.evaluate();
+
+        assertFalse(controller.isShedding());
+        assertEquals(Decision.ADMIT, controller.admit());
+        assertEquals(1, controller.getAdmittedConnections());
+    }
+
+    public void testShedOnQueueWaitTime() {
+        AdmissionController controller = createController(false);
+        queueWaitTime = 5000;
+        for (int i = 0; i < 4; i++) {
+            controller.evaluate();
+        }
+
+        assertTrue(controller.isShedding());
+        assertEquals(1.0, controller.getShedRatio(), 0.0001);
+        assertNotNull(controller.getOverloadReason());
+        assertEquals(Decision.REJECT, controller.admit());
+        assertEquals(1, controller.getRejectedConnections());
+    }
+
+    public void testShedOnSpoolSizeAndHeapUsage() {
+        AdmissionController controller = createController(true);
+        spoolSize = 100;
+        controller.evaluate();
+        assertTrue(controller.isShedding());
+
+        spoolSize = 0;
+        heapUsage = 0.95;
+        controller.evaluate();
+        assertTrue(controller.getOverloadReason().startsWith("heap usage"));
+
+        for (int i = 0; i < 4; i++) {
+            controller.evaluate();
+        }
+        assertEquals(Decision.TARPIT, controller.admit());
+        assertEquals(1, controller.getTarpittedConnections());
+    }
+
+    public void testSpoolSizeIsMeasuredOncePerInterval() {
+        AdmissionController controller = createController(60000, false);
+        spoolSize = 100;
+        controller.evaluate();
+        assertTrue(controller.isShedding());
+
+        // the last measured size is used until the interval has elapsed
+        spoolSize = 0;
+        for (int i = 0; i < 10; i++) {
+            controller.evaluate();
+        }
+        assertEquals(1, spoolMeasurements);
+        assertEquals(100, controller.getSpoolSize());
+        assertEquals(1.0, controller.getShedRatio(), 0.0001);
+    }
+
+    public void testRecovery() {
+        AdmissionController controller = createController(false);
+        queueWaitTime = 5000;
+        controller.evaluate();
+        double ratio = controller.getShedRatio();
+
+        // below the limit but not recovered, so the ratio is kept
+        queueWaitTime = 900;
+        controller.evaluate();
+        assertNull(controller.getOverloadReason());
+        assertEquals(ratio, controller.getShedRatio(), 0.0001);
+
+        queueWaitTime = 0;
+        for (int i = 0; i < 100; i++) {
+            controller.evaluate();
+        }
+        assertFalse(controller.isShedding());
+        assertEquals(Decision.ADMIT, controller.admit());
+    }
+}
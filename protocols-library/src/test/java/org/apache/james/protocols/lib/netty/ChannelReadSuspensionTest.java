@@ -0,0 +1,97 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.jboss.netty.channel.Channel;
+
+public class ChannelReadSuspensionTest extends TestCase {
+
+    private final List<Boolean> readable = new ArrayList<Boolean>();
+
+    private Channel channel;
+
+    @Override
+    protected void setUp() throws Exception {
+        // only records the changes of the interest ops
+        channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Channel.class }, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("setReadable")) {
+                    readable.add((Boolean) args[0]);
+                    return null;
+                } else if (name.equals("isOpen")) {
+                    return Boolean.TRUE;
+                } else if (name.equals("getId")) {
+                    return Integer.valueOf(1);
+                } else if (name.equals("hashCode")) {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                } else if (name.equals("equals")) {
+                    return Boolean.valueOf(proxy == args[0]);
+                } else if (name.equals("compareTo")) {
+                    return Integer.valueOf(0);
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    public void testSuspendAndResume() {
+        ChannelReadSuspension.suspend(channel);
+        assertEquals(1, ChannelReadSuspension.getSuspensions(channel));
+        ChannelReadSuspension.resume(channel);
+        assertEquals(0, ChannelReadSuspension.getSuspensions(channel));
+
+        assertEquals(2, readable.size());
+        assertFalse(readable.get(0));
+        assertTrue(readable.get(1));
+    }
+
+    public void testChannelIsReadOnlyAfterTheLastResume() {
+        ChannelReadSuspension.suspend(channel);
+        ChannelReadSuspension.suspend(channel);
+        ChannelReadSuspension.resume(channel);
+
+        // still suspended by the second caller
+        assertEquals(1, readable.size());
+        assertFalse(readable.get(0));
+
+        ChannelReadSuspension.resume(channel);
+        assertEquals(2, readable.size());
+        assertTrue(readable.get(1));
+    }
+
+    public void testUnbalancedResume() {
+        try {
+            ChannelReadSuspension.resume(channel);
+            fail("Channel was not suspended");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(readable.isEmpty());
+    }
+}
@@ -0,0 +1,139 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import junit.framework.TestCase;
+
+public class MeasuredSSLContextTest extends TestCase {
+
+    private TLSHandshakeStats stats;
+    private SSLContext server;
+    private SSLContext client;
+
+    @Override
+    protected void setUp() throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(getClass().getResourceAsStream("/test_keystore"), "jamestest".toCharArray());
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, "jamestest".toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        stats = new TLSHandshakeStats(context.getServerSessionContext());
+        server = new MeasuredSSLContext(context, stats);
+
+        client = SSLContext.getInstance("TLS");
+        client.init(null, new TrustManager[] { new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } }, null);
+    }
+
+    public void testFullAndResumedHandshakes() throws Exception {
+        handshake("TLSv1.2");
+        assertEquals(1, stats.getHandshakes());
+        assertEquals(0, stats.getResumedHandshakes());
+
+        // wait, so the session is created before the next handshake starts
+        Thread.sleep(20);
+        handshake("TLSv1.2");
+        handshake("TLSv1.2");
+        assertEquals(3, stats.getHandshakes());
+        assertEquals(2, stats.getResumedHandshakes());
+        assertEquals(2.0 / 3, stats.getResumptionRatio(), 0.0001);
+        assertEquals(0, stats.getFailedHandshakes());
+        assertTrue(stats.getAverageHandshakeTime() > 0);
+
+        stats.resetStatistics();
+        assertEquals(0, stats.getHandshakes());
+        assertEquals(0.0, stats.getResumptionRatio(), 0.0001);
+    }
+
+    public void testFailedHandshake() throws Exception {
+        SSLEngine serverEngine = server.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        serverEngine.beginHandshake();
+        try {
+            serverEngine.unwrap(ByteBuffer.wrap("EHLO localhost\r\n".getBytes("US-ASCII")), ByteBuffer.allocate(serverEngine.getSession().getApplicationBufferSize()));
+            fail();
+        } catch (Exception e) {
+            // expected
+        }
+        assertEquals(1, stats.getFailedHandshakes());
+        assertEquals(0, stats.getHandshakes());
+    }
+
+    private void handshake(String protocol) throws Exception {
+        SSLEngine serverEngine = server.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        SSLEngine clientEngine = client.createSSLEngine("localhost", 25);
+        clientEngine.setUseClientMode(true);
+        clientEngine.setEnabledProtocols(new String[] { protocol });
+
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer toServer = ByteBuffer.allocate(clientEngine.getSession().getPacketBufferSize());
+        ByteBuffer toClient = ByteBuffer.allocate(serverEngine.getSession().getPacketBufferSize());
+        ByteBuffer app = ByteBuffer.allocate(serverEngine.getSession().getApplicationBufferSize());
+        clientEngine.beginHandshake();
+        for (int i = 0; i < 100; i++) {
+            clientEngine.wrap(empty, toServer);
+            runTasks(clientEngine);
+            toServer.flip();
+            serverEngine.unwrap(toServer, app);
+            runTasks(serverEngine);
+            toServer.compact();
+
+            serverEngine.wrap(empty, toClient);
+            runTasks(serverEngine);
+            toClient.flip();
+            clientEngine.unwrap(toClient, app);
+            runTasks(clientEngine);
+            toClient.compact();
+
+            if (clientEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING && serverEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING && toServer.position() == 0 && toClient.position() == 0) {
+                return;
+            }
+        }
+        fail("Handshake did not complete");
+    }
+
+    private void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
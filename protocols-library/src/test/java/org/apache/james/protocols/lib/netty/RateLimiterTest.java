@@ -0,0 +1,107 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    public void testBurstAndRefill() {
+        RateLimiter limiter = new RateLimiter(2, 3, 16);
+        long now = 1000 * SECOND;
+
+        assertTrue(limiter.tryAcquire("a", now));
+        assertTrue(limiter.tryAcquire("a", now));
+        assertTrue(limiter.tryAcquire("a", now));
+        assertFalse(limiter.tryAcquire("a", now));
+
+        // other keys have their own bucket
+        assertTrue(limiter.tryAcquire("b", now));
+
+        // one token every 500 milliseconds
+        assertFalse(limiter.tryAcquire("a", now + SECOND / 4));
+        assertTrue(limiter.tryAcquire("a", now + SECOND / 2));
+        assertFalse(limiter.tryAcquire("a", now + SECOND / 2));
+    }
+
+    public void testReserve() {
+        RateLimiter limiter = new RateLimiter(10, 2, 16);
+        long now = 1000 * SECOND;
+
+        assertEquals(0, limiter.reserve("a", now));
+        assertEquals(0, limiter.reserve("a", now));
+        assertEquals(SECOND / 10, limiter.reserve("a", now));
+        assertEquals(2 * SECOND / 10, limiter.reserve("a", now));
+        assertEquals(0, limiter.reserve("a", now + SECOND));
+    }
+
+    public void testBoundedSize() {
+        RateLimiter limiter = new RateLimiter(1, 1, 16);
+        assertEquals(16, limiter.getCapacity());
+        long now = 1000 * SECOND;
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(Integer.valueOf(i), now));
+        }
+        assertTrue(limiter.getEvictions() > 0);
+
+        // buckets which are full again get reused without eviction
+        long evictions = limiter.getEvictions();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire(Integer.valueOf(i), now + 10 * SECOND));
+        }
+        assertTrue(limiter.getEvictions() - evictions < 1000);
+    }
+
+    public void testConcurrentAcquire() throws Exception {
+        final RateLimiter limiter = new RateLimiter(0.001, 100, 64);
+        final int[] acquired = new int[8];
+        Thread[] threads = new Thread[acquired.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (limiter.tryAcquire("a")) {
+                            acquired[index]++;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        int sum = 0;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            sum += acquired[i];
+        }
+        assertEquals(100, sum);
+    }
+
+    public void testNetwork() throws Exception {
+        assertEquals(InetAddress.getByName("192.168.10.0"), RateLimiter.getNetwork(InetAddress.getByName("192.168.10.77"), 24, 64));
+        assertEquals(InetAddress.getByName("192.168.0.0"), RateLimiter.getNetwork(InetAddress.getByName("192.168.10.77"), 20, 64));
+        assertEquals(InetAddress.getByName("2001:db8:1:2::"), RateLimiter.getNetwork(InetAddress.getByName("2001:db8:1:2:3:4:5:6"), 24, 64));
+    }
+}
@@ -0,0 +1,246 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.protocols.lib.netty;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import junit.framework.TestCase;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.CharsetUtil;
+
+public class WriteCoalescingHandlerTest extends TestCase {
+
+    private final List<ChannelEvent> sunk = new ArrayList<ChannelEvent>();
+
+    private final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+
+    private WriteCoalescingHandler handler;
+
+    private TestChannel channel;
+
+    private boolean lockHeld;
+
+    @Override
+    protected void setUp() throws Exception {
+        handler = new WriteCoalescingHandler();
+
+        // the pipeline of the servers without the executor, so the commands
+        // are processed by the thread which received them
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("coalescingReadHandler", handler.getReadHandler());
+        pipeline.addLast("framer", new DelimiterBasedFrameDecoder(1024, Delimiters.lineDelimiter()));
+        pipeline.addLast("coalescingCommandHandler", handler.getCommandHandler());
+        pipeline.addLast("coalescingHandler", handler);
+        pipeline.addLast("coreHandler", new CoreHandler());
+        channel = new TestChannel(pipeline, new RecordingSink());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // the handler never holds its lock while it passes events on
+        assertFalse(lockHeld);
+    }
+
+    public void testPipelinedResponsesAreWrittenAtOnce() {
+        receive("MAIL\r\nRCPT\r\nDATA\r\n");
+
+        assertEquals(1, sunk.size());
+        assertEquals("250 MAIL\r\n250 RCPT\r\n250 DATA\r\n", getWritten(0));
+        assertSucceeded();
+    }
+
+    public void testSingleCommandIsWrittenDirectly() {
+        receive("NOOP\r\n");
+        receive("NOOP\r\n");
+
+        assertEquals(2, sunk.size());
+        assertEquals("250 NOOP\r\n", getWritten(0));
+        assertEquals("250 NOOP\r\n", getWritten(1));
+        assertSucceeded();
+    }
+
+    public void testStartTLSResponseIsWrittenBeforeTheHandshake() {
+        receive("EHLO\r\nSTARTTLS\r\n");
+
+        // the SslHandler lets the first write pass as it is, so the buffered
+        // responses need to reach it as one write
+        assertEquals(1, sunk.size());
+        assertEquals("250 EHLO\r\n220 Ready to start TLS\r\n", getWritten(0));
+        assertSucceeded();
+    }
+
+    public void testExceptionOfTheCoreHandler() {
+        receive("MAIL\r\nFAIL\r\nRCPT\r\n");
+
+        assertEquals(1, sunk.size());
+        assertEquals("250 MAIL\r\n451 FAIL\r\n250 RCPT\r\n", getWritten(0));
+
+        // the failed command is not pending anymore
+        receive("NOOP\r\n");
+        assertEquals(2, sunk.size());
+        assertEquals("250 NOOP\r\n", getWritten(1));
+        assertSucceeded();
+    }
+
+    public void testCloseWhileBuffering() {
+        receive("NOOP\r\nCLOSE\r\nNOOP\r\n");
+
+        // the buffered response is written before the channel is closed, the
+        // response after the close fails
+        assertEquals(3, sunk.size());
+        assertEquals("250 NOOP\r\n", getWritten(0));
+        assertTrue(sunk.get(1) instanceof ChannelStateEvent);
+        assertEquals(ChannelState.OPEN, ((ChannelStateEvent) sunk.get(1)).getState());
+        assertEquals("250 NOOP\r\n", getWritten(2));
+        assertTrue(futures.get(0).isSuccess());
+        assertFalse(futures.get(1).isSuccess());
+    }
+
+    private void receive(String data) {
+        Channels.fireMessageReceived(channel, ChannelBuffers.copiedBuffer(data, CharsetUtil.US_ASCII));
+    }
+
+    private String getWritten(int index) {
+        return ((ChannelBuffer) ((MessageEvent) sunk.get(index)).getMessage()).toString(CharsetUtil.US_ASCII);
+    }
+
+    private void assertSucceeded() {
+        for (ChannelFuture future : futures) {
+            assertTrue(future.isDone());
+            assertTrue(future.isSuccess());
+        }
+    }
+
+    /**
+     * Answers every command like a protocol handler, STARTTLS inserts the
+     * SslHandler like the transport does
+     */
+    private final class CoreHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            String command = ((ChannelBuffer) e.getMessage()).toString(CharsetUtil.US_ASCII);
+            if (command.equals("FAIL")) {
+                throw new IllegalStateException(command);
+            } else if (command.equals("CLOSE")) {
+                ctx.getChannel().close();
+            } else if (command.equals("STARTTLS")) {
+                SSLEngine engine = SSLContext.getDefault().createSSLEngine();
+                engine.setUseClientMode(false);
+                ctx.getPipeline().addFirst("sslHandler", new SslHandler(engine, true));
+                write(ctx, "220 Ready to start TLS");
+            } else {
+                write(ctx, "250 " + command);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            write(ctx, "451 " + e.getCause().getMessage());
+        }
+
+        private void write(ChannelHandlerContext ctx, String response) {
+            futures.add(ctx.getChannel().write(ChannelBuffers.copiedBuffer(response + "\r\n", CharsetUtil.US_ASCII)));
+        }
+    }
+
+    /**
+     * Records the events which reach the end of the pipeline
+     */
+    private final class RecordingSink extends AbstractChannelSink {
+
+        public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) throws Exception {
+            if (Thread.holdsLock(handler)) {
+                lockHeld = true;
+            }
+            sunk.add(e);
+            if (e instanceof MessageEvent) {
+                if (channel.isOpen()) {
+                    e.getFuture().setSuccess();
+                } else {
+                    e.getFuture().setFailure(new ClosedChannelException());
+                }
+            } else if (e instanceof ChannelStateEvent && ((ChannelStateEvent) e).getState() == ChannelState.OPEN) {
+                channel.closeNow(e.getFuture());
+            } else {
+                e.getFuture().setSuccess();
+            }
+        }
+    }
+
+    private final static class TestChannel extends AbstractChannel {
+
+        private final ChannelConfig config = new DefaultChannelConfig();
+
+        public TestChannel(ChannelPipeline pipeline, AbstractChannelSink sink) {
+            super(null, null, pipeline, sink);
+        }
+
+        public void closeNow(ChannelFuture future) {
+            setClosed();
+            future.setSuccess();
+        }
+
+        public ChannelConfig getConfig() {
+            return config;
+        }
+
+        public boolean isBound() {
+            return isOpen();
+        }
+
+        public boolean isConnected() {
+            return isOpen();
+        }
+
+        public SocketAddress getLocalAddress() {
+            return new InetSocketAddress("127.0.0.1", 25);
+        }
+
+        public SocketAddress getRemoteAddress() {
+            return new InetSocketAddress("127.0.0.1", 10025);
+        }
+    }
+}
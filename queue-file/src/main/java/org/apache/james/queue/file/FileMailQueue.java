@@ -18,6 +18,8 @@
  ****************************************************************/
 package org.apache.james.queue.file;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -25,7 +27,6 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Iterator;
 import java.util.Map.Entry;
@@ -41,6 +42,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import javax.mail.MessagingException;
 import javax.mail.util.SharedFileInputStream;
 
+import org.apache.james.core.MailCodec;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageSource;
 import org.apache.james.lifecycle.api.Disposable;
@@ -68,14 +70,33 @@ public class FileMailQueue implements ManageableMailQueue {
     private final Logger log;
     
     private final boolean sync;
+    private final boolean useMailCodec;
     private final static String MSG_EXTENSION = ".msg";
     private final static String OBJECT_EXTENSION = ".obj";
     private final static String NEXT_DELIVERY = "FileQueueNextDelivery";
     private final static int SPLITCOUNT = 10;
 
     public FileMailQueue(File parentDir, String queuename, boolean sync, Logger log) throws IOException {
+        this(parentDir, queuename, sync, false, log);
+    }
+
+    /**
+     * Create a new {@link FileMailQueue}
+     * 
+     * @param parentDir
+     * @param queuename
+     * @param sync
+     * @param useMailCodec
+     *            if <code>true</code> the {@link Mail} objects are written with
+     *            the {@link MailCodec} format, otherwise with java
+     *            serialization. Both formats can always be read
+     * @param log
+     * @throws IOException
+     */
+    public FileMailQueue(File parentDir, String queuename, boolean sync, boolean useMailCodec, Logger log) throws IOException {
         this.log = log;
         this.sync = sync;
+        this.useMailCodec = useMailCodec;
         this.queueDir = new File(parentDir, queuename);
         this.queueDirName = queueDir.getAbsolutePath();
 
@@ -101,7 +122,7 @@ public class FileMailQueue implements ManageableMailQueue {
             });
             for (int a = 0; a < files.length; a++) {
                 final String name = files[a];
-                ObjectInputStream oin = null;
+                InputStream oin = null;
                 
 
                 try {
@@ -109,8 +130,8 @@ public class FileMailQueue implements ManageableMailQueue {
 
                     FileItem item = new FileItem(queueDirName + "/" + name, queueDirName + "/" + msgFileName);
 
-                    oin = new ObjectInputStream(new FileInputStream(item.getObjectFile()));
-                    Mail mail = (Mail) oin.readObject();
+                    oin = new BufferedInputStream(new FileInputStream(item.getObjectFile()));
+                    Mail mail = MailCodec.decode(oin);
                     Long next = (Long) mail.getAttribute(NEXT_DELIVERY);
                     if (next == null) {
                         next = 0L;
@@ -145,8 +166,6 @@ public class FileMailQueue implements ManageableMailQueue {
                         }, next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
                     }
 
-                } catch (ClassNotFoundException e1) {
-                    log.error("Unable to load Mail", e1);
                 } catch (IOException e) {
                     log.error("Unable to load Mail", e);
                 } finally {
@@ -181,9 +200,15 @@ public class FileMailQueue implements ManageableMailQueue {
             final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
 
             foout = new FileOutputStream(item.getObjectFile());
-            oout = new ObjectOutputStream(foout);
-            oout.writeObject(mail);
-            oout.flush();
+            if (useMailCodec) {
+                BufferedOutputStream bout = new BufferedOutputStream(foout);
+                MailCodec.encode(mail, bout);
+                bout.flush();
+            } else {
+                oout = new ObjectOutputStream(foout);
+                oout.writeObject(mail);
+                oout.flush();
+            }
             if (sync) foout.getFD().sync();
             out = new FileOutputStream(item.getMessageFile());
            
@@ -272,12 +297,12 @@ public class FileMailQueue implements ManageableMailQueue {
             }
             final String key = k;
             final FileItem fitem = item;
-            ObjectInputStream oin = null;
+            InputStream oin = null;
             try {
                 final File objectFile = new File(fitem.getObjectFile());
                 final File msgFile = new File(fitem.getMessageFile());
-                oin = new ObjectInputStream(new FileInputStream(objectFile));
-                final Mail mail = (Mail) oin.readObject();
+                oin = new BufferedInputStream(new FileInputStream(objectFile));
+                final Mail mail = MailCodec.decode(oin);
                 mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
                 return new MailQueueItem() {
 
@@ -308,8 +333,6 @@ public class FileMailQueue implements ManageableMailQueue {
                 throw new MailQueueException("Unable to dequeue", e);
             } catch (IOException e) {
                 throw new MailQueueException("Unable to dequeue", e);
-            } catch (ClassNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
             } catch (MessagingException e) {
                 throw new MailQueueException("Unable to dequeue", e);
                 
@@ -358,6 +381,11 @@ public class FileMailQueue implements ManageableMailQueue {
         public long getMessageSize() throws IOException {
             return file.length();
         }
+
+        @Override
+        public File getFile() throws IOException {
+            return file;
+        }
         
 
         /**
@@ -502,10 +530,10 @@ public class FileMailQueue implements ManageableMailQueue {
             public boolean hasNext() {
                 if (item == null) {
                     while (items.hasNext()) {
-                        ObjectInputStream in = null;
+                        InputStream in = null;
                         try {
-                            in = new ObjectInputStream(new FileInputStream(items.next().getObjectFile()));
-                            final Mail mail = (Mail) in.readObject();
+                            in = new BufferedInputStream(new FileInputStream(items.next().getObjectFile()));
+                            final Mail mail = MailCodec.decode(in);
                             item = new MailQueueItemView() {
 
                                 @Override
@@ -524,8 +552,6 @@ public class FileMailQueue implements ManageableMailQueue {
                         } catch (IOException e) {
                             log.info("Unable to load mail", e);
 
-                        } catch (ClassNotFoundException e) {
-                            log.info("Unable to load mail", e);
                         } finally {
                             if (in != null) {
                                 try {
@@ -41,6 +41,7 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled{
     private FileSystem fs;
     private Logger log;
     private boolean sync = true;
+    private boolean useMailCodec = false;
     
     @Resource(name = "filesystem")
     public void setFileSystem(FileSystem fs) {
@@ -58,6 +59,19 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled{
     public void setSync(boolean sync) {
         this.sync = sync;
     }
+
+    /**
+     * If <code>true</code> the later created {@link FileMailQueue} will store the {@link org.apache.mailet.Mail} objects with the binary
+     * {@link org.apache.james.core.MailCodec} format instead of java serialization. Queues written with java serialization can
+     * still be read, so this can be enabled for an existing queue directory.
+     * 
+     * The default is <code>false</code>
+     * 
+     * @param useMailCodec
+     */
+    public void setUseMailCodec(boolean useMailCodec) {
+        this.useMailCodec = useMailCodec;
+    }
     
     /**
      * @see org.apache.james.queue.api.MailQueueFactory#getQueue(java.lang.String)
@@ -67,7 +81,7 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled{
         if (queue == null) {
             synchronized (queues) {
                 try {
-                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, log);
+                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, useMailCodec, log);
                     queues.put(name, queue);
                 } catch (IOException e) {
                     throw new RuntimeException("Unable to access queue " + name, e);
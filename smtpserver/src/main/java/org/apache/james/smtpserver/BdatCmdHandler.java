@@ -0,0 +1,425 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.protocols.api.Request;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.CommandHandler;
+import org.apache.james.protocols.api.handler.ExtensibleHandler;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.WiringException;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.DataLineFilter;
+import org.apache.james.protocols.smtp.core.ReceivedDataLineFilter;
+import org.apache.james.protocols.smtp.core.esmtp.EhloExtension;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.protocols.smtp.hook.MailParametersHook;
+import org.apache.james.smtpserver.netty.SMTPChunkingFrameDecoder;
+
+/**
+ * Handles the BDAT command of the CHUNKING extension (RFC 3030). The chunks
+ * are written to the {@link MimeMessageInputStreamSource} as they are,
+ * without any dot-stuffing or line processing, so BODY=BINARYMIME is supported
+ * too. Once the last chunk was received the message is passed to the same
+ * hooks as a message which was received via DATA.
+ */
+public class BdatCmdHandler implements CommandHandler<SMTPSession>, EhloExtension, MailParametersHook, ExtensibleHandler {
+
+    private final static String COMMAND_NAME = "BDAT";
+
+    private final static String LAST = "LAST";
+
+    private final static String BODY = "BODY";
+
+    /**
+     * Size of the buffer which collects the chunks before they get written to
+     * the {@link MimeMessageInputStreamSource}
+     */
+    private final static int BUFFER_SIZE = 8192;
+
+    private DataLineJamesMessageHookHandler messageHandler;
+
+    private ReceivedDataLineFilter receivedFilter;
+
+    /**
+     * @see org.apache.james.protocols.api.handler.CommandHandler#onCommand(org.apache.james.protocols.api.ProtocolSession,
+     *      org.apache.james.protocols.api.Request)
+     */
+    public Response onCommand(SMTPSession session, Request request) {
+        String argument = request.getArgument();
+        String[] args = argument == null ? new String[0] : argument.trim().split(" +");
+        long size = args.length == 0 ? -1 : SMTPChunkingFrameDecoder.parseChunkSize(args[0]);
+        if (size < 0) {
+            return new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Usage: BDAT <size> [LAST]");
+        }
+
+        // the chunk follows the command in every case, so errors are only
+        // reported after it was consumed
+        boolean last = args.length == 2 && LAST.equalsIgnoreCase(args[1]);
+        Response error = null;
+        if (args.length > 2 || (args.length == 2 && !last)) {
+            error = new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Usage: BDAT <size> [LAST]");
+        } else if (session.getState().get(SMTPSession.SENDER) == null) {
+            error = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_OTHER) + " No sender specified");
+        } else if (session.getState().get(SMTPSession.RCPT_LIST) == null || ((Collection) session.getState().get(SMTPSession.RCPT_LIST)).isEmpty()) {
+            error = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_OTHER) + " No recipients specified");
+        } else if (!session.getState().containsKey(SMTPConstants.DATA_REJECTED)) {
+            error = prepareChunk(session, size);
+        }
+
+        ChunkHandler handler = new ChunkHandler(size, last, error);
+        if (size == 0) {
+            return handler.complete(session);
+        }
+        session.pushLineHandler(handler);
+        return null;
+    }
+
+    /**
+     * Create the {@link MimeMessageInputStreamSource} for the message if this
+     * is the first chunk and check if the message size limit is respected
+     * 
+     * @param session
+     * @param size
+     *            the size of the chunk
+     * @return response the response to reject the chunk with or
+     *         <code>null</code>
+     */
+    private Response prepareChunk(SMTPSession session, long size) {
+        BdatState state = (BdatState) session.getState().get(SMTPConstants.BDAT_STATE);
+        if (state == null) {
+            try {
+                MimeMessageInputStreamSource mmiss = new MimeMessageInputStreamSource(MailImpl.getId());
+                session.getState().put(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, mmiss);
+                state = new BdatState(mmiss.getWritableOutputStream(), messageHandler.hasHeaderHooks());
+                session.getState().put(SMTPConstants.BDAT_STATE, state);
+                addReceivedHeaders(session, state);
+            } catch (MessagingException e) {
+                session.getLogger().warn("Error creating mimemessagesource for incoming data", e);
+                return reject(session, new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "Unexpected error preparing to receive BDAT."));
+            } catch (IOException e) {
+                session.getLogger().warn("Error creating mimemessagesource for incoming data", e);
+                return reject(session, new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "Unexpected error preparing to receive BDAT."));
+            }
+        }
+
+        state.size += size;
+        long maxSize = session.getMaxMessageSize();
+        if (maxSize > 0 && state.size > maxSize) {
+            session.getLogger().info("Rejected message from " + session.getRemoteIPAddress() + " exceeding the maximum message size of " + maxSize + " bytes");
+            return reject(session, new SMTPResponse(SMTPRetCode.QUOTA_EXCEEDED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SYSTEM_MSG_TOO_BIG) + " Message size exceeds fixed maximum message size"));
+        }
+        return null;
+    }
+
+    /**
+     * Reject the message, all following chunks are discarded until the last
+     * one
+     * 
+     * @param session
+     * @param response
+     * @return response
+     */
+    private Response reject(SMTPSession session, Response response) {
+        DataLineJamesMessageHookHandler.reject(session, response);
+        return response;
+    }
+
+    /**
+     * Add the Received header in front of the message, like it is done for
+     * messages which are received via DATA
+     * 
+     * @param session
+     * @param state
+     * @throws IOException
+     */
+    private void addReceivedHeaders(SMTPSession session, BdatState state) throws IOException {
+        if (receivedFilter != null) {
+            final ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            receivedFilter.onLine(session, new byte[0], new LineHandler<SMTPSession>() {
+
+                public Response onLine(SMTPSession session, byte[] line) {
+                    headers.write(line, 0, line.length);
+                    return null;
+                }
+            });
+            byte[] bytes = headers.toByteArray();
+            state.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.CommandHandler#getImplCommands()
+     */
+    public Collection<String> getImplCommands() {
+        Collection<String> commands = new ArrayList<String>();
+        commands.add(COMMAND_NAME);
+        return commands;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.esmtp.EhloExtension#getImplementedEsmtpFeatures(org.apache.james.protocols.smtp.SMTPSession)
+     */
+    public List<String> getImplementedEsmtpFeatures(SMTPSession session) {
+        List<String> features = new LinkedList<String>();
+        features.add("CHUNKING");
+        features.add("BINARYMIME");
+        return features;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MailParametersHook#doMailParameter(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public HookResult doMailParameter(SMTPSession session, String paramName, String paramValue) {
+        if ("BINARYMIME".equalsIgnoreCase(paramValue)) {
+            // BINARYMIME messages can only be transferred via BDAT
+            session.getState().put(SMTPConstants.BINARYMIME, Boolean.TRUE);
+        } else if (!"7BIT".equalsIgnoreCase(paramValue) && !"8BITMIME".equalsIgnoreCase(paramValue)) {
+            return new HookResult(HookReturnCode.DENY, SMTPRetCode.SYNTAX_ERROR_ARGUMENTS, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Unsupported BODY " + paramValue);
+        }
+        return new HookResult(HookReturnCode.DECLINED);
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.hook.MailParametersHook#getMailParamNames()
+     */
+    public String[] getMailParamNames() {
+        return new String[] { BODY };
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.ExtensibleHandler#getMarkerInterfaces()
+     */
+    public List<Class<?>> getMarkerInterfaces() {
+        List<Class<?>> classes = new LinkedList<Class<?>>();
+        classes.add(DataLineFilter.class);
+        return classes;
+    }
+
+    /**
+     * @see org.apache.james.protocols.api.handler.ExtensibleHandler#wireExtensions(java.lang.Class,
+     *      java.util.List)
+     */
+    public void wireExtensions(Class interfaceName, List extension) throws WiringException {
+        if (DataLineFilter.class.equals(interfaceName)) {
+            for (int i = 0; i < extension.size(); i++) {
+                Object filter = extension.get(i);
+                if (filter instanceof DataLineJamesMessageHookHandler) {
+                    messageHandler = (DataLineJamesMessageHookHandler) filter;
+                } else if (filter instanceof ReceivedDataLineFilter) {
+                    receivedFilter = (ReceivedDataLineFilter) filter;
+                }
+            }
+            if (messageHandler == null) {
+                throw new WiringException("No " + DataLineJamesMessageHookHandler.class.getName() + " configured");
+            }
+        }
+    }
+
+    /**
+     * {@link LineHandler} which consumes one chunk. The framer hands the chunk
+     * over as it was received, so it is written without looking at the lines.
+     */
+    private final class ChunkHandler implements LineHandler<SMTPSession> {
+
+        private final long size;
+
+        private final boolean last;
+
+        private final Response error;
+
+        private long remaining;
+
+        public ChunkHandler(long size, boolean last, Response error) {
+            this.size = size;
+            this.last = last;
+            this.error = error;
+            this.remaining = size;
+        }
+
+        /**
+         * @see org.apache.james.protocols.api.handler.LineHandler#onLine(org.apache.james.protocols.api.ProtocolSession,
+         *      byte[])
+         */
+        public Response onLine(SMTPSession session, byte[] line) {
+            int length = (int) Math.min(line.length, remaining);
+            remaining -= length;
+
+            BdatState state = (BdatState) session.getState().get(SMTPConstants.BDAT_STATE);
+            if (error == null && state != null && !session.getState().containsKey(SMTPConstants.DATA_REJECTED)) {
+                try {
+                    byte[] headers = state.write(line, 0, length);
+                    if (headers != null) {
+                        Response response = messageHandler.processHeaders(session, headers);
+                        if (response != null) {
+                            reject(session, response);
+                        }
+                    }
+                } catch (IOException e) {
+                    session.getLogger().error("Unknown error occurred while processing BDAT.", e);
+                    reject(session, new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + " Error processing message: " + e.getMessage()));
+                }
+            }
+
+            if (remaining == 0) {
+                session.popLineHandler();
+                return complete(session);
+            }
+            return null;
+        }
+
+        /**
+         * Called once the whole chunk was consumed
+         * 
+         * @param session
+         * @return response
+         */
+        public Response complete(SMTPSession session) {
+            Response rejected = (Response) session.getState().get(SMTPConstants.DATA_REJECTED);
+            if (rejected != null) {
+                // the message was rejected before, so the chunks are discarded
+                // until the last one
+                if (last) {
+                    session.resetState();
+                }
+                return rejected;
+            }
+            if (error != null) {
+                return error;
+            }
+
+            if (!last) {
+                return new SMTPResponse(SMTPRetCode.MAIL_OK, DSNStatus.getStatus(DSNStatus.SUCCESS, DSNStatus.UNDEFINED_STATUS) + " " + size + " octets received");
+            }
+
+            BdatState state = (BdatState) session.getState().remove(SMTPConstants.BDAT_STATE);
+            MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getState().get(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE);
+            try {
+                state.close();
+                return messageHandler.processMessage(session, mmiss);
+            } catch (MessagingException e) {
+                session.getLogger().info("Unexpected error handling BDAT stream", e);
+                LifecycleUtil.dispose(mmiss);
+                session.resetState();
+                return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "Unexpected error handling BDAT stream.");
+            } catch (IOException e) {
+                session.getLogger().error("Unknown error occurred while processing BDAT.", e);
+                LifecycleUtil.dispose(mmiss);
+                session.resetState();
+                return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + " Error processing message: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * State of the BDAT transfer of one message
+     */
+    private final static class BdatState implements Disposable {
+
+        private final OutputStream out;
+
+        /**
+         * Collects the headers until the empty line which separates them from
+         * the body was received, <code>null</code> afterwards or if they are
+         * not needed
+         */
+        private ByteArrayOutputStream headers;
+
+        /**
+         * The last four bytes which were collected for the headers
+         */
+        private int tail = 0;
+
+        /**
+         * Sum of the sizes of all chunks which were announced
+         */
+        private long size = 0;
+
+        public BdatState(OutputStream out, boolean collectHeaders) {
+            this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+            if (collectHeaders) {
+                headers = new ByteArrayOutputStream();
+            }
+        }
+
+        /**
+         * Write the given bytes of the message
+         * 
+         * @return headers the complete headers if they were completed by the
+         *         given bytes, <code>null</code> otherwise
+         * @throws IOException
+         */
+        public byte[] write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+
+            for (int i = offset; i < offset + length && headers != null; i++) {
+                headers.write(bytes[i]);
+                tail = (tail << 8) | (bytes[i] & 0xff);
+                if (tail == 0x0d0a0d0a || (tail & 0xffff) == 0x0a0a) {
+                    byte[] complete = headers.toByteArray();
+                    headers = null;
+                    return complete;
+                } else if (headers.size() > DataLineJamesMessageHookHandler.MAX_HEADERS_SIZE) {
+                    // let the hooks which process the whole message decide
+                    // about it
+                    headers = null;
+                }
+            }
+            return null;
+        }
+
+        public void close() throws IOException {
+            out.flush();
+            out.close();
+        }
+
+        /**
+         * Close the stream of an aborted transfer
+         * 
+         * @see org.apache.james.lifecycle.api.Disposable#dispose()
+         */
+        public void dispose() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the message gets discarded anyway
+            }
+        }
+    }
+}
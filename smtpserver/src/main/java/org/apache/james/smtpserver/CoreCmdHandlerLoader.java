@@ -38,7 +38,6 @@ import org.apache.james.protocols.smtp.core.SMTPCommandDispatcherLineHandler;
 import org.apache.james.protocols.smtp.core.VrfyCmdHandler;
 import org.apache.james.protocols.smtp.core.esmtp.AuthCmdHandler;
 import org.apache.james.protocols.smtp.core.esmtp.EhloCmdHandler;
-import org.apache.james.protocols.smtp.core.esmtp.MailSizeEsmtpExtension;
 import org.apache.james.protocols.smtp.core.esmtp.StartTlsCmdHandler;
 
 /**
@@ -49,6 +48,7 @@ public class CoreCmdHandlerLoader implements HandlersPackage {
     private final String COMMANDDISPATCHER = SMTPCommandDispatcherLineHandler.class.getName();
     private final String AUTHCMDHANDLER = AuthCmdHandler.class.getName();
     private final String DATACMDHANDLER = JamesDataCmdHandler.class.getName();
+    private final String BDATCMDHANDLER = BdatCmdHandler.class.getName();
     private final String EHLOCMDHANDLER = EhloCmdHandler.class.getName();
     private final String EXPNCMDHANDLER = ExpnCmdHandler.class.getName();
     private final String HELOCMDHANDLER = HeloCmdHandler.class.getName();
@@ -59,7 +59,7 @@ public class CoreCmdHandlerLoader implements HandlersPackage {
     private final String RCPTCMDHANDLER = JamesRcptCmdHandler.class.getName();
     private final String RSETCMDHANDLER = RsetCmdHandler.class.getName();
     private final String VRFYCMDHANDLER = VrfyCmdHandler.class.getName();
-    private final String MAILSIZEHOOK = MailSizeEsmtpExtension.class.getName();
+    private final String MAILSIZEHOOK = JamesMailSizeEsmtpExtension.class.getName();
     private final String WELCOMEMESSAGEHANDLER = JamesWelcomeMessageHandler.class.getName();
     private final String USERSREPOSITORYAUTHHANDLER = UsersRepositoryAuthHook.class.getName();
     private final String POSTMASTERABUSEHOOK = PostmasterAbuseRcptHook.class.getName();
@@ -85,6 +85,7 @@ public class CoreCmdHandlerLoader implements HandlersPackage {
         commands.add(COMMANDDISPATCHER);
         commands.add(AUTHCMDHANDLER);
         commands.add(DATACMDHANDLER);
+        commands.add(BDATCMDHANDLER);
         commands.add(EHLOCMDHANDLER);
         commands.add(EXPNCMDHANDLER);
         commands.add(HELOCMDHANDLER);
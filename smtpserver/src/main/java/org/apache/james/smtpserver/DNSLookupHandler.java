@@ -0,0 +1,56 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.util.Collection;
+
+import org.apache.james.dnsservice.library.AsyncDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
+import org.apache.james.protocols.smtp.SMTPSession;
+
+/**
+ * Handler which needs the results of DNS lookups to process a command. The
+ * lookups are started before the command is processed and the session is
+ * suspended until they completed, so the handler finds the results without
+ * blocking the threads which serve the sessions. The lookups are done by the
+ * {@link AsyncDNSService} of the server, which is shared by all handlers.
+ */
+public interface DNSLookupHandler {
+
+    /**
+     * Set the service which does the lookups. It is called before the server
+     * accepts connections.
+     * 
+     * @param lookupService
+     */
+    void setLookupService(AsyncDNSService lookupService);
+
+    /**
+     * Start the lookups which are needed to process the given command
+     * 
+     * @param session
+     * @param command
+     *            the command in upper case or <code>null</code> if the client
+     *            just connected
+     * @param argument
+     *            the argument of the command, may be <code>null</code>
+     * @return lookups the started lookups, never <code>null</code>
+     */
+    Collection<DNSLookup<?>> startLookups(SMTPSession session, String command, String argument);
+}
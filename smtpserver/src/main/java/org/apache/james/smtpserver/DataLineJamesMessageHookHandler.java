@@ -19,6 +19,9 @@
 
 package org.apache.james.smtpserver;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,6 +32,7 @@ import java.util.List;
 
 import javax.mail.MessagingException;
 
+import org.apache.james.core.MailHeaders;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageInputStream;
@@ -54,6 +58,12 @@ import org.apache.mailet.MailAddress;
 
 /**
  * Handles the calling of JamesMessageHooks
+ * 
+ * The data handed to {@link #onLine(SMTPSession, byte[], LineHandler)} may
+ * contain several lines of the message, as the
+ * {@link org.apache.james.smtpserver.netty.SMTPChunkingFrameDecoder} passes all
+ * complete lines of a read on at once. The terminating dot is always passed on
+ * alone.
  */
 public class DataLineJamesMessageHookHandler implements DataLineFilter, ExtensibleHandler {
 
@@ -63,6 +73,20 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
 
     private List<MessageHook> mHandlers;
 
+    private List<MessageHeaderHook> headerHandlers;
+
+    /**
+     * Size of the buffer which collects the lines before they get written to
+     * the {@link MimeMessageInputStreamSource}
+     */
+    private final static int BUFFER_SIZE = 8192;
+
+    /**
+     * The maximum size of the headers which are collected for the
+     * {@link MessageHeaderHook}'s
+     */
+    final static int MAX_HEADERS_SIZE = 64 * 1024;
+
     /**
      * @see
      * org.apache.james.protocols.smtp.core.DataLineFilter#onLine(SMTPSession, byte[], LineHandler)
@@ -71,27 +95,36 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
         MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getState().get(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE);
 
         try {
-            OutputStream out = mmiss.getWritableOutputStream();
-
             // 46 is "."
-            // Stream terminated
-            if (line.length == 3 && line[0] == 46) {
-                out.flush();
-                out.close();
+            boolean terminated = line.length == 3 && line[0] == 46;
+
+            Response rejected = (Response) session.getState().get(SMTPConstants.DATA_REJECTED);
+            if (rejected != null) {
+                // the message was already rejected while receiving it, so the
+                // rest of the data is discarded until the terminating dot
+                LifecycleUtil.dispose(mmiss);
+                if (terminated) {
+                    session.popLineHandler();
+                    session.resetState();
+                    return rejected;
+                }
+                return null;
+            }
 
-                List recipientCollection = (List) session.getState().get(SMTPSession.RCPT_LIST);
-                MailImpl mail = new MailImpl(MailImpl.getId(), (MailAddress) session.getState().get(SMTPSession.SENDER), recipientCollection);
+            DataState data = (DataState) session.getState().get(SMTPConstants.DATA_STATE);
+            if (data == null) {
+                data = new DataState(mmiss.getWritableOutputStream(), hasHeaderHooks());
+                session.getState().put(SMTPConstants.DATA_STATE, data);
+            }
 
-                // store mail in the session so we can be sure it get disposed
-                // later
-                session.getState().put(SMTPConstants.MAIL, mail);
+            // Stream terminated
+            if (terminated) {
+                session.getState().remove(SMTPConstants.DATA_STATE);
+                data.out.flush();
+                data.out.close();
 
-                MimeMessageCopyOnWriteProxy mimeMessageCopyOnWriteProxy = null;
                 try {
-                    mimeMessageCopyOnWriteProxy = new MimeMessageCopyOnWriteProxy(mmiss);
-                    mail.setMessage(mimeMessageCopyOnWriteProxy);
-
-                    Response response = processExtensions(session, mail);
+                    Response response = processMessage(session, mmiss);
 
                     session.popLineHandler();      
                     return response;
@@ -100,23 +133,45 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
                     // TODO probably return a temporary problem
                     session.getLogger().info("Unexpected error handling DATA stream", e);
                     return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "Unexpected error handling DATA stream.");
-                } finally {
-                    LifecycleUtil.dispose(mimeMessageCopyOnWriteProxy);
-                    LifecycleUtil.dispose(mmiss);
-                    LifecycleUtil.dispose(mail);
                 }
+            }
+
+            // The frame may hold several lines. The bytes between the lines
+            // which need to be unstuffed are written at once.
+            int written = 0;
+            int start = 0;
+            while (start < line.length) {
+                int end = indexOfLineEnd(line, start);
 
                 // DotStuffing.
-            } else if (line[0] == 46 && line[1] == 46) {
-                out.write(line, 1, line.length - 1);
-                // Standard write
-            } else {
-                // TODO: maybe we should handle the Header/Body recognition here
-                // and if needed let a filter to cache the headers to apply some
-                // transformation before writing them to output.
-                out.write(line);
+                int offset = start;
+                if (line[start] == 46 && end - start > 1 && line[start + 1] == 46) {
+                    data.out.write(line, written, start - written);
+                    offset = start + 1;
+                    written = offset;
+                }
+
+                if (data.headers != null) {
+                    data.headers.write(line, offset, end - offset);
+                    if (isEmptyLine(line, offset, end)) {
+                        // all headers received
+                        Response response = processHeaders(session, data.headers.toByteArray());
+                        data.headers = null;
+                        if (response != null) {
+                            reject(session, response);
+                            return null;
+                        }
+                    } else if (data.headers.size() > MAX_HEADERS_SIZE) {
+                        // let the hooks which process the whole message decide
+                        // about it
+                        data.headers = null;
+                    }
+                }
+                start = end;
             }
+            data.out.write(line, written, line.length - written);
         } catch (IOException e) {
+            session.getState().remove(SMTPConstants.DATA_STATE);
             LifecycleUtil.dispose(mmiss);
 
             SMTPResponse response = new SMTPResponse(SMTPRetCode.LOCAL_ERROR, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + " Error processing message: " + e.getMessage());
@@ -128,6 +183,127 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
         return null;
     }
 
+    /**
+     * Create the {@link Mail} for the message which was received completely
+     * and call the hooks with it. The message source is disposed afterwards.
+     * 
+     * @param session
+     * @param mmiss
+     *            the source which holds the received message
+     * @return response
+     * @throws MessagingException
+     */
+    protected Response processMessage(SMTPSession session, MimeMessageInputStreamSource mmiss) throws MessagingException {
+        List recipientCollection = (List) session.getState().get(SMTPSession.RCPT_LIST);
+        MailImpl mail = new MailImpl(MailImpl.getId(), (MailAddress) session.getState().get(SMTPSession.SENDER), recipientCollection);
+
+        // store mail in the session so we can be sure it get disposed
+        // later
+        session.getState().put(SMTPConstants.MAIL, mail);
+
+        MimeMessageCopyOnWriteProxy mimeMessageCopyOnWriteProxy = null;
+        try {
+            mimeMessageCopyOnWriteProxy = new MimeMessageCopyOnWriteProxy(mmiss);
+            mail.setMessage(mimeMessageCopyOnWriteProxy);
+
+            return processExtensions(session, mail);
+        } finally {
+            LifecycleUtil.dispose(mimeMessageCopyOnWriteProxy);
+            LifecycleUtil.dispose(mmiss);
+            LifecycleUtil.dispose(mail);
+        }
+    }
+
+    /**
+     * Reject the message which is currently received. The data is discarded
+     * and the given response is sent after the terminating dot or in reply
+     * to the next BDAT chunks.
+     * 
+     * @param session
+     * @param response
+     */
+    static void reject(SMTPSession session, Response response) {
+        session.getState().remove(SMTPConstants.DATA_STATE);
+        LifecycleUtil.dispose(session.getState().remove(SMTPConstants.BDAT_STATE));
+        session.getState().put(SMTPConstants.DATA_REJECTED, response);
+        LifecycleUtil.dispose(session.getState().get(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE));
+    }
+
+    /**
+     * Return the index after the line separator of the line which starts at
+     * the given index, or the length of the data if it has none
+     */
+    private int indexOfLineEnd(byte[] data, int start) {
+        for (int i = start; i < data.length; i++) {
+            if (data[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return data.length;
+    }
+
+    /**
+     * Return <code>true</code> if the line between the given indexes contains
+     * only the line separator
+     */
+    private boolean isEmptyLine(byte[] line, int offset, int end) {
+        int length = end - offset;
+        return (length == 2 && line[offset] == '\r' && line[offset + 1] == '\n') || (length == 1 && line[offset] == '\n');
+    }
+
+    /**
+     * Return <code>true</code> if {@link MessageHeaderHook}'s are configured,
+     * so the headers need to be collected
+     * 
+     * @return hasHeaderHooks
+     */
+    boolean hasHeaderHooks() {
+        return headerHandlers != null && !headerHandlers.isEmpty();
+    }
+
+    /**
+     * Call the {@link MessageHeaderHook}'s with the received headers
+     * 
+     * @param session
+     * @param headerBytes
+     *            the raw headers including the empty line
+     * @return response the response to reject the message with or
+     *         <code>null</code>
+     */
+    protected Response processHeaders(SMTPSession session, byte[] headerBytes) {
+        if (!hasHeaderHooks()) {
+            return null;
+        }
+        MailHeaders headers;
+        try {
+            headers = new MailHeaders(new ByteArrayInputStream(headerBytes));
+        } catch (MessagingException e) {
+            // let the hooks which process the whole message decide about it
+            session.getLogger().debug("Unable to parse the headers of the message", e);
+            return null;
+        }
+        for (int i = 0; i < headerHandlers.size(); i++) {
+            MessageHeaderHook rawHandler = headerHandlers.get(i);
+            session.getLogger().debug("executing header hook " + rawHandler);
+            long start = System.currentTimeMillis();
+            HookResult hRes = rawHandler.onMessageHeaders(session, headers);
+            long executionTime = System.currentTimeMillis() - start;
+            if (rHooks != null) {
+                for (int i2 = 0; i2 < rHooks.size(); i2++) {
+                    Object rHook = rHooks.get(i2);
+                    session.getLogger().debug("executing hook " + rHook);
+                    hRes = ((HookResultHook) rHook).onHookResult(session, hRes, executionTime, rawHandler);
+                }
+            }
+
+            SMTPResponse response = AbstractHookableCmdHandler.calcDefaultSMTPResponse(hRes);
+            if (response != null) {
+                return response;
+            }
+        }
+        return null;
+    }
+
     /**
      * @param session
      */
@@ -214,6 +390,8 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
             }
         } else if (MessageHook.class.equals(interfaceName)) {
             this.mHandlers = extension;
+        } else if (MessageHeaderHook.class.equals(interfaceName)) {
+            this.headerHandlers = extension;
         } else if (HookResultHook.class.equals(interfaceName)) {
 
             this.rHooks = extension;
@@ -227,6 +405,7 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
         List<Class<?>> classes = new LinkedList<Class<?>>();
         classes.add(JamesMessageHook.class);
         classes.add(MessageHook.class);
+        classes.add(MessageHeaderHook.class);
         classes.add(HookResultHook.class);
         return classes;
     }
@@ -285,4 +464,29 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
         }
 
     }
+
+    /**
+     * State of the DATA transfer of one message
+     */
+    private final static class DataState {
+
+        /**
+         * Buffers the lines, so short frames get written in chunks
+         */
+        private final OutputStream out;
+
+        /**
+         * Collects the headers until the empty line which separates them from
+         * the body was received, <code>null</code> afterwards or if they are
+         * not needed
+         */
+        private ByteArrayOutputStream headers;
+
+        public DataState(OutputStream out, boolean collectHeaders) {
+            this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+            if (collectHeaders) {
+                headers = new ByteArrayOutputStream();
+            }
+        }
+    }
 }
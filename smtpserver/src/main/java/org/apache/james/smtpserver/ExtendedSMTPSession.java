@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.smtpserver;
 
+import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.protocols.api.ProtocolTransport;
 import org.apache.james.protocols.smtp.SMTPConfiguration;
 import org.apache.james.protocols.smtp.SMTPSession;
@@ -31,6 +32,13 @@ public class ExtendedSMTPSession extends org.apache.james.protocols.smtp.SMTPSes
    
     private SMTPConfiguration theConfigData;
 
+    /**
+     * <code>true</code> while the message of an accepted <code>DATA</code>
+     * command is received. It is set by the thread which processes the
+     * commands and read by the IO thread which frames the input, so it must
+     * not be kept in the state map.
+     */
+    private volatile boolean dataAccepted = false;
 
     public ExtendedSMTPSession(SMTPConfiguration theConfigData, Logger logger, ProtocolTransport transport) {
         super(theConfigData, logger, transport);
@@ -44,4 +52,38 @@ public class ExtendedSMTPSession extends org.apache.james.protocols.smtp.SMTPSes
             return true;
         }
     }
+
+    /**
+     * Dispose the message of an unfinished <code>BDAT</code> transfer, as RSET,
+     * MAIL and HELO/EHLO abort it by resetting the state
+     * 
+     * @see org.apache.james.protocols.smtp.SMTPSessionImpl#resetState()
+     */
+    @Override
+    public void resetState() {
+        dataAccepted = false;
+        Object bdatState = getState().get(SMTPConstants.BDAT_STATE);
+        if (bdatState != null) {
+            LifecycleUtil.dispose(bdatState);
+            LifecycleUtil.dispose(getState().get(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE));
+        }
+        super.resetState();
+    }
+
+    /**
+     * Mark the <code>DATA</code> command as accepted, till the state is reset
+     */
+    public void setDataAccepted() {
+        dataAccepted = true;
+    }
+
+    /**
+     * Return <code>true</code> if the <code>DATA</code> command was accepted
+     * and the message is received. This can be called from any thread.
+     * 
+     * @return dataAccepted
+     */
+    public boolean isDataAccepted() {
+        return dataAccepted;
+    }
 }
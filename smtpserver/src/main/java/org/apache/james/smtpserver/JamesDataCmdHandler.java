@@ -26,6 +26,7 @@ import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.DataCmdHandler;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
 
 /**
  * handles DATA command
@@ -42,6 +43,11 @@ public class JamesDataCmdHandler extends DataCmdHandler {
      *            the argument passed in with the command by the SMTP client
      */
     protected SMTPResponse doDATA(SMTPSession session, String argument) {
+        if (session.getState().containsKey(SMTPConstants.BINARYMIME) || session.getState().containsKey(SMTPConstants.BDAT_STATE) || session.getState().containsKey(SMTPConstants.DATA_REJECTED)) {
+            // RFC 3030 does not allow to mix DATA with BDAT or to send
+            // BINARYMIME via DATA
+            return new SMTPResponse(SMTPRetCode.BAD_SEQUENCE, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_OTHER) + " DATA can not be used in this transaction, use BDAT");
+        }
         try {
             MimeMessageInputStreamSource mmiss = new MimeMessageInputStreamSource(MailImpl.getId());
             session.getState().put(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, mmiss);
@@ -52,6 +58,9 @@ public class JamesDataCmdHandler extends DataCmdHandler {
 
         // out = new PipedOutputStream(messageIn);
         session.pushLineHandler(getLineHandler());
+        if (session instanceof ExtendedSMTPSession) {
+            ((ExtendedSMTPSession) session).setDataAccepted();
+        }
 
         return new SMTPResponse(SMTPRetCode.DATA_READY, "Ok Send data ending with <CRLF>.<CRLF>");
     }
@@ -0,0 +1,62 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.smtpserver;
+
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.esmtp.MailSizeEsmtpExtension;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+
+/**
+ * {@link MailSizeEsmtpExtension} which cuts the message off as soon as the
+ * received data exceeds the size limit. The rest of the data is discarded by
+ * the {@link DataLineJamesMessageHookHandler} and the response is sent after
+ * the terminating dot, so the session can be used for the next message.
+ */
+public class JamesMailSizeEsmtpExtension extends MailSizeEsmtpExtension {
+
+    private final static String CURRENT_SIZE = "org.apache.james.smtpserver.JamesMailSizeEsmtpExtension.CURRENT_SIZE";
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.esmtp.MailSizeEsmtpExtension#onLine(SMTPSession, byte[], LineHandler)
+     */
+    public Response onLine(SMTPSession session, byte[] line, LineHandler<SMTPSession> next) {
+        long maxSize = session.getMaxMessageSize();
+        // 46 is "."
+        boolean terminated = line.length == 3 && line[0] == 46;
+        if (maxSize > 0 && !terminated && session.getState().get(SMTPConstants.DATA_REJECTED) == null) {
+            Long currentSize = (Long) session.getState().get(CURRENT_SIZE);
+            long size = line.length;
+            if (currentSize != null) {
+                size += currentSize.longValue();
+            }
+            session.getState().put(CURRENT_SIZE, Long.valueOf(size));
+
+            if (size > maxSize) {
+                session.getLogger().info("Rejected message from " + session.getRemoteIPAddress() + " exceeding the maximum message size of " + maxSize + " bytes");
+                DataLineJamesMessageHookHandler.reject(session, new SMTPResponse(SMTPRetCode.QUOTA_EXCEEDED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SYSTEM_MSG_TOO_BIG) + " Message size exceeds fixed maximum message size"));
+            }
+        }
+        return next.onLine(session, line);
+    }
+}
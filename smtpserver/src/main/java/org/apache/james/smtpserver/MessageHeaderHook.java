@@ -0,0 +1,49 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.smtpserver;
+
+import org.apache.james.core.MailHeaders;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.Hook;
+import org.apache.james.protocols.smtp.hook.HookResult;
+
+/**
+ * Hook which is called as soon as the headers of a message were received
+ * during DATA, before the body is read. Returning a result which leads to a
+ * response rejects the message: the rest of the data is read and discarded
+ * and the response is sent after the terminating dot.
+ * 
+ * The hooks will be server-wide common to all the SMTPHandlers, therefore the
+ * handlers must store all the state information in the SMTPSession object
+ */
+public interface MessageHeaderHook extends Hook {
+
+    /**
+     * Handle the headers of the message
+     * 
+     * @param session
+     * @param headers
+     *            the headers of the message, changes are not written to the
+     *            message
+     * @return result
+     */
+    HookResult onMessageHeaders(SMTPSession session, MailHeaders headers);
+
+}
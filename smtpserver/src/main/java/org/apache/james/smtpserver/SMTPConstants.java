@@ -26,5 +26,9 @@ public interface SMTPConstants {
 
     static final String DATA_MIMEMESSAGE_STREAMSOURCE = "org.apache.james.core.DataCmdHandler.DATA_MIMEMESSAGE_STREAMSOURCE";
     static final String MAIL = "MAIL";
+    static final String DATA_STATE = "org.apache.james.smtpserver.DataLineJamesMessageHookHandler.DATA_STATE";
+    static final String DATA_REJECTED = "org.apache.james.smtpserver.DataLineJamesMessageHookHandler.DATA_REJECTED";
+    static final String BDAT_STATE = "org.apache.james.smtpserver.BdatCmdHandler.BDAT_STATE";
+    static final String BINARYMIME = "org.apache.james.smtpserver.BdatCmdHandler.BINARYMIME";
 
 }
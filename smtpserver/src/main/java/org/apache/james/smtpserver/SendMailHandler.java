@@ -52,6 +52,15 @@ public class SendMailHandler implements JamesMessageHook {
         queue = queueFactory.getQueue(MailQueueFactory.SPOOL);
     }
 
+    /**
+     * Return the queue to which the messages are sent
+     * 
+     * @return queue
+     */
+    public MailQueue getQueue() {
+        return queue;
+    }
+
     /**
      * Adds header to the message
      * 
@@ -20,24 +20,171 @@
 package org.apache.james.smtpserver.fastfail;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import javax.annotation.Resource;
+import javax.management.JMException;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.AsyncDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
+import org.apache.james.dnsservice.library.dnsbl.DNSBLChecker;
+import org.apache.james.dnsservice.library.dnsbl.DNSBLVerdict;
+import org.apache.james.dnsservice.library.dnsbl.DNSBLVerdictCache;
 import org.apache.james.protocols.api.handler.LifecycleAwareProtocolHandler;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.smtpserver.DNSLookupHandler;
 import org.apache.james.smtpserver.SMTPServerDNSServiceAdapter;
 
-public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail.DNSRBLHandler implements LifecycleAwareProtocolHandler {
+/**
+ * Checks the client against the configured DNSBL zones. All zones are asked in
+ * parallel by the lookup service of the server, see {@link DNSBLChecker}. The
+ * verdicts are kept in a cache of the handler, which is exported via JMX under
+ * the configured jmxName while the handler is in use.
+ */
+public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail.DNSRBLHandler implements LifecycleAwareProtocolHandler, DNSLookupHandler {
 
+    private DNSBLChecker checker;
+
+    private String[] whitelist;
+
+    private String[] blacklist;
+
+    private boolean getDetail = false;
+
+    private long timeout = 10000;
+
+    private final DNSBLVerdictCache cache = new DNSBLVerdictCache();
+
+    /**
+     * Set the {@link DNSService}. Until the lookup service is set, the zones
+     * are asked by the calling thread.
+     * 
+     * @param dns
+     */
     @Resource(name = "dnsservice")
     public void setDNSService(DNSService dns) {
+        checker = new DNSBLChecker(new AsyncDNSService(dns), cache);
         super.setDNSService(new SMTPServerDNSServiceAdapter(dns));
     }
 
+    /**
+     * @see org.apache.james.smtpserver.DNSLookupHandler#setLookupService(org.apache.james.dnsservice.library.AsyncDNSService)
+     */
+    public void setLookupService(AsyncDNSService lookupService) {
+        checker = new DNSBLChecker(lookupService, cache);
+    }
+
+    @Override
+    public void setWhitelist(String[] whitelist) {
+        super.setWhitelist(whitelist);
+        this.whitelist = whitelist;
+    }
+
+    @Override
+    public void setBlacklist(String[] blacklist) {
+        super.setBlacklist(blacklist);
+        this.blacklist = blacklist;
+    }
+
+    @Override
+    public void setGetDetail(boolean getDetail) {
+        super.setGetDetail(getDetail);
+        this.getDetail = getDetail;
+    }
+
+    /**
+     * Set the time in milliseconds to wait for the answers of all zones. Zones
+     * which did not answer in time are handled like they do not list the
+     * client.
+     * 
+     * @param timeout
+     *            the timeout, 0 to wait until all zones answered
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Query all configured lists in parallel as soon as the client connects
+     * 
+     * @see org.apache.james.smtpserver.DNSLookupHandler#startLookups(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public Collection<DNSLookup<?>> startLookups(SMTPSession session, String command, String argument) {
+        if (checker == null || command != null || session.isRelayingAllowed()) {
+            return Collections.emptyList();
+        }
+        String ipAddress = session.getRemoteIPAddress();
+        List<DNSLookup<?>> lookups = new ArrayList<DNSLookup<?>>();
+        if (whitelist != null) {
+            for (int i = 0; i < whitelist.length; i++) {
+                lookups.add(checker.lookup(ipAddress, whitelist[i], false));
+            }
+        }
+        if (blacklist != null) {
+            for (int i = 0; i < blacklist.length; i++) {
+                lookups.add(checker.lookup(ipAddress, blacklist[i], getDetail));
+            }
+        }
+        return lookups;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.DNSRBLHandler#checkDNSRBL(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String)
+     */
+    @Override
+    protected void checkDNSRBL(SMTPSession session, String ipAddress) {
+        /*
+         * don't check against rbllists if the client is allowed to relay..
+         * This whould make no sense.
+         */
+        if (session.isRelayingAllowed()) {
+            session.getLogger().info("Ipaddress " + session.getRemoteIPAddress() + " is allowed to relay. Don't check it");
+            return;
+        }
+        if (checker == null) {
+            super.checkDNSRBL(session, ipAddress);
+            return;
+        }
+
+        DNSBLVerdict verdict = checker.check(ipAddress, whitelist, blacklist, getDetail, timeout);
+        if (verdict == null) {
+            if (session.getLogger().isDebugEnabled()) {
+                session.getLogger().debug("IpAddress " + ipAddress + " not listed");
+            }
+        } else if (isWhitelist(verdict.getZone())) {
+            if (session.getLogger().isInfoEnabled()) {
+                session.getLogger().info("Connection from " + ipAddress + " whitelisted by " + verdict.getZone());
+            }
+        } else {
+            if (session.getLogger().isInfoEnabled()) {
+                session.getLogger().info("Connection from " + ipAddress + " restricted by " + verdict.getZone() + " to SMTP AUTH/postmaster/abuse.");
+            }
+            if (verdict.getDetail() != null) {
+                session.getConnectionState().put(RBL_DETAIL_MAIL_ATTRIBUTE_NAME, verdict.getDetail());
+            }
+            session.getConnectionState().put(RBL_BLOCKLISTED_MAIL_ATTRIBUTE_NAME, "true");
+        }
+    }
+
+    private boolean isWhitelist(String zone) {
+        if (whitelist != null) {
+            for (int i = 0; i < whitelist.length; i++) {
+                if (whitelist[i].equals(zone)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void init(Configuration config) throws ConfigurationException {
@@ -77,12 +224,19 @@ public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail
             throw new ConfigurationException("Please configure whitelist or blacklist");
         }
 
-        setGetDetail(handlerConfiguration.getBoolean("getDetail", false));        
+        setGetDetail(handlerConfiguration.getBoolean("getDetail", false));
+        setTimeout(handlerConfiguration.getLong("timeout", timeout));
+
+        String jmxName = handlerConfiguration.getString("jmxName", "smtpserver");
+        try {
+            cache.registerMBean("org.apache.james:type=server,name=" + jmxName + ",chain=handlerchain,handler=dnsblcache");
+        } catch (JMException e) {
+            throw new ConfigurationException("Unable to register the DNSBL cache of " + jmxName, e);
+        }
     }
 
     @Override
     public void destroy() {
-        // TODO Auto-generated method stub
-        
+        cache.dispose();
     }
 }
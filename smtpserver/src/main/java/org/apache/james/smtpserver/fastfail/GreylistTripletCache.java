@@ -0,0 +1,368 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sharded in-memory cache of greylist triplets which tracks the changes not
+ * written to the database yet. The least recently used triplets are removed if
+ * a shard is full, but only if all their changes were written.
+ */
+public class GreylistTripletCache {
+
+    private final Shard[] shards;
+
+    private final ConcurrentLinkedQueue<Triplet> dirty = new ConcurrentLinkedQueue<Triplet>();
+
+    private final AtomicInteger dirtyCount = new AtomicInteger(0);
+
+    private int nextExpireShard = 0;
+
+    /**
+     * @param shardCount
+     *            the count of shards, each has its own lock
+     * @param maxSize
+     *            the maximal count of triplets which are kept
+     */
+    public GreylistTripletCache(int shardCount, int maxSize) {
+        shards = new Shard[shardCount];
+        int shardSize = Math.max(1, maxSize / shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(shardSize);
+        }
+    }
+
+    /**
+     * Return the triplet or <code>null</code> if it is not cached
+     * 
+     * @param ipAddress
+     * @param sender
+     * @param recip
+     * @return triplet
+     */
+    public Triplet get(String ipAddress, String sender, String recip) {
+        String key = key(ipAddress, sender, recip);
+        Shard shard = shard(key);
+        synchronized (shard) {
+            Triplet triplet = shard.get(key);
+            return (triplet == null) ? null : triplet.copy();
+        }
+    }
+
+    /**
+     * Cache a triplet which was read from the database
+     * 
+     * @param ipAddress
+     * @param sender
+     * @param recip
+     * @param count
+     * @param time
+     */
+    public void load(String ipAddress, String sender, String recip, int count, long time) {
+        String key = key(ipAddress, sender, recip);
+        Shard shard = shard(key);
+        synchronized (shard) {
+            if (!shard.containsKey(key)) {
+                Triplet triplet = new Triplet(ipAddress, sender, recip, count, time);
+                triplet.persisted = true;
+                shard.put(key, triplet);
+            }
+        }
+    }
+
+    /**
+     * Store the triplet and remember to write it to the database
+     * 
+     * @param ipAddress
+     * @param sender
+     * @param recip
+     * @param count
+     * @param time
+     */
+    public void store(String ipAddress, String sender, String recip, int count, long time) {
+        String key = key(ipAddress, sender, recip);
+        Shard shard = shard(key);
+        Triplet triplet;
+        synchronized (shard) {
+            triplet = shard.get(key);
+            if (triplet == null) {
+                // mark it before it is added, so it is not evicted
+                triplet = new Triplet(ipAddress, sender, recip, count, time);
+                triplet.dirty = true;
+                shard.put(key, triplet);
+            } else {
+                triplet.count = count;
+                triplet.time = time;
+                if (triplet.dirty) {
+                    return;
+                }
+                triplet.dirty = true;
+            }
+        }
+        dirtyCount.incrementAndGet();
+        dirty.add(triplet);
+    }
+
+    /**
+     * Return the changed triplets which need to be written to the database and
+     * mark them as written. Use {@link #failed(List)} if writing them failed.
+     * 
+     * @param max
+     *            the maximal count of triplets to return
+     * @return changes copies of the changed triplets
+     */
+    public List<Triplet> drainChanges(int max) {
+        List<Triplet> changes = new ArrayList<Triplet>();
+        Triplet triplet;
+        while (changes.size() < max && (triplet = dirty.poll()) != null) {
+            dirtyCount.decrementAndGet();
+            Shard shard = shard(triplet.key());
+            synchronized (shard) {
+                if (triplet.dirty && !triplet.removed) {
+                    Triplet change = triplet.copy();
+                    triplet.dirty = false;
+                    triplet.persisted = true;
+                    triplet.failures = 0;
+                    changes.add(change);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Remember the given changes again, because writing them to the database
+     * failed
+     * 
+     * @param changes
+     *            the changes returned by {@link #drainChanges(int)}
+     */
+    public void failed(List<Triplet> changes) {
+        for (int i = 0; i < changes.size(); i++) {
+            requeue(changes.get(i), changes.get(i).failures);
+        }
+    }
+
+    /**
+     * Remember the given change again, because writing it to the database
+     * failed on its own. The change is dropped once it failed the given count
+     * of times, so a triplet which can never be written does not stay forever.
+     * 
+     * @param change
+     *            the change returned by {@link #drainChanges(int)}
+     * @param maxFailures
+     *            the count of failures after which the change is dropped
+     * @return true if the change was dropped
+     */
+    public boolean failed(Triplet change, int maxFailures) {
+        int failures = change.failures + 1;
+        if (failures >= maxFailures) {
+            return true;
+        }
+        requeue(change, failures);
+        return false;
+    }
+
+    private void requeue(Triplet change, int failures) {
+        Shard shard = shard(change.key());
+        Triplet triplet;
+        synchronized (shard) {
+            triplet = shard.get(change.key());
+            if (triplet == null) {
+                // evicted meanwhile, keep the change anyway
+                triplet = change;
+                triplet.dirty = true;
+                triplet.failures = failures;
+                shard.put(triplet.key(), triplet);
+            } else {
+                if (!change.persisted) {
+                    triplet.persisted = false;
+                }
+                triplet.failures = failures;
+                if (triplet.dirty) {
+                    return;
+                }
+                triplet.dirty = true;
+            }
+        }
+        dirtyCount.incrementAndGet();
+        dirty.add(triplet);
+    }
+
+    /**
+     * Return the count of triplets with changes which were not written yet
+     * 
+     * @return count
+     */
+    public int getChangeCount() {
+        return dirtyCount.get();
+    }
+
+    /**
+     * Remove the expired triplets of the next shard. So every call only needs
+     * to lock and scan a part of the cache.
+     * 
+     * @param unseenBefore
+     *            triplets which were only seen once before this time are
+     *            expired
+     * @param seenBefore
+     *            all triplets which were seen the last time before this time
+     *            are expired
+     */
+    public void expire(long unseenBefore, long seenBefore) {
+        Shard shard;
+        synchronized (this) {
+            shard = shards[nextExpireShard];
+            nextExpireShard = (nextExpireShard + 1) % shards.length;
+        }
+        synchronized (shard) {
+            Iterator<Triplet> triplets = shard.values().iterator();
+            while (triplets.hasNext()) {
+                Triplet triplet = triplets.next();
+                if (triplet.time < seenBefore || (triplet.count == 0 && triplet.time < unseenBefore)) {
+                    triplet.removed = true;
+                    triplets.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the count of cached triplets
+     * 
+     * @return size
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            synchronized (shards[i]) {
+                size += shards[i].size();
+            }
+        }
+        return size;
+    }
+
+    private Shard shard(String key) {
+        return shards[(key.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    private static String key(String ipAddress, String sender, String recip) {
+        return ipAddress + '\0' + sender + '\0' + recip;
+    }
+
+    /**
+     * Greylist triplet with the time it was seen the last time and the count
+     * of times it was seen
+     */
+    public final static class Triplet {
+        private final String ipAddress;
+        private final String sender;
+        private final String recip;
+        private int count;
+        private long time;
+        private boolean persisted = false;
+        private boolean dirty = false;
+        private boolean removed = false;
+        private int failures = 0;
+
+        private Triplet(String ipAddress, String sender, String recip, int count, long time) {
+            this.ipAddress = ipAddress;
+            this.sender = sender;
+            this.recip = recip;
+            this.count = count;
+            this.time = time;
+        }
+
+        private Triplet copy() {
+            Triplet copy = new Triplet(ipAddress, sender, recip, count, time);
+            copy.persisted = persisted;
+            copy.failures = failures;
+            return copy;
+        }
+
+        private String key() {
+            return GreylistTripletCache.key(ipAddress, sender, recip);
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getRecip() {
+            return recip;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Return true if the triplet is stored in the database already
+         * 
+         * @return persisted
+         */
+        public boolean isPersisted() {
+            return persisted;
+        }
+    }
+
+    /**
+     * Access ordered map which removes the least recently used triplets which
+     * have no unwritten changes if it is full
+     */
+    private final static class Shard extends LinkedHashMap<String, Triplet> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        public Shard(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Triplet> eldest) {
+            if (size() <= maxSize) {
+                return false;
+            }
+            // also shrink back if the shard grew because of unwritten changes
+            Iterator<Triplet> triplets = values().iterator();
+            while (size() > maxSize && triplets.hasNext()) {
+                if (!triplets.next().dirty) {
+                    triplets.remove();
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -20,6 +20,7 @@
 package org.apache.james.smtpserver.fastfail;
 
 import java.io.File;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -28,10 +29,14 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 import javax.sql.DataSource;
@@ -46,7 +51,9 @@ import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.smtpserver.fastfail.GreylistTripletCache.Triplet;
 import org.apache.james.util.TimeConverter;
+import org.apache.james.util.concurrent.NamedThreadFactory;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
 import org.apache.mailet.MailAddress;
@@ -55,12 +62,23 @@ import org.slf4j.LoggerFactory;
 
 /**
  * GreylistHandler which can be used to activate Greylisting
+ * 
+ * The triplets are kept in a {@link GreylistTripletCache} in front of the
+ * database table. New triplets and updates are written back in JDBC batches by
+ * a background thread, which also removes the expired triplets in small
+ * chunks. Set cacheSize to 0 to access the database directly on every RCPT.
  */
 public class JDBCGreylistHandler extends AbstractGreylistHandler implements LifecycleAwareProtocolHandler {
 
     /** This log is the fall back shared by all instances */
     private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(JDBCGreylistHandler.class);
 
+    /**
+     * The count of times a triplet which can not be written on its own is
+     * tried before it is dropped
+     */
+    private static final int MAX_WRITE_FAILURES = 3;
+
     /**
      * Non context specific log should only be used when no context specific log
      * is available
@@ -81,6 +99,28 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
 
     private String updateQuery;
 
+    private String selectExpiredQuery;
+
+    private String selectExpiredAutoWhiteListQuery;
+
+    private String deleteTripletQuery;
+
+    private int cacheSize = 100000;
+
+    private long writeBehindInterval = 1000;
+
+    private int batchSize = 100;
+
+    private GreylistTripletCache cache;
+
+    private ScheduledExecutorService writer;
+
+    /** Triplets seen only once before this time should be removed */
+    private volatile long unseenBefore = 0;
+
+    /** Triplets seen the last time before this time should be removed */
+    private volatile long seenBefore = 0;
+
     /**
      * Contains all of the sql strings for this component.
      */
@@ -188,6 +228,14 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
      */
     protected Iterator<String> getGreyListData(String ipAddress, String sender, String recip) throws SQLException {
         Collection<String> data = new ArrayList<String>(2);
+        if (cache != null) {
+            Triplet triplet = cache.get(ipAddress, sender, recip);
+            if (triplet != null) {
+                data.add(String.valueOf(triplet.getTime()));
+                data.add(String.valueOf(triplet.getCount()));
+                return data.iterator();
+            }
+        }
         PreparedStatement mappingStmt = null;
         Connection conn = datasource.getConnection();
         try {
@@ -200,8 +248,13 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
                 mappingRS = mappingStmt.executeQuery();
 
                 if (mappingRS.next()) {
-                    data.add(String.valueOf(mappingRS.getTimestamp(1).getTime()));
-                    data.add(String.valueOf(mappingRS.getInt(2)));
+                    long time = mappingRS.getTimestamp(1).getTime();
+                    int count = mappingRS.getInt(2);
+                    data.add(String.valueOf(time));
+                    data.add(String.valueOf(count));
+                    if (cache != null) {
+                        cache.load(ipAddress, sender, recip, count, time);
+                    }
                 }
             } finally {
                 theJDBCUtil.closeJDBCResultSet(mappingRS);
@@ -218,6 +271,10 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
      *      java.lang.String, java.lang.String, int, long)
      */
     protected void insertTriplet(String ipAddress, String sender, String recip, int count, long createTime) throws SQLException {
+        if (cache != null) {
+            cache.store(ipAddress, sender, recip, count, createTime);
+            return;
+        }
         Connection conn = datasource.getConnection();
 
         PreparedStatement mappingStmt = null;
@@ -242,6 +299,10 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
      *      java.lang.String, java.lang.String, int, long)
      */
     protected void updateTriplet(String ipAddress, String sender, String recip, int count, long time) throws SQLException {
+        if (cache != null) {
+            cache.store(ipAddress, sender, recip, count + 1, time);
+            return;
+        }
         Connection conn = datasource.getConnection();
         PreparedStatement mappingStmt = null;
 
@@ -263,6 +324,11 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupAutoWhiteListGreyList(long)
      */
     protected void cleanupAutoWhiteListGreyList(long time) throws SQLException {
+        if (cache != null) {
+            // done in the background by writeBehind()
+            seenBefore = time;
+            return;
+        }
         PreparedStatement mappingStmt = null;
         Connection conn = datasource.getConnection();
 
@@ -282,6 +348,11 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupGreyList(long)
      */
     protected void cleanupGreyList(long time) throws SQLException {
+        if (cache != null) {
+            // done in the background by writeBehind()
+            unseenBefore = time;
+            return;
+        }
         Connection conn = datasource.getConnection();
 
         PreparedStatement mappingStmt = null;
@@ -298,6 +369,228 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
         }
     }
 
+    /**
+     * Write the changed triplets to the database and remove a chunk of the
+     * expired triplets. Called periodically by the writer thread.
+     */
+    private void writeBehind() {
+        try {
+            List<Triplet> changes;
+            while (!(changes = cache.drainChanges(batchSize)).isEmpty()) {
+                try {
+                    writeChanges(changes);
+                } catch (SQLException e) {
+                    serviceLog.debug("Unable to write the greylist triplets in a batch, writing them one by one: " + e.getMessage());
+                    writeChangesOneByOne(changes);
+                }
+            }
+
+            long seenBefore = this.seenBefore;
+            long unseenBefore = this.unseenBefore;
+            if (seenBefore > 0 || unseenBefore > 0) {
+                cache.expire(unseenBefore, seenBefore);
+                if (seenBefore > 0 && removeExpired(selectExpiredAutoWhiteListQuery, deleteAutoWhiteListQuery, seenBefore)) {
+                    this.seenBefore = 0;
+                }
+                if (unseenBefore > 0 && removeExpired(selectExpiredQuery, deleteQuery, unseenBefore)) {
+                    this.unseenBefore = 0;
+                }
+            }
+        } catch (SQLException e) {
+            serviceLog.error("Unable to write greylist triplets: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            serviceLog.error("Unable to write greylist triplets: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write the given changes one by one, after writing them in a batch
+     * failed. So a triplet which can not be written does not hold back the
+     * others. It is tried again with the next batch and dropped after
+     * {@link #MAX_WRITE_FAILURES} failures. If no connection is available, all
+     * changes are kept for the next run.
+     * 
+     * @param changes
+     * @throws SQLException
+     *             if no connection is available
+     */
+    private void writeChangesOneByOne(List<Triplet> changes) throws SQLException {
+        Connection conn;
+        try {
+            conn = datasource.getConnection();
+        } catch (SQLException e) {
+            cache.failed(changes);
+            throw e;
+        }
+        try {
+            for (int i = 0; i < changes.size(); i++) {
+                Triplet triplet = changes.get(i);
+                try {
+                    writeChanges(conn, Collections.singletonList(triplet));
+                } catch (SQLException e) {
+                    if (cache.failed(triplet, MAX_WRITE_FAILURES)) {
+                        serviceLog.error("Dropped greylist triplet " + triplet.getIpAddress() + " " + triplet.getSender() + " " + triplet.getRecip() + " which could not be written " + MAX_WRITE_FAILURES + " times: " + e.getMessage(), e);
+                    }
+                }
+            }
+        } finally {
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    /**
+     * Write the given changes in batches. Updates of triplets which were
+     * removed from the database meanwhile are inserted again, inserts of
+     * triplets which exist already are written as updates.
+     * 
+     * @param changes
+     * @throws SQLException
+     */
+    private void writeChanges(List<Triplet> changes) throws SQLException {
+        Connection conn = datasource.getConnection();
+        try {
+            writeChanges(conn, changes);
+        } finally {
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
+    /**
+     * Write the given changes over the given connection, see
+     * {@link #writeChanges(List)}
+     * 
+     * @param conn
+     * @param changes
+     * @throws SQLException
+     */
+    private void writeChanges(Connection conn, List<Triplet> changes) throws SQLException {
+        List<Triplet> inserts = new ArrayList<Triplet>();
+        List<Triplet> updates = new ArrayList<Triplet>();
+        for (int i = 0; i < changes.size(); i++) {
+            Triplet triplet = changes.get(i);
+            if (triplet.isPersisted()) {
+                updates.add(triplet);
+            } else {
+                inserts.add(triplet);
+            }
+        }
+
+        PreparedStatement updateStmt = null;
+        PreparedStatement insertStmt = null;
+        try {
+            if (!updates.isEmpty()) {
+                updateStmt = conn.prepareStatement(updateQuery);
+                for (int i = 0; i < updates.size(); i++) {
+                    setUpdateParameters(updateStmt, updates.get(i));
+                    updateStmt.addBatch();
+                }
+                int[] counts = updateStmt.executeBatch();
+                for (int i = 0; i < counts.length && i < updates.size(); i++) {
+                    if (counts[i] == 0) {
+                        inserts.add(updates.get(i));
+                    }
+                }
+            }
+
+            if (!inserts.isEmpty()) {
+                insertStmt = conn.prepareStatement(insertQuery);
+                for (int i = 0; i < inserts.size(); i++) {
+                    setInsertParameters(insertStmt, inserts.get(i));
+                    insertStmt.addBatch();
+                }
+                try {
+                    insertStmt.executeBatch();
+                } catch (BatchUpdateException e) {
+                    // some of the triplets exist already, write one by one
+                    theJDBCUtil.closeJDBCStatement(insertStmt);
+                    insertStmt = conn.prepareStatement(insertQuery);
+                    if (updateStmt == null) {
+                        updateStmt = conn.prepareStatement(updateQuery);
+                    }
+                    for (int i = 0; i < inserts.size(); i++) {
+                        Triplet triplet = inserts.get(i);
+                        setUpdateParameters(updateStmt, triplet);
+                        if (updateStmt.executeUpdate() == 0) {
+                            setInsertParameters(insertStmt, triplet);
+                            insertStmt.executeUpdate();
+                        }
+                    }
+                }
+            }
+        } finally {
+            theJDBCUtil.closeJDBCStatement(insertStmt);
+            theJDBCUtil.closeJDBCStatement(updateStmt);
+        }
+    }
+
+    private void setInsertParameters(PreparedStatement insertStmt, Triplet triplet) throws SQLException {
+        insertStmt.setString(1, triplet.getIpAddress());
+        insertStmt.setString(2, triplet.getSender());
+        insertStmt.setString(3, triplet.getRecip());
+        insertStmt.setInt(4, triplet.getCount());
+        insertStmt.setTimestamp(5, new Timestamp(triplet.getTime()));
+    }
+
+    private void setUpdateParameters(PreparedStatement updateStmt, Triplet triplet) throws SQLException {
+        updateStmt.setTimestamp(1, new Timestamp(triplet.getTime()));
+        updateStmt.setInt(2, triplet.getCount());
+        updateStmt.setString(3, triplet.getIpAddress());
+        updateStmt.setString(4, triplet.getSender());
+        updateStmt.setString(5, triplet.getRecip());
+    }
+
+    /**
+     * Remove at most batchSize expired triplets from the database. If the
+     * queries to select the expired triplets are not configured, all are
+     * removed by the given bulk delete query.
+     * 
+     * @param selectExpired
+     *            query which selects the expired triplets, may be
+     *            <code>null</code>
+     * @param bulkDelete
+     *            query which deletes all expired triplets
+     * @param time
+     * @return true if all expired triplets are removed
+     * @throws SQLException
+     */
+    private boolean removeExpired(String selectExpired, String bulkDelete, long time) throws SQLException {
+        Connection conn = datasource.getConnection();
+        PreparedStatement selectStmt = null;
+        PreparedStatement deleteStmt = null;
+        ResultSet rs = null;
+        try {
+            if (selectExpired == null || deleteTripletQuery == null) {
+                deleteStmt = conn.prepareStatement(bulkDelete);
+                deleteStmt.setTimestamp(1, new Timestamp(time));
+                deleteStmt.executeUpdate();
+                return true;
+            }
+
+            selectStmt = conn.prepareStatement(selectExpired);
+            selectStmt.setMaxRows(batchSize);
+            selectStmt.setTimestamp(1, new Timestamp(time));
+            rs = selectStmt.executeQuery();
+            deleteStmt = conn.prepareStatement(deleteTripletQuery);
+            int found = 0;
+            while (rs.next()) {
+                deleteStmt.setString(1, rs.getString(1));
+                deleteStmt.setString(2, rs.getString(2));
+                deleteStmt.setString(3, rs.getString(3));
+                deleteStmt.addBatch();
+                found++;
+            }
+            if (found > 0) {
+                deleteStmt.executeBatch();
+            }
+            return found < batchSize;
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(rs);
+            theJDBCUtil.closeJDBCStatement(selectStmt);
+            theJDBCUtil.closeJDBCStatement(deleteStmt);
+            theJDBCUtil.closeJDBCConnection(conn);
+        }
+    }
+
     /**
      * The JDBCUtil helper class
      */
@@ -339,6 +632,11 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
             deleteAutoWhiteListQuery = sqlQueries.getSqlString("deleteAutoWhitelistQuery", true);
             updateQuery = sqlQueries.getSqlString("updateQuery", true);
 
+            // optional, used to remove expired triplets in chunks
+            selectExpiredQuery = sqlQueries.getSqlString("selectExpiredQuery", false);
+            selectExpiredAutoWhiteListQuery = sqlQueries.getSqlString("selectExpiredAutoWhitelistQuery", false);
+            deleteTripletQuery = sqlQueries.getSqlString("deleteTripletQuery", false);
+
         } finally {
             theJDBCUtil.closeJDBCConnection(conn);
         }
@@ -458,10 +756,38 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Life
         } catch (Exception e) {
             throw new RuntimeException("Unable to init datasource", e);
         }
+
+        cacheSize = handlerConfiguration.getInt("cacheSize", cacheSize);
+        writeBehindInterval = handlerConfiguration.getLong("writeBehindInterval", writeBehindInterval);
+        batchSize = handlerConfiguration.getInt("batchSize", batchSize);
+        if (batchSize < 1) {
+            throw new ConfigurationException("batchSize must be greater than 0");
+        }
+        if (writeBehindInterval < 1) {
+            throw new ConfigurationException("writeBehindInterval must be greater than 0");
+        }
+        if (cacheSize > 0) {
+            cache = new GreylistTripletCache(16, cacheSize);
+            writer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("JDBCGreylistHandler"));
+            writer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    writeBehind();
+                }
+            }, writeBehindInterval, writeBehindInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void destroy() {
-        // nothing todo
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(writeBehindInterval * 10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // write the last changes
+            writeBehind();
+        }
     }
 }
@@ -19,16 +19,46 @@
 
 package org.apache.james.smtpserver.fastfail;
 
+import java.util.Collection;
+import java.util.Collections;
+
 import javax.annotation.Resource;
 
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.AsyncDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.smtpserver.DNSLookupHandler;
 import org.apache.james.smtpserver.SMTPServerDNSServiceAdapter;
 
-public class ResolvableEhloHeloHandler extends org.apache.james.protocols.smtp.core.fastfail.ResolvableEhloHeloHandler {
+public class ResolvableEhloHeloHandler extends org.apache.james.protocols.smtp.core.fastfail.ResolvableEhloHeloHandler implements DNSLookupHandler {
+
+    private AsyncDNSService dnsService;
 
     @Resource(name = "dnsservice")
     public void setDNSService(DNSService dns) {
-        super.setDNSService(new SMTPServerDNSServiceAdapter(dns));
+        setLookupService(new AsyncDNSService(dns));
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.DNSLookupHandler#setLookupService(org.apache.james.dnsservice.library.AsyncDNSService)
+     */
+    public void setLookupService(AsyncDNSService lookupService) {
+        dnsService = lookupService;
+        super.setDNSService(new SMTPServerDNSServiceAdapter(dnsService));
+    }
+
+    /**
+     * Resolve the name given by HELO / EHLO before the command is processed
+     * 
+     * @see org.apache.james.smtpserver.DNSLookupHandler#startLookups(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public Collection<DNSLookup<?>> startLookups(SMTPSession session, String command, String argument) {
+        if (dnsService != null && argument != null && ("HELO".equals(command) || "EHLO".equals(command))) {
+            return Collections.<DNSLookup<?>> singletonList(dnsService.lookupByName(argument));
+        }
+        return Collections.emptyList();
     }
 
 }
@@ -19,15 +19,60 @@
 
 package org.apache.james.smtpserver.fastfail;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
 import javax.annotation.Resource;
 
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.AsyncDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.smtpserver.DNSLookupHandler;
 import org.apache.james.smtpserver.SMTPServerDNSServiceAdapter;
 
-public class ReverseEqualsEhloHeloHandler extends org.apache.james.protocols.smtp.core.fastfail.ReverseEqualsEhloHeloHandler {
+public class ReverseEqualsEhloHeloHandler extends org.apache.james.protocols.smtp.core.fastfail.ReverseEqualsEhloHeloHandler implements DNSLookupHandler {
+
+    private AsyncDNSService dnsService;
 
     @Resource(name = "dnsservice")
     public void setDNSService(DNSService dns) {
-        super.setDNSService(new SMTPServerDNSServiceAdapter(dns));
+        setLookupService(new AsyncDNSService(dns));
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.DNSLookupHandler#setLookupService(org.apache.james.dnsservice.library.AsyncDNSService)
+     */
+    public void setLookupService(AsyncDNSService lookupService) {
+        dnsService = lookupService;
+        super.setDNSService(new SMTPServerDNSServiceAdapter(dnsService));
+    }
+
+    /**
+     * Start the reverse lookup of the client address as soon as the client
+     * connects, so it is known when HELO / EHLO is checked
+     * 
+     * @see org.apache.james.smtpserver.DNSLookupHandler#startLookups(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public Collection<DNSLookup<?>> startLookups(SMTPSession session, String command, String argument) {
+        if (dnsService == null || !(command == null || "HELO".equals(command) || "EHLO".equals(command))) {
+            return Collections.emptyList();
+        }
+        String ip = session.getRemoteIPAddress();
+        List<DNSLookup<?>> lookups = new ArrayList<DNSLookup<?>>(2);
+        try {
+            // the address is a literal, so this never asks the DNS server
+            InetAddress address = InetAddress.getByName(ip);
+            lookups.add(dnsService.lookupByName(ip));
+            lookups.add(dnsService.lookupHostName(address));
+        } catch (UnknownHostException e) {
+            // the handler will take care of it
+        }
+        return lookups;
     }
 }
@@ -19,8 +19,15 @@
 
 package org.apache.james.smtpserver.fastfail;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
+import org.apache.james.dnsservice.library.AsyncDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
 import org.apache.james.jspf.core.DNSService;
 import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
 import org.apache.james.jspf.executor.SPFResult;
@@ -34,13 +41,14 @@ import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.protocols.smtp.hook.MailHook;
 import org.apache.james.protocols.smtp.hook.RcptHook;
+import org.apache.james.smtpserver.DNSLookupHandler;
 import org.apache.james.smtpserver.JamesMessageHook;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, LifecycleAwareProtocolHandler {
+public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, LifecycleAwareProtocolHandler, DNSLookupHandler {
 
     /** This log is the fall back shared by all instances */
     private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(SPFHandler.class);
@@ -61,6 +69,8 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Lifecyc
 
     public final static String SPF_HEADER_MAIL_ATTRIBUTE_NAME = "org.apache.james.spf.header";
 
+    private final static String SPF_LOOKUP = "SPF_LOOKUP";
+
     /** If set to true the mail will also be rejected on a softfail */
     private boolean blockSoftFail = false;
 
@@ -68,6 +78,8 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Lifecyc
 
     private SPF spf = new DefaultSPF(new SPFLogger());
 
+    private AsyncDNSService lookupService;
+
     /**
      * block the email on a softfail
      * 
@@ -98,6 +110,16 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Lifecyc
         spf = new SPF(dnsService, new SPFLogger());
     }
 
+    /**
+     * The SPF library does its own lookups one after the other, so the
+     * complete check is run by the executor of the lookup service
+     * 
+     * @see org.apache.james.smtpserver.DNSLookupHandler#setLookupService(org.apache.james.dnsservice.library.AsyncDNSService)
+     */
+    public void setLookupService(AsyncDNSService lookupService) {
+        this.lookupService = lookupService;
+    }
+
     /**
      * Calls a SPF check
      * 
@@ -114,7 +136,10 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Lifecyc
 
             String ip = session.getRemoteIPAddress();
 
-            SPFResult result = spf.checkSPF(ip, sender.toString(), heloEhlo);
+            SPFResult result = getStartedCheck(session, ip, sender.toString(), heloEhlo);
+            if (result == null) {
+                result = spf.checkSPF(ip, sender.toString(), heloEhlo);
+            }
 
             String spfResult = result.getResult();
 
@@ -142,6 +167,57 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Lifecyc
 
     }
 
+    /**
+     * Return the result of the check which was started for the MAIL command
+     * or <code>null</code> if there is none for the given arguments
+     */
+    private SPFResult getStartedCheck(SMTPSession session, String ip, String sender, String heloEhlo) {
+        SPFLookup lookup = (SPFLookup) session.getState().remove(SPF_LOOKUP);
+        if (lookup == null || !lookup.key.equals(ip + " " + sender + " " + heloEhlo)) {
+            return null;
+        }
+        try {
+            return lookup.lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start the SPF check for the sender given by the MAIL command before the
+     * command is processed
+     * 
+     * @see org.apache.james.smtpserver.DNSLookupHandler#startLookups(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public Collection<DNSLookup<?>> startLookups(SMTPSession session, String command, String argument) {
+        final String heloEhlo = (String) session.getState().get(SMTPSession.CURRENT_HELO_NAME);
+        // relayed mails are not rejected, so there is no need to wait for the
+        // result before the command is processed
+        if (lookupService == null || !"MAIL".equals(command) || argument == null || heloEhlo == null || session.isRelayingAllowed()) {
+            return Collections.emptyList();
+        }
+        int start = argument.indexOf('<');
+        int end = argument.indexOf('>', start + 1);
+        if (start < 0 || end < 0 || end - start < 2) {
+            return Collections.emptyList();
+        }
+        final String sender = argument.substring(start + 1, end);
+        final String ip = session.getRemoteIPAddress();
+        final SPF spf = this.spf;
+
+        DNSLookup<SPFResult> lookup = lookupService.submit(new Callable<SPFResult>() {
+            public SPFResult call() throws Exception {
+                return spf.checkSPF(ip, sender, heloEhlo);
+            }
+        });
+        session.getState().put(SPF_LOOKUP, new SPFLookup(ip + " " + sender + " " + heloEhlo, lookup));
+        return Collections.<DNSLookup<?>> singletonList(lookup);
+    }
+
     /**
      * @see org.apache.james.protocols.smtp.hook.RcptHook#doRcpt(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.MailAddress, org.apache.mailet.MailAddress)
@@ -167,6 +243,19 @@ public class SPFHandler implements JamesMessageHook, MailHook, RcptHook, Lifecyc
         return new HookResult(HookReturnCode.DECLINED);
     }
 
+    /**
+     * SPF check started for the given ip, sender and helo name
+     */
+    private final static class SPFLookup {
+        private final String key;
+        private final DNSLookup<SPFResult> lookup;
+
+        public SPFLookup(String key, DNSLookup<SPFResult> lookup) {
+            this.key = key;
+            this.lookup = lookup;
+        }
+    }
+
     /**
      * Adapts service log.
      */
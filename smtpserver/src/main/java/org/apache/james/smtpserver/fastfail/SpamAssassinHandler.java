@@ -33,6 +33,7 @@ import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.smtpserver.JamesMessageHook;
 import org.apache.james.util.scanner.SpamAssassinInvoker;
+import org.apache.james.util.scanner.SpamdClient;
 import org.apache.mailet.Mail;
 
 /**
@@ -59,10 +60,28 @@ import org.apache.mailet.Mail;
  *   &lt;spamdPort&gt;783&lt;/spamdPort&gt; <br>
  *   &lt;spamdRejectionHits&gt;15.0&lt;/spamdRejectionHits&gt;
  *   &lt;checkAuthNetworks&gt;false&lt;/checkAuthNetworks&gt;
+ *   &lt;maxConnections&gt;10&lt;/maxConnections&gt;
+ *   &lt;connectTimeout&gt;10000&lt;/connectTimeout&gt;
+ *   &lt;readTimeout&gt;60000&lt;/readTimeout&gt;
+ *   &lt;maxMessageSize&gt;0&lt;/maxMessageSize&gt;
+ *   &lt;sampleLargeMessages&gt;false&lt;/sampleLargeMessages&gt;
  * &lt;/handler&gt;
  * </pre>
  * 
  * </p>
+ * <p>
+ * The connection limit and the timeouts apply to all users of the same spamd,
+ * so they are only changed if they are configured. Messages bigger than
+ * maxMessageSize bytes are not scanned by this handler, or only a sample of
+ * them if sampleLargeMessages is true: their start and their end. The
+ * statistics are exported via JMX, see {@link SpamdClient}.
+ * </p>
+ * <p>
+ * The message hooks return their result when they are called, so the thread
+ * which processes the message waits for spamd: at most connectTimeout for a
+ * connection and readTimeout for the answer. Use the SpamAssassin mailet if
+ * the messages do not need to be rejected during the SMTP transaction.
+ * </p>
  */
 public class SpamAssassinHandler implements JamesMessageHook, LifecycleAwareProtocolHandler {
 
@@ -75,6 +94,15 @@ public class SpamAssassinHandler implements JamesMessageHook, LifecycleAwareProt
     /** The hits on which the message get rejected */
     private double spamdRejectionHits = 0.0;
 
+    /** The size above which messages are not scanned completely */
+    private long maxMessageSize = 0;
+
+    /** Scan a sample of bigger messages instead of skipping them */
+    private boolean sampleLargeMessages = false;
+
+    /** The shared client of the spamd */
+    private SpamdClient client;
+
     /**
      * Set the host the spamd daemon is running at
      * 
@@ -114,8 +142,10 @@ public class SpamAssassinHandler implements JamesMessageHook, LifecycleAwareProt
 
         try {
             MimeMessage message = mail.getMessage();
-            SpamAssassinInvoker sa = new SpamAssassinInvoker(spamdHost, spamdPort);
-            sa.scanMail(message);
+            // without init the handler uses a client of its own
+            SpamAssassinInvoker sa = client != null ? new SpamAssassinInvoker(client) : new SpamAssassinInvoker(spamdHost, spamdPort);
+            sa.setMaxMessageSize(maxMessageSize, sampleLargeMessages);
+            sa.scanMail(message, mail.getMessageSize());
 
             Iterator<String> headers = sa.getHeadersAsAttribute().keySet().iterator();
 
@@ -155,11 +185,33 @@ public class SpamAssassinHandler implements JamesMessageHook, LifecycleAwareProt
     public void init(Configuration config) throws ConfigurationException {
         setSpamdHost(config.getString("spamdHost", "localhost"));
         setSpamdPort(config.getInt("spamdPort", 783));
-        setSpamdRejectionHits(config.getDouble("spamdRejectionHits", 0.0));        
+        setSpamdRejectionHits(config.getDouble("spamdRejectionHits", 0.0));
+
+        maxMessageSize = config.getLong("maxMessageSize", 0);
+        sampleLargeMessages = config.getBoolean("sampleLargeMessages", false);
+
+        client = SpamdClient.getInstance(spamdHost, spamdPort);
+        if (config.containsKey("maxConnections")) {
+            try {
+                client.setMaxConnections(config.getInt("maxConnections"));
+            } catch (IllegalArgumentException e) {
+                destroy();
+                throw new ConfigurationException("Please configure a valid maxConnections", e);
+            }
+        }
+        if (config.containsKey("connectTimeout")) {
+            client.setConnectTimeout(config.getInt("connectTimeout"));
+        }
+        if (config.containsKey("readTimeout")) {
+            client.setReadTimeout(config.getInt("readTimeout"));
+        }
     }
 
     @Override
     public void destroy() {
-        // nothing to-do
+        if (client != null) {
+            SpamdClient.releaseInstance(client);
+            client = null;
+        }
     }
 }
@@ -0,0 +1,288 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.nio.CharBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Extracts the registrar domains of URIs and email addresses from text which is
+ * given in chunks, so the content never needs to be held in memory. The text is
+ * scanned once, without regular expressions: characters which may be part of a
+ * URI are collected to a token, every token is then searched for schemes,
+ * schemeless hosts (www. / ftp.) and email addresses.
+ * 
+ * The found hosts are distilled to their registrar domains the same way
+ * {@link URIScanner} does it. The count of scanned characters and of found
+ * domains are limited, see {@link #isFull()}.
+ */
+public class URIExtractor {
+
+    /** Maximal length of a token, the rest of longer tokens is ignored */
+    private final static int MAX_TOKEN_LENGTH = 4096;
+
+    private final static String[] SCHEMES = new String[] { "http", "https", "ftp", "file" };
+
+    private final static String URIC_CHARS = "-_.!~*'();/?:@&=+$,[]\\#|%";
+
+    private final static String ATOM_CHARS = "!#$%&'*+/=?^_`{|}~-";
+
+    private final long maxChars;
+
+    private final int maxDomains;
+
+    private final char[] token = new char[MAX_TOKEN_LENGTH];
+
+    private int tokenLength = 0;
+
+    private long scanned = 0;
+
+    private final Set<String> hosts = new HashSet<String>();
+
+    private final Set<String> domains = new LinkedHashSet<String>();
+
+    /**
+     * @param maxChars
+     *            the maximal count of characters to scan
+     * @param maxDomains
+     *            the maximal count of domains to extract
+     */
+    public URIExtractor(long maxChars, int maxDomains) {
+        this.maxChars = maxChars;
+        this.maxDomains = maxDomains;
+    }
+
+    /**
+     * Scan the given bytes. Only usable for text in a charset which encodes
+     * US-ASCII characters like US-ASCII does.
+     * 
+     * @param bytes
+     * @param off
+     * @param len
+     */
+    public void scan(byte[] bytes, int off, int len) {
+        int end = off + (int) Math.min(len, maxChars - scanned);
+        for (int i = off; i < end && domains.size() < maxDomains; i++) {
+            int b = bytes[i] & 0xff;
+            next(b < 0x80 ? (char) b : 0);
+            scanned++;
+        }
+        dropTruncatedToken();
+    }
+
+    /**
+     * Scan the remaining characters of the given buffer
+     * 
+     * @param chars
+     */
+    public void scan(CharBuffer chars) {
+        while (chars.hasRemaining() && !isFull()) {
+            char c = chars.get();
+            next(c < 0x80 ? c : 0);
+            scanned++;
+        }
+        dropTruncatedToken();
+    }
+
+    /**
+     * A token which was cut by the limit of scanned characters would give
+     * wrong hosts, so it is ignored
+     */
+    private void dropTruncatedToken() {
+        if (scanned >= maxChars) {
+            tokenLength = 0;
+        }
+    }
+
+    /**
+     * Mark the end of the text which was scanned so far, so the next text is
+     * not treated as its continuation
+     */
+    public void flush() {
+        if (tokenLength > 0) {
+            analyzeToken();
+            tokenLength = 0;
+        }
+    }
+
+    /**
+     * Return true if the maximal count of characters was scanned or the
+     * maximal count of domains was found, so there is no need to scan more
+     * 
+     * @return full
+     */
+    public boolean isFull() {
+        return scanned >= maxChars || domains.size() >= maxDomains;
+    }
+
+    /**
+     * Return the domains found so far, in the order they were found
+     * 
+     * @return domains
+     */
+    public Set<String> getDomains() {
+        flush();
+        return Collections.unmodifiableSet(domains);
+    }
+
+    private void next(char c) {
+        if (isUric(c)) {
+            if (tokenLength < MAX_TOKEN_LENGTH) {
+                token[tokenLength++] = c;
+            }
+        } else if (tokenLength > 0) {
+            analyzeToken();
+            tokenLength = 0;
+        }
+    }
+
+    private void analyzeToken() {
+        for (int i = 0; i < tokenLength && domains.size() < maxDomains; i++) {
+            char c = token[i];
+            if (c == ':') {
+                if (isSchemeBefore(i) && i + 2 < tokenLength && token[i + 1] == '/' && token[i + 2] == '/') {
+                    // skip the userinfo, it is handled by the email rule
+                    int start = i + 3;
+                    int end = start;
+                    while (end < tokenLength && token[end] != '/' && token[end] != '?' && token[end] != '#') {
+                        if (token[end] == '@') {
+                            start = end + 1;
+                        }
+                        end++;
+                    }
+                    i = addHost(start) - 1;
+                }
+            } else if (c == '@') {
+                if (i > 0 && isAtom(token[i - 1])) {
+                    addHost(i + 1);
+                }
+            } else if ((c == 'w' || c == 'W' || c == 'f' || c == 'F') && (i == 0 || !isSchemelessBoundary(token[i - 1]))) {
+                if (isSchemeless(i)) {
+                    i = addHost(i) - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return true if one of the schemes ends before the given index
+     */
+    private boolean isSchemeBefore(int index) {
+        int start = index;
+        while (start > 0 && isLetter(token[start - 1])) {
+            start--;
+        }
+        int length = index - start;
+        for (int i = 0; i < SCHEMES.length; i++) {
+            String scheme = SCHEMES[i];
+            if (scheme.length() == length && regionMatches(start, scheme)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if "www" followed by optional digits and a dot or "ftp."
+     * starts at the given index
+     */
+    private boolean isSchemeless(int index) {
+        if (regionMatches(index, "www")) {
+            int i = index + 3;
+            while (i < tokenLength && token[i] >= '0' && token[i] <= '9') {
+                i++;
+            }
+            return i < tokenLength && token[i] == '.';
+        }
+        return regionMatches(index, "ftp.");
+    }
+
+    private boolean regionMatches(int index, String lowerCase) {
+        if (index < 0 || index + lowerCase.length() > tokenLength) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length(); i++) {
+            if (Character.toLowerCase(token[index + i]) != lowerCase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the host which starts at the given index and add its domain
+     * 
+     * @return the index after the host
+     */
+    private int addHost(int start) {
+        int end = start;
+        while (end < tokenLength && isHostChar(token[end])) {
+            end++;
+        }
+        int hostStart = start;
+        int hostEnd = end;
+        while (hostStart < hostEnd && (token[hostStart] == '.' || token[hostStart] == '-')) {
+            hostStart++;
+        }
+        while (hostEnd > hostStart && (token[hostEnd - 1] == '.' || token[hostEnd - 1] == '-')) {
+            hostEnd--;
+        }
+        if (hostEnd > hostStart) {
+            String host = new String(token, hostStart, hostEnd - hostStart).toLowerCase();
+            if (host.indexOf('.') > 0 && hosts.add(host)) {
+                String domain = URIScanner.domainFromHost(host);
+                if (domain != null) {
+                    domains.add(domain);
+                }
+            }
+        }
+        return Math.max(end, start + 1);
+    }
+
+    private static boolean isUric(char c) {
+        return isLetter(c) || isDigit(c) || (c != 0 && URIC_CHARS.indexOf(c) >= 0);
+    }
+
+    private static boolean isAtom(char c) {
+        return isLetter(c) || isDigit(c) || c == '.' || ATOM_CHARS.indexOf(c) >= 0;
+    }
+
+    private static boolean isHostChar(char c) {
+        return isLetter(c) || isDigit(c) || c == '-' || c == '.';
+    }
+
+    /**
+     * Schemeless hosts must start at a word boundary and not directly after a
+     * dot or an equal sign
+     */
+    private static boolean isSchemelessBoundary(char c) {
+        return isLetter(c) || isDigit(c) || c == '_' || c == '.' || c == '=';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -20,27 +20,42 @@
 package org.apache.james.smtpserver.fastfail;
 
 import java.io.IOException;
-import java.net.UnknownHostException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Resource;
 import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.AsyncDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
 import org.apache.james.protocols.api.handler.LifecycleAwareProtocolHandler;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.smtpserver.DNSLookupHandler;
 import org.apache.james.smtpserver.JamesMessageHook;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
@@ -49,8 +64,18 @@ import org.slf4j.LoggerFactory;
 /**
  * Extract domains from message and check against URIRBLServer. For more
  * informations see <a href="http://www.surbl.org">www.surbl.org</a>
+ * 
+ * The text parts of the message are streamed through an {@link URIExtractor},
+ * the extracted domains are then looked up at all servers in parallel by the
+ * lookup service of the server. The results of the lookups are cached for a
+ * short time.
+ * 
+ * The domains are only known once the message was received, so unlike the
+ * other {@link DNSLookupHandler}'s the session is not suspended while they are
+ * looked up: the thread which processes the message waits for the answers, at
+ * most for the configured timeout.
  */
-public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHandler {
+public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHandler, DNSLookupHandler {
 
     /** This log is the fall back shared by all instances */
     private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(URIRBLHandler.class);
@@ -65,12 +90,25 @@ public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHa
 
     private final static String URBLSERVER = "URBL_SERVER";
 
+    /**
+     * The US-ASCII characters a URI can contain, used to check if a charset can
+     * be scanned without decoding
+     */
+    private final static String ASCII_PROBE = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-_.!~*'();/?:@&=+$,[]\\#|% <>\"\r\n\t";
+
     private DNSService dnsService;
 
     private Collection<String> uriRbl;
 
     private boolean getDetail = false;
 
+    private AsyncDNSService asyncDnsService;
+
+    private long maxScanSize = 1024 * 1024;
+
+    private int maxDomains = 50;
+
+    private long timeout = 10000;
 
     /**
      * Gets the DNS service.
@@ -90,6 +128,25 @@ public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHa
     @Resource(name = "dnsservice")
     public final void setDNSService(DNSService dnsService) {
         this.dnsService = dnsService;
+        this.asyncDnsService = new AsyncDNSService(dnsService);
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.DNSLookupHandler#setLookupService(org.apache.james.dnsservice.library.AsyncDNSService)
+     */
+    public void setLookupService(AsyncDNSService lookupService) {
+        this.asyncDnsService = lookupService;
+    }
+
+    /**
+     * The domains are looked up when the message is processed, not before a
+     * command
+     * 
+     * @see org.apache.james.smtpserver.DNSLookupHandler#startLookups(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public Collection<DNSLookup<?>> startLookups(SMTPSession session, String command, String argument) {
+        return Collections.emptyList();
     }
 
 
@@ -113,6 +170,36 @@ public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHa
         this.getDetail = getDetail;
     }
 
+    /**
+     * Set the maximal count of characters which are scanned per message
+     * 
+     * @param maxScanSize
+     */
+    public void setMaxScanSize(long maxScanSize) {
+        this.maxScanSize = maxScanSize;
+    }
+
+    /**
+     * Set the maximal count of domains which are looked up per message
+     * 
+     * @param maxDomains
+     */
+    public void setMaxDomains(int maxDomains) {
+        this.maxDomains = maxDomains;
+    }
+
+    /**
+     * Set the time in milliseconds to wait for the answers of all lookups.
+     * Lookups which did not answer in time are handled like the domain is not
+     * listed.
+     * 
+     * @param timeout
+     *            the timeout, 0 to wait until all lookups answered
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
     /**
      * @see org.apache.james.smtpserver.JamesMessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.Mail)
@@ -125,10 +212,10 @@ public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHa
 
             // we should try to retrieve details
             if (getDetail) {
-                Collection<String> txt = dnsService.findTXTRecords(target + "." + uRblServer);
+                Collection<String> txt = await(session, asyncDnsService.lookupTXTRecords(target + "." + uRblServer));
 
                 // Check if we found a txt record
-                if (!txt.isEmpty()) {
+                if (txt != null && !txt.isEmpty()) {
                     // Set the detail
                     detail = txt.iterator().next();
 
@@ -146,46 +233,105 @@ public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHa
         }
     }
 
+    /**
+     * Wait for the result of the given lookup, at most for the timeout
+     * 
+     * @return result or null if the lookup failed or did not complete in time
+     */
+    private <V> V await(SMTPSession session, DNSLookup<V> lookup) {
+        try {
+            if (timeout > 0) {
+                return lookup.get(timeout, TimeUnit.MILLISECONDS);
+            }
+            return lookup.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (TimeoutException e) {
+            session.getLogger().info("Lookup of details timed out");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
     /**
      * Recursively scans all MimeParts of an email for domain strings. Domain
-     * strings that are found are added to the supplied HashSet.
+     * strings that are found are added to the supplied extractor.
      * 
      * @param part
      *            MimePart to scan
+     * @param extractor
+     *            the extractor which collects the domains
      * @param session
      *            not null
-     * @return domains The HashSet that contains the domains which were
-     *         extracted
      */
-    private HashSet<String> scanMailForDomains(MimePart part, SMTPSession session) throws MessagingException, IOException {
-        HashSet<String> domains = new HashSet<String>();
+    private void scanMailForDomains(MimePart part, URIExtractor extractor, SMTPSession session) throws MessagingException, IOException {
         session.getLogger().debug("mime type is: \"" + part.getContentType() + "\"");
 
         if (part.isMimeType("text/plain") || part.isMimeType("text/html")) {
-            session.getLogger().debug("scanning: \"" + part.getContent().toString() + "\"");
-            HashSet<String> newDom = URIScanner.scanContentForDomains(domains, part.getContent().toString());
-
-            // Check if new domains are found and add the domains
-            if (newDom != null && newDom.size() > 0) {
-                domains.addAll(newDom);
-            }
+            scanTextPart(part, extractor);
         } else if (part.isMimeType("multipart/*")) {
             MimeMultipart multipart = (MimeMultipart) part.getContent();
             int count = multipart.getCount();
             session.getLogger().debug("multipart count is: " + count);
 
-            for (int index = 0; index < count; index++) {
+            for (int index = 0; index < count && !extractor.isFull(); index++) {
                 session.getLogger().debug("recursing index: " + index);
                 MimeBodyPart mimeBodyPart = (MimeBodyPart) multipart.getBodyPart(index);
-                HashSet<String> newDomains = scanMailForDomains(mimeBodyPart, session);
+                scanMailForDomains(mimeBodyPart, extractor, session);
+            }
+        }
+    }
 
-                // Check if new domains are found and add the domains
-                if (newDomains != null && newDomains.size() > 0) {
-                    domains.addAll(newDomains);
+    /**
+     * Stream the decoded content of a text part through the extractor. Text in
+     * a charset which encodes US-ASCII like US-ASCII does is scanned as bytes,
+     * any other is decoded in chunks.
+     */
+    private void scanTextPart(MimePart part, URIExtractor extractor) throws MessagingException, IOException {
+        Charset charset = getCharset(part);
+        InputStream in = part.getInputStream();
+        try {
+            if (charset == null || isAsciiCompatible(charset)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while (!extractor.isFull() && (read = in.read(buffer)) != -1) {
+                    extractor.scan(buffer, 0, read);
+                }
+            } else {
+                Reader reader = new InputStreamReader(in, charset);
+                CharBuffer buffer = CharBuffer.allocate(4096);
+                while (!extractor.isFull() && reader.read(buffer) != -1) {
+                    buffer.flip();
+                    extractor.scan(buffer);
+                    buffer.clear();
                 }
             }
+        } finally {
+            in.close();
+        }
+        extractor.flush();
+    }
+
+    private Charset getCharset(MimePart part) {
+        try {
+            String charset = new ContentType(part.getContentType()).getParameter("charset");
+            if (charset != null) {
+                return Charset.forName(MimeUtility.javaCharset(charset));
+            }
+        } catch (Exception e) {
+            // unknown charset, scan the raw bytes
+        }
+        return null;
+    }
+
+    private boolean isAsciiCompatible(Charset charset) {
+        try {
+            return Arrays.equals(ASCII_PROBE.getBytes("US-ASCII"), ASCII_PROBE.getBytes(charset.name()));
+        } catch (Exception e) {
+            return false;
         }
-        return domains;
     }
 
     /**
@@ -197,34 +343,52 @@ public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHa
         try {
             message = mail.getMessage();
 
-            HashSet<String> domains = scanMailForDomains(message, session);
-
-            Iterator<String> fDomains = domains.iterator();
+            URIExtractor extractor = new URIExtractor(maxScanSize, maxDomains);
+            scanMailForDomains(message, extractor, session);
 
+            // start all lookups before waiting for the first one
+            List<String> targets = new ArrayList<String>();
+            List<String> servers = new ArrayList<String>();
+            List<DNSLookup<InetAddress>> lookups = new ArrayList<DNSLookup<InetAddress>>();
+            Iterator<String> fDomains = extractor.getDomains().iterator();
             while (fDomains.hasNext()) {
+                String target = fDomains.next();
                 Iterator<String> uRbl = uriRbl.iterator();
-                String target = fDomains.next().toString();
-
                 while (uRbl.hasNext()) {
-                    try {
-                        String uRblServer = uRbl.next().toString();
-                        String address = target + "." + uRblServer;
-
-                        if (session.getLogger().isDebugEnabled()) {
-                            session.getLogger().debug("Lookup " + address);
-                        }
-
-                        dnsService.getByName(address);
-
-                        // store server name for later use
-                        session.getState().put(URBLSERVER, uRblServer);
-                        session.getState().put(LISTED_DOMAIN, target);
+                    String uRblServer = uRbl.next();
+                    String address = target + "." + uRblServer;
 
-                        return true;
+                    if (session.getLogger().isDebugEnabled()) {
+                        session.getLogger().debug("Lookup " + address);
+                    }
+                    targets.add(target);
+                    servers.add(uRblServer);
+                    lookups.add(asyncDnsService.lookupByName(address));
+                }
+            }
 
-                    } catch (UnknownHostException uhe) {
-                        // domain not found. keep processing
+            long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+            for (int i = 0; i < lookups.size(); i++) {
+                try {
+                    DNSLookup<InetAddress> lookup = lookups.get(i);
+                    if (deadline == Long.MAX_VALUE) {
+                        lookup.get();
+                    } else {
+                        lookup.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
                     }
+
+                    // store server name for later use
+                    session.getState().put(URBLSERVER, servers.get(i));
+                    session.getState().put(LISTED_DOMAIN, targets.get(i));
+
+                    return true;
+                } catch (ExecutionException e) {
+                    // domain not found or temporary problem. keep processing
+                } catch (TimeoutException e) {
+                    session.getLogger().info("Lookup of " + targets.get(i) + " at " + servers.get(i) + " timed out");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
             }
         } catch (MessagingException e) {
@@ -252,12 +416,14 @@ public class URIRBLHandler implements JamesMessageHook, LifecycleAwareProtocolHa
             throw new ConfigurationException("Please provide at least one server");
         }
 
-        setGetDetail(config.getBoolean("getDetail", false));        
+        setGetDetail(config.getBoolean("getDetail", false));
+        setMaxScanSize(config.getLong("maxScanSize", maxScanSize));
+        setMaxDomains(config.getInt("maxDomains", maxDomains));
+        setTimeout(config.getLong("timeout", timeout));
     }
 
     @Override
     public void destroy() {
-        // TODO Auto-generated method stub
-        
+        // nothing to-do
     }
 }
@@ -20,6 +20,9 @@
 package org.apache.james.smtpserver.fastfail;
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.annotation.Resource;
 
@@ -30,6 +33,7 @@ import org.apache.james.domainlist.api.DomainListException;
 import org.apache.james.protocols.api.handler.LifecycleAwareProtocolHandler;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.fastfail.AbstractValidRcptHandler;
+import org.apache.james.rrt.api.RecipientDataVersion;
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
 import org.apache.james.rrt.api.RecipientRewriteTable.ErrorMappingException;
@@ -39,9 +43,23 @@ import org.apache.mailet.MailAddress;
 
 /**
  * Handler which reject invalid recipients
+ * 
+ * The results of the recipient and domain checks are cached, positive and
+ * negative results with their own time to live. The cache is cleared when the
+ * users, mappings or domains are changed through the management beans (see
+ * {@link RecipientDataVersion}).
  */
 public class ValidRcptHandler extends AbstractValidRcptHandler implements LifecycleAwareProtocolHandler {
 
+    /** Default maximum number of cached recipients and domains */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /** Default time to live of a positive result in milliseconds */
+    public static final long DEFAULT_CACHE_POSITIVE_TTL = 5 * 60 * 1000;
+
+    /** Default time to live of a negative result in milliseconds */
+    public static final long DEFAULT_CACHE_NEGATIVE_TTL = 60 * 1000;
+
     private UsersRepository users;
 
     private RecipientRewriteTable vut;
@@ -50,6 +68,10 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Lifecy
 
     private DomainList domains;
 
+    private ResultCache recipientCache = new ResultCache(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_POSITIVE_TTL, DEFAULT_CACHE_NEGATIVE_TTL);
+
+    private ResultCache domainCache = new ResultCache(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_POSITIVE_TTL, DEFAULT_CACHE_NEGATIVE_TTL);
+
     /**
      * Gets the users repository.
      * 
@@ -90,8 +112,48 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Lifecy
         this.useVut = useVut;
     }
 
+    /**
+     * Set the size and the time to live of the result cache. A size of 0
+     * disables caching.
+     * 
+     * @param size
+     *            maximum number of cached recipients and of cached domains
+     * @param positiveTTL
+     *            time to live of a positive result in milliseconds
+     * @param negativeTTL
+     *            time to live of a negative result in milliseconds
+     */
+    public void setCache(int size, long positiveTTL, long negativeTTL) {
+        recipientCache = new ResultCache(size, positiveTTL, negativeTTL);
+        domainCache = new ResultCache(size, positiveTTL, negativeTTL);
+    }
+
     @Override
     protected boolean isValidRecipient(SMTPSession session, MailAddress recipient) {
+        String key = recipient.toString();
+        Boolean cached = recipientCache.get(key);
+        if (cached != null) {
+            return cached.booleanValue();
+        }
+        long version = RecipientDataVersion.get();
+        Boolean valid = checkRecipient(session, recipient);
+        if (valid == null) {
+            // the backend failed, so the result must not be cached
+            return false;
+        }
+        recipientCache.put(key, valid.booleanValue(), version);
+        return valid.booleanValue();
+    }
+
+    /**
+     * Check the recipient against the users repository and the recipient
+     * rewrite table
+     * 
+     * @param session
+     * @param recipient
+     * @return the result or null if it could not be checked
+     */
+    private Boolean checkRecipient(SMTPSession session, MailAddress recipient) {
 
         String username = recipient.toString();
 
@@ -103,7 +165,7 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Lifecy
             }
 
             if (users.contains(username) == true) {
-                return true;
+                return Boolean.TRUE;
             } else {
 
                 if (useVut == true) {
@@ -113,21 +175,21 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Lifecy
                         Collection<String> targetString = vut.getMappings(recipient.getLocalPart(), recipient.getDomain());
 
                         if (targetString != null && targetString.isEmpty() == false) {
-                            return true;
+                            return Boolean.TRUE;
                         }
                     } catch (ErrorMappingException e) {
-                        return false;
+                        return Boolean.FALSE;
                     } catch (RecipientRewriteTableException e) {
                         session.getLogger().info("Unable to access RecipientRewriteTable", e);
-                        return false;
+                        return null;
                     }
                 }
 
-                return false;
+                return Boolean.FALSE;
             }
         } catch (UsersRepositoryException e) {
             session.getLogger().info("Unable to access UsersRepository", e);
-            return false;
+            return null;
 
         }
     }
@@ -139,8 +201,16 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Lifecy
      * java.lang.String)
      */
     protected boolean isLocalDomain(SMTPSession session, String domain) {
+        String key = domain.toLowerCase(Locale.US);
+        Boolean cached = domainCache.get(key);
+        if (cached != null) {
+            return cached.booleanValue();
+        }
+        long version = RecipientDataVersion.get();
         try {
-            return domains.containsDomain(domain);
+            boolean local = domains.containsDomain(domain);
+            domainCache.put(key, local, version);
+            return local;
         } catch (DomainListException e) {
             session.getLogger().error("Unable to get domains", e);
             return false;
@@ -150,11 +220,104 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Lifecy
     @Override
     public void init(Configuration config) throws ConfigurationException {
         setRecipientRewriteTableSupport(config.getBoolean("enableRecipientRewriteTable", true));
-        
+        int cacheSize = config.getInt("cacheSize", DEFAULT_CACHE_SIZE);
+        long positiveTTL = config.getLong("cachePositiveTTL", DEFAULT_CACHE_POSITIVE_TTL);
+        long negativeTTL = config.getLong("cacheNegativeTTL", DEFAULT_CACHE_NEGATIVE_TTL);
+        if (cacheSize < 0 || positiveTTL < 0 || negativeTTL < 0) {
+            throw new ConfigurationException("Please configure a valid cacheSize, cachePositiveTTL and cacheNegativeTTL");
+        }
+        setCache(cacheSize, positiveTTL, negativeTTL);
     }
 
     @Override
     public void destroy() {
-        // nothing to-do
+        recipientCache.clear();
+        domainCache.clear();
+    }
+
+    /**
+     * Bounded cache of check results which is cleared when the
+     * {@link RecipientDataVersion} changes
+     */
+    private static final class ResultCache {
+
+        private final int maxSize;
+        private final long positiveTTL;
+        private final long negativeTTL;
+        private final Map<String, Entry> entries;
+        private long version = RecipientDataVersion.get();
+
+        public ResultCache(final int maxSize, long positiveTTL, long negativeTTL) {
+            this.maxSize = maxSize;
+            this.positiveTTL = positiveTTL;
+            this.negativeTTL = negativeTTL;
+            this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        /**
+         * Return the cached result or null if nothing valid is cached
+         */
+        public synchronized Boolean get(String key) {
+            if (maxSize == 0) {
+                return null;
+            }
+            long current = RecipientDataVersion.get();
+            if (current != version) {
+                entries.clear();
+                version = current;
+                return null;
+            }
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires <= System.currentTimeMillis()) {
+                entries.remove(key);
+                return null;
+            }
+            return Boolean.valueOf(entry.valid);
+        }
+
+        /**
+         * Cache a result which was checked against the data of the given
+         * version
+         */
+        public synchronized void put(String key, boolean valid, long checkedVersion) {
+            long ttl = valid ? positiveTTL : negativeTTL;
+            if (maxSize == 0 || ttl == 0) {
+                return;
+            }
+            long current = RecipientDataVersion.get();
+            if (current != version) {
+                entries.clear();
+                version = current;
+            }
+            // the data changed while it was checked
+            if (checkedVersion != current) {
+                return;
+            }
+            entries.put(key, new Entry(valid, System.currentTimeMillis() + ttl));
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+        }
+    }
+
+    private static final class Entry {
+        private final boolean valid;
+        private final long expires;
+
+        public Entry(boolean valid, long expires) {
+            this.valid = valid;
+            this.expires = expires;
+        }
     }
 }
@@ -19,11 +19,13 @@
 
 package org.apache.james.smtpserver.fastfail;
 
-import java.net.UnknownHostException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Resource;
 
@@ -31,6 +33,8 @@ import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.apache.james.dnsservice.library.AsyncDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
 import org.apache.james.dnsservice.library.netmatcher.NetMatcher;
 import org.apache.james.protocols.api.handler.LifecycleAwareProtocolHandler;
 import org.apache.james.protocols.smtp.SMTPRetCode;
@@ -39,6 +43,7 @@ import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.protocols.smtp.hook.RcptHook;
+import org.apache.james.smtpserver.DNSLookupHandler;
 import org.apache.mailet.MailAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,7 +52,7 @@ import org.slf4j.LoggerFactory;
  * This class can be used to reject email with bogus MX which is send from a
  * authorized user or an authorized network.
  */
-public class ValidRcptMX implements LifecycleAwareProtocolHandler, RcptHook {
+public class ValidRcptMX implements LifecycleAwareProtocolHandler, RcptHook, DNSLookupHandler {
 
     /** This log is the fall back shared by all instances */
     private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(ValidRcptMX.class);
@@ -58,10 +63,12 @@ public class ValidRcptMX implements LifecycleAwareProtocolHandler, RcptHook {
      */
     private Logger serviceLog = FALLBACK_LOG;
 
-    private DNSService dnsService = null;
+    private AsyncDNSService dnsService = null;
 
     private static final String LOCALHOST = "localhost";
 
+    private static final String MX_LOOKUP = "VALID_RCPT_MX_LOOKUP";
+
     private NetMatcher bNetwork = null;
 
     /**
@@ -92,7 +99,128 @@ public class ValidRcptMX implements LifecycleAwareProtocolHandler, RcptHook {
      */
     @Resource(name = "dnsservice")
     public final void setDNSService(DNSService dnsService) {
-        this.dnsService = dnsService;
+        setLookupService(new AsyncDNSService(dnsService));
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.DNSLookupHandler#setLookupService(org.apache.james.dnsservice.library.AsyncDNSService)
+     */
+    public void setLookupService(AsyncDNSService lookupService) {
+        this.dnsService = lookupService;
+    }
+
+    /**
+     * Resolve the MX records of the recipient domain and their addresses before
+     * the RCPT command is processed
+     * 
+     * @see org.apache.james.smtpserver.DNSLookupHandler#startLookups(org.apache.james.protocols.smtp.SMTPSession,
+     *      java.lang.String, java.lang.String)
+     */
+    public Collection<DNSLookup<?>> startLookups(SMTPSession session, String command, String argument) {
+        if (dnsService == null || !"RCPT".equals(command) || argument == null) {
+            return Collections.emptyList();
+        }
+        int start = argument.indexOf('<');
+        int end = argument.indexOf('>', start + 1);
+        int at = argument.lastIndexOf('@', end);
+        if (start < 0 || end < 0 || at < start) {
+            return Collections.emptyList();
+        }
+        String domain = argument.substring(at + 1, end);
+        if (domain.length() == 0 || domain.equals(LOCALHOST)) {
+            return Collections.emptyList();
+        }
+
+        // the lookup is already completed if all results are known, then the
+        // session is not suspended
+        DNSLookup<List<String>> lookup = lookupAddresses(domain);
+        session.getState().put(MX_LOOKUP, new MXLookup(domain, lookup));
+        return Collections.<DNSLookup<?>> singletonList(lookup);
+    }
+
+    /**
+     * Look up the addresses of the MX hosts of the given domain. The lookup
+     * fails with a {@link TemporaryResolutionException} if the MX records
+     * could not be looked up, MX hosts without address are left out.
+     * 
+     * @param domain
+     * @return lookup
+     */
+    private DNSLookup<List<String>> lookupAddresses(String domain) {
+        final DNSLookup<List<String>> result = new DNSLookup<List<String>>();
+        final DNSLookup<Collection<String>> mx = dnsService.lookupMXRecords(domain);
+        mx.addListener(new Runnable() {
+            public void run() {
+                Collection<String> hosts;
+                try {
+                    hosts = mx.get();
+                } catch (ExecutionException e) {
+                    result.fail(e.getCause());
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.fail(e);
+                    return;
+                }
+
+                final List<DNSLookup<InetAddress>> addresses = new ArrayList<DNSLookup<InetAddress>>();
+                for (String host : hosts) {
+                    addresses.add(dnsService.lookupByName(host));
+                }
+                final AtomicInteger pending = new AtomicInteger(addresses.size() + 1);
+                Runnable completion = new Runnable() {
+                    public void run() {
+                        if (pending.decrementAndGet() > 0) {
+                            return;
+                        }
+                        List<String> ips = new ArrayList<String>();
+                        for (DNSLookup<InetAddress> address : addresses) {
+                            try {
+                                ips.add(address.get().getHostAddress());
+                            } catch (Exception e) {
+                                // Ignore this
+                            }
+                        }
+                        result.complete(ips);
+                    }
+                };
+                for (DNSLookup<InetAddress> address : addresses) {
+                    address.addListener(completion);
+                }
+                completion.run();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Return the addresses of the MX hosts of the given domain. The lookup
+     * started for the RCPT command is used if there is one, otherwise the
+     * addresses are looked up now.
+     * 
+     * @throws TemporaryResolutionException
+     *             if the MX records could not be looked up
+     */
+    private List<String> getAddresses(SMTPSession session, String domain) throws TemporaryResolutionException {
+        MXLookup started = (MXLookup) session.getState().remove(MX_LOOKUP);
+        DNSLookup<List<String>> lookup;
+        if (started != null && started.domain.equalsIgnoreCase(domain)) {
+            lookup = started.lookup;
+        } else {
+            lookup = lookupAddresses(domain);
+        }
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TemporaryResolutionException) {
+                throw (TemporaryResolutionException) e.getCause();
+            }
+            serviceLog.info("Unable to look up the MX hosts of " + domain, e.getCause());
+            return Collections.emptyList();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TemporaryResolutionException("Interrupted while waiting for the MX hosts of " + domain);
+        }
     }
 
 
@@ -123,27 +251,17 @@ public class ValidRcptMX implements LifecycleAwareProtocolHandler, RcptHook {
         // Email should be deliver local
         if (!domain.equals(LOCALHOST)) {
 
-            Iterator<String> mx = null;
+            List<String> addresses;
             try {
-                mx = dnsService.findMXRecords(domain).iterator();
+                addresses = getAddresses(session, domain);
             } catch (TemporaryResolutionException e1) {
                 return new HookResult(HookReturnCode.DENYSOFT);
             }
 
-            if (mx != null && mx.hasNext()) {
-                while (mx.hasNext()) {
-                    String mxRec = mx.next();
-
-                    try {
-                        String ip = dnsService.getByName(mxRec).getHostAddress();
-
-                        // Check for invalid MX
-                        if (bNetwork.matchInetNetwork(ip)) {
-                            return new HookResult(HookReturnCode.DENY, SMTPRetCode.AUTH_REQUIRED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_AUTH) + " Invalid MX " + session.getRemoteIPAddress() + " for domain " + domain + ". Reject email");
-                        }
-                    } catch (UnknownHostException e) {
-                        // Ignore this
-                    }
+            for (String ip : addresses) {
+                // Check for invalid MX
+                if (bNetwork.matchInetNetwork(ip)) {
+                    return new HookResult(HookReturnCode.DENY, SMTPRetCode.AUTH_REQUIRED, DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SECURITY_AUTH) + " Invalid MX " + session.getRemoteIPAddress() + " for domain " + domain + ". Reject email");
                 }
             }
         }
@@ -177,4 +295,18 @@ public class ValidRcptMX implements LifecycleAwareProtocolHandler, RcptHook {
     public void destroy() {
         // nothing to-do
     }
+
+    /**
+     * The lookup started for a RCPT command, kept in the state of the session
+     * until the command is processed
+     */
+    private final static class MXLookup {
+        private final String domain;
+        private final DNSLookup<List<String>> lookup;
+
+        public MXLookup(String domain, DNSLookup<List<String>> lookup) {
+            this.domain = domain;
+            this.lookup = lookup;
+        }
+    }
 }
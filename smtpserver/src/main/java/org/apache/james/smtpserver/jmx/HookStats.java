@@ -27,15 +27,15 @@ import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
-import javax.management.StandardMBean;
 
 import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.protocols.lib.jmx.AbstractLatencyStats;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 
 /**
  * JMX Bean which keep track of statistics for a given Hook
  */
-public class HookStats extends StandardMBean implements HookStatsMBean, Disposable {
+public class HookStats extends AbstractLatencyStats implements HookStatsMBean, Disposable {
 
     private AtomicLong ok = new AtomicLong(0);
     private AtomicLong declined = new AtomicLong(0);
@@ -56,7 +56,15 @@ public class HookStats extends StandardMBean implements HookStatsMBean, Disposab
         mbeanserver.registerMBean(this, baseObjectName);
     }
 
-    public void increment(int code) {
+    /**
+     * Increment the stats for the given result of the hook
+     * 
+     * @param code
+     * @param executionTime
+     *            in milliseconds
+     */
+    public void increment(int code, long executionTime) {
+        recordTime(executionTime);
         if ((code & HookReturnCode.OK) == HookReturnCode.OK) {
             ok.incrementAndGet();
         }
@@ -18,10 +18,12 @@
  ****************************************************************/
 package org.apache.james.smtpserver.jmx;
 
+import org.apache.james.protocols.lib.jmx.LatencyStatsMBean;
+
 /**
  * JMX Bean which shows Hook statistics
  */
-public interface HookStatsMBean {
+public interface HookStatsMBean extends LatencyStatsMBean {
 
     /**
      * Return the name of the Hook
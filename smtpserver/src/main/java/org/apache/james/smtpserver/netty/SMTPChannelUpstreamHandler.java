@@ -16,32 +16,278 @@
  * specific language governing permissions and limitations      *
  * under the License.                                           *
  ****************************************************************/
+
 package org.apache.james.smtpserver.netty;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.dnsservice.library.DNSLookup;
 import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.protocols.api.Encryption;
 import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.lib.netty.ChannelReadSuspension;
 import org.apache.james.protocols.netty.BasicChannelUpstreamHandler;
 import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.smtpserver.DNSLookupHandler;
 import org.apache.james.smtpserver.SMTPConstants;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.DefaultExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.slf4j.Logger;
 
 /**
- * {@link ChannelUpstreamHandler} which is used by the SMTPServer
+ * {@link ChannelUpstreamHandler} which is used by the SMTPServer.
+ * 
+ * Before a command gets processed the {@link DNSLookupHandler}'s are asked to
+ * start the DNS lookups they need for it. If the lookups did not complete yet
+ * the session is suspended: the channel is not read anymore and the command is
+ * processed by the executor of the channel once the lookups completed. So the
+ * threads which serve the sessions do not wait for the DNS servers.
  */
 @Sharable
 public class SMTPChannelUpstreamHandler extends BasicChannelUpstreamHandler {
 
+    /**
+     * The longest line which is treated as command
+     */
+    private final static int MAX_COMMAND_LENGTH = 1024;
 
-    public SMTPChannelUpstreamHandler(Protocol protocol, Logger logger, Encryption encryption) {
+    private final List<DNSLookupHandler> lookupHandlers;
+
+    private final ConcurrentHashMap<Integer, Suspension> suspensions = new ConcurrentHashMap<Integer, Suspension>();
+
+    public SMTPChannelUpstreamHandler(Protocol protocol, Logger logger, Encryption encryption, List<DNSLookupHandler> lookupHandlers) {
         super(protocol, logger, encryption);
+        this.lookupHandlers = lookupHandlers;
+    }
+
+    public SMTPChannelUpstreamHandler(Protocol protocol, Logger logger, Encryption encryption) {
+        this(protocol, logger, encryption, Collections.<DNSLookupHandler> emptyList());
     }
 
     public SMTPChannelUpstreamHandler(Protocol protocol, Logger logger) {
-        super(protocol, logger);
+        this(protocol, logger, null);
+    }
+
+    /**
+     * @see org.apache.james.protocols.netty.BasicChannelUpstreamHandler#channelConnected(org.jboss.netty.channel.ChannelHandlerContext,
+     *      org.jboss.netty.channel.ChannelStateEvent)
+     */
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        handle(ctx, e);
+    }
+
+    /**
+     * @see org.apache.james.protocols.netty.BasicChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext,
+     *      org.jboss.netty.channel.MessageEvent)
+     */
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        handle(ctx, e);
+    }
+
+    /**
+     * Process the event directly or after the DNS lookups it needs completed
+     * 
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    private void handle(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (lookupHandlers.isEmpty()) {
+            process(ctx, e);
+            return;
+        }
+
+        Suspension suspension = suspensions.get(e.getChannel().getId());
+        if (suspension == null) {
+            suspension = new Suspension();
+            Suspension existing = suspensions.putIfAbsent(e.getChannel().getId(), suspension);
+            if (existing != null) {
+                suspension = existing;
+            }
+        }
+        synchronized (suspension) {
+            if (suspension.suspended) {
+                // keep the order of the events
+                suspension.events.add(e);
+                return;
+            }
+        }
+
+        Collection<DNSLookup<?>> lookups = startLookups(ctx, e);
+        if (lookups.isEmpty()) {
+            process(ctx, e);
+        } else {
+            synchronized (suspension) {
+                suspension.suspended = true;
+                suspension.events.addFirst(e);
+            }
+            ChannelReadSuspension.suspend(ctx.getChannel());
+            await(ctx, suspension, lookups);
+        }
+    }
+
+    /**
+     * Resume the suspended session once the given lookups completed
+     */
+    private void await(final ChannelHandlerContext ctx, final Suspension suspension, Collection<DNSLookup<?>> lookups) {
+        final AtomicInteger pending = new AtomicInteger(lookups.size());
+        Runnable listener = new Runnable() {
+
+            public void run() {
+                if (pending.decrementAndGet() == 0) {
+                    dispatchResume(ctx, suspension);
+                }
+            }
+        };
+        for (DNSLookup<?> lookup : lookups) {
+            lookup.addListener(listener);
+        }
+    }
+
+    /**
+     * Hand the resumption of the session to the executor of the channel, so
+     * the suspended events are processed in order with the other events of
+     * the channel and the lookup threads only wait for the DNS server. The
+     * listeners of the lookups run on the lookup threads.
+     */
+    private void dispatchResume(final ChannelHandlerContext ctx, final Suspension suspension) {
+        ExecutionHandler executionHandler = ctx.getPipeline().get(ExecutionHandler.class);
+        ChannelEvent first;
+        synchronized (suspension) {
+            first = suspension.events.peek();
+        }
+        if (executionHandler == null || first == null) {
+            // the session is served by the I/O threads
+            resume(ctx, suspension);
+            return;
+        }
+        try {
+            // ordered per channel like the events of the channel
+            executionHandler.getExecutor().execute(new ChannelEventRunnable(ctx, first) {
+
+                @Override
+                public void run() {
+                    resume(ctx, suspension);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down
+            ctx.getChannel().close();
+        }
+    }
+
+    /**
+     * Process the events which were received while the session was suspended
+     */
+    private void resume(ChannelHandlerContext ctx, Suspension suspension) {
+        // the first event already waited for its lookups
+        boolean lookupsStarted = true;
+        while (true) {
+            ChannelEvent e;
+            synchronized (suspension) {
+                e = suspension.events.poll();
+                if (e == null) {
+                    suspension.suspended = false;
+                    break;
+                }
+            }
+            if (!ctx.getChannel().isOpen()) {
+                return;
+            }
+            try {
+                if (!lookupsStarted) {
+                    Collection<DNSLookup<?>> lookups = startLookups(ctx, e);
+                    if (!lookups.isEmpty()) {
+                        synchronized (suspension) {
+                            suspension.events.addFirst(e);
+                        }
+                        // the channel stays suspended
+                        await(ctx, suspension, lookups);
+                        return;
+                    }
+                }
+                process(ctx, e);
+            } catch (Exception ex) {
+                try {
+                    exceptionCaught(ctx, new DefaultExceptionEvent(ctx.getChannel(), ex));
+                } catch (Exception ex2) {
+                    ((SMTPSession) ctx.getAttachment()).getLogger().error("Unable to handle exception", ex2);
+                }
+            }
+            lookupsStarted = false;
+        }
+        ChannelReadSuspension.resume(ctx.getChannel());
+    }
+
+    /**
+     * Ask the {@link DNSLookupHandler}'s to start the lookups for the given
+     * event
+     * 
+     * @return lookups the lookups which did not complete yet
+     */
+    private Collection<DNSLookup<?>> startLookups(ChannelHandlerContext ctx, ChannelEvent e) {
+        SMTPSession session = (SMTPSession) ctx.getAttachment();
+        if (session == null || session.getState().containsKey(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE)) {
+            // the message is received, so there are no commands
+            return Collections.emptyList();
+        }
+
+        String command = null;
+        String argument = null;
+        if (e instanceof MessageEvent) {
+            ChannelBuffer buf = (ChannelBuffer) ((MessageEvent) e).getMessage();
+            if (buf.readableBytes() > MAX_COMMAND_LENGTH) {
+                return Collections.emptyList();
+            }
+            String line = buf.toString(buf.readerIndex(), buf.readableBytes(), "US-ASCII").trim();
+            int index = line.indexOf(' ');
+            if (index > 0) {
+                argument = line.substring(index + 1).trim();
+                command = line.substring(0, index);
+            } else {
+                command = line;
+            }
+            command = command.toUpperCase(Locale.US);
+        }
+
+        List<DNSLookup<?>> lookups = new ArrayList<DNSLookup<?>>();
+        for (int i = 0; i < lookupHandlers.size(); i++) {
+            try {
+                Collection<DNSLookup<?>> started = lookupHandlers.get(i).startLookups(session, command, argument);
+                for (DNSLookup<?> lookup : started) {
+                    if (!lookup.isDone()) {
+                        lookups.add(lookup);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                session.getLogger().info("Unable to start DNS lookups of " + lookupHandlers.get(i), ex);
+            }
+        }
+        return lookups;
+    }
+
+    private void process(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (e instanceof MessageEvent) {
+            super.messageReceived(ctx, (MessageEvent) e);
+        } else {
+            super.channelConnected(ctx, (ChannelStateEvent) e);
+        }
     }
 
     /**
@@ -50,14 +296,25 @@ public class SMTPChannelUpstreamHandler extends BasicChannelUpstreamHandler {
      * @param ctx
      */
     protected void cleanup(ChannelHandlerContext ctx) {
+        suspensions.remove(ctx.getChannel().getId());
+
         // Make sure we dispose everything on exit on session close
         SMTPSession smtpSession = (SMTPSession) ctx.getAttachment();
 
         if (smtpSession != null) {
             LifecycleUtil.dispose(smtpSession.getState().get(SMTPConstants.MAIL));
+            LifecycleUtil.dispose(smtpSession.getState().get(SMTPConstants.BDAT_STATE));
             LifecycleUtil.dispose(smtpSession.getState().get(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE));
         }
 
         super.cleanup(ctx);
     }
+
+    /**
+     * Events of a channel which wait for DNS lookups
+     */
+    private final static class Suspension {
+        private final LinkedList<ChannelEvent> events = new LinkedList<ChannelEvent>();
+        private boolean suspended = false;
+    }
 }
@@ -0,0 +1,247 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.netty;
+
+import org.apache.james.protocols.netty.HandlerConstants;
+import org.apache.james.smtpserver.ExtendedSMTPSession;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+/**
+ * {@link FrameDecoder} which splits the received data into lines like the
+ * {@link DelimiterBasedFrameDecoder} does, but hands the chunk which follows a
+ * <code>BDAT</code> command (RFC 3030) over as it is, without splitting it on
+ * line delimiters or limiting its length.
+ * 
+ * The message which is received via <code>DATA</code> is not split into
+ * single lines either. All complete lines which are available are handed over
+ * as one frame, so the <code>DataLineFilter</code>'s are called once per read
+ * instead of once per line. Only the terminating dot is always a frame of its
+ * own.
+ * 
+ * The decoder needs to know about the chunks before the command was
+ * processed, as the client is allowed to pipeline them. So it recognizes the
+ * <code>BDAT</code> commands by their syntax, the chunk is consumed even if
+ * the command gets rejected later. Lines which are received after an accepted
+ * <code>DATA</code> command and before the terminating dot are never treated
+ * as <code>BDAT</code> command. The client has to wait for the reply to
+ * <code>DATA</code> before it sends the message, so the session can be asked
+ * whether it was accepted when the first line of the message is received. This
+ * is done via {@link ExtendedSMTPSession#isDataAccepted()}, as the state of
+ * the session must not be read outside of the thread which processes the
+ * commands.
+ */
+public class SMTPChunkingFrameDecoder extends FrameDecoder {
+
+    private final int maxLineLength;
+
+    /**
+     * Bytes which are left of the current chunk
+     */
+    private long chunkRemaining = 0;
+
+    /**
+     * <code>true</code> if the lines belong to the message which is received
+     * via <code>DATA</code>
+     */
+    private boolean data = false;
+
+    /**
+     * <code>true</code> if a <code>DATA</code> command was received but no line
+     * after it
+     */
+    private boolean dataRequested = false;
+
+    /**
+     * <code>true</code> if the line is too long and gets discarded till the
+     * next line delimiter
+     */
+    private boolean discarding = false;
+
+    /**
+     * <code>true</code> if the last frame belongs to a message, which is
+     * received via <code>DATA</code> or <code>BDAT</code>
+     */
+    private boolean messageContent = false;
+
+    public SMTPChunkingFrameDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * @see org.jboss.netty.handler.codec.frame.FrameDecoder#decode(org.jboss.netty.channel.ChannelHandlerContext,
+     *      org.jboss.netty.channel.Channel,
+     *      org.jboss.netty.buffer.ChannelBuffer)
+     */
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (chunkRemaining > 0) {
+            int length = (int) Math.min(buffer.readableBytes(), chunkRemaining);
+            chunkRemaining -= length;
+            messageContent = true;
+            return buffer.readBytes(length);
+        }
+
+        int eol = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), (byte) '\n');
+        if (eol < 0) {
+            if (buffer.readableBytes() > maxLineLength) {
+                // skip everything till the next line delimiter
+                discarding = true;
+                buffer.skipBytes(buffer.readableBytes());
+            }
+            return null;
+        }
+
+        int length = eol - buffer.readerIndex() + 1;
+        if (discarding || length - 2 > maxLineLength) {
+            discarding = false;
+            buffer.skipBytes(length);
+            throw new TooLongFrameException("Line length exceeds " + maxLineLength);
+        }
+
+        if (dataRequested) {
+            dataRequested = false;
+            data = isDataAccepted(ctx);
+        }
+        messageContent = data;
+        if (data) {
+            return decodeData(buffer, eol);
+        }
+
+        ChannelBuffer line = buffer.readBytes(length);
+        if (startsWith(line, "DATA") && length <= 6) {
+            dataRequested = true;
+        } else if (startsWith(line, "BDAT ")) {
+            chunkRemaining = getChunkSize(line);
+        }
+        return line;
+    }
+
+    /**
+     * Return all complete lines of the message, up to the terminating dot. The
+     * terminating dot itself is returned alone.
+     * 
+     * @param buffer
+     * @param eol
+     *            the index of the end of the first line
+     * @return lines
+     */
+    private ChannelBuffer decodeData(ChannelBuffer buffer, int eol) {
+        int start = buffer.readerIndex();
+        if (isTerminator(buffer, start, eol - start + 1)) {
+            data = false;
+            return buffer.readBytes(eol - start + 1);
+        }
+
+        int end = eol + 1;
+        while (end < buffer.writerIndex()) {
+            eol = buffer.indexOf(end, buffer.writerIndex(), (byte) '\n');
+            if (eol < 0) {
+                break;
+            }
+            int length = eol - end + 1;
+            // lines which are too long or the terminating dot will be the
+            // first line of the next frame
+            if (length - 2 > maxLineLength || isTerminator(buffer, end, length)) {
+                break;
+            }
+            end = eol + 1;
+        }
+        return buffer.readBytes(end - start);
+    }
+
+    /**
+     * Return <code>true</code> if the last frame which was decoded belongs to
+     * a message and not to a command
+     * 
+     * @return messageContent
+     */
+    public boolean isMessageContent() {
+        return messageContent;
+    }
+
+    /**
+     * Return <code>true</code> if the session accepted the <code>DATA</code>
+     * command and waits for the message
+     * 
+     * @param ctx
+     * @return accepted
+     */
+    private boolean isDataAccepted(ChannelHandlerContext ctx) {
+        ChannelHandlerContext coreCtx = ctx.getPipeline().getContext(HandlerConstants.CORE_HANDLER);
+        if (coreCtx == null || !(coreCtx.getAttachment() instanceof ExtendedSMTPSession)) {
+            return true;
+        }
+        return ((ExtendedSMTPSession) coreCtx.getAttachment()).isDataAccepted();
+    }
+
+    /**
+     * Return the size of the chunk announced by the given <code>BDAT</code>
+     * command line or <code>0</code> if it could not be parsed
+     * 
+     * @param line
+     * @return size
+     */
+    private long getChunkSize(ChannelBuffer line) {
+        String argument = line.toString(5, line.readableBytes() - 5, "US-ASCII").trim();
+        int index = argument.indexOf(' ');
+        if (index > -1) {
+            argument = argument.substring(0, index);
+        }
+        return Math.max(0, parseChunkSize(argument));
+    }
+
+    /**
+     * Parse the chunk size of a <code>BDAT</code> command.
+     * 
+     * @param size
+     * @return size the parsed size or <code>-1</code> if the size is not valid
+     */
+    public static long parseChunkSize(String size) {
+        if (size.length() == 0 || size.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < size.length(); i++) {
+            if (!Character.isDigit(size.charAt(i))) {
+                return -1;
+            }
+        }
+        return Long.parseLong(size);
+    }
+
+    private boolean startsWith(ChannelBuffer line, String command) {
+        if (line.readableBytes() < command.length()) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            if (Character.toUpperCase((char) line.getByte(line.readerIndex() + i)) != command.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isTerminator(ChannelBuffer buffer, int index, int length) {
+        // 46 is "."
+        return buffer.getByte(index) == 46 && (length == 2 || (length == 3 && buffer.getByte(index + 1) == '\r'));
+    }
+}
@@ -19,23 +19,39 @@
 package org.apache.james.smtpserver.netty;
 
 
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.Resource;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.library.AsyncDNSService;
 import org.apache.james.dnsservice.library.netmatcher.NetMatcher;
 import org.apache.james.protocols.api.ProtocolSession;
 import org.apache.james.protocols.api.ProtocolTransport;
 import org.apache.james.protocols.api.handler.HandlersPackage;
 import org.apache.james.protocols.lib.netty.AbstractProtocolAsyncServer;
+import org.apache.james.protocols.netty.AbstractChannelPipelineFactory;
+import org.apache.james.protocols.netty.HandlerConstants;
 import org.apache.james.protocols.smtp.SMTPConfiguration;
 import org.apache.james.protocols.smtp.SMTPProtocol;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.ManageableMailQueue;
 import org.apache.james.smtpserver.CoreCmdHandlerLoader;
+import org.apache.james.smtpserver.DNSLookupHandler;
 import org.apache.james.smtpserver.ExtendedSMTPSession;
+import org.apache.james.smtpserver.SendMailHandler;
 import org.apache.james.smtpserver.jmx.JMXHandlersLoader;
+import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
 
 /**
  * NIO SMTPServer which use Netty
@@ -87,6 +103,27 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
     
     private SMTPChannelUpstreamHandler coreHandler;
 
+    /**
+     * The number of threads which do the DNS lookups of the
+     * {@link DNSLookupHandler}'s if the {@link DNSService} blocks, and their
+     * checks which do their own lookups like SPF. 0 means the lookups are done
+     * by the handlers while they process the command, -1 the same count of
+     * threads as the executor of the channels has.
+     */
+    private int dnsLookupThreads = -1;
+
+    private ExecutorService dnsLookupExecutor;
+
+    /**
+     * The service which does the lookups of all {@link DNSLookupHandler}'s
+     */
+    private AsyncDNSService lookupService;
+
+    /**
+     * The spool of the {@link SendMailHandler}, if its size is known
+     */
+    private ManageableMailQueue spool;
+
     @Resource(name = "dnsservice")
     public void setDNSService(DNSService dns) {
         this.dns = dns;
@@ -114,7 +151,28 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
             }
             
         };
-        coreHandler = new SMTPChannelUpstreamHandler(transport, getLogger(), getEncryption());
+        List<DNSLookupHandler> lookupHandlers = getProtocolHandlerChain().getHandlers(DNSLookupHandler.class);
+        if (!lookupHandlers.isEmpty()) {
+            int threads = dnsLookupThreads < 0 ? getMaxExecutorThreads() : dnsLookupThreads;
+            if (threads > 0) {
+                dnsLookupExecutor = JMXEnabledThreadPoolExecutor.newFixedThreadPool(getThreadPoolJMXPath(), "dnslookup", threads);
+            }
+            lookupService = new AsyncDNSService(dns, dnsLookupExecutor);
+            for (DNSLookupHandler handler : lookupHandlers) {
+                handler.setLookupService(lookupService);
+            }
+            if (lookupService.isNonBlocking()) {
+                getLogger().info("DNS lookups of the handlers are done without blocking");
+            }
+        }
+        coreHandler = new SMTPChannelUpstreamHandler(transport, getLogger(), getEncryption(), lookupHandlers);
+
+        for (SendMailHandler handler : getProtocolHandlerChain().getHandlers(SendMailHandler.class)) {
+            MailQueue queue = handler.getQueue();
+            if (queue instanceof ManageableMailQueue) {
+                spool = (ManageableMailQueue) queue;
+            }
+        }
         
     }
 
@@ -179,6 +237,8 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
 
             verifyIdentity = configuration.getBoolean("verifyIdentity", true);
 
+            dnsLookupThreads = configuration.getInt("dnsLookupThreads", dnsLookupThreads);
+
         }
     }
 
@@ -335,11 +395,68 @@ public class SMTPServer extends AbstractProtocolAsyncServer implements SMTPServe
         return theConfigData.getHelloName();
     }
 
+    @Override
+    protected void postDestroy() {
+        super.postDestroy();
+        if (dnsLookupExecutor != null) {
+            dnsLookupExecutor.shutdownNow();
+        }
+    }
+
     @Override
     protected ChannelUpstreamHandler createCoreHandler() {
         return coreHandler;
     }
 
+    /**
+     * Return the size of the spool. Counting the mails of a JMS based spool
+     * browses the whole queue, so this is only called once per
+     * admissionControl.spoolInterval and not on every evaluation of the load.
+     */
+    @Override
+    protected long getSpoolSize() {
+        if (spool == null) {
+            return -1;
+        }
+        try {
+            return spool.getSize();
+        } catch (MailQueueException e) {
+            getLogger().info("Unable to get the size of the spool", e);
+            return -1;
+        }
+    }
+
+    @Override
+    protected String getOverloadResponse() {
+        return "421 " + getHelloName() + " Service not available, too busy, try again later\r\n";
+    }
+
+    /**
+     * The lines and chunks of a message are no commands
+     */
+    @Override
+    protected boolean isCommand(ChannelHandlerContext ctx, Object message) {
+        ChannelHandler framer = ctx.getPipeline().get(HandlerConstants.FRAMER);
+        return !(framer instanceof SMTPChunkingFrameDecoder && ((SMTPChunkingFrameDecoder) framer).isMessageContent());
+    }
+
+    /**
+     * Replace the line based framer with one which supports the chunks of the
+     * <code>BDAT</code> command
+     */
+    @Override
+    protected ChannelPipelineFactory createPipelineFactory(ChannelGroup group) {
+        final ChannelPipelineFactory factory = super.createPipelineFactory(group);
+        return new ChannelPipelineFactory() {
+
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = factory.getPipeline();
+                pipeline.replace(HandlerConstants.FRAMER, HandlerConstants.FRAMER, new SMTPChunkingFrameDecoder(AbstractChannelPipelineFactory.MAX_LINE_LENGTH));
+                return pipeline;
+            }
+        };
+    }
+
     @Override
     protected Class<? extends HandlersPackage> getCoreHandlersPackage() {
         return CoreCmdHandlerLoader.class;
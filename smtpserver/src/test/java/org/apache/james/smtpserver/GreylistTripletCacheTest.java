@@ -0,0 +1,105 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.james.smtpserver.fastfail.GreylistTripletCache;
+import org.apache.james.smtpserver.fastfail.GreylistTripletCache.Triplet;
+
+public class GreylistTripletCacheTest extends TestCase {
+
+    public void testChangesAreWrittenOnce() {
+        GreylistTripletCache cache = new GreylistTripletCache(4, 100);
+        cache.store("192.168.0", "a@example.com", "b@example.com", 0, 1000);
+        cache.store("192.168.0", "a@example.com", "b@example.com", 1, 2000);
+        assertEquals(1, cache.getChangeCount());
+
+        List<Triplet> changes = cache.drainChanges(10);
+        assertEquals(1, changes.size());
+        assertFalse(changes.get(0).isPersisted());
+        assertEquals(1, changes.get(0).getCount());
+        assertEquals(2000, changes.get(0).getTime());
+        assertTrue(cache.drainChanges(10).isEmpty());
+
+        // the next change is an update
+        cache.store("192.168.0", "a@example.com", "b@example.com", 2, 3000);
+        changes = cache.drainChanges(10);
+        assertTrue(changes.get(0).isPersisted());
+    }
+
+    public void testFailedChangesAreKept() {
+        GreylistTripletCache cache = new GreylistTripletCache(4, 100);
+        cache.store("192.168.0", "a@example.com", "b@example.com", 0, 1000);
+        cache.failed(cache.drainChanges(10));
+
+        List<Triplet> changes = cache.drainChanges(10);
+        assertEquals(1, changes.size());
+        assertFalse(changes.get(0).isPersisted());
+    }
+
+    public void testChangeIsDroppedAfterMaxFailures() {
+        GreylistTripletCache cache = new GreylistTripletCache(4, 100);
+        cache.store("192.168.0", "a@example.com", "b@example.com", 0, 1000);
+
+        assertFalse(cache.failed(cache.drainChanges(10).get(0), 3));
+        assertFalse(cache.failed(cache.drainChanges(10).get(0), 3));
+        assertTrue(cache.failed(cache.drainChanges(10).get(0), 3));
+        assertTrue(cache.drainChanges(10).isEmpty());
+        assertEquals(0, cache.getChangeCount());
+
+        // a successful write starts the count again
+        cache.store("192.168.0", "a@example.com", "b@example.com", 1, 2000);
+        assertFalse(cache.failed(cache.drainChanges(10).get(0), 3));
+        cache.drainChanges(10);
+        cache.store("192.168.0", "a@example.com", "b@example.com", 2, 3000);
+        assertFalse(cache.failed(cache.drainChanges(10).get(0), 2));
+    }
+
+    public void testOnlyWrittenTripletsAreEvicted() {
+        GreylistTripletCache cache = new GreylistTripletCache(1, 2);
+        cache.store("192.168.0", "a@example.com", "b@example.com", 0, 1000);
+        cache.store("192.168.1", "a@example.com", "b@example.com", 0, 1000);
+        cache.store("192.168.2", "a@example.com", "b@example.com", 0, 1000);
+        assertEquals(3, cache.size());
+
+        cache.drainChanges(10);
+        cache.load("192.168.3", "a@example.com", "b@example.com", 0, 1000);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("192.168.0", "a@example.com", "b@example.com"));
+        assertNotNull(cache.get("192.168.3", "a@example.com", "b@example.com"));
+    }
+
+    public void testExpire() {
+        GreylistTripletCache cache = new GreylistTripletCache(1, 100);
+        cache.load("192.168.0", "a@example.com", "b@example.com", 0, 1000);
+        cache.load("192.168.1", "a@example.com", "b@example.com", 1, 1000);
+        cache.load("192.168.2", "a@example.com", "b@example.com", 1, 5000);
+
+        cache.expire(2000, 0);
+        assertNull(cache.get("192.168.0", "a@example.com", "b@example.com"));
+        assertNotNull(cache.get("192.168.1", "a@example.com", "b@example.com"));
+
+        cache.expire(0, 2000);
+        assertNull(cache.get("192.168.1", "a@example.com", "b@example.com"));
+        assertNotNull(cache.get("192.168.2", "a@example.com", "b@example.com"));
+    }
+}
@@ -387,10 +387,12 @@ public class SMTPServerTest extends TestCase {
             capabilitieslist.add(capabilityRes[i].substring(4));
         }
 
-        assertEquals("capabilities", 3, capabilitieslist.size());
+        assertEquals("capabilities", 5, capabilitieslist.size());
         assertTrue("capabilities present PIPELINING", capabilitieslist.contains("PIPELINING"));
         assertTrue("capabilities present ENHANCEDSTATUSCODES", capabilitieslist.contains("ENHANCEDSTATUSCODES"));
         assertTrue("capabilities present 8BITMIME", capabilitieslist.contains("8BITMIME"));
+        assertTrue("capabilities present CHUNKING", capabilitieslist.contains("CHUNKING"));
+        assertTrue("capabilities present BINARYMIME", capabilitieslist.contains("BINARYMIME"));
 
         smtpProtocol.setSender("mail@localhost");
         smtpProtocol.addRecipient("mail@localhost");
@@ -421,7 +423,7 @@ public class SMTPServerTest extends TestCase {
             capabilitieslist.add(capabilityRes[i].substring(4));
         }
 
-        assertEquals("capabilities", 4, capabilitieslist.size());
+        assertEquals("capabilities", 6, capabilitieslist.size());
         assertTrue("capabilities present PIPELINING", capabilitieslist.contains("PIPELINING"));
         assertTrue("capabilities present ENHANCEDSTATUSCODES", capabilitieslist.contains("ENHANCEDSTATUSCODES"));
         assertTrue("capabilities present 8BITMIME", capabilitieslist.contains("8BITMIME"));
@@ -1182,6 +1184,41 @@ public class SMTPServerTest extends TestCase {
         assertEquals("expected 250 ok", 250, smtpProtocol.getReplyCode());
 
     }
+    public void testHandleMessageSizeLimitExceededDiscardsData() throws Exception {
+        m_testConfiguration.setMaxMessageSize(1); // set message limit to 1kb
+        finishSetUp(m_testConfiguration);
+
+        SMTPClient smtpProtocol = new SMTPClient();
+        smtpProtocol.connect("127.0.0.1", m_smtpListenerPort);
+
+        smtpProtocol.sendCommand("ehlo " + InetAddress.getLocalHost());
+
+        smtpProtocol.setSender("mail@localhost");
+        smtpProtocol.addRecipient("mail@localhost");
+
+        Writer wr = smtpProtocol.sendMessageData();
+        // the limit is hit on the 11th line, the rest of the data must be
+        // discarded and not be treated as commands
+        for (int i = 0; i < 20; i++) {
+            wr.write("1234567810123456782012345678301234567840123456785012345678601234567870123456788012345678901234567100\r\n");
+        }
+        wr.close();
+
+        assertFalse(smtpProtocol.completePendingCommand());
+        assertEquals("expected 552 error", 552, smtpProtocol.getReplyCode());
+        assertNull("no mail received by mail server", queue.getLastMail());
+
+        // the session can be used for the next mail
+        smtpProtocol.setSender("mail@localhost");
+        smtpProtocol.addRecipient("mail@localhost");
+        smtpProtocol.sendShortMessageData("Subject: test\r\n\r\nBody\r\n\r\n.\r\n");
+        assertEquals("expected 250 ok", 250, smtpProtocol.getReplyCode());
+        assertNotNull("mail received by mail server", queue.getLastMail());
+
+        smtpProtocol.quit();
+        smtpProtocol.disconnect();
+    }
+
     // Check if auth users get not rejected cause rbl. See JAMES-566
     public void testDNSRBLNotRejectAuthUser() throws Exception {
         m_testConfiguration.setAuthorizedAddresses("192.168.0.1/32");
@@ -1439,4 +1476,196 @@ public class SMTPServerTest extends TestCase {
         client.close();
     }
 
+    public void testBdat() throws Exception {
+        StringBuffer buf = new StringBuffer();
+        finishSetUp(m_testConfiguration);
+        Socket client = new Socket("127.0.0.1", m_smtpListenerPort);
+
+        buf.append("HELO TEST");
+        buf.append("\r\n");
+        buf.append("MAIL FROM: <test@localhost>");
+        buf.append("\r\n");
+        buf.append("RCPT TO: <test2@localhost>");
+        buf.append("\r\n");
+        // the first chunk ends in the middle of a line
+        buf.append("BDAT 19");
+        buf.append("\r\n");
+        buf.append("Subject: test\r\n\r\nBo");
+        // no dot-stuffing is done for chunks
+        buf.append("BDAT 13 LAST");
+        buf.append("\r\n");
+        buf.append("dy\r\n.\r\nmore\r\n");
+        buf.append("quit");
+        buf.append("\r\n");
+
+        OutputStream out = client.getOutputStream();
+
+        out.write(buf.toString().getBytes());
+        out.flush();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        assertEquals("Connection made", 220, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("HELO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("Chunk accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("Message accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        in.close();
+        out.close();
+        client.close();
+
+        Mail mail = queue.getLastMail();
+        assertNotNull("mail received by mail server", mail);
+        assertEquals("Subject", "test", mail.getMessage().getSubject());
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(message);
+        assertTrue("Body", message.toString().endsWith("\r\n\r\nBody\r\n.\r\nmore\r\n"));
+    }
+
+    public void testBdatBinaryMime() throws Exception {
+        finishSetUp(m_testConfiguration);
+        Socket client = new Socket("127.0.0.1", m_smtpListenerPort);
+        OutputStream out = client.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        assertEquals("Connection made", 220, Integer.parseInt(in.readLine().split(" ")[0]));
+        out.write("HELO TEST\r\nMAIL FROM: <test@localhost> BODY=BINARYMIME\r\nRCPT TO: <test2@localhost>\r\n".getBytes());
+        out.flush();
+        assertEquals("HELO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        out.write("DATA\r\n".getBytes());
+        out.flush();
+        assertEquals("DATA rejected", 503, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        byte[] headers = "Subject: test\r\nContent-Type: application/octet-stream\r\n\r\n".getBytes();
+        byte[] body = new byte[] { 0, 1, '\n', '.', '\r', '\n', (byte) 255 };
+        out.write(("BDAT " + (headers.length + body.length) + " LAST\r\n").getBytes());
+        out.write(headers);
+        out.write(body);
+        out.flush();
+        assertEquals("Message accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        in.close();
+        out.close();
+        client.close();
+
+        Mail mail = queue.getLastMail();
+        assertNotNull("mail received by mail server", mail);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(message);
+        byte[] bytes = message.toByteArray();
+        for (int i = 0; i < body.length; i++) {
+            assertEquals("Body", body[i], bytes[bytes.length - body.length + i]);
+        }
+    }
+
+    public void testBdatMessageSizeLimitExceeded() throws Exception {
+        m_testConfiguration.setMaxMessageSize(1); // set message limit to 1kb
+        finishSetUp(m_testConfiguration);
+        Socket client = new Socket("127.0.0.1", m_smtpListenerPort);
+        OutputStream out = client.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        assertEquals("Connection made", 220, Integer.parseInt(in.readLine().split(" ")[0]));
+        out.write("HELO TEST\r\nMAIL FROM: <test@localhost>\r\nRCPT TO: <test2@localhost>\r\n".getBytes());
+        out.flush();
+        assertEquals("HELO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        // the chunks must be consumed and not be treated as commands
+        StringBuffer chunk = new StringBuffer("Subject: test\r\n\r\n");
+        while (chunk.length() < 800) {
+            chunk.append("QUIT\r\n");
+        }
+        out.write(("BDAT " + chunk.length() + "\r\n" + chunk + "BDAT " + chunk.length() + " LAST\r\n" + chunk).getBytes());
+        out.flush();
+        assertEquals("Chunk accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("Message rejected", 552, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertNull("no mail received by mail server", queue.getLastMail());
+
+        // the session can be used for the next mail
+        out.write("MAIL FROM: <test@localhost>\r\nRCPT TO: <test2@localhost>\r\nBDAT 21 LAST\r\nSubject: test\r\n\r\nBody".getBytes());
+        out.flush();
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("Message accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertNotNull("mail received by mail server", queue.getLastMail());
+
+        in.close();
+        out.close();
+        client.close();
+    }
+
+    public void testBdatAbortedByRset() throws Exception {
+        finishSetUp(m_testConfiguration);
+        Socket client = new Socket("127.0.0.1", m_smtpListenerPort);
+        OutputStream out = client.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        assertEquals("Connection made", 220, Integer.parseInt(in.readLine().split(" ")[0]));
+        out.write("HELO TEST\r\nMAIL FROM: <test@localhost>\r\nRCPT TO: <test2@localhost>\r\nBDAT 20\r\nSubject: aborted\r\n\r\n".getBytes());
+        out.flush();
+        assertEquals("HELO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("Chunk accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        out.write("RSET\r\n".getBytes());
+        out.flush();
+        assertEquals("RSET accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        // the aborted chunks must not be part of the next message
+        out.write("MAIL FROM: <test@localhost>\r\nRCPT TO: <test2@localhost>\r\nBDAT 21 LAST\r\nSubject: test\r\n\r\nBody".getBytes());
+        out.flush();
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("Message accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        in.close();
+        out.close();
+        client.close();
+
+        Mail mail = queue.getLastMail();
+        assertNotNull("mail received by mail server", mail);
+        assertEquals("Subject", "test", mail.getMessage().getSubject());
+    }
+
+    public void testDataInOneRead() throws Exception {
+        finishSetUp(m_testConfiguration);
+        Socket client = new Socket("127.0.0.1", m_smtpListenerPort);
+        OutputStream out = client.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        assertEquals("Connection made", 220, Integer.parseInt(in.readLine().split(" ")[0]));
+        out.write("HELO TEST\r\nMAIL FROM: <test@localhost>\r\nRCPT TO: <test2@localhost>\r\nDATA\r\n".getBytes());
+        out.flush();
+        assertEquals("HELO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("MAIL FROM accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("RCPT TO accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("DATA accepted", 354, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        // the lines of the message are handed over at once, the dot-stuffing
+        // must be undone for every line and the command after the
+        // terminating dot must not be part of the message
+        out.write("Subject: test\r\n\r\n..first\r\nBody\r\n..\r\n.\r\nQUIT\r\n".getBytes());
+        out.flush();
+        assertEquals("Message accepted", 250, Integer.parseInt(in.readLine().split(" ")[0]));
+        assertEquals("QUIT accepted", 221, Integer.parseInt(in.readLine().split(" ")[0]));
+
+        in.close();
+        out.close();
+        client.close();
+
+        Mail mail = queue.getLastMail();
+        assertNotNull("mail received by mail server", mail);
+        assertEquals("Subject", "test", mail.getMessage().getSubject());
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        mail.getMessage().writeTo(message);
+        assertTrue("Body", message.toString().endsWith("\r\n\r\n.first\r\nBody\r\n.\r\n"));
+    }
+
 }
@@ -24,6 +24,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.james.dnsservice.library.AsyncDNSService;
 import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSService;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
@@ -47,6 +49,8 @@ public class SPFHandlerTest extends TestCase {
 
     private String command = "MAIL";
 
+    private final static AsyncDNSService LOOKUP_SERVICE = new AsyncDNSService(new MockDNSService());
+
     protected void setUp() throws Exception {
         super.setUp();
         setupMockedDnsService();
@@ -289,4 +293,30 @@ public class SPFHandlerTest extends TestCase {
         assertEquals("declined", HookReturnCode.DECLINED, spf.doRcpt(mockedSMTPSession, sender, rcpt).getResult());
     }
 
+    public void testStartedLookupIsUsed() throws Exception {
+        MailAddress sender = new MailAddress("test@spf2.james.apache.org");
+        MailAddress rcpt = new MailAddress("test@localhost");
+        setupMockedSMTPSession("192.168.100.1", "spf2.james.apache.org");
+        SPFHandler spf = new SPFHandler();
+
+        spf.setDNSService(mockedDnsService);
+        spf.setLookupService(LOOKUP_SERVICE);
+
+        assertEquals(1, spf.startLookups(mockedSMTPSession, "MAIL", "FROM:<" + sender + ">").size());
+        assertEquals("declined", HookReturnCode.DECLINED, spf.doMail(mockedSMTPSession, sender).getResult());
+        assertEquals("fail", HookReturnCode.DENY, spf.doRcpt(mockedSMTPSession, sender, rcpt).getResult());
+    }
+
+    public void testNoLookupIsStartedForRelaying() throws Exception {
+        MailAddress sender = new MailAddress("test@spf2.james.apache.org");
+        setupMockedSMTPSession("192.168.100.1", "spf2.james.apache.org");
+        setRelayingAllowed(true);
+        SPFHandler spf = new SPFHandler();
+
+        spf.setDNSService(mockedDnsService);
+        spf.setLookupService(LOOKUP_SERVICE);
+
+        assertTrue(spf.startLookups(mockedSMTPSession, "MAIL", "FROM:<" + sender + ">").isEmpty());
+    }
+
 }
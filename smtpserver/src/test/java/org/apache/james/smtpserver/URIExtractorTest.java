@@ -0,0 +1,91 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import junit.framework.TestCase;
+
+import org.apache.james.smtpserver.fastfail.URIExtractor;
+
+public class URIExtractorTest extends TestCase {
+
+    private URIExtractor extract(String text) {
+        URIExtractor extractor = new URIExtractor(Long.MAX_VALUE, Integer.MAX_VALUE);
+        byte[] bytes = text.getBytes();
+        // feed in small chunks to check tokens which span chunks
+        for (int i = 0; i < bytes.length; i += 7) {
+            extractor.scan(bytes, i, Math.min(7, bytes.length - i));
+        }
+        return extractor;
+    }
+
+    private void assertDomains(String text, String... domains) {
+        assertEquals(new LinkedHashSet<String>(Arrays.asList(domains)), extract(text).getDomains());
+    }
+
+    public void testSchemes() {
+        assertDomains("see http://www.example.com/path?a=b and HTTPS://user:pw@Secure.Example.org:8443/", "example.com", "example.org");
+        assertDomains("ftp://files.example.net/pub file://host.example.de/x", "example.net", "example.de");
+    }
+
+    public void testHtml() {
+        assertDomains("<a href=\"http://click.example.com/\">x</a><img src=http://img.example.org>", "example.com", "example.org");
+    }
+
+    public void testSchemeless() {
+        assertDomains("visit www2.example.com or ftp.example.org today", "example.com", "example.org");
+        assertDomains("no x.www.example.com nor a=www.example.org");
+    }
+
+    public void testEmailAddresses() {
+        assertDomains("write to <info@example.com> or mailto:sales@shop.example.org?subject=x", "example.com", "example.org");
+    }
+
+    public void testMultiPartTldAndIp() {
+        assertDomains("http://a.b.example.co.uk/ http://1.2.3.4/", "example.co.uk", "4.3.2.1");
+    }
+
+    public void testDeduplicates() {
+        assertDomains("http://a.example.com http://b.example.com http://example.com", "example.com");
+    }
+
+    public void testLimits() {
+        URIExtractor extractor = new URIExtractor(Long.MAX_VALUE, 2);
+        byte[] bytes = "http://a.com http://b.com http://c.com".getBytes();
+        extractor.scan(bytes, 0, bytes.length);
+        assertTrue(extractor.isFull());
+        assertEquals(2, extractor.getDomains().size());
+
+        extractor = new URIExtractor(10, 10);
+        bytes = "http://a.com http://b.com".getBytes();
+        extractor.scan(bytes, 0, bytes.length);
+        assertTrue(extractor.isFull());
+        assertTrue(extractor.getDomains().isEmpty());
+    }
+
+    public void testCharBuffer() {
+        URIExtractor extractor = new URIExtractor(Long.MAX_VALUE, Integer.MAX_VALUE);
+        extractor.scan(CharBuffer.wrap("gr\u00fc\u00dfe von http://www.ex"));
+        extractor.scan(CharBuffer.wrap("ample.com/\u00e4"));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("example.com")), extractor.getDomains());
+    }
+}
@@ -31,6 +31,7 @@ import org.apache.james.protocols.smtp.BaseFakeSMTPSession;
 import org.apache.james.protocols.smtp.SMTPConfiguration;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
+import org.apache.james.rrt.api.RecipientDataVersion;
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
 import org.apache.james.smtpserver.fastfail.ValidRcptHandler;
@@ -243,4 +244,28 @@ public class ValidRcptHandlerTest extends TestCase {
         assertNull("Valid Error mapping", session.getState().get("VALID_USER"));
         assertEquals("Error mapping", rCode, HookReturnCode.DENY);
     }
+
+    public void testCachedNegativeResult() throws Exception {
+        MailAddress mailAddress = new MailAddress(INVALID_USER + "@localhost");
+        SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+
+        assertEquals("Rejected", handler.doRcpt(session, null, mailAddress).getResult(), HookReturnCode.DENY);
+
+        users.addUser(INVALID_USER, "xxx");
+        assertEquals("Cached rejection", handler.doRcpt(session, null, mailAddress).getResult(), HookReturnCode.DENY);
+
+        RecipientDataVersion.changed();
+        assertEquals("Not rejected after change", handler.doRcpt(session, null, mailAddress).getResult(), HookReturnCode.DECLINED);
+    }
+
+    public void testCacheDisabled() throws Exception {
+        handler.setCache(0, 0, 0);
+        MailAddress mailAddress = new MailAddress(INVALID_USER + "@localhost");
+        SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+
+        assertEquals("Rejected", handler.doRcpt(session, null, mailAddress).getResult(), HookReturnCode.DENY);
+
+        users.addUser(INVALID_USER, "xxx");
+        assertEquals("Not rejected", handler.doRcpt(session, null, mailAddress).getResult(), HookReturnCode.DECLINED);
+    }
 }
@@ -25,11 +25,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.internet.ParseException;
 
 import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.api.TemporaryResolutionException;
 import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.james.dnsservice.library.DNSLookup;
 import org.apache.james.protocols.smtp.BaseFakeSMTPSession;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
@@ -104,4 +107,79 @@ public class ValidRcptMXTest extends TestCase {
         assertEquals("Reject", rCode, HookReturnCode.DENY);
     }
 
+    public void testStartedLookupIsUsed() throws ParseException {
+        Collection bNetworks = new ArrayList();
+        bNetworks.add("127.0.0.1");
+
+        final AtomicInteger lookups = new AtomicInteger(0);
+        final MockDNSService mock = (MockDNSService) setupMockedDNSServer();
+        DNSService dns = new MockDNSService() {
+
+            public Collection findMXRecords(String hostname) {
+                lookups.incrementAndGet();
+                return mock.findMXRecords(hostname);
+            }
+
+            public InetAddress getByName(String host) throws UnknownHostException {
+                return mock.getByName(host);
+            }
+        };
+        MailAddress mailAddress = new MailAddress("test@" + INVALID_HOST);
+        SMTPSession session = setupMockedSMTPSession(mailAddress);
+        ValidRcptMX handler = new ValidRcptMX();
+
+        handler.setDNSService(dns);
+        handler.setBannedNetworks(bNetworks, dns);
+        Collection<DNSLookup<?>> started = handler.startLookups(session, "RCPT", "TO:<" + mailAddress + ">");
+        assertEquals(1, started.size());
+        assertTrue(started.iterator().next().isDone());
+
+        assertEquals("Reject", HookReturnCode.DENY, handler.doRcpt(session, null, mailAddress).getResult());
+        assertEquals(1, lookups.get());
+    }
+
+    public void testTemporaryFailureOfStartedLookup() throws ParseException {
+        Collection bNetworks = new ArrayList();
+        bNetworks.add("127.0.0.1");
+
+        final AtomicInteger lookups = new AtomicInteger(0);
+        DNSService dns = new DNSService() {
+
+            public Collection<String> findMXRecords(String hostname) throws TemporaryResolutionException {
+                lookups.incrementAndGet();
+                throw new TemporaryResolutionException("timeout");
+            }
+
+            public Collection<String> findTXTRecords(String hostname) {
+                throw new UnsupportedOperationException("Unimplemented Stub Method");
+            }
+
+            public InetAddress[] getAllByName(String host) throws UnknownHostException {
+                throw new UnsupportedOperationException("Unimplemented Stub Method");
+            }
+
+            public InetAddress getByName(String host) throws UnknownHostException {
+                throw new UnsupportedOperationException("Unimplemented Stub Method");
+            }
+
+            public String getHostName(InetAddress addr) {
+                throw new UnsupportedOperationException("Unimplemented Stub Method");
+            }
+
+            public InetAddress getLocalHost() throws UnknownHostException {
+                throw new UnsupportedOperationException("Unimplemented Stub Method");
+            }
+        };
+        MailAddress mailAddress = new MailAddress("test@" + INVALID_HOST);
+        SMTPSession session = setupMockedSMTPSession(mailAddress);
+        ValidRcptMX handler = new ValidRcptMX();
+
+        handler.setDNSService(dns);
+        handler.setBannedNetworks(bNetworks, setupMockedDNSServer());
+        handler.startLookups(session, "RCPT", "TO:<" + mailAddress + ">");
+
+        assertEquals("Defer", HookReturnCode.DENYSOFT, handler.doRcpt(session, null, mailAddress).getResult());
+        assertEquals(1, lookups.get());
+    }
+
 }
@@ -47,11 +47,20 @@ public class NamedThreadFactory implements ThreadFactory {
      */
     public Thread newThread(Runnable r) {
         Thread t = new Thread(r);
-        t.setName(name + "-" + count.incrementAndGet());
+        t.setName(nextThreadName());
         t.setPriority(priority);
         return t;
     }
 
+    /**
+     * Return the name for the next thread
+     * 
+     * @return threadName
+     */
+    protected String nextThreadName() {
+        return name + "-" + count.incrementAndGet();
+    }
+
     /**
      * Return the name
      * 
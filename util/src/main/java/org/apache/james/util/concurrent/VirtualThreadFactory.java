@@ -0,0 +1,101 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * {@link NamedThreadFactory} which creates virtual threads. Virtual threads
+ * are cheap to create and to block, so a server which uses one thread per
+ * connection can serve many more connections with them.
+ * 
+ * Virtual threads are available since Java 21. They are created via
+ * reflection, so this class can be compiled and loaded on older runtimes,
+ * check {@link #isSupported()} before creating an instance.
+ */
+public class VirtualThreadFactory extends NamedThreadFactory {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+
+            // the method is a preview feature on some runtimes
+            unstarted.invoke(ofVirtual.invoke(null), new Runnable() {
+                public void run() {
+                }
+            });
+        } catch (Throwable t) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    /**
+     * Return true if the runtime supports virtual threads
+     * 
+     * @return supported
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param name
+     * @throws UnsupportedOperationException
+     *             if the runtime does not support virtual threads
+     */
+    public VirtualThreadFactory(String name) {
+        super(name);
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this runtime");
+        }
+    }
+
+    /**
+     * @see org.apache.james.util.concurrent.NamedThreadFactory#newThread(java.lang.Runnable)
+     */
+    public Thread newThread(Runnable r) {
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), nextThreadName());
+            return (Thread) UNSTARTED.invoke(builder, r);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to create virtual thread", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to create virtual thread", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualThreadFactory: " + getName();
+    }
+}
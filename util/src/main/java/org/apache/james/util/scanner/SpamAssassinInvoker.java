@@ -21,19 +21,14 @@ package org.apache.james.util.scanner;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 /**
  * Sends the message through daemonized SpamAssassin (spamd), visit <a
  * href="SpamAssassin.org">SpamAssassin.org</a> for info on configuration.
+ * 
+ * The connections are handled by the given {@link SpamdClient}.
  */
 public class SpamAssassinInvoker {
 
@@ -43,9 +38,11 @@ public class SpamAssassinInvoker {
     /** The mail attribute under which the flag get stored */
     public final static String FLAG_MAIL_ATTRIBUTE_NAME = "org.apache.james.spamassassin.flag";
 
-    private String spamdHost;
+    private SpamdClient client;
 
-    private int spamdPort;
+    private long maxMessageSize = 0;
+
+    private boolean sample = false;
 
     private String hits = "?";
 
@@ -54,7 +51,9 @@ public class SpamAssassinInvoker {
     private Map<String, String> headers = new HashMap<String, String>();
 
     /**
-     * Init the spamassassin invoker
+     * Init the spamassassin invoker with a client of its own, which is not
+     * exported via JMX. Use {@link #SpamAssassinInvoker(SpamdClient)} with the
+     * shared client to limit the connections to spamd.
      * 
      * @param spamdHost
      *            The host on which spamd runs
@@ -62,8 +61,17 @@ public class SpamAssassinInvoker {
      *            The port on which spamd listen
      */
     public SpamAssassinInvoker(String spamdHost, int spamdPort) {
-        this.spamdHost = spamdHost;
-        this.spamdPort = spamdPort;
+        this(new SpamdClient(spamdHost, spamdPort));
+    }
+
+    /**
+     * Init the spamassassin invoker
+     * 
+     * @param client
+     *            The client which is used to talk to spamd
+     */
+    public SpamAssassinInvoker(SpamdClient client) {
+        this.client = client;
     }
 
     /**
@@ -76,71 +84,45 @@ public class SpamAssassinInvoker {
      *             if an error on scanning is detected
      */
     public boolean scanMail(MimeMessage message) throws MessagingException {
-        Socket socket = null;
-        OutputStream out = null;
-        BufferedReader in = null;
-
-        try {
-            socket = new Socket(spamdHost, spamdPort);
-
-            out = socket.getOutputStream();
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.write("CHECK SPAMC/1.2\r\n\r\n".getBytes());
-
-            // pass the message to spamd
-            message.writeTo(out);
-            out.flush();
-            socket.shutdownOutput();
-            String s = null;
-            while ((s = in.readLine()) != null) {
-                if (s.startsWith("Spam:")) {
-                    StringTokenizer t = new StringTokenizer(s, " ");
-                    boolean spam;
-                    try {
-                        t.nextToken();
-                        spam = Boolean.valueOf(t.nextToken()).booleanValue();
-                    } catch (Exception e) {
-                        // On exception return flase
-                        return false;
-                    }
-                    t.nextToken();
-                    hits = t.nextToken();
-                    t.nextToken();
-                    required = t.nextToken();
-
-                    if (spam) {
-                        // message was spam
-                        headers.put(FLAG_MAIL_ATTRIBUTE_NAME, "YES");
-                        headers.put(STATUS_MAIL_ATTRIBUTE_NAME, new StringBuffer("Yes, hits=").append(hits).append(" required=").append(required).toString());
-
-                        // spam detected
-                        return true;
-                    } else {
-                        // add headers
-                        headers.put(FLAG_MAIL_ATTRIBUTE_NAME, "NO");
-                        headers.put(STATUS_MAIL_ATTRIBUTE_NAME, new StringBuffer("No, hits=").append(hits).append(" required=").append(required).toString());
-
-                        return false;
-                    }
-                }
-            }
-            return false;
-        } catch (UnknownHostException e1) {
-            throw new MessagingException("Error communicating with spamd. Unknown host: " + spamdHost);
-        } catch (IOException e1) {
-            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " Exception: " + e1);
-        } catch (MessagingException e1) {
-            throw new MessagingException("Error communicating with spamd on " + spamdHost + ":" + spamdPort + " Exception: " + e1);
-        } finally {
-            try {
-                in.close();
-                out.close();
-                socket.close();
-            } catch (Exception e) {
-                // Should never happin
-            }
+        return scanMail(message, -1);
+    }
+
+    /**
+     * Set the size in bytes above which messages are not scanned completely by
+     * this invoker. 0 disables the limit.
+     * 
+     * @param maxMessageSize
+     *            the maximum message size
+     * @param sample
+     *            true if a sample of bigger messages should be scanned, false
+     *            if they should be skipped
+     */
+    public void setMaxMessageSize(long maxMessageSize, boolean sample) {
+        this.maxMessageSize = maxMessageSize;
+        this.sample = sample;
+    }
 
+    /**
+     * Scan a MimeMessage for spam by passing it to spamd. Messages which are
+     * skipped because of their size are not spam.
+     * 
+     * @param message
+     *            The MimeMessage to scan
+     * @param size
+     *            The size of the message in bytes, or -1 if it is unknown
+     * @return true if spam otherwise false
+     * @throws MessagingException
+     *             if an error on scanning is detected
+     */
+    public boolean scanMail(MimeMessage message, long size) throws MessagingException {
+        SpamdResult result = client.scan(message, size, maxMessageSize, sample);
+        if (result == null) {
+            return false;
         }
+        hits = result.getHits();
+        required = result.getRequiredHits();
+        headers = result.getHeadersAsAttribute();
+        return result.isSpam();
     }
 
     /**
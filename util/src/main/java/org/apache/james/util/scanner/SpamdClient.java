@@ -0,0 +1,627 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Client for daemonized SpamAssassin (spamd).
+ * 
+ * spamd answers one request per connection, so the client does not keep
+ * connections open but limits the count of concurrent connections. A scan
+ * which does not get a connection within the connect timeout fails. The
+ * message is written directly to the socket, without copying it first.
+ * 
+ * Messages above the maximum message size which is passed to the scan are
+ * skipped or, if configured, only a sample of the message is scanned: its
+ * start and its end, which together are not bigger than the maximum size. The
+ * end is kept in memory until the whole message was read, so a scan holds up
+ * to half the maximum size in memory.
+ * 
+ * The clients are shared by all users of the same spamd, see
+ * {@link #getInstance(String, int)}. So the connection limit and the timeouts
+ * apply to all of them.
+ * 
+ * The client has no asynchronous API. The SMTP message hooks and the mailets
+ * need the result before they return, so a scan could only be handed to
+ * another thread which the caller waits for. The caller waits at most the
+ * connect timeout for a connection and the read timeout for the answer.
+ */
+public class SpamdClient implements SpamdClientMBean {
+
+    /**
+     * Default maximum count of concurrent connections
+     */
+    public final static int DEFAULT_MAX_CONNECTIONS = 10;
+
+    /**
+     * Default connect timeout in milliseconds
+     */
+    public final static int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    /**
+     * Default read timeout in milliseconds
+     */
+    public final static int DEFAULT_READ_TIMEOUT = 60000;
+
+    private final static String MBEAN_NAME = "org.apache.james:type=component,name=spamd,target=";
+
+    private final static Map<String, SpamdClient> INSTANCES = new HashMap<String, SpamdClient>();
+
+    private final static byte[] SAMPLE_SEPARATOR = "\r\n".getBytes();
+
+    private final static byte[] CHECK_COMMAND = "CHECK SPAMC/1.2\r\n\r\n".getBytes();
+
+    private final String host;
+
+    private final int port;
+
+    /** The count of users which got the shared client, guarded by INSTANCES */
+    private int references = 0;
+
+    /** The name of the MBean, if this client registered it */
+    private ObjectName mbeanName;
+
+    private final Object lock = new Object();
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    private int activeConnections = 0;
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private final AtomicLong scans = new AtomicLong(0);
+
+    private final AtomicLong spam = new AtomicLong(0);
+
+    private final AtomicLong errors = new AtomicLong(0);
+
+    private final AtomicLong timeouts = new AtomicLong(0);
+
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    private final AtomicLong skipped = new AtomicLong(0);
+
+    private final AtomicLong sampled = new AtomicLong(0);
+
+    private final AtomicLong totalScanTime = new AtomicLong(0);
+
+    private final AtomicLong maxScanTime = new AtomicLong(0);
+
+    /**
+     * Return the client which is shared by all users of the given spamd. The
+     * client is exported via JMX while it is used. Every user needs to pass
+     * the client to {@link #releaseInstance(SpamdClient)} once it does not
+     * use it anymore.
+     * 
+     * @param host
+     *            The host on which spamd runs
+     * @param port
+     *            The port on which spamd listen
+     * @return client
+     */
+    public static SpamdClient getInstance(String host, int port) {
+        String target = host + ":" + port;
+        synchronized (INSTANCES) {
+            SpamdClient client = INSTANCES.get(target);
+            if (client == null) {
+                client = new SpamdClient(host, port);
+                client.registerMBean(target);
+                INSTANCES.put(target, client);
+            }
+            client.references++;
+            return client;
+        }
+    }
+
+    /**
+     * Release a client which was returned by
+     * {@link #getInstance(String, int)}. The client is removed and its MBean
+     * is unregistered once no user is left.
+     * 
+     * @param client
+     */
+    public static void releaseInstance(SpamdClient client) {
+        synchronized (INSTANCES) {
+            String target = client.host + ":" + client.port;
+            if (INSTANCES.get(target) != client || --client.references > 0) {
+                return;
+            }
+            INSTANCES.remove(target);
+            client.unregisterMBean();
+        }
+    }
+
+    private void registerMBean(String target) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME + ObjectName.quote(target));
+            mbeanServer.registerMBean(this, name);
+            mbeanName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by another classloader
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (Exception e) {
+            // already unregistered
+        }
+        mbeanName = null;
+    }
+
+    /**
+     * @param host
+     *            The host on which spamd runs
+     * @param port
+     *            The port on which spamd listen
+     */
+    public SpamdClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Set the timeout in milliseconds to wait for a free connection and to
+     * connect to spamd
+     * 
+     * @param connectTimeout
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Set the timeout in milliseconds to wait for the answer of spamd
+     * 
+     * @param readTimeout
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#setMaxConnections(int)
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed");
+        }
+        synchronized (lock) {
+            this.maxConnections = maxConnections;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Scan a message completely.
+     * 
+     * @param message
+     *            The MimeMessage to scan
+     * @param size
+     *            The size of the message in bytes, or -1 if it is unknown
+     * @return the result
+     * @throws MessagingException
+     *             if the message could not be scanned
+     */
+    public SpamdResult scan(MimeMessage message, long size) throws MessagingException {
+        return scan(message, size, 0, false);
+    }
+
+    /**
+     * Scan a message.
+     * 
+     * @param message
+     *            The MimeMessage to scan
+     * @param size
+     *            The size of the message in bytes, or -1 if it is unknown
+     * @param limit
+     *            The size in bytes above which messages are not scanned
+     *            completely, 0 for no limit
+     * @param sample
+     *            true if a sample of bigger messages should be scanned, false
+     *            if they should be skipped
+     * @return the result or <code>null</code> if the message was skipped
+     *         because of its size
+     * @throws MessagingException
+     *             if the message could not be scanned
+     */
+    public SpamdResult scan(MimeMessage message, long size, long limit, boolean sample) throws MessagingException {
+        if (limit > 0 && !sample) {
+            if (size < 0) {
+                size = message.getSize();
+            }
+            if (size > limit) {
+                skipped.incrementAndGet();
+                return null;
+            }
+        }
+
+        try {
+            if (!acquire()) {
+                rejected.incrementAndGet();
+                throw new MessagingException("Error communicating with spamd on " + host + ":" + port + " No free connection within " + connectTimeout + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a connection to spamd on " + host + ":" + port);
+        }
+
+        long start = System.currentTimeMillis();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(CHECK_COMMAND);
+
+            // pass the message to spamd
+            if (limit > 0 && sample) {
+                SampleOutputStream sampleOut = new SampleOutputStream(out, limit);
+                message.writeTo(sampleOut);
+                if (sampleOut.finish()) {
+                    sampled.incrementAndGet();
+                }
+            } else {
+                message.writeTo(out);
+            }
+            out.flush();
+            socket.shutdownOutput();
+
+            SpamdResult result = readResult(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+            if (result.isSpam()) {
+                spam.incrementAndGet();
+            }
+            scans.incrementAndGet();
+            recordScanTime(System.currentTimeMillis() - start);
+            return result;
+        } catch (UnknownHostException e) {
+            errors.incrementAndGet();
+            throw new MessagingException("Error communicating with spamd. Unknown host: " + host);
+        } catch (SocketTimeoutException e) {
+            errors.incrementAndGet();
+            timeouts.incrementAndGet();
+            throw new MessagingException("Error communicating with spamd on " + host + ":" + port + " Exception: " + e);
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            throw new MessagingException("Error communicating with spamd on " + host + ":" + port + " Exception: " + e);
+        } catch (MessagingException e) {
+            errors.incrementAndGet();
+            throw new MessagingException("Error communicating with spamd on " + host + ":" + port + " Exception: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+            release();
+        }
+    }
+
+    private SpamdResult readResult(BufferedReader in) throws IOException, MessagingException {
+        String s = null;
+        while ((s = in.readLine()) != null) {
+            if (s.startsWith("SPAMD/")) {
+                // the status line, the response code 0 is EX_OK
+                StringTokenizer t = new StringTokenizer(s, " ");
+                t.nextToken();
+                if (t.hasMoreTokens() && !"0".equals(t.nextToken())) {
+                    throw new MessagingException("spamd returned an error: " + s);
+                }
+            } else if (s.startsWith("Spam:")) {
+                StringTokenizer t = new StringTokenizer(s, " ");
+                try {
+                    t.nextToken();
+                    boolean isSpam = Boolean.valueOf(t.nextToken()).booleanValue();
+                    t.nextToken();
+                    String hits = t.nextToken();
+                    t.nextToken();
+                    String required = t.nextToken();
+                    return new SpamdResult(isSpam, hits, required);
+                } catch (Exception e) {
+                    // On exception return not spam
+                    return new SpamdResult(false, "?", "?");
+                }
+            }
+        }
+        return new SpamdResult(false, "?", "?");
+    }
+
+    private boolean acquire() throws InterruptedException {
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + connectTimeout;
+            while (activeConnections >= maxConnections) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                lock.wait(wait);
+            }
+            activeConnections++;
+            return true;
+        }
+    }
+
+    private void release() {
+        synchronized (lock) {
+            activeConnections--;
+            lock.notify();
+        }
+    }
+
+    private void recordScanTime(long time) {
+        totalScanTime.addAndGet(time);
+        long max = maxScanTime.get();
+        while (time > max && !maxScanTime.compareAndSet(max, time)) {
+            max = maxScanTime.get();
+        }
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getHost()
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getPort()
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getMaxConnections()
+     */
+    public int getMaxConnections() {
+        synchronized (lock) {
+            return maxConnections;
+        }
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getActiveConnections()
+     */
+    public int getActiveConnections() {
+        synchronized (lock) {
+            return activeConnections;
+        }
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getConnectTimeout()
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getReadTimeout()
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getScanCount()
+     */
+    public long getScanCount() {
+        return scans.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getSpamCount()
+     */
+    public long getSpamCount() {
+        return spam.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getErrorCount()
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getTimeoutCount()
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getRejectedCount()
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getSkippedCount()
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getSampledCount()
+     */
+    public long getSampledCount() {
+        return sampled.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getAverageScanTime()
+     */
+    public long getAverageScanTime() {
+        long count = scans.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalScanTime.get() / count;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getMaxScanTime()
+     */
+    public long getMaxScanTime() {
+        return maxScanTime.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#resetStatistics()
+     */
+    public void resetStatistics() {
+        scans.set(0);
+        spam.set(0);
+        errors.set(0);
+        timeouts.set(0);
+        rejected.set(0);
+        skipped.set(0);
+        sampled.set(0);
+        totalScanTime.set(0);
+        maxScanTime.set(0);
+    }
+
+    /**
+     * {@link OutputStream} which passes a sample of the written bytes: the
+     * start is passed directly, the end is kept until {@link #finish()} is
+     * called. Both together are not bigger than the given limit.
+     */
+    private static final class SampleOutputStream extends FilterOutputStream {
+
+        private long head;
+
+        private final int tailSize;
+
+        private byte[] tail;
+
+        private int tailStart;
+
+        private int tailLength;
+
+        private boolean dropped;
+
+        public SampleOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.tailSize = (int) Math.min(limit / 2, Integer.MAX_VALUE);
+            this.head = limit - tailSize;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (head > 0) {
+                int count = (int) Math.min(len, head);
+                out.write(b, off, count);
+                head -= count;
+                off += count;
+                len -= count;
+            }
+            if (len > 0) {
+                keep(b, off, len);
+            }
+        }
+
+        /**
+         * Keep the given bytes as the end of the sample, the oldest kept
+         * bytes are dropped if needed
+         */
+        private void keep(byte[] b, int off, int len) {
+            if (tailSize == 0) {
+                dropped = true;
+                return;
+            }
+            if (tail == null) {
+                tail = new byte[tailSize];
+            }
+            if (len >= tailSize) {
+                dropped |= tailLength > 0 || len > tailSize;
+                System.arraycopy(b, off + len - tailSize, tail, 0, tailSize);
+                tailStart = 0;
+                tailLength = tailSize;
+                return;
+            }
+            int end = (tailStart + tailLength) % tailSize;
+            int overflow = tailLength + len - tailSize;
+            if (overflow > 0) {
+                dropped = true;
+                tailStart = (tailStart + overflow) % tailSize;
+                tailLength -= overflow;
+            }
+            int first = Math.min(len, tailSize - end);
+            System.arraycopy(b, off, tail, end, first);
+            System.arraycopy(b, off + first, tail, 0, len - first);
+            tailLength += len;
+        }
+
+        /**
+         * Pass the kept end of the sample. The start and the end are separated
+         * by a line break if bytes were dropped between them.
+         * 
+         * @return true if bytes were dropped
+         * @throws IOException
+         */
+        public boolean finish() throws IOException {
+            if (dropped) {
+                out.write(SAMPLE_SEPARATOR);
+            }
+            if (tailLength > 0) {
+                int first = Math.min(tailLength, tailSize - tailStart);
+                out.write(tail, tailStart, first);
+                out.write(tail, 0, tailLength - first);
+            }
+            return dropped;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+/**
+ * JMX Bean which shows the limits and statistics of a {@link SpamdClient}
+ */
+public interface SpamdClientMBean {
+
+    /**
+     * Return the host spamd runs on
+     * 
+     * @return host
+     */
+    String getHost();
+
+    /**
+     * Return the port spamd listens on
+     * 
+     * @return port
+     */
+    int getPort();
+
+    /**
+     * Return the maximum count of concurrent connections to spamd
+     * 
+     * @return maxConnections
+     */
+    int getMaxConnections();
+
+    /**
+     * Set the maximum count of concurrent connections to spamd
+     * 
+     * @param maxConnections
+     */
+    void setMaxConnections(int maxConnections);
+
+    /**
+     * Return the count of open connections to spamd
+     * 
+     * @return activeConnections
+     */
+    int getActiveConnections();
+
+    /**
+     * Return the connect timeout in milliseconds
+     * 
+     * @return connectTimeout
+     */
+    int getConnectTimeout();
+
+    /**
+     * Return the read timeout in milliseconds
+     * 
+     * @return readTimeout
+     */
+    int getReadTimeout();
+
+    /**
+     * Return the count of finished scans
+     * 
+     * @return scanCount
+     */
+    long getScanCount();
+
+    /**
+     * Return the count of messages which were flagged as spam
+     * 
+     * @return spamCount
+     */
+    long getSpamCount();
+
+    /**
+     * Return the count of scans which failed
+     * 
+     * @return errorCount
+     */
+    long getErrorCount();
+
+    /**
+     * Return the count of scans which failed because spamd did not answer in
+     * time
+     * 
+     * @return timeoutCount
+     */
+    long getTimeoutCount();
+
+    /**
+     * Return the count of scans which failed because no connection was free
+     * in time
+     * 
+     * @return rejectedCount
+     */
+    long getRejectedCount();
+
+    /**
+     * Return the count of messages which were skipped because of their size
+     * 
+     * @return skippedCount
+     */
+    long getSkippedCount();
+
+    /**
+     * Return the count of messages of which only a sample was scanned
+     * 
+     * @return sampledCount
+     */
+    long getSampledCount();
+
+    /**
+     * Return the average time in milliseconds of the finished scans
+     * 
+     * @return averageScanTime
+     */
+    long getAverageScanTime();
+
+    /**
+     * Return the maximal time in milliseconds of the finished scans
+     * 
+     * @return maxScanTime
+     */
+    long getMaxScanTime();
+
+    /**
+     * Reset the statistics
+     */
+    void resetStatistics();
+}
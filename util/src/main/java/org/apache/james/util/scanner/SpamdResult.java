@@ -0,0 +1,87 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Result of a spamd scan
+ */
+public class SpamdResult {
+
+    private final boolean spam;
+
+    private final String hits;
+
+    private final String required;
+
+    /**
+     * @param spam
+     *            true if spamd flagged the message as spam
+     * @param hits
+     *            the hits of the message
+     * @param required
+     *            the hits which are required to flag a message as spam
+     */
+    public SpamdResult(boolean spam, String hits, String required) {
+        this.spam = spam;
+        this.hits = hits;
+        this.required = required;
+    }
+
+    /**
+     * Return true if the message is spam
+     * 
+     * @return spam
+     */
+    public boolean isSpam() {
+        return spam;
+    }
+
+    /**
+     * Return the hits which was returned by spamd
+     * 
+     * @return hits
+     */
+    public String getHits() {
+        return hits;
+    }
+
+    /**
+     * Return the required hits
+     * 
+     * @return required
+     */
+    public String getRequiredHits() {
+        return required;
+    }
+
+    /**
+     * Return the headers which spamd generates as attributes
+     * 
+     * @return headers
+     */
+    public Map<String, String> getHeadersAsAttribute() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME, spam ? "YES" : "NO");
+        headers.put(SpamAssassinInvoker.STATUS_MAIL_ATTRIBUTE_NAME, new StringBuffer(spam ? "Yes" : "No").append(", hits=").append(hits).append(" required=").append(required).toString());
+        return headers;
+    }
+}
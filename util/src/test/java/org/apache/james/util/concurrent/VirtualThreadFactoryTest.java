@@ -0,0 +1,68 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class VirtualThreadFactoryTest extends TestCase {
+
+    public void testCreateThreads() throws Exception {
+        if (!VirtualThreadFactory.isSupported()) {
+            try {
+                new VirtualThreadFactory("test");
+                fail();
+            } catch (UnsupportedOperationException e) {
+                // expected on runtimes before Java 21
+            }
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1000);
+        ExecutorService executor = JMXEnabledThreadPoolExecutor.newCachedThreadPool(null, new VirtualThreadFactory("test"));
+        try {
+            // all tasks block at the same time
+            for (int i = 0; i < 1000; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        latch.countDown();
+                        try {
+                            latch.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+
+        Thread thread = new VirtualThreadFactory("test").newThread(new Runnable() {
+            public void run() {
+            }
+        });
+        assertEquals("test-1", thread.getName());
+        assertTrue(thread.isDaemon());
+    }
+}
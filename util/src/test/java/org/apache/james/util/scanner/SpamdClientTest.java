@@ -0,0 +1,283 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+public class SpamdClientTest extends TestCase {
+
+    private final static String GTUBE = "-SPAM-";
+
+    private FakeSpamd spamd;
+
+    private SpamdClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        spamd = new FakeSpamd();
+        new Thread(spamd).start();
+        client = new SpamdClient("127.0.0.1", spamd.getPort());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        spamd.close();
+    }
+
+    private MimeMessage createMessage(String text) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setText(text);
+        message.saveChanges();
+        return message;
+    }
+
+    public void testNotSpam() throws Exception {
+        SpamdResult result = client.scan(createMessage("test"), -1);
+
+        assertFalse(result.isSpam());
+        assertEquals("3", result.getHits());
+        assertEquals("5", result.getRequiredHits());
+        assertEquals("NO", result.getHeadersAsAttribute().get(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME));
+        assertEquals(1, client.getScanCount());
+        assertEquals(0, client.getSpamCount());
+        assertEquals(0, client.getActiveConnections());
+    }
+
+    public void testSpam() throws Exception {
+        SpamAssassinInvoker invoker = new SpamAssassinInvoker(client);
+
+        assertTrue(invoker.scanMail(createMessage(GTUBE)));
+        assertEquals("1000", invoker.getHits());
+        assertEquals("YES", invoker.getHeadersAsAttribute().get(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME));
+        assertEquals(1, client.getSpamCount());
+    }
+
+    public void testSkipLargeMessage() throws Exception {
+        assertNull(client.scan(createMessage("a message which is too big"), 100, 10, false));
+        assertEquals(1, client.getSkippedCount());
+        assertEquals(0, spamd.getConnections());
+    }
+
+    public void testSampleLargeMessage() throws Exception {
+        SpamdResult result = client.scan(createMessage("a message which is too big " + GTUBE), 100, 20, true);
+
+        assertTrue("the end is scanned", result.isSpam());
+        assertEquals(1, client.getSampledCount());
+        assertTrue(spamd.getLastRequestSize() <= 20 + "\r\n".length() + "CHECK SPAMC/1.2\r\n\r\n".length());
+        assertTrue(spamd.getLastRequest().startsWith("CHECK SPAMC/1.2\r\n\r\n" + new String(toBytes(createMessage("")), 0, 10, "US-ASCII")));
+    }
+
+    public void testSampleOfSmallMessageIsComplete() throws Exception {
+        MimeMessage message = createMessage("test");
+        client.scan(message, -1, 10000, true);
+
+        assertEquals(0, client.getSampledCount());
+        assertEquals("CHECK SPAMC/1.2\r\n\r\n" + new String(toBytes(message), "US-ASCII"), spamd.getLastRequest());
+    }
+
+    public void testSharedInstanceIsUnregistered() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.apache.james:type=component,name=spamd,target=" + ObjectName.quote("127.0.0.1:" + spamd.getPort()));
+
+        SpamdClient shared = SpamdClient.getInstance("127.0.0.1", spamd.getPort());
+        assertSame(shared, SpamdClient.getInstance("127.0.0.1", spamd.getPort()));
+        assertTrue(mbeanServer.isRegistered(name));
+
+        SpamdClient.releaseInstance(shared);
+        assertTrue("still used", mbeanServer.isRegistered(name));
+        SpamdClient.releaseInstance(shared);
+        assertFalse(mbeanServer.isRegistered(name));
+
+        // a new user gets a new client
+        SpamdClient other = SpamdClient.getInstance("127.0.0.1", spamd.getPort());
+        try {
+            assertNotSame(shared, other);
+            assertTrue(mbeanServer.isRegistered(name));
+        } finally {
+            SpamdClient.releaseInstance(other);
+        }
+    }
+
+    private byte[] toBytes(MimeMessage message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    public void testSizeLimitOfInvoker() throws Exception {
+        SpamAssassinInvoker limited = new SpamAssassinInvoker(client);
+        limited.setMaxMessageSize(10, false);
+        assertFalse(limited.scanMail(createMessage("a message which is too big " + GTUBE), 100));
+        assertEquals(1, client.getSkippedCount());
+
+        // the limit does not apply to other users of the client
+        assertTrue(new SpamAssassinInvoker(client).scanMail(createMessage("a message which is too big " + GTUBE), 100));
+    }
+
+    public void testConnectionLimit() throws Exception {
+        spamd.setDelay(1000);
+        client.setMaxConnections(1);
+        client.setConnectTimeout(200);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final MimeMessage message = createMessage("test");
+            Future<SpamdResult> first = executor.submit(new Callable<SpamdResult>() {
+                public SpamdResult call() throws Exception {
+                    return client.scan(message, -1);
+                }
+            });
+            while (client.getActiveConnections() == 0) {
+                Thread.sleep(10);
+            }
+            try {
+                client.scan(createMessage("test"), -1);
+                fail("no connection should be free");
+            } catch (MessagingException e) {
+                // expected
+            }
+            assertEquals(1, client.getRejectedCount());
+            assertFalse(first.get().isSpam());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testReadTimeout() throws Exception {
+        spamd.setDelay(2000);
+        client.setReadTimeout(200);
+
+        try {
+            client.scan(createMessage("test"), -1);
+            fail("spamd should not answer in time");
+        } catch (MessagingException e) {
+            // expected
+        }
+        assertEquals(1, client.getTimeoutCount());
+        assertEquals(0, client.getActiveConnections());
+    }
+
+    /**
+     * spamd which answers every connection and flags messages which contain
+     * {@link SpamdClientTest#GTUBE}
+     */
+    private final static class FakeSpamd implements Runnable {
+
+        private final ServerSocket socket;
+
+        private final AtomicInteger connections = new AtomicInteger(0);
+
+        private volatile String lastRequest;
+
+        private volatile long delay;
+
+        public FakeSpamd() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        public int getPort() {
+            return socket.getLocalPort();
+        }
+
+        public int getConnections() {
+            return connections.get();
+        }
+
+        public int getLastRequestSize() {
+            return lastRequest.length();
+        }
+
+        public String getLastRequest() {
+            return lastRequest;
+        }
+
+        public void setDelay(long delay) {
+            this.delay = delay;
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket connection = socket.accept();
+                    connections.incrementAndGet();
+                    new Thread() {
+                        public void run() {
+                            handle(connection);
+                        }
+                    }.start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void handle(Socket connection) {
+            try {
+                InputStream in = connection.getInputStream();
+                ByteArrayOutputStream request = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    request.write(buffer, 0, read);
+                }
+                lastRequest = new String(request.toByteArray(), "US-ASCII");
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                boolean spam = lastRequest.indexOf(GTUBE) >= 0;
+                OutputStream out = connection.getOutputStream();
+                out.write(("SPAMD/1.1 0 EX_OK\r\n" + (spam ? "Spam: True ; 1000 / 5" : "Spam: False ; 3 / 5") + "\r\n\r\n").getBytes("US-ASCII"));
+                out.flush();
+            } catch (Exception e) {
+                // the client gave up
+            } finally {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+    }
+}